@@ -0,0 +1,95 @@
+package gg.amy.pgorm.benchmarks;
+
+import gg.amy.pgorm.PgMapper;
+import gg.amy.pgorm.annotations.BtreeIndex;
+import gg.amy.pgorm.annotations.PrimaryKey;
+import gg.amy.pgorm.annotations.Table;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-call latency of the mapper hot path with the database
+ * stubbed out by {@link StubPgStore}. Run with <code>-prof gc</code> to see
+ * the allocation rate per operation.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapperBenchmark {
+    private PgMapper<BenchmarkEntity> mapper;
+    private BenchmarkEntity entity;
+    private List<BenchmarkEntity> entities;
+    
+    @Setup
+    public void setup() {
+        final StubPgStore store = new StubPgStore();
+        mapper = store.mapSync(BenchmarkEntity.class);
+        entity = new BenchmarkEntity("1234", "some name", "something", 1234L);
+        entities = new ArrayList<>();
+        for(int i = 0; i < 100; i++) {
+            entities.add(new BenchmarkEntity(Integer.toString(i), "some name", "something", i));
+        }
+        store.setRow("{\"id\":\"1234\",\"name\":\"some name\",\"something\":\"something\",\"someNumber\":1234}");
+    }
+    
+    @Benchmark
+    public void save() {
+        mapper.save(entity);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(100)
+    public void saveAll() {
+        mapper.saveAll(entities);
+    }
+    
+    @Benchmark
+    public Optional<BenchmarkEntity> load() {
+        return mapper.load("1234");
+    }
+    
+    @Benchmark
+    public List<BenchmarkEntity> loadManyBySubkey() {
+        return mapper.loadManyBySubkey("data->>'name'", "some name");
+    }
+    
+    @Table("benchmark_entities")
+    @BtreeIndex("name")
+    public static final class BenchmarkEntity {
+        @PrimaryKey
+        public String id;
+        public String name;
+        public String something;
+        public long someNumber;
+        
+        public BenchmarkEntity() {
+        }
+        
+        public BenchmarkEntity(final String id, final String name, final String something, final long someNumber) {
+            this.id = id;
+            this.name = name;
+            this.something = something;
+            this.someNumber = someNumber;
+        }
+    }
+}
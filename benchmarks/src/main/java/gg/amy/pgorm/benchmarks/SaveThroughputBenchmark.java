@@ -0,0 +1,117 @@
+package gg.amy.pgorm.benchmarks;
+
+import gg.amy.pgorm.PgMapper;
+import gg.amy.pgorm.PgStore;
+import gg.amy.pgorm.benchmarks.MapperBenchmark.BenchmarkEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many entities per second a real database takes, saving them
+ * one at a time with {@link PgMapper#save(Object)} and in chunks of
+ * different sizes with {@link PgMapper#saveAll(java.util.Collection)}. Every
+ * invocation saves {@link #ENTITIES} new entities, and the table is emptied
+ * before every iteration. <p/>
+ * Needs the same <code>POSTGRES_URL</code>, <code>POSTGRES_USERNAME</code>
+ * and <code>POSTGRES_PASSWORD</code> as the tests, and fails to set up
+ * without them. Select it with <code>java -jar target/benchmarks.jar
+ * SaveThroughputBenchmark</code>.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SaveThroughputBenchmark {
+    private static final int ENTITIES = 1000;
+    
+    @Benchmark
+    @OperationsPerInvocation(ENTITIES)
+    public void save(final Database database) {
+        for(final BenchmarkEntity entity : database.next()) {
+            database.mapper.save(entity);
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(ENTITIES)
+    public List<BenchmarkEntity> saveAll(final Database database, final Chunked chunked) {
+        return database.mapper.saveAll(database.next());
+    }
+    
+    @State(Scope.Thread)
+    public static class Database {
+        private PgStore store;
+        private PgMapper<BenchmarkEntity> mapper;
+        private long nextId;
+        
+        @Setup(Level.Trial)
+        public void connect() {
+            if(System.getenv("POSTGRES_URL") == null || System.getenv("POSTGRES_USERNAME") == null
+                    || System.getenv("POSTGRES_PASSWORD") == null) {
+                throw new IllegalStateException("Set POSTGRES_URL, POSTGRES_USERNAME and POSTGRES_PASSWORD to run against a database");
+            }
+            store = PgStore.fromEnv();
+            store.connect();
+            mapper = store.mapSync(BenchmarkEntity.class);
+        }
+        
+        @Setup(Level.Iteration)
+        public void truncate() {
+            store.sql("TRUNCATE " + mapper.getTableName() + ';');
+        }
+        
+        @TearDown(Level.Trial)
+        public void disconnect() {
+            store.sql("DROP TABLE IF EXISTS " + mapper.getTableName() + ';');
+            store.disconnect();
+        }
+        
+        /**
+         * @return Entities that haven't been saved yet, so every save is an
+         * insert.
+         */
+        private List<BenchmarkEntity> next() {
+            final List<BenchmarkEntity> entities = new ArrayList<>(ENTITIES);
+            for(int i = 0; i < ENTITIES; i++) {
+                final long id = nextId++;
+                entities.add(new BenchmarkEntity(Long.toString(id), "some name", "something", id));
+            }
+            return entities;
+        }
+    }
+    
+    @State(Scope.Thread)
+    public static class Chunked {
+        /**
+         * How many entities each of {@link PgMapper#saveAll(java.util.Collection)}'s
+         * statements writes.
+         */
+        @Param({"10", "100", "1000"})
+        public int chunkSize;
+        
+        @Setup(Level.Trial)
+        public void setChunkSize(final Database database) {
+            database.mapper.setSaveChunkSize(chunkSize);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package gg.amy.pgorm.benchmarks;
+
+import gg.amy.pgorm.PgStore;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+/**
+ * A {@link PgStore} that never touches a database. Every statement succeeds,
+ * and every query returns a single row whose <code>data</code> column is
+ * {@link #getRow()}. This leaves only the mapper's own work (building SQL,
+ * binding parameters, Jackson) for the benchmarks to measure.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+public class StubPgStore extends PgStore {
+    private final Connection connection = proxy(Connection.class, (proxy, method, args) -> {
+        switch(method.getName()) {
+            case "prepareStatement":
+                return statement((Connection) proxy);
+            case "getAutoCommit":
+                return true;
+            default:
+                return defaultValue(method.getReturnType());
+        }
+    });
+    private volatile String row = "{}";
+    
+    public StubPgStore() {
+        super("jdbc:postgresql://localhost/stub", "stub", "stub");
+    }
+    
+    public String getRow() {
+        return row;
+    }
+    
+    /**
+     * @param row The JSON document every query returns.
+     */
+    public void setRow(final String row) {
+        this.row = row;
+    }
+    
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+    
+    @Override
+    protected Connection connection(final boolean read) {
+        return connection;
+    }
+    
+    private PreparedStatement statement(final Connection connection) {
+        return proxy(PreparedStatement.class, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "executeQuery":
+                    return resultSet((PreparedStatement) proxy);
+                case "getConnection":
+                    return connection;
+                case "executeBatch":
+                    return new int[0];
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        });
+    }
+    
+    private ResultSet resultSet(final PreparedStatement statement) {
+        final String data = row;
+        final int[] position = {0};
+        return proxy(ResultSet.class, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "next":
+                    return ++position[0] == 1;
+                case "isBeforeFirst":
+                    return position[0] == 0;
+                case "getString":
+                    return data;
+                case "getBytes":
+                    return data.getBytes(StandardCharsets.UTF_8);
+                case "getStatement":
+                    return statement;
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        });
+    }
+    
+    private static <T> T proxy(final Class<T> type, final InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(StubPgStore.class.getClassLoader(), new Class<?>[] {type}, handler));
+    }
+    
+    private static Object defaultValue(final Class<?> type) {
+        if(type == boolean.class) {
+            return false;
+        } else if(type == int.class) {
+            return 0;
+        } else if(type == long.class) {
+            return 0L;
+        } else if(type == double.class) {
+            return 0.0D;
+        } else if(type == float.class) {
+            return 0.0F;
+        } else if(type == short.class) {
+            return (short) 0;
+        } else if(type == byte.class) {
+            return (byte) 0;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,40 @@
+package gg.amy.pgorm;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The operations every async backend supports for an entity class, so code
+ * can be written against either {@link AsyncPgMapper} (blocking JDBC on an
+ * executor) or {@link ReactivePgMapper} (non-blocking). Both map entities
+ * the same way, to the same tables.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@SuppressWarnings("unused")
+public interface AsyncMapper<T> {
+    /**
+     * Saves the entity. Fails with a {@link VersionConflictException} if the
+     * entity is versioned, and a newer version was saved first.
+     */
+    CompletableFuture<Void> save(T entity);
+    
+    /**
+     * @return A future of the entities that weren't saved because of a
+     * version conflict. Always empty for unversioned entities.
+     */
+    CompletableFuture<List<T>> saveAll(Collection<T> entities);
+    
+    CompletableFuture<Void> delete(Object pk);
+    
+    CompletableFuture<Optional<T>> load(Object pk);
+    
+    /**
+     * @return A future of the entities that were found, by primary key.
+     */
+    CompletableFuture<Map<Object, T>> loadMany(Collection<?> pks);
+}
@@ -1,31 +1,198 @@
 package gg.amy.pgorm;
 
+import gg.amy.pgorm.ConcurrencyLimiter.Lane;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
 
 /**
+ * Runs a {@link PgMapper}'s blocking operations on an executor. Unless given
+ * its own executor, the mapper uses the executor for its store's current
+ * {@link ExecutionMode}. <p/>
+ * If the store has a {@link ConcurrencyLimiter}, saves, deletes, updates and
+ * loads go through it. Write-behind flushes and coalesced loads don't; they
+ * already batch their work into a handful of statements.
+ *
  * @author amy
  * @since 4/10/18.
  */
 @SuppressWarnings({"unused", "WeakerAccess"})
-public class AsyncPgMapper<T> {
-    private static final ExecutorService POOL = Executors.newCachedThreadPool();
+public class AsyncPgMapper<T> implements AsyncMapper<T> {
+    @Getter
     private final PgMapper<T> mapper;
+    /**
+     * The executor this mapper runs on, or {@code null} to use the store's
+     * default.
+     */
+    @Getter
+    @Setter
+    private volatile Executor executor;
+    /**
+     * The write-behind queue that saves go through, or {@code null} if
+     * write-behind mode is off.
+     */
+    @Getter
+    private volatile WriteBehindQueue<T> writeBehind;
+    /**
+     * The coalescer that loads go through, or {@code null} if load
+     * coalescing is off.
+     */
+    @Getter
+    private volatile LoadCoalescer<T> loadCoalescer;
     
     public AsyncPgMapper(final PgMapper<T> mapper) {
         this.mapper = mapper;
     }
     
+    /**
+     * Turns on write-behind mode. Once enabled, {@link #save(Object)} queues
+     * entities instead of writing them immediately; see
+     * {@link WriteBehindQueue} for details. Does nothing if write-behind mode
+     * is already on.
+     *
+     * @param config The write-behind configuration.
+     */
+    public synchronized void enableWriteBehind(final WriteBehindConfig config) {
+        if(writeBehind == null) {
+            writeBehind = new WriteBehindQueue<>(mapper, config);
+        }
+    }
+    
+    /**
+     * Turns off write-behind mode, writing out anything that's still queued
+     * first. Saves that raced with this and reached the queue after it
+     * stopped accepting them fail with a
+     * {@link RejectedExecutionException}.
+     */
+    public synchronized void disableWriteBehind() {
+        if(writeBehind != null) {
+            final WriteBehindQueue<T> queue = writeBehind;
+            writeBehind = null;
+            queue.shutdown();
+        }
+    }
+    
+    /**
+     * Turns on load coalescing. Once enabled, loads arriving within
+     * {@code windowMillis} of each other are run as a single query; see
+     * {@link LoadCoalescer} for details. This trades a little latency for far
+     * fewer queries when many loads happen at once. Does nothing if load
+     * coalescing is already on.
+     *
+     * @param windowMillis How long to collect loads for before querying.
+     * @param maxBatchSize The most loads to collect before querying early.
+     */
+    public synchronized void enableLoadCoalescing(final long windowMillis, final int maxBatchSize) {
+        if(loadCoalescer == null) {
+            loadCoalescer = new LoadCoalescer<>(mapper, this::executor, windowMillis, maxBatchSize);
+        }
+    }
+    
+    public synchronized void disableLoadCoalescing() {
+        if(loadCoalescer != null) {
+            final LoadCoalescer<T> coalescer = loadCoalescer;
+            loadCoalescer = null;
+            coalescer.shutdown();
+        }
+    }
+    
+    @Override
     public CompletableFuture<Void> save(final T entity) {
-        return CompletableFuture.supplyAsync(() -> {
+        final WriteBehindQueue<T> queue = writeBehind;
+        if(queue != null) {
+            return queue.save(entity);
+        }
+        return run(Lane.WRITE, () -> {
             mapper.save(entity);
             return null;
-        }, POOL);
+        });
+    }
+    
+    /**
+     * @return A future of the entities that weren't saved because of a
+     * version conflict. See {@link PgMapper#saveAll(Collection)}.
+     */
+    @Override
+    public CompletableFuture<List<T>> saveAll(final Collection<T> entities) {
+        return run(Lane.WRITE, () -> mapper.saveAll(entities));
+    }
+    
+    @Override
+    public CompletableFuture<Void> delete(final Object pk) {
+        return run(Lane.WRITE, () -> {
+            mapper.delete(pk);
+            return null;
+        });
     }
     
+    /**
+     * @return A new partial update, to run with
+     * {@link #update(Update, Collection)}.
+     */
+    public Update<T> update() {
+        return mapper.update();
+    }
+    
+    public CompletableFuture<Boolean> update(final Update<T> update, final Object pk) {
+        return run(Lane.WRITE, () -> update.execute(pk));
+    }
+    
+    public CompletableFuture<Integer> update(final Update<T> update, final Collection<?> pks) {
+        return run(Lane.WRITE, () -> update.execute(pks));
+    }
+    
+    @Override
     public CompletableFuture<Optional<T>> load(final Object pk) {
-        return CompletableFuture.supplyAsync(() -> mapper.load(pk), POOL);
+        // Cache hits don't need to go anywhere near a thread
+        final EntityCache<T> cache = mapper.getCache();
+        if(cache != null) {
+            final T cached = cache.get(pk);
+            if(cached != null) {
+                return CompletableFuture.completedFuture(Optional.of(cached));
+            }
+        }
+        final LoadCoalescer<T> coalescer = loadCoalescer;
+        // A batch is routed as whichever thread runs it, so callers that
+        // have to read from the primary can't share one
+        if(coalescer != null && !mapper.getStore().getReplicas().pinned()) {
+            return coalescer.load(pk);
+        }
+        return run(Lane.READ, () -> mapper.loadAfterMiss(pk));
+    }
+    
+    @Override
+    public CompletableFuture<Map<Object, T>> loadMany(final Collection<?> pks) {
+        return run(Lane.READ, () -> mapper.loadMany(pks));
+    }
+    
+    private <R> CompletableFuture<R> run(final Lane lane, final Supplier<R> work) {
+        final ConcurrencyLimiter limiter = mapper.getStore().getConcurrencyLimiter();
+        if(limiter != null) {
+            return limiter.submit(lane, work, executor());
+        }
+        return CompletableFuture.supplyAsync(work, executor());
+    }
+    
+    private Executor executor() {
+        final Executor override = executor;
+        // Work runs on behalf of the caller, as far as read replicas go
+        return mapper.getStore().getReplicas().propagate(override != null ? override : mapper.getStore().getAsyncExecutor());
+    }
+    
+    /**
+     * Stops any background work this mapper is doing, making sure queued
+     * writes are saved first. Called by {@link PgStore#disconnect()}.
+     */
+    void shutdown() {
+        disableLoadCoalescing();
+        disableWriteBehind();
     }
 }
@@ -0,0 +1,20 @@
+package gg.amy.pgorm;
+
+/**
+ * A store that can hand out {@link AsyncMapper}s. Implemented by
+ * {@link PgStore} and {@link ReactivePgStore}.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@SuppressWarnings("unused")
+public interface AsyncStore {
+    void connect();
+    
+    void disconnect();
+    
+    /**
+     * Maps the class, creating its table and indexes if needed.
+     */
+    <T> AsyncMapper<T> mapAsync(Class<T> c);
+}
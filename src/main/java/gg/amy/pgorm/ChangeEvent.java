@@ -0,0 +1,40 @@
+package gg.amy.pgorm;
+
+import lombok.Value;
+
+/**
+ * A row of a mapped table that was inserted, updated or deleted, as seen by
+ * a {@link ChangeFeed}.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@Value
+public class ChangeEvent<T> {
+    private Type type;
+    private Object primaryKey;
+    /**
+     * The entity as it is after the change, or {@code null} for deletes, and
+     * for updates whose document is {@link #isDocumentUnchanged() unchanged}.
+     */
+    private T entity;
+    /**
+     * Whether an update didn't change the document, which was too large for
+     * Postgres to send again, so the entity is {@code null}. Load it if it's
+     * needed, or set {@link ChangeFeedConfig#isReplicaIdentityFull()}.
+     */
+    private boolean documentUnchanged;
+    /**
+     * The position in the WAL of the end of the transaction that made the
+     * change. Every change of a transaction has the same one. Once a change
+     * has been handled, a feed started from this position doesn't see it
+     * again; see {@link ChangeFeedConfig#getStartLsn()}.
+     */
+    private long lsn;
+    
+    public enum Type {
+        INSERT,
+        UPDATE,
+        DELETE
+    }
+}
@@ -0,0 +1,416 @@
+package gg.amy.pgorm;
+
+import com.zaxxer.hikari.HikariDataSource;
+import gg.amy.pgorm.PgMetrics.Operation;
+import gg.amy.pgorm.PgOutputDecoder.Commit;
+import gg.amy.pgorm.PgOutputDecoder.RowChange;
+import org.postgresql.PGConnection;
+import org.postgresql.PGProperty;
+import org.postgresql.replication.LogSequenceNumber;
+import org.postgresql.replication.PGReplicationStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Streams the inserts, updates and deletes of mapped tables as they're
+ * committed, with logical replication, instead of polling for changes. Get
+ * one from {@link PgStore#changeFeed(ChangeFeedConfig)}. <p/>
+ * Changes are decoded by Postgres's built-in <code>pgoutput</code> plugin,
+ * from a publication of the subscribed tables, and mapped to entities the
+ * same way loads are. Handlers run one transaction at a time, in commit
+ * order, on the feed's own thread. The feed stops reading from Postgres
+ * while {@link ChangeFeedConfig#getCapacity()} transactions are waiting for
+ * them, so slow handlers hold back the feed rather than filling memory. <p/>
+ * Postgres is told how far the feed got once a transaction's handlers have
+ * all run, and the replication slot remembers that, so a feed that's
+ * restarted with the same slot carries on from there. Changes are delivered
+ * at least once: anything that was being handled when the feed stopped is
+ * delivered again. <p/>
+ * Updates that don't change a large document don't come with it, since
+ * Postgres doesn't send unchanged TOASTed values; those are delivered without
+ * the entity, flagged {@link ChangeEvent#isDocumentUnchanged()}, unless
+ * {@link ChangeFeedConfig#isReplicaIdentityFull()} is set. <p/>
+ * Needs <code>wal_level = logical</code>, and a user that can replicate and
+ * owns the tables. Postgres keeps WAL around for as long as the slot exists,
+ * so {@link #drop()} the feed when it's no longer needed.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class ChangeFeed implements AutoCloseable {
+    private static final long POLL_DELAY_MILLIS = 10L;
+    private static final long RECONNECT_DELAY_MILLIS = 1000L;
+    /**
+     * How often, in milliseconds, an idle dispatcher moves the checkpoint up
+     * to the last commit that had nothing subscribed in it.
+     */
+    private static final long QUIET_CHECK_MILLIS = 100L;
+    private final PgStore store;
+    private final ChangeFeedConfig config;
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Map<String, Subscription<?>> subscriptions = new ConcurrentHashMap<>();
+    private final BlockingQueue<List<Delivery<?>>> transactions;
+    private final PgOutputDecoder decoder = new PgOutputDecoder();
+    /**
+     * The end of the last transaction whose handlers have all run.
+     */
+    private volatile long checkpoint;
+    /**
+     * How far the reader has read with nothing subscribed to queue, ex. the
+     * end of a transaction that only changed other tables. Once everything
+     * queued before it has been handled, the checkpoint can move up to it,
+     * so that the slot doesn't hold on to WAL while the subscribed tables are
+     * quiet and the rest of the database isn't. Only written by the reader.
+     */
+    private volatile long quiet;
+    private volatile boolean running;
+    private Thread reader;
+    private Thread dispatcher;
+    
+    ChangeFeed(final PgStore store, final ChangeFeedConfig config) {
+        if(config.getCapacity() <= 0) {
+            throw new IllegalArgumentException("Change feed capacity must be positive, but got " + config.getCapacity());
+        }
+        this.store = store;
+        this.config = config;
+        transactions = new ArrayBlockingQueue<>(config.getCapacity());
+        checkpoint = config.getStartLsn();
+    }
+    
+    /**
+     * Subscribes to the changes of an entity class's table. Has to be called
+     * before {@link #start()}.
+     *
+     * @param type    The entity class. It's mapped if it isn't already.
+     * @param handler Called with every change to the table.
+     */
+    public synchronized <T> ChangeFeed subscribe(final Class<T> type, final Consumer<ChangeEvent<T>> handler) {
+        if(running) {
+            throw new IllegalStateException("Can't subscribe to a change feed that's already started!");
+        }
+        final PgMapper<T> mapper = store.mapSync(type);
+        subscriptions.put(mapper.getTableName().toLowerCase(Locale.ROOT), new Subscription<>(mapper, handler));
+        return this;
+    }
+    
+    /**
+     * Creates the publication and replication slot if they don't exist yet,
+     * and starts streaming changes.
+     */
+    public synchronized ChangeFeed start() {
+        if(running) {
+            return this;
+        }
+        if(subscriptions.isEmpty()) {
+            throw new IllegalStateException("Change feed has no subscriptions!");
+        }
+        if(config.isReplicaIdentityFull()) {
+            for(final String table : subscriptions.keySet()) {
+                store.sql("ALTER TABLE " + table + " REPLICA IDENTITY FULL;");
+            }
+        }
+        createPublication();
+        createSlot();
+        running = true;
+        reader = new Thread(this::read, "pgorm-change-feed-reader-" + config.getSlotName());
+        reader.setDaemon(true);
+        reader.start();
+        dispatcher = new Thread(this::dispatch, "pgorm-change-feed-" + config.getSlotName());
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+        logger.info("Started change feed {} for tables {}.", config.getSlotName(), subscriptions.keySet());
+        return this;
+    }
+    
+    /**
+     * @return The end of the last transaction whose changes have all been
+     * handled, to resume from with {@link ChangeFeedConfig#getStartLsn()}.
+     */
+    public long getCheckpoint() {
+        return checkpoint;
+    }
+    
+    /**
+     * Stops the feed. The slot is kept, so a new feed with the same slot
+     * name carries on where this one stopped.
+     */
+    @Override
+    public synchronized void close() {
+        if(!running) {
+            return;
+        }
+        running = false;
+        for(final Thread thread : new Thread[]{reader, dispatcher}) {
+            thread.interrupt();
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch(final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        transactions.clear();
+        logger.info("Stopped change feed {} at {}.", config.getSlotName(), LogSequenceNumber.valueOf(checkpoint));
+    }
+    
+    /**
+     * Stops the feed, and drops its replication slot and publication, so
+     * Postgres no longer keeps WAL around for it.
+     */
+    public void drop() {
+        close();
+        store.sql("SELECT pg_drop_replication_slot(slot_name) FROM pg_replication_slots WHERE slot_name = ?;", s -> {
+            s.setString(1, config.getSlotName());
+            s.execute();
+        });
+        store.sql("DROP PUBLICATION IF EXISTS " + config.getPublicationName() + ';');
+    }
+    
+    private void createPublication() {
+        final boolean[] exists = {false};
+        store.sql("SELECT 1 FROM pg_publication WHERE pubname = ?;", s -> {
+            s.setString(1, config.getPublicationName());
+            try(final ResultSet resultSet = s.executeQuery()) {
+                exists[0] = resultSet.next();
+            }
+        });
+        final String tables = String.join(", ", subscriptions.keySet());
+        if(exists[0]) {
+            store.sql("ALTER PUBLICATION " + config.getPublicationName() + " SET TABLE " + tables + ';');
+        } else {
+            // Changes to partitions have to be published as changes to the
+            // table itself, or they wouldn't match any subscription
+            final boolean partitioned = subscriptions.values().stream().anyMatch(s -> s.mapper.getMetadata().isPartitioned());
+            store.sql("CREATE PUBLICATION " + config.getPublicationName() + " FOR TABLE " + tables
+                    + (partitioned ? " WITH (publish_via_partition_root = true)" : "") + ';');
+        }
+    }
+    
+    private void createSlot() {
+        store.sql("SELECT pg_create_logical_replication_slot(?, 'pgoutput') "
+                + "WHERE NOT EXISTS (SELECT 1 FROM pg_replication_slots WHERE slot_name = ?);", s -> {
+            s.setString(1, config.getSlotName());
+            s.setString(2, config.getSlotName());
+            s.execute();
+        });
+    }
+    
+    /**
+     * Reads changes off a replication connection, and queues each committed
+     * transaction's worth for the dispatcher.
+     */
+    private void read() {
+        while(running) {
+            try(final Connection connection = connect()) {
+                final PGReplicationStream stream = connection.unwrap(PGConnection.class).getReplicationAPI()
+                        .replicationStream()
+                        .logical()
+                        .withSlotName(config.getSlotName())
+                        .withSlotOption("proto_version", "1")
+                        .withSlotOption("publication_names", config.getPublicationName())
+                        .withStartPosition(LogSequenceNumber.valueOf(checkpoint))
+                        .withStatusInterval((int) config.getStatusIntervalMillis(), TimeUnit.MILLISECONDS)
+                        .start();
+                // Relations are sent again on every connection, and the
+                // server starts over from the last checkpoint
+                decoder.reset();
+                List<Delivery<?>> transaction = new ArrayList<>();
+                boolean inTransaction = false;
+                long confirmed = checkpoint;
+                while(running) {
+                    final long delivered = checkpoint;
+                    if(delivered != confirmed) {
+                        stream.setAppliedLSN(LogSequenceNumber.valueOf(delivered));
+                        stream.setFlushedLSN(LogSequenceNumber.valueOf(delivered));
+                        confirmed = delivered;
+                    }
+                    final ByteBuffer message = stream.readPending();
+                    if(message == null) {
+                        if(!inTransaction) {
+                            // Everything received so far has been queued,
+                            // and keepalives move this along even when the
+                            // server skips transactions with nothing
+                            // published in them
+                            quiet(stream.getLastReceiveLSN().asLong());
+                        }
+                        Thread.sleep(POLL_DELAY_MILLIS);
+                        continue;
+                    }
+                    final Object decoded = decoder.decode(message);
+                    if(decoded == PgOutputDecoder.BEGIN) {
+                        inTransaction = true;
+                    } else if(decoded instanceof RowChange) {
+                        final RowChange change = (RowChange) decoded;
+                        final Subscription<?> subscription = subscriptions.get(change.getTable().toLowerCase(Locale.ROOT));
+                        if(subscription != null) {
+                            transaction.add(subscription.delivery(change));
+                        }
+                    } else if(decoded instanceof Commit) {
+                        inTransaction = false;
+                        final long lsn = ((Commit) decoded).getLsn();
+                        if(!transaction.isEmpty()) {
+                            for(final Delivery<?> delivery : transaction) {
+                                delivery.lsn = lsn;
+                            }
+                            enqueue(stream, transaction);
+                            transaction = new ArrayList<>();
+                        } else {
+                            quiet(lsn);
+                        }
+                    }
+                }
+            } catch(final InterruptedException e) {
+                return;
+            } catch(final SQLException | RuntimeException e) {
+                if(!running) {
+                    return;
+                }
+                logger.error("Change feed {} connection failed, reconnecting:", config.getSlotName(), e);
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MILLIS);
+                } catch(final InterruptedException ignored) {
+                    return;
+                }
+            }
+        }
+    }
+    
+    private void quiet(final long lsn) {
+        if(lsn > quiet) {
+            quiet = lsn;
+        }
+    }
+    
+    /**
+     * Waits for room in the queue, still telling the server the connection
+     * is alive while handlers catch up.
+     */
+    private void enqueue(final PGReplicationStream stream, final List<Delivery<?>> transaction) throws InterruptedException, SQLException {
+        while(!transactions.offer(transaction, config.getStatusIntervalMillis(), TimeUnit.MILLISECONDS)) {
+            stream.forceUpdateStatus();
+        }
+    }
+    
+    private void dispatch() {
+        while(running) {
+            // Read before looking at the queue: everything the reader queued
+            // before it got this far is in the queue by then
+            final long quietLsn = quiet;
+            final List<Delivery<?>> transaction;
+            try {
+                transaction = transactions.poll(QUIET_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+            } catch(final InterruptedException e) {
+                return;
+            }
+            if(transaction == null) {
+                // ...and it's all been handled
+                if(quietLsn > checkpoint) {
+                    checkpoint = quietLsn;
+                }
+                continue;
+            }
+            final long lsn = transaction.get(0).lsn;
+            if(lsn <= checkpoint) {
+                // Sent again after a reconnect
+                continue;
+            }
+            transaction.forEach(Delivery::deliver);
+            checkpoint = lsn;
+        }
+    }
+    
+    private Connection connect() throws SQLException {
+        final HikariDataSource hikari = store.getHikari();
+        final Properties properties = new Properties();
+        properties.putAll(hikari.getDataSourceProperties());
+        if(hikari.getUsername() != null) {
+            PGProperty.USER.set(properties, hikari.getUsername());
+        }
+        if(hikari.getPassword() != null) {
+            PGProperty.PASSWORD.set(properties, hikari.getPassword());
+        }
+        PGProperty.ASSUME_MIN_SERVER_VERSION.set(properties, "10");
+        PGProperty.REPLICATION.set(properties, "database");
+        PGProperty.PREFER_QUERY_MODE.set(properties, "simple");
+        return DriverManager.getConnection(hikari.getJdbcUrl(), properties);
+    }
+    
+    private final class Subscription<T> {
+        private final PgMapper<T> mapper;
+        private final Consumer<ChangeEvent<T>> handler;
+        
+        private Subscription(final PgMapper<T> mapper, final Consumer<ChangeEvent<T>> handler) {
+            this.mapper = mapper;
+            this.handler = handler;
+        }
+        
+        /**
+         * @return The change, to be delivered once its transaction commits.
+         */
+        private Delivery<T> delivery(final RowChange change) {
+            final Map<String, String> values = change.getValues();
+            final Object pk = mapper.parsePrimaryKey(values.get(mapper.getPrimaryKeyName().toLowerCase(Locale.ROOT)));
+            final Delivery<T> delivery = new Delivery<>(this, change.getType(), pk);
+            if(change.getType() == ChangeEvent.Type.DELETE) {
+                // Only the key of a deleted row is sent
+                return delivery;
+            }
+            final String data = values.get("data");
+            if(data != null) {
+                final String version = mapper.getVersionColumn() != null ? values.get(mapper.getVersionColumn().toLowerCase(Locale.ROOT)) : null;
+                delivery.entity = mapper.fromJson(data.getBytes(StandardCharsets.UTF_8), version != null ? Long.parseLong(version) : 0L,
+                        Operation.CHANGE_FEED);
+            } else if(!values.containsKey("data")) {
+                // The document didn't change and was TOASTed, so Postgres
+                // didn't send it. Loading it here would hold up the reader,
+                // and might see a later version than this change's.
+                delivery.documentUnchanged = true;
+            }
+            return delivery;
+        }
+    }
+    
+    private final class Delivery<T> {
+        private final Subscription<T> subscription;
+        private final ChangeEvent.Type type;
+        private final Object primaryKey;
+        private T entity;
+        private boolean documentUnchanged;
+        /**
+         * The end of the transaction, once it's committed.
+         */
+        private long lsn;
+        
+        private Delivery(final Subscription<T> subscription, final ChangeEvent.Type type, final Object primaryKey) {
+            this.subscription = subscription;
+            this.type = type;
+            this.primaryKey = primaryKey;
+        }
+        
+        private void deliver() {
+            final ChangeEvent<T> event = new ChangeEvent<>(type, primaryKey, entity, documentUnchanged, lsn);
+            try {
+                subscription.handler.accept(event);
+            } catch(final RuntimeException e) {
+                logger.error("Change feed handler for {} failed on {}:", subscription.mapper.getTableName(), event, e);
+            }
+        }
+    }
+}
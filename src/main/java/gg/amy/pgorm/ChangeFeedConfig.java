@@ -0,0 +1,60 @@
+package gg.amy.pgorm;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * Configuration for a {@link ChangeFeed}.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@Value
+@Builder
+public class ChangeFeedConfig {
+    /**
+     * The name of the replication slot. The slot remembers how far the feed
+     * got, so a feed with the same slot name picks up where the last one
+     * left off. Every feed needs its own slot.
+     */
+    @Builder.Default
+    private String slotName = "pgorm";
+    /**
+     * The name of the publication of the subscribed tables.
+     */
+    @Builder.Default
+    private String publicationName = "pgorm";
+    /**
+     * The maximum number of transactions read from the server but not handled
+     * yet. Once it's reached, the feed stops reading until handlers catch up.
+     */
+    @Builder.Default
+    private int capacity = 1_000;
+    /**
+     * Where to start from, as from {@link ChangeEvent#getLsn()}, ex. a
+     * checkpoint stored along with whatever the handlers write. {@code 0}
+     * starts from wherever the slot got to. Postgres never goes back further
+     * than the slot did.
+     */
+    @Builder.Default
+    private long startLsn = 0L;
+    /**
+     * How often, in milliseconds, the feed tells Postgres how far it got,
+     * which lets it throw away WAL the slot no longer needs.
+     */
+    @Builder.Default
+    private long statusIntervalMillis = 10_000L;
+    /**
+     * Whether to set <code>REPLICA IDENTITY FULL</code> on the subscribed
+     * tables when the feed starts, so that updates always come with the
+     * whole entity, even if a large document didn't change. This makes
+     * Postgres log the old row of every update as well, which can double the
+     * WAL written for large documents.
+     */
+    @Builder.Default
+    private boolean replicaIdentityFull = false;
+    
+    public static ChangeFeedConfig defaults() {
+        return builder().build();
+    }
+}
@@ -0,0 +1,90 @@
+package gg.amy.pgorm;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * Configuration for a store's {@link ConcurrencyLimiter}. See
+ * {@link PgStore#enableConcurrencyLimit(ConcurrencyLimitConfig)}.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@Value
+@Builder
+public class ConcurrencyLimitConfig {
+    /**
+     * The limit to start with, before any latencies have been seen.
+     */
+    @Builder.Default
+    private int initialLimit = 20;
+    /**
+     * The limit never goes below this, however slow operations get.
+     */
+    @Builder.Default
+    private int minLimit = 4;
+    /**
+     * The limit never goes above this, however fast operations are. There's
+     * no point in it being much larger than the connection pool.
+     */
+    @Builder.Default
+    private int maxLimit = 200;
+    /**
+     * How much slower than usual operations may get before the limit goes
+     * down, ex. {@code 1.5} for 50% slower.
+     */
+    @Builder.Default
+    private double tolerance = 1.5D;
+    /**
+     * How far each sample window moves the limit towards where it should be,
+     * from {@code 0} to {@code 1}. Lower is steadier, higher reacts faster.
+     */
+    @Builder.Default
+    private double smoothing = 0.2D;
+    /**
+     * How long, in milliseconds, latencies are collected for before the
+     * limit is adapted to their average.
+     */
+    @Builder.Default
+    private long sampleWindowMillis = 100L;
+    /**
+     * How many sample windows the usual latency is averaged over. The
+     * default, with the default sample window, is about a minute.
+     */
+    @Builder.Default
+    private int baselineWindow = 600;
+    /**
+     * The share of the limit reads may take up, so that writes always have
+     * some room, from {@code 0} to {@code 1}.
+     */
+    @Builder.Default
+    private double readShare = 0.9D;
+    /**
+     * The most reads waiting for room. Any more are rejected straight away.
+     * {@code 0} never queues reads.
+     */
+    @Builder.Default
+    private int maxQueuedReads = 1_000;
+    /**
+     * The most writes waiting for room. Any more are rejected straight away.
+     * {@code 0} never queues writes.
+     */
+    @Builder.Default
+    private int maxQueuedWrites = 1_000;
+    /**
+     * How long, in milliseconds, a read may wait for room before it's
+     * rejected.
+     */
+    @Builder.Default
+    private long readTimeoutMillis = 1_000L;
+    /**
+     * How long, in milliseconds, a write may wait for room before it's
+     * rejected.
+     */
+    @Builder.Default
+    private long writeTimeoutMillis = 5_000L;
+    
+    public static ConcurrencyLimitConfig defaults() {
+        return builder().build();
+    }
+}
@@ -0,0 +1,338 @@
+package gg.amy.pgorm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Limits how many {@link AsyncPgMapper} operations of a store run at once,
+ * adapting the limit to how long they take, so that a slow database isn't
+ * buried under more and more work until everything times out. <p/>
+ * Latencies are averaged over short sample windows, and the limit follows
+ * the gradient between the usual latency, averaged over
+ * {@link ConcurrencyLimitConfig#getBaselineWindow()} windows, and the
+ * latest window's. While operations are as fast as usual, the limit grows by
+ * about its square root each window; once they get more than
+ * {@link ConcurrencyLimitConfig#getTolerance()} times slower, it shrinks, by
+ * up to half. The limit only grows while at least half of it is used, so it
+ * doesn't run away while there's little to do. Only operations that
+ * succeeded or timed out are sampled; other failures say nothing about how
+ * busy the database is. <p/>
+ * Operations that don't fit under the limit wait in a queue for their
+ * {@link Lane}, up to a deadline, and are rejected with a
+ * {@link RejectedExecutionException} if the queue is full or the deadline
+ * passes. Waiting writes go before waiting reads, and reads can only take
+ * up {@link ConcurrencyLimitConfig#getReadShare()} of the limit, so when
+ * there's too much to do, reads are turned away first.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class ConcurrencyLimiter {
+    /**
+     * The SQLSTATE of a statement cancelled by <code>statement_timeout</code>.
+     */
+    private static final String QUERY_CANCELED = "57014";
+    private final ConcurrencyLimitConfig config;
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final ScheduledThreadPoolExecutor timeouts;
+    private final AtomicLong[] rejected = {new AtomicLong(), new AtomicLong()};
+    // All guarded by this
+    private final Deque<Waiting<?>> reads = new ArrayDeque<>();
+    private final Deque<Waiting<?>> writes = new ArrayDeque<>();
+    private double limit;
+    private int inFlight;
+    private int readsInFlight;
+    /**
+     * The usual latency, in nanoseconds, or {@code 0} before the first one.
+     */
+    private double baseline;
+    private long windowStart = System.nanoTime();
+    private long windowNanos;
+    private int windowSamples;
+    private int windowMaxInFlight;
+    private boolean shutdown;
+    
+    ConcurrencyLimiter(final ConcurrencyLimitConfig config) {
+        if(config.getMinLimit() <= 0 || config.getMaxLimit() < config.getMinLimit()) {
+            throw new IllegalArgumentException("Limits must be positive, and the minimum can't be above the maximum, but got "
+                    + config.getMinLimit() + " and " + config.getMaxLimit());
+        }
+        if(config.getReadShare() <= 0D || config.getReadShare() > 1D) {
+            throw new IllegalArgumentException("Read share must be above 0 and at most 1, but got " + config.getReadShare());
+        }
+        this.config = config;
+        limit = Math.max(config.getMinLimit(), Math.min(config.getMaxLimit(), config.getInitialLimit()));
+        timeouts = new ScheduledThreadPoolExecutor(1, PgStore.threadFactory("pgorm-limiter-"));
+        timeouts.setRemoveOnCancelPolicy(true);
+    }
+    
+    /**
+     * Runs the work on the executor once there's room for it.
+     *
+     * @return A future of the work's result, failed with a
+     * {@link RejectedExecutionException} if there was no room in time.
+     */
+    public <R> CompletableFuture<R> submit(final Lane lane, final Supplier<R> work, final Executor executor) {
+        final Waiting<R> waiting = new Waiting<>(lane, work, executor);
+        synchronized(this) {
+            if(shutdown) {
+                return rejected(lane, "Concurrency limiter is shut down");
+            }
+            if(hasRoom(lane)) {
+                acquire(lane);
+            } else {
+                final Deque<Waiting<?>> queue = queue(lane);
+                final int max = lane == Lane.READ ? config.getMaxQueuedReads() : config.getMaxQueuedWrites();
+                if(queue.size() >= max) {
+                    return rejected(lane, "Too many " + lane.name().toLowerCase() + "s waiting (" + max + "), limit is " + getLimit());
+                }
+                queue.add(waiting);
+                final long timeout = lane == Lane.READ ? config.getReadTimeoutMillis() : config.getWriteTimeoutMillis();
+                waiting.timeout = timeouts.schedule(() -> expire(waiting), timeout, TimeUnit.MILLISECONDS);
+                return waiting.future;
+            }
+        }
+        start(waiting);
+        return waiting.future;
+    }
+    
+    private boolean hasRoom(final Lane lane) {
+        final int permits = (int) limit;
+        if(inFlight >= permits) {
+            return false;
+        }
+        return lane == Lane.WRITE || readsInFlight < Math.max(1, (int) (permits * config.getReadShare()));
+    }
+    
+    private void acquire(final Lane lane) {
+        inFlight++;
+        if(lane == Lane.READ) {
+            readsInFlight++;
+        }
+    }
+    
+    private Deque<Waiting<?>> queue(final Lane lane) {
+        return lane == Lane.READ ? reads : writes;
+    }
+    
+    private <R> void start(final Waiting<R> waiting) {
+        try {
+            waiting.executor.execute(() -> {
+                final long start = System.nanoTime();
+                R result = null;
+                Throwable failure = null;
+                try {
+                    result = waiting.work.get();
+                } catch(final Throwable t) {
+                    // Errors too, or the future would never complete
+                    failure = t;
+                } finally {
+                    // A statement timing out says a lot about how busy the
+                    // database is, but other failures, ex. version
+                    // conflicts, are fast whatever the load, and would
+                    // drag the usual latency down
+                    release(waiting.lane, failure == null || isTimeout(failure) ? System.nanoTime() - start : -1L);
+                }
+                if(failure != null) {
+                    waiting.future.completeExceptionally(failure);
+                } else {
+                    waiting.future.complete(result);
+                }
+            });
+        } catch(final RejectedExecutionException e) {
+            release(waiting.lane, -1L);
+            waiting.future.completeExceptionally(e);
+        }
+    }
+    
+    /**
+     * Gives the operation's room back, adapts the limit to how long it took,
+     * and starts whatever fits now.
+     *
+     * @param nanos How long the operation took, or {@code -1} if it never
+     *              ran, or failed for some other reason than timing out.
+     */
+    private void release(final Lane lane, final long nanos) {
+        final List<Waiting<?>> ready = new ArrayList<>();
+        synchronized(this) {
+            if(nanos >= 0L) {
+                adapt(nanos);
+            }
+            inFlight--;
+            if(lane == Lane.READ) {
+                readsInFlight--;
+            }
+            for(final Lane next : new Lane[]{Lane.WRITE, Lane.READ}) {
+                final Deque<Waiting<?>> queue = queue(next);
+                while(!queue.isEmpty() && hasRoom(next)) {
+                    final Waiting<?> waiting = queue.poll();
+                    waiting.timeout.cancel(false);
+                    acquire(next);
+                    ready.add(waiting);
+                }
+            }
+        }
+        ready.forEach(this::start);
+    }
+    
+    /**
+     * @return Whether the failure was a statement or a connection timing
+     * out, anywhere in its causes.
+     */
+    static boolean isTimeout(final Throwable failure) {
+        for(Throwable cause = failure; cause != null; cause = cause.getCause() != cause ? cause.getCause() : null) {
+            if(cause instanceof SQLTimeoutException || cause instanceof SQLTransientConnectionException
+                    || cause instanceof TimeoutException) {
+                return true;
+            }
+            if(cause instanceof SQLException && QUERY_CANCELED.equals(((SQLException) cause).getSQLState())) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private void adapt(final long nanos) {
+        windowNanos += nanos;
+        windowSamples++;
+        windowMaxInFlight = Math.max(windowMaxInFlight, inFlight);
+        final long now = System.nanoTime();
+        if(now - windowStart < TimeUnit.MILLISECONDS.toNanos(config.getSampleWindowMillis())) {
+            return;
+        }
+        final double latency = Math.max(1D, (double) windowNanos / windowSamples);
+        final int busiest = windowMaxInFlight;
+        windowStart = now;
+        windowNanos = 0L;
+        windowSamples = 0;
+        windowMaxInFlight = 0;
+        if(baseline == 0D) {
+            baseline = latency;
+            return;
+        }
+        baseline += (latency - baseline) * 2D / (config.getBaselineWindow() + 1);
+        if(baseline / latency > 2D) {
+            // Operations got much faster, ex. after a slow spell; let the
+            // baseline come down to meet them
+            baseline *= 0.95D;
+        }
+        if(busiest < limit / 2D) {
+            // Too little going on to say whether more would be fine
+            return;
+        }
+        final double gradient = Math.max(0.5D, Math.min(1D, config.getTolerance() * baseline / latency));
+        final double target = limit * gradient + Math.sqrt(limit);
+        final double next = limit * (1D - config.getSmoothing()) + target * config.getSmoothing();
+        final double clamped = Math.max(config.getMinLimit(), Math.min(config.getMaxLimit(), next));
+        if((int) clamped < (int) limit) {
+            logger.debug("Lowering concurrency limit to {}, latency is {}ms against a usual {}ms.", (int) clamped,
+                    TimeUnit.NANOSECONDS.toMillis((long) latency), TimeUnit.NANOSECONDS.toMillis((long) baseline));
+        }
+        limit = clamped;
+    }
+    
+    private void expire(final Waiting<?> waiting) {
+        synchronized(this) {
+            if(!queue(waiting.lane).remove(waiting)) {
+                // Started just in time
+                return;
+            }
+        }
+        rejected[waiting.lane.ordinal()].incrementAndGet();
+        waiting.future.completeExceptionally(new RejectedExecutionException("Waited too long for room to run a "
+                + waiting.lane.name().toLowerCase() + ", limit is " + getLimit()));
+    }
+    
+    private <R> CompletableFuture<R> rejected(final Lane lane, final String message) {
+        rejected[lane.ordinal()].incrementAndGet();
+        final CompletableFuture<R> future = new CompletableFuture<>();
+        future.completeExceptionally(new RejectedExecutionException(message));
+        return future;
+    }
+    
+    /**
+     * @return The number of operations that may run at once right now.
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+    
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+    
+    public synchronized int getQueued(final Lane lane) {
+        return queue(lane).size();
+    }
+    
+    /**
+     * @return The number of operations turned away so far, because the queue
+     * was full or they waited too long.
+     */
+    public long getRejected(final Lane lane) {
+        return rejected[lane.ordinal()].get();
+    }
+    
+    /**
+     * Stops limiting. Everything still waiting is started straight away,
+     * so that nothing is lost, and anything submitted from now on is
+     * rejected. Called when the store turns limiting off or disconnects.
+     */
+    void shutdown() {
+        final List<Waiting<?>> waiting = new ArrayList<>();
+        synchronized(this) {
+            shutdown = true;
+            for(final Lane lane : Lane.values()) {
+                final Deque<Waiting<?>> queue = queue(lane);
+                while(!queue.isEmpty()) {
+                    final Waiting<?> next = queue.poll();
+                    next.timeout.cancel(false);
+                    acquire(lane);
+                    waiting.add(next);
+                }
+            }
+        }
+        timeouts.shutdownNow();
+        waiting.forEach(this::start);
+    }
+    
+    /**
+     * Which queue an operation waits in. Writes go first.
+     */
+    public enum Lane {
+        READ,
+        WRITE
+    }
+    
+    private static final class Waiting<R> {
+        private final Lane lane;
+        private final Supplier<R> work;
+        private final Executor executor;
+        private final CompletableFuture<R> future = new CompletableFuture<>();
+        private ScheduledFuture<?> timeout;
+        
+        private Waiting(final Lane lane, final Supplier<R> work, final Executor executor) {
+            this.lane = lane;
+            this.work = work;
+            this.executor = executor;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package gg.amy.pgorm;
+
+import gg.amy.pgorm.annotations.Cached;
+import lombok.Getter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded LRU cache of entities by primary key, with an optional TTL. Used
+ * by {@link PgMapper} for classes annotated with {@link Cached}. <p/>
+ * To avoid caching a stale entity when a load races with a save, loads take
+ * a {@link #generation()} before going to the database, and only cache the
+ * result with {@link #put(Object, Object, long)} if its key wasn't
+ * invalidated in the meantime. The last {@link #getMaxSize()} invalidated
+ * keys are remembered; a load from before an older invalidation than that
+ * isn't cached, whatever its key.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class EntityCache<T> {
+    @Getter
+    private final int maxSize;
+    @Getter
+    private final long ttlMillis;
+    private final long ttlNanos;
+    // Guarded by itself
+    private final LinkedHashMap<Object, Entry<T>> entries;
+    /**
+     * The generation each recently invalidated key was invalidated at.
+     */
+    // Guarded by entries
+    private final LinkedHashMap<Object, Long> invalidations;
+    private final AtomicLong generation = new AtomicLong();
+    /**
+     * Loads from before this generation aren't cached, because an
+     * invalidation they might have raced with has been forgotten, or
+     * everything was invalidated.
+     */
+    // Guarded by entries
+    private long forgotten;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    
+    public EntityCache(final int maxSize, final long ttlMillis) {
+        if(maxSize <= 0 || ttlMillis < 0L) {
+            throw new IllegalArgumentException("Invalid cache settings: maxSize=" + maxSize + ", ttlMillis=" + ttlMillis);
+        }
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        entries = new LinkedHashMap<Object, Entry<T>>(16, 0.75F, true) {
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Object, Entry<T>> eldest) {
+                if(size() > EntityCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+        invalidations = new LinkedHashMap<Object, Long>() {
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Object, Long> eldest) {
+                if(size() > EntityCache.this.maxSize) {
+                    forgotten = Math.max(forgotten, eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+    
+    public static <T> EntityCache<T> fromAnnotation(final Cached cached) {
+        return new EntityCache<>(cached.maxSize(), cached.ttlMillis());
+    }
+    
+    /**
+     * @param pk The primary key of the entity.
+     *
+     * @return The cached entity, or {@code null} if it isn't cached.
+     */
+    public T get(final Object pk) {
+        synchronized(entries) {
+            final Entry<T> entry = entries.get(pk);
+            if(entry != null) {
+                if(ttlNanos == 0L || System.nanoTime() - entry.loadedAt < ttlNanos) {
+                    hits.incrementAndGet();
+                    return entry.entity;
+                }
+                entries.remove(pk);
+                evictions.incrementAndGet();
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+    
+    /**
+     * @return The current generation. Must be read <i>before</i> loading an
+     * entity from the database, and passed to {@link #put(Object, Object, long)}.
+     */
+    public long generation() {
+        return generation.get();
+    }
+    
+    /**
+     * Caches an entity, unless it was invalidated since the given generation
+     * was read.
+     *
+     * @param pk         The primary key of the entity.
+     * @param entity     The entity.
+     * @param generation The {@link #generation()} from before the entity was
+     *                   loaded.
+     */
+    public void put(final Object pk, final T entity, final long generation) {
+        synchronized(entries) {
+            final Long invalidated = invalidations.get(pk);
+            if(forgotten <= generation && (invalidated == null || invalidated <= generation)) {
+                entries.put(pk, new Entry<>(entity, System.nanoTime()));
+            }
+        }
+    }
+    
+    public void invalidate(final Object pk) {
+        synchronized(entries) {
+            // Re-inserted, so that it's the last to be forgotten
+            invalidations.remove(pk);
+            invalidations.put(pk, generation.incrementAndGet());
+            entries.remove(pk);
+        }
+    }
+    
+    public void invalidateAll() {
+        synchronized(entries) {
+            forgotten = generation.incrementAndGet();
+            invalidations.clear();
+            entries.clear();
+        }
+    }
+    
+    public int size() {
+        synchronized(entries) {
+            return entries.size();
+        }
+    }
+    
+    public long getHits() {
+        return hits.get();
+    }
+    
+    public long getMisses() {
+        return misses.get();
+    }
+    
+    /**
+     * @return The number of entities removed because the cache was full or
+     * their TTL ran out. Invalidations aren't counted.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+    
+    private static final class Entry<T> {
+        private final T entity;
+        private final long loadedAt;
+        
+        private Entry(final T entity, final long loadedAt) {
+            this.entity = entity;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
@@ -0,0 +1,721 @@
+package gg.amy.pgorm;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import gg.amy.pgorm.annotations.BtreeIndex;
+import gg.amy.pgorm.annotations.Cached;
+import gg.amy.pgorm.annotations.Column;
+import gg.amy.pgorm.annotations.Compressed;
+import gg.amy.pgorm.annotations.GIndex;
+import gg.amy.pgorm.annotations.Index;
+import gg.amy.pgorm.annotations.Partitioning;
+import gg.amy.pgorm.annotations.PrimaryKey;
+import gg.amy.pgorm.annotations.Table;
+import gg.amy.pgorm.annotations.Version;
+import lombok.Getter;
+import lombok.Value;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Everything that's known about an entity class from its annotations: which
+ * table it goes in, its primary key and version, how it maps to JSON, and
+ * the DDL for its table and indexes. Shared by every backend, so that they
+ * all store entities the same way.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@Getter
+final class EntityMetadata<T> {
+    static final ObjectMapper MAPPER = new ObjectMapper();
+    private final Class<T> type;
+    // Bound to the entity type up front, so Jackson doesn't have to look it up every time
+    private final ObjectWriter writer;
+    private final ObjectReader reader;
+    private final Table table;
+    private final PrimaryKey primaryKey;
+    private final Field pkField;
+    /**
+     * Reads the primary key field, typed as <code>(Object) -&gt; Object</code>
+     * so it can be called with {@link MethodHandle#invokeExact(Object...)}.
+     */
+    private final MethodHandle pkGetter;
+    private final String pkSqlType;
+    /**
+     * The name of the primary key's SQL type, as understood by
+     * {@link java.sql.Connection#createArrayOf(String, Object[])}.
+     */
+    private final String pkArrayType;
+    /**
+     * The {@link Version} field, or {@code null} if the entity class isn't
+     * versioned.
+     */
+    private final Field versionField;
+    private final String versionColumn;
+    /**
+     * The {@link Column}s extracted from the document, and the partition
+     * column, by document field.
+     */
+    private final Map<String, DocumentColumn> columns;
+    /**
+     * The column a {@link Partitioning#RANGE} partitioned table is
+     * partitioned by, or {@code null} if it isn't.
+     */
+    private final DocumentColumn partitionColumn;
+    /**
+     * The {@link Compressed} fields, which are kept out of the document, by
+     * document field.
+     */
+    private final Map<String, CompressedField> compressedFields;
+    /**
+     * The class's {@link Cached} annotation, or {@code null} if it isn't
+     * cached.
+     */
+    private final Cached cached;
+    /**
+     * The channel that saves and deletes notify other nodes on, or
+     * {@code null} if cross-node cache invalidation is off.
+     */
+    private final String invalidationChannel;
+    
+    EntityMetadata(final Class<T> type) {
+        this.type = type;
+        writer = MAPPER.writerFor(type);
+        reader = MAPPER.readerFor(type);
+        // Scan to ensure required annotations
+        if(!type.isAnnotationPresent(Table.class)) {
+            throw new IllegalStateException("Got class " + type.getName() + " to map, but it has no @Table!?");
+        }
+        table = type.getDeclaredAnnotation(Table.class);
+        // Scan the class for a primary key and version
+        Field pk = null;
+        Field version = null;
+        final List<Field> columnFields = new ArrayList<>();
+        Field partitionField = null;
+        final List<Field> compressedFieldList = new ArrayList<>();
+        for(final Field field : type.getDeclaredFields()) {
+            field.setAccessible(true);
+            if(field.isAnnotationPresent(PrimaryKey.class)) {
+                pk = field;
+            }
+            if(field.isAnnotationPresent(Version.class)) {
+                version = field;
+            }
+            if(field.isAnnotationPresent(Column.class)) {
+                columnFields.add(field);
+            }
+            if(field.isAnnotationPresent(Compressed.class)) {
+                compressedFieldList.add(field);
+            }
+            if(field.getName().equals(table.partitionField())) {
+                partitionField = field;
+            }
+        }
+        if(pk == null) {
+            throw new IllegalStateException("Class " + type.getName() + " has no @PrimaryKey!?");
+        }
+        pkField = pk;
+        // Ensure that it's a valid type
+        pkSqlType = typeToSqlType(pkField.getType());
+        pkArrayType = pkSqlType.toLowerCase();
+        primaryKey = pkField.getDeclaredAnnotation(PrimaryKey.class);
+        try {
+            pkGetter = MethodHandles.lookup().unreflectGetter(pkField)
+                    .asType(MethodType.methodType(Object.class, Object.class));
+        } catch(final IllegalAccessException e) {
+            throw new IllegalStateException("Couldn't access primary key of class " + type.getName(), e);
+        }
+        versionField = version;
+        if(versionField != null) {
+            final Class<?> versionType = versionField.getType();
+            if(versionType != int.class && versionType != long.class && versionType != Integer.class && versionType != Long.class) {
+                throw new IllegalStateException("@Version field of class " + type.getName() + " must be an int or a long!");
+            }
+            if(Modifier.isFinal(versionField.getModifiers())) {
+                // Saving sets it, and writing final fields by reflection isn't something to rely on
+                throw new IllegalStateException("@Version field of class " + type.getName() + " can't be final!");
+            }
+            versionColumn = versionField.getDeclaredAnnotation(Version.class).value();
+        } else {
+            versionColumn = null;
+        }
+        final Map<String, DocumentColumn> scanned = scanColumns(columnFields);
+        partitionColumn = table.partitioning() == Partitioning.RANGE ? partitionColumn(partitionField, scanned) : null;
+        if(partitionColumn != null) {
+            scanned.put(partitionColumn.getField(), partitionColumn);
+        }
+        columns = Collections.unmodifiableMap(scanned);
+        compressedFields = Collections.unmodifiableMap(scanCompressedFields(compressedFieldList));
+        if(table.partitioning() == Partitioning.HASH && table.partitions() <= 0) {
+            throw new IllegalStateException("Hash partitioned class " + type.getName() + " needs a positive number of partitions!");
+        }
+        if(table.partitioning() != Partitioning.NONE && table.value().length() > 53) {
+            // Leaves room for the partitions' suffixes
+            throw new IllegalStateException("Table name of partitioned class " + type.getName() + " can't be longer than 53 characters!");
+        }
+        cached = type.getDeclaredAnnotation(Cached.class);
+        if(cached != null && cached.invalidateAcrossNodes()) {
+            // Channel names are identifiers, so they get cut off at 63 characters
+            final String channel = "pgorm_" + table.value();
+            invalidationChannel = channel.length() > 63 ? channel.substring(0, 63) : channel;
+        } else {
+            invalidationChannel = null;
+        }
+    }
+    
+    String getTableName() {
+        return table.value();
+    }
+    
+    String getPrimaryKeyName() {
+        return primaryKey.value();
+    }
+    
+    /**
+     * @return The statements that create the table and its indexes, in the
+     * order they have to run in. They can all be run again safely.
+     */
+    List<String> ddl() {
+        final List<String> ddl = new ArrayList<>();
+        ddl.add(createTableSql());
+        ddl.addAll(partitionSql());
+        ddl.addAll(addColumnSql().values());
+        indexes().forEach((name, index) -> ddl.add(index.sql(name, false)));
+        return Collections.unmodifiableList(ddl);
+    }
+    
+    String createTableSql() {
+        final String columnDefinitions = (versionColumn != null ? ", " + versionColumn + " BIGINT NOT NULL DEFAULT 0" : "") +
+                columns.values().stream().map(column -> ", " + column.definition()).reduce("", String::concat) +
+                compressedColumns("", " BYTEA");
+        switch(table.partitioning()) {
+            case HASH: {
+                return "CREATE TABLE IF NOT EXISTS " + table.value() + " (" +
+                        primaryKey.value() + ' ' + pkSqlType + " NOT NULL, data JSONB" + columnDefinitions +
+                        ", PRIMARY KEY (" + primaryKey.value() + ")) PARTITION BY HASH (" + primaryKey.value() + ");";
+            }
+            case RANGE: {
+                // The partition key has to be part of the primary key
+                return "CREATE TABLE IF NOT EXISTS " + table.value() + " (" +
+                        primaryKey.value() + ' ' + pkSqlType + " NOT NULL, data JSONB" + columnDefinitions +
+                        ", PRIMARY KEY (" + getConflictTarget() + ")) PARTITION BY RANGE (" + partitionColumn.getName() + ");";
+            }
+            case NONE:
+            default: {
+                return "CREATE TABLE IF NOT EXISTS " + table.value() + " (" +
+                        primaryKey.value() + ' ' + pkSqlType + " PRIMARY KEY NOT NULL UNIQUE," +
+                        "data JSONB" + columnDefinitions +
+                        ");";
+            }
+        }
+    }
+    
+    /**
+     * @return The statements that create the partitions a new table needs
+     * straight away: every partition of a hash partitioned table, or the
+     * default partition of a range partitioned one. Range partitions are
+     * created by {@link PartitionMaintainer}.
+     */
+    List<String> partitionSql() {
+        final List<String> ddl = new ArrayList<>();
+        if(table.partitioning() == Partitioning.HASH) {
+            for(int i = 0; i < table.partitions(); i++) {
+                ddl.add("CREATE TABLE IF NOT EXISTS " + table.value() + "_p" + i + " PARTITION OF " + table.value()
+                        + " FOR VALUES WITH (MODULUS " + table.partitions() + ", REMAINDER " + i + ");");
+            }
+        } else if(table.partitioning() == Partitioning.RANGE) {
+            ddl.add("CREATE TABLE IF NOT EXISTS " + table.value() + "_default PARTITION OF " + table.value() + " DEFAULT;");
+        }
+        return ddl;
+    }
+    
+    boolean isPartitioned() {
+        return table.partitioning() != Partitioning.NONE;
+    }
+    
+    /**
+     * @return The columns that identify a row, for <code>ON CONFLICT</code>.
+     * That's the primary key, plus the partition column if there is one.
+     */
+    String getConflictTarget() {
+        return partitionColumn != null ? primaryKey.value() + ", " + partitionColumn.getName() : primaryKey.value();
+    }
+    
+    /**
+     * @param data An SQL expression for a document being written.
+     *
+     * @return An SQL expression for the document's partition key, or
+     * {@code null} if the table isn't range partitioned. Postgres can't
+     * partition by generated columns, so writes have to fill this in.
+     */
+    String partitionKeyOf(final String data) {
+        if(partitionColumn == null) {
+            return null;
+        }
+        // Dates and longs are both written as epoch millis
+        return "to_timestamp((" + data + "->>" + PgMapper.jsonLiteral(partitionColumn.getField()) + ")::double precision / 1000)";
+    }
+    
+    /**
+     * @return The columns loads select: everything but the
+     * {@link Compressed} columns, which are only fetched when they're used.
+     */
+    String selectColumns() {
+        return primaryKey.value() + ", data" + (versionColumn != null ? ", " + versionColumn : "");
+    }
+    
+    /**
+     * @return The {@link Compressed} columns, each as
+     * <code>, prefixcolumnsuffix</code>, ex. for column lists and
+     * placeholders. Empty if there aren't any.
+     */
+    String compressedColumns(final String prefix, final String suffix) {
+        final StringBuilder builder = new StringBuilder();
+        for(final CompressedField field : compressedFields.values()) {
+            builder.append(", ").append(prefix).append(field.getColumn()).append(suffix);
+        }
+        return builder.toString();
+    }
+    
+    /**
+     * @return A parameter per {@link Compressed} column, each as
+     * <code>, placeholdercast</code>. Empty if there aren't any.
+     */
+    String compressedParameters(final String placeholder, final String cast) {
+        final StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < compressedFields.size(); i++) {
+            builder.append(", ").append(placeholder).append(cast);
+        }
+        return builder.toString();
+    }
+    
+    /**
+     * @return The <code>ON CONFLICT DO UPDATE</code> assignments for the
+     * {@link Compressed} columns. A <code>NULL</code> means the field wasn't
+     * loaded, so what's already stored is kept.
+     */
+    String compressedUpdates() {
+        final StringBuilder builder = new StringBuilder();
+        for(final CompressedField field : compressedFields.values()) {
+            final String column = field.getColumn();
+            builder.append(", ").append(column).append(" = COALESCE(EXCLUDED.").append(column).append(", ")
+                    .append(table.value()).append('.').append(column).append(')');
+        }
+        return builder.toString();
+    }
+    
+    /**
+     * Fills in the entity's {@link Compressed} fields with values that are
+     * loaded when they're first asked for.
+     *
+     * @param loader Loads and decompresses the given field of the entity.
+     */
+    void attachCompressedFields(final T entity, final Function<CompressedField, Object> loader) {
+        for(final CompressedField field : compressedFields.values()) {
+            field.attach(entity, () -> loader.apply(field));
+        }
+    }
+    
+    /**
+     * @return Statements adding the version, generated and compressed
+     * columns to a table created before they were declared, by column name.
+     */
+    Map<String, String> addColumnSql() {
+        final Map<String, String> ddl = new LinkedHashMap<>();
+        if(versionColumn != null) {
+            ddl.put(versionColumn, "ALTER TABLE " + table.value() + " ADD COLUMN IF NOT EXISTS " + versionColumn + " BIGINT NOT NULL DEFAULT 0;");
+        }
+        for(final DocumentColumn column : columns.values()) {
+            if(!column.isGenerated()) {
+                continue;
+            }
+            ddl.put(column.getName(), "ALTER TABLE " + table.value() + " ADD COLUMN IF NOT EXISTS " + column.definition() + ';');
+        }
+        for(final CompressedField field : compressedFields.values()) {
+            ddl.put(field.getColumn(), "ALTER TABLE " + table.value() + " ADD COLUMN IF NOT EXISTS " + field.getColumn() + " BYTEA;");
+        }
+        return ddl;
+    }
+    
+    /**
+     * @return The indexes the table should have, by name.
+     */
+    Map<String, IndexDefinition> indexes() {
+        final Map<String, IndexDefinition> indexes = new LinkedHashMap<>();
+        if(type.isAnnotationPresent(BtreeIndex.class)) {
+            for(final String s : type.getDeclaredAnnotation(BtreeIndex.class).value()) {
+                indexes.put("idx_btree_" + table.value() + '_' + s, new IndexDefinition(false, "ON " + table.value() + " USING BTREE ((" + PgMapper.jsonPath(s) + "))"));
+            }
+        }
+        // Make base GIN index
+        indexes.put("idx_gin_" + table.value() + "_data", new IndexDefinition(false, "ON " + table.value() + " USING GIN (data)"));
+        if(type.isAnnotationPresent(GIndex.class)) {
+            for(final String s : type.getDeclaredAnnotation(GIndex.class).value()) {
+                indexes.put("idx_gin_" + table.value() + '_' + s, new IndexDefinition(false, "ON " + table.value() + " USING GIN ((" + PgMapper.jsonPath(s) + "))"));
+            }
+        }
+        for(final DocumentColumn column : columns.values()) {
+            if(column.isIndexed()) {
+                indexes.put("idx_" + table.value() + '_' + column.getName(), new IndexDefinition(false, "ON " + table.value() + " USING BTREE (" + column.getName() + ')'));
+            }
+        }
+        for(final Index index : type.getDeclaredAnnotationsByType(Index.class)) {
+            final List<String> names = new ArrayList<>();
+            for(final String key : index.columns()) {
+                names.add(checkIndexColumn(key.trim().split("\\s+")[0]));
+            }
+            for(final String key : index.include()) {
+                checkIndexColumn(key.trim());
+            }
+            final String name = index.name().isEmpty() ? "idx_" + table.value() + '_' + String.join("_", names) : index.name();
+            indexes.put(name, new IndexDefinition(index.unique(), "ON " + table.value() + " USING BTREE (" + String.join(", ", index.columns()) + ')'
+                    + (index.include().length > 0 ? " INCLUDE (" + String.join(", ", index.include()) + ')' : "")
+                    + (index.where().isEmpty() ? "" : " WHERE " + index.where())));
+        }
+        return indexes;
+    }
+    
+    /**
+     * @param entity The entity to read the primary key of.
+     *
+     * @return The value of the entity's {@link PrimaryKey} field.
+     */
+    Object primaryKeyOf(final T entity) {
+        try {
+            return (Object) pkGetter.invokeExact((Object) entity);
+        } catch(final Throwable t) {
+            throw new IllegalStateException("Couldn't access primary key for entity " + type.getName(), t);
+        }
+    }
+    
+    /**
+     * @param pk A primary key as a string, ex. from a notification payload.
+     *
+     * @return The primary key as the type of the {@link PrimaryKey} field.
+     */
+    Object parsePrimaryKey(final String pk) {
+        final Class<?> pkType = pkField.getType();
+        if(pkType.equals(Integer.class) || pkType.equals(int.class)) {
+            return Integer.valueOf(pk);
+        } else if(pkType.equals(Long.class) || pkType.equals(long.class)) {
+            return Long.valueOf(pk);
+        } else {
+            return pk;
+        }
+    }
+    
+    /**
+     * @param pk A primary key as passed in by a caller, ex. a {@code Long}
+     *           for an {@code int} key.
+     *
+     * @return The primary key as the type of the {@link PrimaryKey} field,
+     * so that it equals the key read back from an entity.
+     */
+    Object normalizePrimaryKey(final Object pk) {
+        final Class<?> pkType = pkField.getType();
+        if(pk == null || pkType.isInstance(pk) || pkType == int.class && pk instanceof Integer
+                || pkType == long.class && pk instanceof Long) {
+            return pk;
+        }
+        return parsePrimaryKey(String.valueOf(pk));
+    }
+    
+    long versionOf(final T entity) {
+        final Object version;
+        try {
+            version = versionField.get(entity);
+        } catch(final IllegalAccessException e) {
+            throw new IllegalStateException("Couldn't access version for entity " + type.getName(), e);
+        }
+        if(version == null) {
+            throw new IllegalStateException("Version of entity " + type.getName() + " is null!");
+        }
+        return ((Number) version).longValue();
+    }
+    
+    void setVersion(final T entity, final long version) {
+        try {
+            final Class<?> versionType = versionField.getType();
+            versionField.set(entity, versionType == int.class || versionType == Integer.class ? (Object) (int) version : (Object) version);
+        } catch(final IllegalAccessException e) {
+            throw new IllegalStateException("Couldn't set version for entity " + type.getName(), e);
+        }
+    }
+    
+    private Map<String, DocumentColumn> scanColumns(final List<Field> fields) {
+        final Map<String, DocumentColumn> scanned = new LinkedHashMap<>();
+        final Set<String> names = new HashSet<>();
+        names.add(primaryKey.value().toLowerCase(Locale.ROOT));
+        names.add("data");
+        if(versionColumn != null) {
+            names.add(versionColumn.toLowerCase(Locale.ROOT));
+        }
+        for(final Field field : fields) {
+            final Column column = field.getDeclaredAnnotation(Column.class);
+            final String key = jsonKey(field);
+            final String name = column.value().isEmpty() ? field.getName() : column.value();
+            if(!names.add(name.toLowerCase(Locale.ROOT))) {
+                throw new IllegalStateException("@Column " + name + " of class " + type.getName() + " clashes with another column!");
+            }
+            scanned.put(key, new DocumentColumn(key, name, columnType(field.getType()), column.indexed(), true));
+        }
+        return scanned;
+    }
+    
+    private DocumentColumn partitionColumn(final Field field, final Map<String, DocumentColumn> scanned) {
+        if(field == null) {
+            throw new IllegalStateException("Range partitioned class " + type.getName() + " has no field named " + table.partitionField() + '!');
+        }
+        final Class<?> fieldType = field.getType();
+        if(fieldType != long.class && fieldType != Long.class && fieldType != Date.class) {
+            throw new IllegalStateException("Partition field of class " + type.getName() + " must be a long or a Date!");
+        }
+        if(field.isAnnotationPresent(Column.class)) {
+            throw new IllegalStateException("Partition field of class " + type.getName() + " can't also be a @Column!");
+        }
+        final String name = field.getName();
+        for(final DocumentColumn column : scanned.values()) {
+            if(column.getName().equalsIgnoreCase(name)) {
+                throw new IllegalStateException("Partition field of class " + type.getName() + " clashes with @Column " + name + '!');
+            }
+        }
+        if(name.equalsIgnoreCase(primaryKey.value()) || name.equalsIgnoreCase("data") || name.equalsIgnoreCase(versionColumn)) {
+            throw new IllegalStateException("Partition field of class " + type.getName() + " clashes with another column!");
+        }
+        return new DocumentColumn(jsonKey(field), name, "TIMESTAMPTZ", false, false);
+    }
+    
+    private Map<String, CompressedField> scanCompressedFields(final List<Field> fields) {
+        final Map<String, CompressedField> scanned = new LinkedHashMap<>();
+        final Set<String> names = new HashSet<>();
+        names.add(primaryKey.value().toLowerCase(Locale.ROOT));
+        names.add("data");
+        if(versionColumn != null) {
+            names.add(versionColumn.toLowerCase(Locale.ROOT));
+        }
+        columns.values().forEach(column -> names.add(column.getName().toLowerCase(Locale.ROOT)));
+        for(final Field field : fields) {
+            if(field.getType() != Lazy.class) {
+                throw new IllegalStateException("@Compressed field " + field.getName() + " of class " + type.getName() + " must be a Lazy!");
+            }
+            if(Modifier.isStatic(field.getModifiers())) {
+                throw new IllegalStateException("@Compressed field " + field.getName() + " of class " + type.getName() + " can't be static!");
+            }
+            final String value = field.getDeclaredAnnotation(Compressed.class).value();
+            final String name = value.isEmpty() ? field.getName() : value;
+            if(!names.add(name.toLowerCase(Locale.ROOT))) {
+                throw new IllegalStateException("@Compressed column " + name + " of class " + type.getName() + " clashes with another column!");
+            }
+            // The type of the Lazy's value
+            final JavaType valueType = MAPPER.getTypeFactory().constructType(field.getGenericType()).containedTypeOrUnknown(0);
+            scanned.put(jsonKey(field), new CompressedField(field, name, MAPPER.writerFor(valueType), MAPPER.readerFor(valueType)));
+        }
+        return scanned;
+    }
+    
+    /**
+     * @return The name Jackson gives the field in the document.
+     */
+    static String jsonKey(final Field field) {
+        final JsonProperty property = field.getDeclaredAnnotation(JsonProperty.class);
+        return property != null && !property.value().isEmpty() ? property.value() : field.getName();
+    }
+    
+    private String checkIndexColumn(final String column) {
+        if(column.equalsIgnoreCase(primaryKey.value())) {
+            return column;
+        }
+        for(final DocumentColumn generated : columns.values()) {
+            if(generated.getName().equalsIgnoreCase(column)) {
+                return column;
+            }
+        }
+        throw new IllegalStateException("@Index of class " + type.getName() + " refers to " + column + ", which isn't a @Column!");
+    }
+    
+    private String columnType(final Class<?> fieldType) {
+        if(fieldType == String.class) {
+            return "TEXT";
+        } else if(fieldType == int.class || fieldType == Integer.class || fieldType == short.class || fieldType == Short.class) {
+            return "INT";
+        } else if(fieldType == long.class || fieldType == Long.class) {
+            return "BIGINT";
+        } else if(fieldType == double.class || fieldType == Double.class || fieldType == float.class || fieldType == Float.class) {
+            return "DOUBLE PRECISION";
+        } else if(fieldType == boolean.class || fieldType == Boolean.class) {
+            return "BOOLEAN";
+        } else if(fieldType == BigDecimal.class) {
+            return "NUMERIC";
+        } else {
+            throw new IllegalStateException("No @Column type mapping known for field of type " + fieldType.getName() + " in class " + type.getName());
+        }
+    }
+    
+    private static String typeToSqlType(final Class<?> type) {
+        if(type.equals(String.class)) {
+            return "TEXT";
+        } else if(type.equals(Integer.class) || type.equals(int.class)) {
+            return "INT";
+        } else if(type.equals(Long.class) || type.equals(long.class)) {
+            return "BIGINT";
+        } else {
+            throw new IllegalArgumentException("No SQL type mapping known for class of type: " + type.getName());
+        }
+    }
+    
+    /**
+     * A field of the document, extracted into a typed column: either by a
+     * {@link Column} annotation, or as the partition key of a range
+     * partitioned table.
+     */
+    @Value
+    static class DocumentColumn {
+        /**
+         * The top-level field of the document the column is extracted from.
+         */
+        private String field;
+        private String name;
+        private String sqlType;
+        private boolean indexed;
+        /**
+         * Whether Postgres generates the column. If not, every write has to
+         * fill it in, with {@link EntityMetadata#partitionKeyOf(String)}.
+         */
+        private boolean generated;
+        
+        /**
+         * @return The column's definition, for <code>CREATE TABLE</code> and
+         * <code>ADD COLUMN</code>.
+         */
+        String definition() {
+            if(!generated) {
+                return name + ' ' + sqlType + " NOT NULL";
+            }
+            return name + ' ' + sqlType + " GENERATED ALWAYS AS ((data->>" + PgMapper.jsonLiteral(field) + ")::" + sqlType + ") STORED";
+        }
+        
+        /**
+         * @return The value as text that Postgres can cast to the column's
+         * type.
+         */
+        String text(final Object value) {
+            if(sqlType.equals("TIMESTAMPTZ")) {
+                if(value instanceof Date) {
+                    return ((Date) value).toInstant().toString();
+                } else if(value instanceof Number) {
+                    return Instant.ofEpochMilli(((Number) value).longValue()).toString();
+                }
+            }
+            return String.valueOf(value);
+        }
+    }
+    
+    /**
+     * A {@link Compressed} field, and the column it's kept in.
+     */
+    @Value
+    static class CompressedField {
+        private Field field;
+        private String column;
+        private ObjectWriter writer;
+        private ObjectReader reader;
+        
+        /**
+         * @return The field's value, as gzipped JSON, or {@code null} if it
+         * was never loaded or set, or is {@code null}, and so shouldn't be
+         * written. What's stored is kept instead.
+         */
+        byte[] compress(final Object entity) {
+            final Lazy<?> lazy = lazy(entity);
+            if(lazy == null || !lazy.isLoaded() || lazy.get() == null) {
+                return null;
+            }
+            try {
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try(final OutputStream out = new GZIPOutputStream(bytes)) {
+                    writer.writeValue(out, lazy.get());
+                }
+                return bytes.toByteArray();
+            } catch(final IOException e) {
+                throw new IllegalStateException("Couldn't compress field " + field.getName() + " of entity " + entity, e);
+            }
+        }
+        
+        /**
+         * @return The field's holder on the entity, or {@code null} if it
+         * hasn't got one.
+         */
+        @SuppressWarnings("unchecked")
+        Lazy<Object> lazy(final Object entity) {
+            try {
+                return (Lazy<Object>) field.get(entity);
+            } catch(final IllegalAccessException e) {
+                throw new IllegalStateException("Couldn't get field " + field.getName() + " of entity " + entity, e);
+            }
+        }
+        
+        /**
+         * @return The field's value, read from the column.
+         */
+        Object decompress(final byte[] compressed) {
+            if(compressed == null) {
+                return null;
+            }
+            try(final InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+                return reader.readValue(in);
+            } catch(final IOException e) {
+                throw new IllegalStateException("Couldn't decompress field " + field.getName(), e);
+            }
+        }
+        
+        private void attach(final Object entity, final Supplier<Object> loader) {
+            try {
+                field.set(entity, Lazy.loading(loader));
+            } catch(final IllegalAccessException e) {
+                throw new IllegalStateException("Couldn't set field " + field.getName() + " of entity " + entity, e);
+            }
+        }
+    }
+    
+    @Value
+    static class IndexDefinition {
+        private boolean unique;
+        /**
+         * Everything after the index's name, ex.
+         * <code>ON table USING GIN (data)</code>.
+         */
+        private String definition;
+        
+        String sql(final String name, final boolean concurrently) {
+            return "CREATE " + (unique ? "UNIQUE " : "") + "INDEX " + (concurrently ? "CONCURRENTLY " : "") + "IF NOT EXISTS " + name + ' ' + definition + ';';
+        }
+    }
+}
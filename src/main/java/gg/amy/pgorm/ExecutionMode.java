@@ -0,0 +1,30 @@
+package gg.amy.pgorm;
+
+/**
+ * How a {@link PgStore} runs the blocking work behind an
+ * {@link AsyncPgMapper}. The executors for each mode are owned by the store,
+ * and are shut down by {@link PgStore#disconnect()}.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+public enum ExecutionMode {
+    /**
+     * A fixed number of threads, equal to the connection pool's
+     * {@code maximumPoolSize}. Extra work waits in the executor's queue
+     * instead of spawning threads that would only block waiting for a
+     * connection. This is the default.
+     */
+    BOUNDED,
+    /**
+     * One virtual thread per task. Only available when running on a JVM with
+     * virtual threads (Java 21+); otherwise {@link #BOUNDED} is used instead.
+     */
+    VIRTUAL,
+    /**
+     * An unbounded {@link java.util.concurrent.Executors#newCachedThreadPool()}.
+     * This is how {@link AsyncPgMapper} used to work, and is only kept for
+     * compatibility.
+     */
+    CACHED
+}
@@ -0,0 +1,34 @@
+package gg.amy.pgorm;
+
+import lombok.Value;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How far along a {@link PgMapper#bulkImport(java.util.Iterator, java.util.function.Consumer)}
+ * is. Progress is reported while entities are being copied; the final report
+ * is returned once everything has been merged into the table.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@Value
+public class ImportProgress {
+    /**
+     * The number of entities copied so far.
+     */
+    private long entities;
+    /**
+     * The number of bytes of COPY data sent so far.
+     */
+    private long bytes;
+    private long elapsedNanos;
+    
+    public double getEntitiesPerSecond() {
+        return elapsedNanos == 0L ? 0.0D : entities / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1L));
+    }
+    
+    public double getBytesPerSecond() {
+        return elapsedNanos == 0L ? 0.0D : bytes / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1L));
+    }
+}
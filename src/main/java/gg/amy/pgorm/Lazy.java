@@ -0,0 +1,90 @@
+package gg.amy.pgorm;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreType;
+
+import java.util.function.Supplier;
+
+/**
+ * A value that's only loaded the first time it's asked for. Used for
+ * {@link gg.amy.pgorm.annotations.Compressed} fields, which aren't part of
+ * the entity's document; Jackson always skips fields of this type. <p/>
+ * Loading runs a query on the calling thread. For entities loaded by a
+ * {@link ReactivePgStore}, {@link #get()} can't load on a Vert.x event loop;
+ * use {@link ReactivePgMapper#loadCompressed(Object)} there instead. <p/>
+ * If the entity's row is gone by the time the value is loaded, {@link #get()}
+ * throws, and the value stays unloaded, so saving the entity won't write
+ * anything over it.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@JsonIgnoreType
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class Lazy<V> {
+    // Both guarded by this. The loader is null once the value is loaded.
+    private Supplier<V> loader;
+    private V value;
+    
+    private Lazy(final V value, final Supplier<V> loader) {
+        this.value = value;
+        this.loader = loader;
+    }
+    
+    /**
+     * @return A value that's already loaded, ex. for a new entity.
+     */
+    public static <V> Lazy<V> of(final V value) {
+        return new Lazy<>(value, null);
+    }
+    
+    static <V> Lazy<V> loading(final Supplier<V> loader) {
+        return new Lazy<>(null, loader);
+    }
+    
+    /**
+     * @return The value, loading it first if it hasn't been yet.
+     *
+     * @throws IllegalStateException If loading it failed.
+     */
+    public synchronized V get() {
+        if(loader != null) {
+            value = loader.get();
+            loader = null;
+        }
+        return value;
+    }
+    
+    /**
+     * Fills in a value that was loaded elsewhere, unless it's been loaded or
+     * set already.
+     */
+    synchronized void complete(final V value) {
+        if(loader != null) {
+            this.value = value;
+            loader = null;
+        }
+    }
+    
+    /**
+     * Replaces the value, without loading the old one. It's written the next
+     * time the entity is saved.
+     */
+    public synchronized void set(final V value) {
+        this.value = value;
+        loader = null;
+    }
+    
+    /**
+     * @return Whether the value has been loaded or set. Only those values
+     * are written when the entity is saved, and only if they aren't
+     * {@code null}; a {@code null} keeps what's stored.
+     */
+    public synchronized boolean isLoaded() {
+        return loader == null;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return loader == null ? "Lazy(" + value + ')' : "Lazy(not loaded)";
+    }
+}
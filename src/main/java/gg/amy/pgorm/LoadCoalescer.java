@@ -0,0 +1,160 @@
+package gg.amy.pgorm;
+
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Collects the loads an {@link AsyncPgMapper} receives within a short window
+ * and runs them as a single {@link PgMapper#loadMany(java.util.Collection)}
+ * query, similar to a DataLoader. Concurrent loads of the same primary key
+ * share one future. Loads are expected to have missed the mapper's cache
+ * already, so it isn't looked in again. <p/>
+ * The window starts with the first load after a flush, and ends after
+ * {@link #getWindowMillis()} milliseconds, or as soon as
+ * {@link #getMaxBatchSize()} distinct keys are waiting. Callers pinned to
+ * the primary by a recent write load on their own instead; see
+ * {@link ReplicaRouter}.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class LoadCoalescer<T> {
+    private final PgMapper<T> mapper;
+    private final Supplier<Executor> executor;
+    @Getter
+    private final long windowMillis;
+    @Getter
+    private final int maxBatchSize;
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final ScheduledExecutorService timer;
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    // Guarded by this
+    private Map<Object, CompletableFuture<Optional<T>>> pending = new HashMap<>();
+    
+    /**
+     * @param mapper       The mapper to load with.
+     * @param executor     Supplies the executor that batched queries run on.
+     * @param windowMillis How long to collect loads for.
+     * @param maxBatchSize The most keys to collect before loading early.
+     */
+    public LoadCoalescer(final PgMapper<T> mapper, final Supplier<Executor> executor, final long windowMillis,
+                         final int maxBatchSize) {
+        if(windowMillis <= 0L || maxBatchSize <= 0) {
+            throw new IllegalArgumentException("Invalid load coalescing settings: windowMillis=" + windowMillis
+                    + ", maxBatchSize=" + maxBatchSize);
+        }
+        this.mapper = mapper;
+        this.executor = executor;
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "pgorm-load-coalescer-" + mapper.getTableName());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    public CompletableFuture<Optional<T>> load(final Object pk) {
+        loads.incrementAndGet();
+        final CompletableFuture<Optional<T>> future;
+        final Map<Object, CompletableFuture<Optional<T>>> full;
+        synchronized(this) {
+            final CompletableFuture<Optional<T>> existing = pending.get(pk);
+            if(existing != null) {
+                return existing;
+            }
+            future = new CompletableFuture<>();
+            pending.put(pk, future);
+            if(pending.size() == 1) {
+                final Map<Object, CompletableFuture<Optional<T>>> window = pending;
+                try {
+                    timer.schedule(() -> flush(window), windowMillis, TimeUnit.MILLISECONDS);
+                } catch(final RejectedExecutionException e) {
+                    // Shut down, so just load it straight away
+                    pending = new HashMap<>();
+                    run(window);
+                    return future;
+                }
+            }
+            if(pending.size() >= maxBatchSize) {
+                full = pending;
+                pending = new HashMap<>();
+            } else {
+                full = null;
+            }
+        }
+        if(full != null) {
+            run(full);
+        }
+        return future;
+    }
+    
+    /**
+     * @return The number of loads received.
+     */
+    public long getLoads() {
+        return loads.get();
+    }
+    
+    /**
+     * @return The number of queries those loads were coalesced into.
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+    
+    void shutdown() {
+        timer.shutdown();
+        final Map<Object, CompletableFuture<Optional<T>>> window;
+        synchronized(this) {
+            window = pending;
+            pending = new HashMap<>();
+        }
+        if(!window.isEmpty()) {
+            run(window);
+        }
+    }
+    
+    private void flush(final Map<Object, CompletableFuture<Optional<T>>> window) {
+        synchronized(this) {
+            if(pending != window) {
+                // Already flushed for being full
+                return;
+            }
+            pending = new HashMap<>();
+        }
+        run(window);
+    }
+    
+    private void run(final Map<Object, CompletableFuture<Optional<T>>> window) {
+        batches.incrementAndGet();
+        try {
+            executor.get().execute(() -> {
+                try {
+                    final Map<Object, T> loaded = mapper.loadManyAfterMiss(window.keySet());
+                    window.forEach((pk, future) -> future.complete(Optional.ofNullable(loaded.get(pk))));
+                } catch(final RuntimeException e) {
+                    logger.error("Couldn't load {} coalesced entities from {}:", window.size(), mapper.getTableName(), e);
+                    window.values().forEach(future -> future.completeExceptionally(e));
+                }
+            });
+        } catch(final RejectedExecutionException e) {
+            window.values().forEach(future -> future.completeExceptionally(e));
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package gg.amy.pgorm;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import gg.amy.pgorm.ConcurrencyLimiter.Lane;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+/**
+ * Sends a store's metrics to a Micrometer {@link MeterRegistry}. Micrometer
+ * is an optional dependency, so add <code>io.micrometer:micrometer-core</code>
+ * to use this. <p/>
+ * The following meters are registered, all tagged with <code>table</code>
+ * and <code>operation</code> unless noted otherwise:
+ * <ul>
+ * <li><code>pgorm.operation</code> - Timer, additionally tagged with
+ * <code>phase</code>. Publishes a percentile histogram.</li>
+ * <li><code>pgorm.rows</code> - Distribution summary of rows per call.</li>
+ * <li><code>pgorm.document.bytes</code> - Distribution summary of the size
+ * of JSON documents.</li>
+ * <li><code>pgorm.pool.connections</code> - Gauge, tagged with
+ * <code>state</code> (<code>active</code>, <code>idle</code>,
+ * <code>pending</code> or <code>total</code>).</li>
+ * <li><code>pgorm.executor.queued</code> - Gauge of tasks waiting for an
+ * async mapper thread.</li>
+ * <li><code>pgorm.writebehind.queued</code> - Gauge of entities waiting in a
+ * write-behind queue, tagged with <code>table</code>.</li>
+ * <li><code>pgorm.limiter.limit</code> - Gauge of how many async operations
+ * may run at once, and <code>pgorm.limiter.inflight</code> of how many
+ * are running. Both are 0 while concurrency limiting is off.</li>
+ * <li><code>pgorm.limiter.queued</code> - Gauge of operations waiting for
+ * room, and <code>pgorm.limiter.rejected</code> - Counter of operations
+ * turned away, both tagged with <code>lane</code> (<code>read</code> or
+ * <code>write</code>).</li>
+ * </ul>
+ * Meters are looked up from arrays after the first call for each table, so
+ * recording doesn't allocate.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@SuppressWarnings("unused")
+public class MicrometerPgMetrics implements PgMetrics {
+    private static final Operation[] OPERATIONS = Operation.values();
+    private static final Phase[] PHASES = Phase.values();
+    private final MeterRegistry registry;
+    private final Map<String, TableMeters> tables = new ConcurrentHashMap<>();
+    
+    public MicrometerPgMetrics(final MeterRegistry registry) {
+        this.registry = registry;
+    }
+    
+    @Override
+    public void bind(final PgStore store) {
+        poolGauge(store, "active", HikariPoolMXBean::getActiveConnections);
+        poolGauge(store, "idle", HikariPoolMXBean::getIdleConnections);
+        poolGauge(store, "pending", HikariPoolMXBean::getThreadsAwaitingConnection);
+        poolGauge(store, "total", HikariPoolMXBean::getTotalConnections);
+        Gauge.builder("pgorm.executor.queued", store, PgStore::getQueuedTasks)
+                .description("Tasks waiting for an async mapper thread")
+                .register(registry);
+        limiterGauge("pgorm.limiter.limit", store, ConcurrencyLimiter::getLimit);
+        limiterGauge("pgorm.limiter.inflight", store, ConcurrencyLimiter::getInFlight);
+        for(final Lane lane : Lane.values()) {
+            final String tag = lane.name().toLowerCase();
+            Gauge.builder("pgorm.limiter.queued", store, s -> {
+                final ConcurrencyLimiter limiter = s.getConcurrencyLimiter();
+                return limiter != null ? limiter.getQueued(lane) : 0;
+            }).tag("lane", tag).register(registry);
+            FunctionCounter.builder("pgorm.limiter.rejected", store, s -> {
+                final ConcurrencyLimiter limiter = s.getConcurrencyLimiter();
+                return limiter != null ? limiter.getRejected(lane) : 0;
+            }).tag("lane", tag).register(registry);
+        }
+    }
+    
+    @Override
+    public void bind(final AsyncPgMapper<?> mapper) {
+        Gauge.builder("pgorm.writebehind.queued", mapper, m -> {
+            final WriteBehindQueue<?> queue = m.getWriteBehind();
+            return queue != null ? queue.getQueueDepth() : 0;
+        }).tag("table", mapper.getMapper().getTableName())
+                .description("Entities waiting in the write-behind queue")
+                .register(registry);
+    }
+    
+    @Override
+    public void recordTime(final String table, final Operation operation, final Phase phase, final long nanos) {
+        meters(table).timer(operation, phase).record(nanos, TimeUnit.NANOSECONDS);
+    }
+    
+    @Override
+    public void recordRows(final String table, final Operation operation, final long rows) {
+        meters(table).rows(operation).record(rows);
+    }
+    
+    @Override
+    public void recordBytes(final String table, final Operation operation, final long bytes) {
+        meters(table).bytes(operation).record(bytes);
+    }
+    
+    private TableMeters meters(final String table) {
+        final TableMeters meters = tables.get(table);
+        return meters != null ? meters : tables.computeIfAbsent(table, TableMeters::new);
+    }
+    
+    private void poolGauge(final PgStore store, final String state, final ToIntFunction<HikariPoolMXBean> stat) {
+        Gauge.builder("pgorm.pool.connections", store, s -> {
+            final HikariDataSource hikari = s.getHikari();
+            final HikariPoolMXBean pool = hikari != null ? hikari.getHikariPoolMXBean() : null;
+            return pool != null ? stat.applyAsInt(pool) : 0;
+        }).tag("state", state).register(registry);
+    }
+    
+    private void limiterGauge(final String name, final PgStore store, final ToIntFunction<ConcurrencyLimiter> stat) {
+        Gauge.builder(name, store, s -> {
+            final ConcurrencyLimiter limiter = s.getConcurrencyLimiter();
+            return limiter != null ? stat.applyAsInt(limiter) : 0;
+        }).register(registry);
+    }
+    
+    /**
+     * The meters of a single table. Meters are registered the first time
+     * they're used; if two threads race to do so, Micrometer hands both the
+     * same meter.
+     */
+    private final class TableMeters {
+        private final String table;
+        private final Timer[][] timers = new Timer[OPERATIONS.length][PHASES.length];
+        private final DistributionSummary[] rows = new DistributionSummary[OPERATIONS.length];
+        private final DistributionSummary[] bytes = new DistributionSummary[OPERATIONS.length];
+        
+        private TableMeters(final String table) {
+            this.table = table;
+        }
+        
+        private Timer timer(final Operation operation, final Phase phase) {
+            Timer timer = timers[operation.ordinal()][phase.ordinal()];
+            if(timer == null) {
+                timer = Timer.builder("pgorm.operation")
+                        .tag("table", table)
+                        .tag("operation", operation.tag())
+                        .tag("phase", phase.tag())
+                        .publishPercentileHistogram()
+                        .register(registry);
+                timers[operation.ordinal()][phase.ordinal()] = timer;
+            }
+            return timer;
+        }
+        
+        private DistributionSummary rows(final Operation operation) {
+            DistributionSummary summary = rows[operation.ordinal()];
+            if(summary == null) {
+                summary = DistributionSummary.builder("pgorm.rows")
+                        .tag("table", table)
+                        .tag("operation", operation.tag())
+                        .baseUnit("rows")
+                        .register(registry);
+                rows[operation.ordinal()] = summary;
+            }
+            return summary;
+        }
+        
+        private DistributionSummary bytes(final Operation operation) {
+            DistributionSummary summary = bytes[operation.ordinal()];
+            if(summary == null) {
+                summary = DistributionSummary.builder("pgorm.document.bytes")
+                        .tag("table", table)
+                        .tag("operation", operation.tag())
+                        .baseUnit("bytes")
+                        .register(registry);
+                bytes[operation.ordinal()] = summary;
+            }
+            return summary;
+        }
+    }
+}
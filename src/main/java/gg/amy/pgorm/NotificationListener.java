@@ -0,0 +1,143 @@
+package gg.amy.pgorm;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Holds a single dedicated connection that <code>LISTEN</code>s on channels
+ * for a {@link PgStore}, and hands each notification's payload to the
+ * handlers registered for its channel. <p/>
+ * Notifications can't be delivered while the connection is down, so if it
+ * has to be re-established, the reconnect handlers are run to let anything
+ * relying on notifications (ex. caches) throw away what may now be stale.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class NotificationListener {
+    private static final int POLL_TIMEOUT_MILLIS = 250;
+    private static final long RECONNECT_DELAY_MILLIS = 1000L;
+    private final PgStore store;
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Map<String, List<Consumer<String>>> handlers = new ConcurrentHashMap<>();
+    private final List<Runnable> reconnectHandlers = new CopyOnWriteArrayList<>();
+    // Channels that still need a LISTEN on the current connection
+    private final Queue<String> unlistened = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+    
+    NotificationListener(final PgStore store) {
+        this.store = store;
+        thread = new Thread(this::run, "pgorm-notification-listener");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Starts listening on a channel.
+     *
+     * @param channel The channel to listen on.
+     * @param handler Called with the payload of every notification on the
+     *                channel. Runs on the listener thread, so it should be
+     *                quick.
+     */
+    public void listen(final String channel, final Consumer<String> handler) {
+        final List<Consumer<String>> channelHandlers = handlers.computeIfAbsent(channel, __ -> new CopyOnWriteArrayList<>());
+        final boolean first = channelHandlers.isEmpty();
+        channelHandlers.add(handler);
+        if(first) {
+            // Only queued once the channel is in the map, so a reconnect can't lose it
+            unlistened.add(channel);
+        }
+    }
+    
+    /**
+     * @param handler Called whenever the listener connection had to be
+     *                re-established, meaning notifications may have been
+     *                missed.
+     */
+    public void onReconnect(final Runnable handler) {
+        reconnectHandlers.add(handler);
+    }
+    
+    void shutdown() {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch(final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void run() {
+        boolean first = true;
+        while(running) {
+            try(final Connection connection = store.getHikari().getConnection()) {
+                final PGConnection pg = connection.unwrap(PGConnection.class);
+                // Everything needs to be listened on again on a new connection
+                unlistened.clear();
+                unlistened.addAll(handlers.keySet());
+                if(!first) {
+                    logger.warn("Notification listener reconnected, notifications may have been missed.");
+                    reconnectHandlers.forEach(Runnable::run);
+                }
+                first = false;
+                while(running) {
+                    String channel;
+                    while((channel = unlistened.poll()) != null) {
+                        try(final Statement statement = connection.createStatement()) {
+                            statement.execute("LISTEN " + pg.escapeIdentifier(channel) + ';');
+                        }
+                        logger.debug("Listening for notifications on {}.", channel);
+                    }
+                    final PGNotification[] notifications = pg.getNotifications(POLL_TIMEOUT_MILLIS);
+                    if(notifications != null) {
+                        for(final PGNotification notification : notifications) {
+                            dispatch(notification);
+                        }
+                    }
+                }
+            } catch(final SQLException | RuntimeException e) {
+                if(!running) {
+                    return;
+                }
+                logger.error("Notification listener connection failed, reconnecting:", e);
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MILLIS);
+                } catch(final InterruptedException ignored) {
+                    // If we're shutting down the loop will exit
+                }
+            }
+        }
+    }
+    
+    private void dispatch(final PGNotification notification) {
+        final List<Consumer<String>> channelHandlers = handlers.get(notification.getName());
+        if(channelHandlers == null) {
+            return;
+        }
+        for(final Consumer<String> handler : channelHandlers) {
+            try {
+                handler.accept(notification.getParameter());
+            } catch(final RuntimeException e) {
+                logger.error("Notification handler for {} failed:", notification.getName(), e);
+            }
+        }
+    }
+}
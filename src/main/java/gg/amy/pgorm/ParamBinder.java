@@ -0,0 +1,16 @@
+package gg.amy.pgorm;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Binds one parameter of a statement that's built up piece by piece, like a
+ * {@link Query} or an {@link Update}.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@FunctionalInterface
+interface ParamBinder {
+    void bind(PreparedStatement statement, int index) throws SQLException;
+}
@@ -0,0 +1,166 @@
+package gg.amy.pgorm;
+
+import gg.amy.pgorm.annotations.PartitionInterval;
+import gg.amy.pgorm.annotations.Table;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.ResultSet;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates and drops the partitions of a {@link PgStore}'s range partitioned
+ * tables. <p/>
+ * Every partition covers one {@link PartitionInterval}, in UTC, and is named
+ * after the day it starts on, ex. <code>events_p20261001</code>. The current
+ * interval's partition and {@link Table#premadePartitions()} after it are
+ * made ahead of time, so that rows don't end up in the default partition;
+ * partitions that ended more than {@link Table#retainedPartitions()}
+ * intervals ago are dropped. That happens when the class is mapped, and then
+ * every {@link #MAINTENANCE_INTERVAL_MINUTES} minutes.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+final class PartitionMaintainer {
+    /**
+     * How often partitions are checked. Partitions are made well ahead of
+     * time, so this doesn't need to be often.
+     */
+    static final long MAINTENANCE_INTERVAL_MINUTES = 60L;
+    private static final DateTimeFormatter SUFFIX = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final String PARTITIONS_SQL = "SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid " +
+            "WHERE i.inhparent = ?::regclass;";
+    private final PgStore store;
+    private final Map<String, EntityMetadata<?>> entities = new ConcurrentHashMap<>();
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    // Guarded by this
+    private ScheduledExecutorService scheduler;
+    
+    PartitionMaintainer(final PgStore store) {
+        this.store = store;
+    }
+    
+    /**
+     * Makes the entity's partitions straight away, and keeps them up to date
+     * from then on.
+     */
+    void register(final EntityMetadata<?> entity) {
+        maintain(entity);
+        entities.put(entity.getTableName(), entity);
+        synchronized(this) {
+            if(scheduler == null) {
+                scheduler = Executors.newSingleThreadScheduledExecutor(PgStore.threadFactory("pgorm-partitions-"));
+                scheduler.scheduleWithFixedDelay(this::maintainAll, MAINTENANCE_INTERVAL_MINUTES,
+                        MAINTENANCE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+            }
+        }
+    }
+    
+    void maintainAll() {
+        for(final EntityMetadata<?> entity : entities.values()) {
+            try {
+                maintain(entity);
+            } catch(final RuntimeException e) {
+                // Try again next time
+                logger.error("Couldn't maintain partitions of table {}:", entity.getTableName(), e);
+            }
+        }
+    }
+    
+    private void maintain(final EntityMetadata<?> entity) {
+        final Table table = entity.getTable();
+        final PartitionInterval interval = table.partitionInterval();
+        final LocalDate current = start(LocalDate.now(ZoneOffset.UTC), interval);
+        for(int i = 0; i <= table.premadePartitions(); i++) {
+            final LocalDate from = plus(current, interval, i);
+            final String name = table.value() + "_p" + from.format(SUFFIX);
+            // One statement each, so that a partition clashing with rows
+            // already in the default partition doesn't stop the others
+            try {
+                store.sql("CREATE TABLE IF NOT EXISTS " + name + " PARTITION OF " + table.value()
+                        + " FOR VALUES FROM ('" + from + " 00:00:00+00') TO ('" + plus(from, interval, 1) + " 00:00:00+00');");
+            } catch(final IllegalStateException e) {
+                logger.error("Couldn't create partition {}:", name, e);
+            }
+        }
+        if(table.retainedPartitions() <= 0) {
+            return;
+        }
+        final LocalDate oldest = plus(current, interval, -table.retainedPartitions());
+        final String prefix = table.value().toLowerCase(Locale.ROOT) + "_p";
+        final List<String> expired = new ArrayList<>();
+        store.sql(PARTITIONS_SQL, s -> {
+            s.setString(1, table.value());
+            try(final ResultSet resultSet = s.executeQuery()) {
+                while(resultSet.next()) {
+                    final String name = resultSet.getString(1);
+                    if(!name.startsWith(prefix)) {
+                        continue;
+                    }
+                    try {
+                        if(LocalDate.parse(name.substring(prefix.length()), SUFFIX).isBefore(oldest)) {
+                            expired.add(name);
+                        }
+                    } catch(final DateTimeParseException ignored) {
+                        // Not one of ours
+                    }
+                }
+            }
+        });
+        for(final String name : expired) {
+            logger.info("Dropping expired partition {}.", name);
+            store.sql("DROP TABLE IF EXISTS " + name + ';');
+        }
+    }
+    
+    /**
+     * Stops maintaining partitions. Called by {@link PgStore#disconnect()}.
+     */
+    synchronized void shutdown() {
+        entities.clear();
+        if(scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+    
+    private static LocalDate start(final LocalDate date, final PartitionInterval interval) {
+        switch(interval) {
+            case DAY:
+                return date;
+            case WEEK:
+                return date.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+            case MONTH:
+                return date.withDayOfMonth(1);
+            default:
+                throw new IllegalArgumentException("Unknown partition interval: " + interval);
+        }
+    }
+    
+    private static LocalDate plus(final LocalDate date, final PartitionInterval interval, final long n) {
+        switch(interval) {
+            case DAY:
+                return date.plusDays(n);
+            case WEEK:
+                return date.plusWeeks(n);
+            case MONTH:
+                return date.plusMonths(n);
+            default:
+                throw new IllegalArgumentException("Unknown partition interval: " + interval);
+        }
+    }
+}
@@ -1,22 +1,48 @@
 package gg.amy.pgorm;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import gg.amy.pgorm.annotations.BtreeIndex;
-import gg.amy.pgorm.annotations.GIndex;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import gg.amy.pgorm.EntityMetadata.CompressedField;
+import gg.amy.pgorm.PgMetrics.Operation;
+import gg.amy.pgorm.PgMetrics.Phase;
+import gg.amy.pgorm.PgStore.SqlConsumer;
+import gg.amy.pgorm.annotations.Cached;
 import gg.amy.pgorm.annotations.PrimaryKey;
 import gg.amy.pgorm.annotations.Table;
+import gg.amy.pgorm.annotations.Version;
+import lombok.AccessLevel;
 import lombok.Getter;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * NOTE: The JSONB data column is always named <code>data</code>.
@@ -26,106 +52,615 @@ import java.util.Optional;
  */
 @SuppressWarnings({"WeakerAccess", "unused"})
 public class PgMapper<T> {
-    private static final ObjectMapper MAPPER = new ObjectMapper();
+    /**
+     * The default number of entities sent per JDBC batch by
+     * {@link #saveAll(Collection)}.
+     */
+    public static final int DEFAULT_SAVE_CHUNK_SIZE = 500;
+    /**
+     * The default number of primary keys looked up per query by
+     * {@link #loadMany(Collection)}.
+     */
+    public static final int DEFAULT_LOAD_CHUNK_SIZE = 1000;
+    /**
+     * The default number of rows fetched per round trip by streaming queries.
+     */
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+    /**
+     * How many entities {@link #bulkImport(Iterator, Consumer)} copies
+     * between progress reports.
+     */
+    public static final int IMPORT_PROGRESS_INTERVAL = 10_000;
+    /**
+     * The most subkey queries cached per mapper. Subkeys come from callers,
+     * so any past this are built every time instead.
+     */
+    private static final int MAX_CACHED_SUBKEYS = 64;
+    /**
+     * Operations that only read, and so can go to a replica.
+     */
+    private static final Set<Operation> READS = EnumSet.of(Operation.LOAD, Operation.LOAD_MANY, Operation.LOAD_BY_SUBKEY,
+            Operation.STREAM, Operation.QUERY);
     @Getter
     private final Class<T> type;
+    @Getter(AccessLevel.PACKAGE)
+    private final EntityMetadata<T> metadata;
     @Getter
     private final PgStore store;
+    // Bound to the entity type up front, so Jackson doesn't have to look it up every time
+    private final ObjectWriter writer;
+    private final ObjectReader reader;
     
     private final Logger logger = LoggerFactory.getLogger(getClass());
     
     private Field pkField;
+    /**
+     * Reads the primary key field, typed as <code>(Object) -&gt; Object</code>
+     * so it can be called with {@link MethodHandle#invokeExact(Object...)}.
+     */
+    private MethodHandle pkGetter;
     private Table table;
     private PrimaryKey primaryKey;
+    @Getter
+    private int saveChunkSize = DEFAULT_SAVE_CHUNK_SIZE;
+    @Getter
+    private int loadChunkSize = DEFAULT_LOAD_CHUNK_SIZE;
+    @Getter
+    private int fetchSize = DEFAULT_FETCH_SIZE;
+    /**
+     * The name of the primary key's SQL type, as understood by
+     * {@link java.sql.Connection#createArrayOf(String, Object[])}.
+     */
+    @Getter(AccessLevel.PACKAGE)
+    private String pkArrayType;
+    private String pkSqlType;
+    /**
+     * The {@link Version} field, or {@code null} if the entity class isn't
+     * versioned.
+     */
+    private Field versionField;
+    @Getter(AccessLevel.PACKAGE)
+    private String versionColumn;
+    /**
+     * The cache in front of {@link #load(Object)}, or {@code null} if the
+     * entity class isn't annotated with {@link Cached}.
+     */
+    @Getter
+    private EntityCache<T> cache;
+    /**
+     * The channel that saves and deletes notify other nodes on, or
+     * {@code null} if cross-node cache invalidation is off.
+     */
+    @Getter(AccessLevel.PACKAGE)
+    private String invalidationChannel;
+    // All the SQL that doesn't depend on its arguments is built once, in init()
+    private String upsertSql;
+    private String batchUpsertSql;
+    private String loadSql;
+    private String loadManySql;
+    private String deleteSql;
+    private String scanSql;
+    private String versionedSaveSql;
+    private final Map<String, String> subkeySqlCache = new ConcurrentHashMap<>();
+    private final Map<Class<?>, Projection<?>> projections = new ConcurrentHashMap<>();
     
     public PgMapper(final PgStore store, final Class<T> type) {
         this.store = store;
         this.type = type;
+        metadata = new EntityMetadata<>(type);
+        writer = metadata.getWriter();
+        reader = metadata.getReader();
         init();
     }
     
     private void init() {
-        // Scan to ensure required annotations
-        if(!type.isAnnotationPresent(Table.class)) {
-            throw new IllegalStateException("Got class " + type.getName() + " to map, but it has no @Table!?");
-        }
-        table = type.getDeclaredAnnotation(Table.class);
-        // Scan the class for a primary key
-        boolean havePk = false;
-        pkField = null;
-        for(final Field field : type.getDeclaredFields()) {
-            field.setAccessible(true);
-            if(field.isAnnotationPresent(PrimaryKey.class)) {
-                havePk = true;
-                pkField = field;
-            }
-        }
-        if(!havePk) {
-            throw new IllegalStateException("Class " + type.getName() + " has no @PrimaryKey!?");
-        }
-        // Ensure that it's a valid type
-        final String sqlType = typeToSqlType(pkField.getType());
-        primaryKey = pkField.getDeclaredAnnotation(PrimaryKey.class);
-        // Create the table
-        store.sql("CREATE TABLE IF NOT EXISTS " + table.value() + " (" +
-                primaryKey.value() + ' ' + sqlType + " PRIMARY KEY NOT NULL UNIQUE," +
-                "data JSONB" +
-                ");");
-        logger.info("Created table {} for entity class {}.", table.value(), type.getName());
-        // Create the indexes
-        if(type.isAnnotationPresent(BtreeIndex.class)) {
-            final BtreeIndex btreeIndex = type.getDeclaredAnnotation(BtreeIndex.class);
-            for(final String s : btreeIndex.value()) {
-                final String idx = "idx_btree_" + table.value() + '_' + s;
-                store.sql("CREATE INDEX IF NOT EXISTS " + idx + " ON " + table.value() + " USING BTREE ((data->'" + s + "'));");
-                logger.info("Created index {} on {} for entity class {}.", idx, table.value(), type.getName());
-            }
-        }
-        // Make base GIN index
-        final String dataGinIdx = "idx_gin_" + table.value() + "_data";
-        store.sql("CREATE INDEX IF NOT EXISTS " + dataGinIdx + " ON " + table.value() + " USING GIN (data);");
-        logger.info("Created index idx_gin_data on {} for entity class {}.", table.value(), type.getName());
-        if(type.isAnnotationPresent(GIndex.class)) {
-            final GIndex gin = type.getDeclaredAnnotation(GIndex.class);
-            for(final String s : gin.value()) {
-                final String idx = "idx_gin_" + table.value() + '_' + s;
-                store.sql("CREATE INDEX IF NOT EXISTS " + idx + " ON " + table.value() + " USING GIN ((data->'" + s + "'));");
-                logger.info("Created index {} on {} for entity class {}.", idx, table.value(), type.getName());
+        table = metadata.getTable();
+        primaryKey = metadata.getPrimaryKey();
+        pkField = metadata.getPkField();
+        pkGetter = metadata.getPkGetter();
+        pkSqlType = metadata.getPkSqlType();
+        pkArrayType = metadata.getPkArrayType();
+        versionField = metadata.getVersionField();
+        versionColumn = metadata.getVersionColumn();
+        invalidationChannel = metadata.getInvalidationChannel();
+        if(metadata.getCached() != null) {
+            cache = EntityCache.fromAnnotation(metadata.getCached());
+            logger.info("Caching up to {} entities of class {}.", cache.getMaxSize(), type.getName());
+            if(invalidationChannel != null) {
+                final NotificationListener listener = store.getNotificationListener();
+                listener.listen(invalidationChannel, payload -> {
+                    // An empty payload means that too much changed to send every key
+                    if(payload.isEmpty()) {
+                        cache.invalidateAll();
+                    } else {
+                        cache.invalidate(parsePrimaryKey(payload));
+                    }
+                });
+                listener.onReconnect(cache::invalidateAll);
+                logger.info("Invalidating cached entities of class {} across nodes on channel {}.", type.getName(), invalidationChannel);
             }
         }
+        buildSql();
+        // Create the table and indexes, if they don't exist yet
+        store.getSchema().ensure(Collections.singletonList(metadata));
+        if(metadata.getPartitionColumn() != null && store.getSchemaMode() != SchemaMode.VALIDATE) {
+            store.getPartitions().register(metadata);
+        }
+    }
+    
+    private void buildSql() {
+        // The document is sent as raw UTF-8 bytes, and only once; the update
+        // takes it from the row that failed to insert.
+        final String partitionKey = metadata.partitionKeyOf("v.data");
+        // Compressed fields go after the document, one parameter each
+        final String compressed = metadata.compressedColumns("", "");
+        final String compressedUpdates = metadata.compressedUpdates();
+        if(partitionKey == null) {
+            batchUpsertSql = "INSERT INTO " + table.value() + " (" + primaryKey.value() + ", data" + compressed + ") "
+                    + "values (?, convert_from(?, 'UTF8')::jsonb" + metadata.compressedParameters("?", "") + ") "
+                    + "ON CONFLICT (" + primaryKey.value() + ") DO UPDATE SET data = EXCLUDED.data" + compressedUpdates + ';';
+        } else {
+            // The partition key is taken from the document, so that the
+            // parameters are the same as always
+            batchUpsertSql = "INSERT INTO " + table.value() + " (" + primaryKey.value() + ", data" + compressed + ", " + metadata.getPartitionColumn().getName() + ") "
+                    + "SELECT v.*, " + partitionKey + " FROM (VALUES (?::" + pkSqlType + ", convert_from(?, 'UTF8')::jsonb"
+                    + metadata.compressedParameters("?", "::bytea") + ")) AS v (pk, data" + compressed + ") "
+                    + "ON CONFLICT (" + metadata.getConflictTarget() + ") DO UPDATE SET data = EXCLUDED.data" + compressedUpdates + ';';
+        }
+        upsertSql = batchUpsertSql + notifySql();
+        final String columns = metadata.selectColumns();
+        loadSql = "SELECT " + columns + " FROM " + table.value() + " WHERE " + primaryKey.value() + " = ?;";
+        loadManySql = "SELECT " + columns + " FROM " + table.value() + " WHERE " + primaryKey.value() + " = ANY(?);";
+        deleteSql = "DELETE FROM " + table.value() + " WHERE " + primaryKey.value() + " = ?;" + notifySql();
+        scanSql = "SELECT " + columns + " FROM " + table.value() + ';';
+        if(versionColumn != null) {
+            // Every row is inserted with the version it'll have once saved.
+            // An existing row is only overwritten if it's still at the
+            // version before that, and only rows that were written come back.
+            final String versionedPartitionKey = metadata.partitionKeyOf("u.data");
+            // Compressed fields are sent as base64 text arrays, which every
+            // driver version can bind
+            final String versioned = "INSERT INTO " + table.value() + " (" + primaryKey.value() + ", data, " + versionColumn + compressed
+                    + (versionedPartitionKey != null ? ", " + metadata.getPartitionColumn().getName() : "") + ") "
+                    + "SELECT u.pk, u.data, u.version" + metadata.compressedColumns("decode(u.", ", 'base64')")
+                    + (versionedPartitionKey != null ? ", " + versionedPartitionKey : "")
+                    + " FROM unnest(?, ?::text[]::jsonb[], ?" + metadata.compressedParameters("?", "::text[]") + ") "
+                    + "AS u (pk, data, version" + compressed + ") ON CONFLICT (" + metadata.getConflictTarget() + ") "
+                    + "DO UPDATE SET data = EXCLUDED.data, " + versionColumn + " = EXCLUDED." + versionColumn + compressedUpdates
+                    + " WHERE " + table.value() + '.' + versionColumn + " = EXCLUDED." + versionColumn + " - 1 "
+                    + "RETURNING " + primaryKey.value();
+            versionedSaveSql = invalidationChannel != null
+                    ? "WITH saved AS (" + versioned + ") SELECT " + primaryKey.value() + ", pg_notify(?, " + primaryKey.value() + "::text) FROM saved;"
+                    : versioned + ';';
+        }
     }
     
+    /**
+     * Saves the entity. Inside a {@link PgStore#transaction(PgStore.SqlConsumer)},
+     * the save is queued and batched with the transaction's other saves.
+     *
+     * <p/>
+     * If the entity class has a {@link Version} field, the save only
+     * succeeds if nobody else saved the entity since this version was
+     * loaded, and then updates the field to the new version. Versioned
+     * saves always run straight away, even inside a transaction.
+     *
+     * @param entity The entity to save.
+     *
+     * @throws VersionConflictException If the entity is versioned, and a
+     *                                  newer version was saved first.
+     */
     public void save(final T entity) {
-        pkField.setAccessible(true);
+        if(versionField != null) {
+            if(!writeVersioned(Collections.singletonList(entity), Operation.SAVE, e -> {
+            }).isEmpty()) {
+                throw new VersionConflictException(entity);
+            }
+            return;
+        }
+        final Transaction tx = store.currentTransaction();
+        if(tx != null) {
+            tx.queue(this, Collections.singletonList(entity));
+            return;
+        }
         try {
-            final Object pk = pkField.get(entity);
+            final Object pk = primaryKeyOf(entity);
             // Map the object to JSON
-            final String json = MAPPER.writeValueAsString(entity);
-            // Oh god this is so ugly
-            store.sql("INSERT INTO " + table.value() + " (" + primaryKey.value() + ", data) values (?, to_jsonb(?::jsonb)) " +
-                    "ON CONFLICT (" + primaryKey.value() + ") DO UPDATE SET " + primaryKey.value() + " = ?, data = to_jsonb(?::jsonb);", c -> {
+            final byte[] json = serialize(entity, Operation.SAVE);
+            final List<byte[]> compressed = compress(entity);
+            sql(Operation.SAVE, upsertSql, c -> {
                 c.setObject(1, pk);
-                c.setString(2, json);
-                c.setObject(3, pk);
-                c.setString(4, json);
+                c.setBytes(2, json);
+                int i = 3;
+                for(final byte[] field : compressed) {
+                    c.setBytes(i++, field);
+                }
+                if(invalidationChannel != null) {
+                    c.setString(i, invalidationChannel);
+                    c.setString(i + 1, String.valueOf(pk));
+                }
                 c.execute();
             });
-        } catch(final IllegalAccessException e) {
-            logger.error("Couldn't access primary key for entity {} (value: {}): {}", type.getName(), entity, e);
+            if(cache != null) {
+                cache.invalidate(pk);
+            }
         } catch(final JsonProcessingException e) {
             logger.error("Couldn't map entity {} (value: {}) to JSON: {}", type.getName(), entity, e);
         }
     }
     
+    /**
+     * Saves many entities at once. All entities are written on a single
+     * connection in a single transaction, and are sent to the database as
+     * JDBC batches of at most {@link #getSaveChunkSize()} upserts each. With
+     * the default {@link PgStore} configuration, the driver rewrites each
+     * batch into a single multi-row <code>INSERT</code>. <p/>
+     * If any batch fails, the whole transaction is rolled back and nothing
+     * is saved. Entities that can't be mapped to JSON are logged and skipped,
+     * same as with {@link #save(Object)}. <p/>
+     * Inside a {@link PgStore#transaction(PgStore.SqlConsumer)}, the entities
+     * are queued with the transaction's other saves instead. <p/>
+     * If the entity class has a {@link Version} field, each chunk is instead
+     * written as a single conditional upsert, which reports which entities
+     * lost out to a newer version. Those are skipped rather than failing the
+     * whole save, so they can be reloaded and retried on their own.
+     *
+     * @param entities The entities to save.
+     *
+     * @return The entities that weren't saved because of a version conflict.
+     * Always empty for entities without a {@link Version} field.
+     */
+    public List<T> saveAll(final Collection<T> entities) {
+        return saveAll(entities, entity -> {
+        });
+    }
+    
+    /**
+     * Same as {@link #saveAll(Collection)}, but also hands every entity that
+     * couldn't be mapped to JSON, and so wasn't saved, to {@code unmapped}.
+     * Entities queued in a transaction are only mapped when it commits, so
+     * they're never reported.
+     */
+    List<T> saveAll(final Collection<T> entities, final Consumer<T> unmapped) {
+        if(versionField != null) {
+            return writeVersioned(entities, Operation.SAVE_ALL, unmapped);
+        }
+        final Transaction tx = store.currentTransaction();
+        if(tx != null) {
+            tx.queue(this, entities);
+        } else {
+            writeAll(entities, unmapped);
+        }
+        return Collections.emptyList();
+    }
+    
+    private List<T> writeVersioned(final Collection<T> entities, final Operation operation, final Consumer<T> unmapped) {
+        final List<T> conflicts = new ArrayList<>();
+        if(entities.isEmpty()) {
+            return conflicts;
+        }
+        final List<T> all = entities instanceof List ? (List<T>) entities : new ArrayList<>(entities);
+        final List<T> saved = new ArrayList<>(all.size());
+        sql(operation, versionedSaveSql, c -> {
+            for(int i = 0; i < all.size(); i += saveChunkSize) {
+                final List<T> chunk = all.subList(i, Math.min(all.size(), i + saveChunkSize));
+                final Map<String, T> byPk = new LinkedHashMap<>();
+                final List<Object> pks = new ArrayList<>(chunk.size());
+                final List<String> json = new ArrayList<>(chunk.size());
+                final List<Long> versions = new ArrayList<>(chunk.size());
+                final List<List<String>> compressed = new ArrayList<>();
+                for(int j = 0; j < metadata.getCompressedFields().size(); j++) {
+                    compressed.add(new ArrayList<>(chunk.size()));
+                }
+                for(final T entity : chunk) {
+                    final Object pk = primaryKeyOf(entity);
+                    if(byPk.containsKey(String.valueOf(pk))) {
+                        // A row can only be upserted once per statement, and
+                        // the first save already took this version anyway
+                        conflicts.add(entity);
+                        continue;
+                    }
+                    try {
+                        json.add(new String(serialize(entity, operation), StandardCharsets.UTF_8));
+                    } catch(final JsonProcessingException e) {
+                        logger.error("Couldn't map entity {} (value: {}) to JSON: {}", type.getName(), entity, e);
+                        unmapped.accept(entity);
+                        continue;
+                    }
+                    byPk.put(String.valueOf(pk), entity);
+                    pks.add(pk);
+                    versions.add(versionOf(entity) + 1L);
+                    final List<byte[]> fields = compress(entity);
+                    for(int j = 0; j < fields.size(); j++) {
+                        final byte[] field = fields.get(j);
+                        compressed.get(j).add(field != null ? Base64.getEncoder().encodeToString(field) : null);
+                    }
+                }
+                if(pks.isEmpty()) {
+                    continue;
+                }
+                c.setArray(1, c.getConnection().createArrayOf(pkArrayType, pks.toArray()));
+                c.setArray(2, c.getConnection().createArrayOf("text", json.toArray()));
+                c.setArray(3, c.getConnection().createArrayOf("int8", versions.toArray()));
+                int index = 4;
+                for(final List<String> column : compressed) {
+                    c.setArray(index++, c.getConnection().createArrayOf("text", column.toArray()));
+                }
+                if(invalidationChannel != null) {
+                    c.setString(index, invalidationChannel);
+                }
+                try(final ResultSet resultSet = c.executeQuery()) {
+                    while(resultSet.next()) {
+                        final T entity = byPk.remove(String.valueOf(resultSet.getObject(1)));
+                        if(entity != null) {
+                            saved.add(entity);
+                        }
+                    }
+                }
+                conflicts.addAll(byPk.values());
+            }
+        });
+        recordRows(operation, saved.size());
+        // Only once committed, so that a rollback or a retried transaction
+        // doesn't leave entities a version ahead of the database
+        store.afterCommit(() -> {
+            for(final T entity : saved) {
+                setVersion(entity, versionOf(entity) + 1L);
+                if(cache != null) {
+                    cache.invalidate(primaryKeyOf(entity));
+                }
+            }
+        });
+        return conflicts;
+    }
+    
+    /**
+     * Does the actual work of {@link #saveAll(Collection)}. When called as
+     * part of a transaction, leaves committing or rolling back to it.
+     */
+    void writeAll(final Collection<T> entities) {
+        writeAll(entities, entity -> {
+        });
+    }
+    
+    private void writeAll(final Collection<T> entities, final Consumer<T> unmapped) {
+        if(entities.isEmpty()) {
+            return;
+        }
+        sql(Operation.SAVE_ALL, connection -> {
+            final boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try(final PreparedStatement c = connection.prepareStatement(batchUpsertSql)) {
+                final List<String> saved = new ArrayList<>(entities.size());
+                int batched = 0;
+                for(final T entity : entities) {
+                    try {
+                        final Object pk = primaryKeyOf(entity);
+                        final byte[] json = serialize(entity, Operation.SAVE_ALL);
+                        c.setObject(1, pk);
+                        c.setBytes(2, json);
+                        int i = 3;
+                        for(final byte[] field : compress(entity)) {
+                            c.setBytes(i++, field);
+                        }
+                        c.addBatch();
+                        saved.add(String.valueOf(pk));
+                        ++batched;
+                    } catch(final JsonProcessingException e) {
+                        logger.error("Couldn't map entity {} (value: {}) to JSON: {}", type.getName(), entity, e);
+                        unmapped.accept(entity);
+                    }
+                    if(batched == saveChunkSize) {
+                        c.executeBatch();
+                        batched = 0;
+                    }
+                }
+                if(batched > 0) {
+                    c.executeBatch();
+                }
+                if(invalidationChannel != null && !saved.isEmpty()) {
+                    // Notifications are only sent on commit, so one query for all of them is enough
+                    try(final PreparedStatement notify = connection.prepareStatement("SELECT pg_notify(?, pk) FROM unnest(?) pk;")) {
+                        notify.setString(1, invalidationChannel);
+                        notify.setArray(2, connection.createArrayOf("text", saved.toArray()));
+                        notify.execute();
+                    }
+                }
+                if(autoCommit) {
+                    connection.commit();
+                }
+                recordRows(Operation.SAVE_ALL, saved.size());
+                if(cache != null) {
+                    store.afterCommit(() -> {
+                        for(final T entity : entities) {
+                            cache.invalidate(primaryKeyOf(entity));
+                        }
+                    });
+                }
+            } catch(final SQLException e) {
+                if(autoCommit) {
+                    connection.rollback();
+                }
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        });
+    }
+    
+    /**
+     * Deletes the entity with the given primary key, if it exists.
+     *
+     * @param pk The primary key of the entity to delete.
+     */
+    public void delete(final Object pk) {
+        sql(Operation.DELETE, deleteSql, c -> {
+            c.setObject(1, pk);
+            if(invalidationChannel != null) {
+                c.setString(2, invalidationChannel);
+                c.setString(3, String.valueOf(pk));
+            }
+            c.execute();
+        });
+        if(cache != null) {
+            store.afterCommit(() -> cache.invalidate(pk));
+        }
+    }
+    
+    /**
+     * Bulk-loads entities with <code>COPY</code>, for imports and backfills
+     * too big for {@link #saveAll(Collection)}. Entities are streamed into a
+     * temporary staging table as they're pulled from the iterator, so memory
+     * use stays flat no matter how many there are, and are then merged into
+     * the table with a single upsert. If the same primary key shows up more
+     * than once, the last entity wins. <p/>
+     * Everything happens in one transaction, or as part of the current
+     * {@link PgStore#transaction(PgStore.SqlConsumer)}, so if anything
+     * fails, nothing is imported. Entities that can't be mapped to JSON are logged and
+     * skipped.
+     *
+     * @param entities The entities to import.
+     * @param progress Called with the progress every
+     *                 {@link #IMPORT_PROGRESS_INTERVAL} entities. May be
+     *                 {@code null}.
+     *
+     * @return The final progress, once everything has been merged.
+     */
+    public ImportProgress bulkImport(final Iterator<T> entities, final Consumer<ImportProgress> progress) {
+        final long start = System.nanoTime();
+        final long[] totals = new long[2];
+        final String staging = "pgorm_import_" + table.value();
+        final String compressed = metadata.compressedColumns("", "");
+        sql(Operation.BULK_IMPORT, connection -> {
+            final boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                try(final Statement statement = connection.createStatement()) {
+                    // seq keeps track of input order, so the last duplicate can win
+                    statement.execute("CREATE TEMP TABLE " + staging + " (seq BIGSERIAL, pk " + pkSqlType
+                            + " NOT NULL, data JSONB" + metadata.compressedColumns("", " BYTEA") + ") ON COMMIT DROP;");
+                }
+                final CopyIn copy = connection.unwrap(PGConnection.class).getCopyAPI()
+                        .copyIn("COPY " + staging + " (pk, data" + compressed + ") FROM STDIN;");
+                try {
+                    final CopyBuffer buffer = new CopyBuffer(copy);
+                    while(entities.hasNext()) {
+                        final T entity = entities.next();
+                        final byte[] json;
+                        final List<byte[]> fields;
+                        try {
+                            json = serialize(entity, Operation.BULK_IMPORT);
+                            fields = compress(entity);
+                        } catch(final JsonProcessingException | IllegalStateException e) {
+                            logger.error("Couldn't map entity {} (value: {}) to JSON: {}", type.getName(), entity, e);
+                            continue;
+                        }
+                        buffer.writeField(String.valueOf(primaryKeyOf(entity)).getBytes(StandardCharsets.UTF_8));
+                        buffer.write('\t');
+                        buffer.writeField(json);
+                        for(final byte[] field : fields) {
+                            buffer.write('\t');
+                            buffer.writeBytea(field);
+                        }
+                        buffer.write('\n');
+                        if(++totals[0] % IMPORT_PROGRESS_INTERVAL == 0 && progress != null) {
+                            progress.accept(new ImportProgress(totals[0], buffer.total(), System.nanoTime() - start));
+                        }
+                    }
+                    buffer.flush();
+                    totals[1] = buffer.total();
+                    copy.endCopy();
+                } finally {
+                    if(copy.isActive()) {
+                        copy.cancelCopy();
+                    }
+                }
+                try(final Statement statement = connection.createStatement()) {
+                    final String partitionKey = metadata.partitionKeyOf("data");
+                    final String partitionColumn = partitionKey != null ? ", " + metadata.getPartitionColumn().getName() : "";
+                    final String partitionValue = partitionKey != null ? ", " + partitionKey : "";
+                    if(versionColumn != null) {
+                        // Imports always win, but still count as a new version
+                        statement.execute("INSERT INTO " + table.value() + " (" + primaryKey.value() + ", data, " + versionColumn + compressed + partitionColumn + ") "
+                                + "SELECT DISTINCT ON (pk) pk, data, 1" + compressed + partitionValue + " FROM " + staging + " ORDER BY pk, seq DESC "
+                                + "ON CONFLICT (" + metadata.getConflictTarget() + ") DO UPDATE SET data = EXCLUDED.data, "
+                                + versionColumn + " = " + table.value() + '.' + versionColumn + " + 1" + metadata.compressedUpdates() + ';');
+                    } else {
+                        statement.execute("INSERT INTO " + table.value() + " (" + primaryKey.value() + ", data" + compressed + partitionColumn + ") "
+                                + "SELECT DISTINCT ON (pk) pk, data" + compressed + partitionValue + " FROM " + staging + " ORDER BY pk, seq DESC "
+                                + "ON CONFLICT (" + metadata.getConflictTarget() + ") DO UPDATE SET data = EXCLUDED.data" + metadata.compressedUpdates() + ';');
+                    }
+                    if(invalidationChannel != null) {
+                        statement.execute("SELECT pg_notify(" + jsonLiteral(invalidationChannel) + ", '');");
+                    }
+                    // Dropped on commit anyway, but an outer transaction might import again first
+                    statement.execute("DROP TABLE " + staging + ';');
+                }
+                if(autoCommit) {
+                    connection.commit();
+                }
+            } catch(final SQLException | RuntimeException e) {
+                if(autoCommit) {
+                    connection.rollback();
+                }
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        });
+        if(cache != null) {
+            store.afterCommit(cache::invalidateAll);
+        }
+        final ImportProgress done = new ImportProgress(totals[0], totals[1], System.nanoTime() - start);
+        recordRows(Operation.BULK_IMPORT, done.getEntities());
+        logger.info("Imported {} entities into {} ({} entities/sec).", done.getEntities(), table.value(),
+                (long) done.getEntitiesPerSecond());
+        return done;
+    }
+    
+    /**
+     * @see #bulkImport(Iterator, Consumer)
+     */
+    public ImportProgress bulkImport(final Stream<T> entities, final Consumer<ImportProgress> progress) {
+        return bulkImport(entities.iterator(), progress);
+    }
+    
     public Optional<T> load(final Object pk) {
+        // Transactions can see their own uncommitted writes, which mustn't end up in the cache
+        final EntityCache<T> cache = store.currentTransaction() == null ? this.cache : null;
+        final Object key = normalizePrimaryKey(pk);
+        if(cache != null) {
+            final T cached = cache.get(key);
+            if(cached != null) {
+                return Optional.of(cached);
+            }
+        }
+        return load(key, cache);
+    }
+    
+    /**
+     * Loads an entity that the caller already looked for in the cache, so
+     * that the miss isn't counted twice. Still caches what it loads.
+     */
+    Optional<T> loadAfterMiss(final Object pk) {
+        return load(normalizePrimaryKey(pk), store.currentTransaction() == null ? cache : null);
+    }
+    
+    /**
+     * Loads that fill the cache go to the primary, since a replica may be
+     * behind, and whatever it returned would then be served from the cache
+     * even to callers that have to see their own writes.
+     */
+    private Optional<T> load(final Object pk, final EntityCache<T> cache) {
+        final long generation = cache != null ? cache.generation() : 0L;
         final OptionalHolder result = new OptionalHolder();
-        store.sql("SELECT * FROM " + table.value() + " WHERE " + primaryKey.value() + " = ?;", c -> {
+        sql(Operation.LOAD, loadSql, cache == null, c -> {
             c.setObject(1, pk);
             final ResultSet resultSet = c.executeQuery();
             if(resultSet.isBeforeFirst()) {
                 resultSet.next();
                 try {
-                    result.setValue(loadFromResultSet(resultSet));
+                    result.setValue(loadFromResultSet(resultSet, Operation.LOAD));
                 } catch(final IllegalStateException e) {
                     e.printStackTrace();
                     // Optional API says this will return Optional.empty()
@@ -133,9 +668,127 @@ public class PgMapper<T> {
                 }
             }
         });
+        recordRows(Operation.LOAD, result.value.isPresent() ? 1L : 0L);
+        if(cache != null && result.value.isPresent()) {
+            cache.put(pk, result.value.get(), generation);
+        }
         return result.value;
     }
     
+    /**
+     * @return A new query over this mapper's table.
+     */
+    public Query<T> query() {
+        return new Query<>(this);
+    }
+    
+    /**
+     * @return A projection of this mapper's documents into the given view
+     * class, with the fields named after the view class's fields.
+     */
+    public <V> Projection<V> project(final Class<V> view) {
+        // This should be safe
+        // If it's not, we REALLY screwed up...
+        //noinspection unchecked
+        return (Projection<V>) projections.computeIfAbsent(view, k -> new Projection<>(this, view, Collections.emptyList()));
+    }
+    
+    /**
+     * @return A projection of the given top-level fields of this mapper's
+     * documents into the given view class, ex. a <code>Map</code>.
+     */
+    public <V> Projection<V> project(final Class<V> view, final String... fields) {
+        return new Projection<>(this, view, Arrays.asList(fields));
+    }
+    
+    /**
+     * @return A new partial update of entities in this mapper's table.
+     */
+    public Update<T> update() {
+        return new Update<>(this);
+    }
+    
+    /**
+     * Loads many entities by primary key at once. Rather than a query per
+     * entity, this runs a single <code>WHERE pk = ANY(?)</code> query for
+     * every {@link #getLoadChunkSize()} keys, all on one connection. Entities
+     * that are already cached aren't queried for.
+     *
+     * @param pks The primary keys to load.
+     *
+     * @return The loaded entities, by the primary keys that were passed in,
+     * even if they were of another type than the {@link PrimaryKey} field,
+     * ex. a {@code Long} for an {@code int} key. Keys with no entity are
+     * missing from the map.
+     */
+    public Map<Object, T> loadMany(final Collection<?> pks) {
+        final EntityCache<T> cache = store.currentTransaction() == null ? this.cache : null;
+        return loadMany(pks, cache, cache != null);
+    }
+    
+    /**
+     * Loads entities that the caller already looked for in the cache, so
+     * that the misses aren't counted twice. Still caches what it loads.
+     */
+    Map<Object, T> loadManyAfterMiss(final Collection<?> pks) {
+        return loadMany(pks, store.currentTransaction() == null ? cache : null, false);
+    }
+    
+    private Map<Object, T> loadMany(final Collection<?> pks, final EntityCache<T> cache, final boolean lookInCache) {
+        final Map<Object, T> results = new HashMap<>();
+        // The keys passed in for every key as the primary key field's type
+        final Map<Object, List<Object>> missing = new LinkedHashMap<>();
+        for(final Object pk : pks) {
+            final Object key = normalizePrimaryKey(pk);
+            final T cached = lookInCache ? cache.get(key) : null;
+            if(cached != null) {
+                results.put(pk, cached);
+            } else {
+                missing.computeIfAbsent(key, k -> new ArrayList<>(1)).add(pk);
+            }
+        }
+        queryMany(new ArrayList<>(missing.keySet()), cache).forEach((key, entity) -> {
+            for(final Object pk : missing.getOrDefault(key, Collections.emptyList())) {
+                results.put(pk, entity);
+            }
+        });
+        return results;
+    }
+    
+    /**
+     * @return The entities with the given keys, by primary key. Like
+     * {@link #load(Object, EntityCache)}, these come from the primary if
+     * they're cached.
+     */
+    private Map<Object, T> queryMany(final List<Object> missing, final EntityCache<T> cache) {
+        if(missing.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final long generation = cache != null ? cache.generation() : 0L;
+        final Map<Object, T> loaded = new HashMap<>();
+        sql(Operation.LOAD_MANY, loadManySql, cache == null, c -> {
+            for(int i = 0; i < missing.size(); i += loadChunkSize) {
+                final List<Object> chunk = missing.subList(i, Math.min(missing.size(), i + loadChunkSize));
+                c.setArray(1, c.getConnection().createArrayOf(pkArrayType, chunk.toArray()));
+                try(final ResultSet resultSet = c.executeQuery()) {
+                    while(resultSet.next()) {
+                        try {
+                            final T entity = loadFromResultSet(resultSet, Operation.LOAD_MANY);
+                            loaded.put(primaryKeyOf(entity), entity);
+                        } catch(final IllegalStateException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+        });
+        if(cache != null) {
+            loaded.forEach((pk, entity) -> cache.put(pk, entity, generation));
+        }
+        recordRows(Operation.LOAD_MANY, loaded.size());
+        return loaded;
+    }
+    
     /**
      * This is a slightly-weird thing, but it makes sense given the kind of
      * use-case I have. <p/>
@@ -162,47 +815,375 @@ public class PgMapper<T> {
      */
     public List<T> loadManyBySubkey(final String subKey, final String subKeyData) {
         final List<T> data = new ArrayList<>();
-        store.sql("SELECT * FROM " + table.value() + " WHERE " + subKey + " = ?;", c -> {
+        sql(Operation.LOAD_BY_SUBKEY, subkeySql(subKey), c -> {
             c.setObject(1, subKeyData);
             final ResultSet resultSet = c.executeQuery();
             if(resultSet.isBeforeFirst()) {
                 while(resultSet.next()) {
                     try {
-                        data.add(loadFromResultSet(resultSet));
+                        data.add(loadFromResultSet(resultSet, Operation.LOAD_BY_SUBKEY));
                     } catch(final IllegalStateException e) {
                         e.printStackTrace();
                     }
                 }
             }
         });
+        recordRows(Operation.LOAD_BY_SUBKEY, data.size());
         return data;
     }
     
+    /**
+     * Like {@link #loadManyBySubkey(String, String)}, but streams the results
+     * instead of loading them all into memory at once. Rows are fetched
+     * {@link #getFetchSize()} at a time, and each entity is only deserialized
+     * when the stream gets to it. <p/>
+     * The stream holds on to a connection until it's closed or fully
+     * consumed, so use it in a try-with-resources block.
+     *
+     * @param subKey     The subkey to query on. Ex. {@code data->'type'}.
+     * @param subKeyData The subkey data to search for. Ex.
+     *                   {@code type.whatever}.
+     *
+     * @return A stream of {@code <T>}s that have the given value for the
+     * given subkey.
+     */
+    public Stream<T> streamManyBySubkey(final String subKey, final String subKeyData) {
+        return store.readStream(subkeySql(subKey),
+                c -> c.setObject(1, subKeyData), fetchSize, this::streamFromResultSet);
+    }
+    
+    /**
+     * Streams every entity in the table. See
+     * {@link #streamManyBySubkey(String, String)} for details.
+     *
+     * @return A stream of every {@code <T>} in the table.
+     */
+    public Stream<T> streamAll() {
+        return store.readStream(scanSql, c -> {
+        }, fetchSize, this::streamFromResultSet);
+    }
+    
     public T loadFromResultSet(final ResultSet resultSet) {
+        return loadFromResultSet(resultSet, Operation.QUERY);
+    }
+    
+    T streamFromResultSet(final ResultSet resultSet) {
+        return loadFromResultSet(resultSet, Operation.STREAM);
+    }
+    
+    T loadFromResultSet(final ResultSet resultSet, final Operation operation) {
         try {
-            final String json = resultSet.getString("data");
-            try {
-                return MAPPER.readValue(json, type);
-            } catch(final IOException e) {
-                logger.error("Couldn't load entity {} from JSON {}: {}", type.getName(), json, e);
-                throw new IllegalStateException("Couldn't load entity " + type.getName() + " from JSON " + json, e);
-            }
+            // For jsonb, the driver hands back the bytes it read off the wire
+            // as-is, so this parses them without ever making a String.
+            final byte[] json = resultSet.getBytes("data");
+            return fromJson(json, versionField != null ? resultSet.getLong(versionColumn) : 0L, operation);
         } catch(final SQLException e) {
             logger.error("Couldn't load entity {} from JSON: {}", type.getName(), e);
             throw new IllegalStateException("Couldn't load entity " + type.getName(), e);
         }
     }
     
-    private String typeToSqlType(final Class<?> type) {
-        if(type.equals(String.class)) {
-            return "TEXT";
-        } else if(type.equals(Integer.class) || type.equals(int.class)) {
-            return "INT";
-        } else if(type.equals(Long.class) || type.equals(long.class)) {
-            return "BIGINT";
+    /**
+     * Reads an entity from its document, the way loads do.
+     *
+     * @param version The version column, ignored if the entity class isn't
+     *                versioned.
+     */
+    T fromJson(final byte[] json, final long version, final Operation operation) {
+        if(json == null) {
+            throw new IllegalStateException("Couldn't load entity " + type.getName() + " from null JSON");
+        }
+        try {
+            final PgMetrics metrics = store.getMetrics();
+            final long start = metrics.isEnabled() ? System.nanoTime() : 0L;
+            final T entity = reader.readValue(json);
+            if(metrics.isEnabled()) {
+                metrics.recordTime(table.value(), operation, Phase.DESERIALIZE, System.nanoTime() - start);
+                metrics.recordBytes(table.value(), operation, json.length);
+            }
+            if(versionField != null) {
+                // The column is the source of truth, not whatever was in the document
+                setVersion(entity, version);
+            }
+            if(!metadata.getCompressedFields().isEmpty()) {
+                final Object pk = primaryKeyOf(entity);
+                metadata.attachCompressedFields(entity, field -> loadCompressed(pk, field));
+            }
+            return entity;
+        } catch(final IOException e) {
+            final String text = new String(json, StandardCharsets.UTF_8);
+            logger.error("Couldn't load entity {} from JSON {}: {}", type.getName(), text, e);
+            throw new IllegalStateException("Couldn't load entity " + type.getName() + " from JSON " + text, e);
+        }
+    }
+    
+    /**
+     * Fetches and decompresses a {@link gg.amy.pgorm.annotations.Compressed}
+     * field, the first time it's asked for. This goes to the primary, since
+     * the entity may have been loaded from it, and a replica may not have the
+     * row yet.
+     *
+     * @throws IllegalStateException If the entity's row doesn't exist any
+     *                               more, so that the field stays unloaded.
+     */
+    private Object loadCompressed(final Object pk, final CompressedField field) {
+        final byte[][] compressed = {null};
+        final boolean[] found = {false};
+        sql(Operation.LOAD, "SELECT " + field.getColumn() + " FROM " + table.value() + " WHERE " + primaryKey.value() + " = ?;", false, c -> {
+            c.setObject(1, pk);
+            try(final ResultSet resultSet = c.executeQuery()) {
+                if(resultSet.next()) {
+                    found[0] = true;
+                    compressed[0] = resultSet.getBytes(1);
+                }
+            }
+        });
+        if(!found[0]) {
+            throw new IllegalStateException("Couldn't load field " + field.getField().getName() + " of entity " + type.getName() + ' ' + pk
+                    + ", since it doesn't exist any more!");
+        }
+        if(compressed[0] != null) {
+            recordRows(Operation.LOAD, 1L);
+            final PgMetrics metrics = store.getMetrics();
+            if(metrics.isEnabled()) {
+                metrics.recordBytes(table.value(), Operation.LOAD, compressed[0].length);
+            }
+        }
+        return field.decompress(compressed[0]);
+    }
+    
+    /**
+     * @return The entity's {@link gg.amy.pgorm.annotations.Compressed}
+     * fields, in column order. Fields that weren't loaded are {@code null}.
+     */
+    private List<byte[]> compress(final T entity) {
+        final Collection<CompressedField> fields = metadata.getCompressedFields().values();
+        if(fields.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<byte[]> compressed = new ArrayList<>(fields.size());
+        for(final CompressedField field : fields) {
+            compressed.add(field.compress(entity));
+        }
+        return compressed;
+    }
+    
+    /**
+     * Runs the work on a connection from the store, recording how long it
+     * took to get the connection and to do the work.
+     */
+    void sql(final Operation operation, final SqlConsumer<Connection> work) {
+        final boolean read = READS.contains(operation);
+        final PgMetrics metrics = store.getMetrics();
+        if(!metrics.isEnabled()) {
+            if(read) {
+                store.read(work);
+            } else {
+                store.sql(work);
+                store.getReplicas().wrote();
+            }
+            return;
+        }
+        final long start = System.nanoTime();
+        final long[] acquired = {start};
+        final SqlConsumer<Connection> timed = connection -> {
+            acquired[0] = System.nanoTime();
+            work.sql(connection);
+        };
+        if(read) {
+            store.read(timed);
         } else {
-            throw new IllegalArgumentException("No SQL type mapping known for class of type: " + type.getName());
+            store.sql(timed);
+            store.getReplicas().wrote();
+        }
+        recordSql(metrics, operation, start, acquired[0]);
+    }
+    
+    /**
+     * Runs the statement through the store, recording how long it took to
+     * get a connection and prepare the statement, and to run it.
+     */
+    void sql(final Operation operation, final String sql, final SqlConsumer<PreparedStatement> work) {
+        sql(operation, sql, READS.contains(operation), work);
+    }
+    
+    /**
+     * @param replica Whether the statement can go to a replica. Reads can
+     *                still be sent to the primary.
+     */
+    private void sql(final Operation operation, final String sql, final boolean replica, final SqlConsumer<PreparedStatement> work) {
+        final boolean write = !READS.contains(operation);
+        final PgMetrics metrics = store.getMetrics();
+        if(!metrics.isEnabled()) {
+            if(replica) {
+                store.read(sql, work);
+            } else {
+                store.sql(sql, work);
+                if(write) {
+                    store.getReplicas().wrote();
+                }
+            }
+            return;
+        }
+        final long start = System.nanoTime();
+        final long[] acquired = {start};
+        final SqlConsumer<PreparedStatement> timed = statement -> {
+            acquired[0] = System.nanoTime();
+            work.sql(statement);
+        };
+        if(replica) {
+            store.read(sql, timed);
+        } else {
+            store.sql(sql, timed);
+            if(write) {
+                store.getReplicas().wrote();
+            }
+        }
+        recordSql(metrics, operation, start, acquired[0]);
+    }
+    
+    private void recordSql(final PgMetrics metrics, final Operation operation, final long start, final long acquired) {
+        metrics.recordTime(table.value(), operation, Phase.ACQUIRE, acquired - start);
+        metrics.recordTime(table.value(), operation, Phase.EXECUTE, System.nanoTime() - acquired);
+    }
+    
+    void recordRows(final Operation operation, final long rows) {
+        final PgMetrics metrics = store.getMetrics();
+        if(metrics.isEnabled()) {
+            metrics.recordRows(table.value(), operation, rows);
+        }
+    }
+    
+    private byte[] serialize(final T entity, final Operation operation) throws JsonProcessingException {
+        final PgMetrics metrics = store.getMetrics();
+        if(!metrics.isEnabled()) {
+            return writer.writeValueAsBytes(entity);
         }
+        final long start = System.nanoTime();
+        final byte[] json = writer.writeValueAsBytes(entity);
+        metrics.recordTime(table.value(), operation, Phase.SERIALIZE, System.nanoTime() - start);
+        metrics.recordBytes(table.value(), operation, json.length);
+        return json;
+    }
+    
+    /**
+     * @param value The value to map to JSON.
+     *
+     * @return The value as JSON, mapped the same way entities are.
+     */
+    String toJson(final Object value) {
+        try {
+            return EntityMetadata.MAPPER.writeValueAsString(value);
+        } catch(final JsonProcessingException e) {
+            throw new IllegalArgumentException("Couldn't map value " + value + " to JSON", e);
+        }
+    }
+    
+    /**
+     * @param field A top-level field of the JSONB document.
+     *
+     * @return The SQL expression for the field's value, ex.
+     * <code>data-&gt;'field'</code>. Indexes are created on exactly this
+     * expression, so queries have to use it too for the planner to pick them.
+     */
+    static String jsonPath(final String field) {
+        return "data->" + jsonLiteral(field);
+    }
+    
+    /**
+     * @return The field name as a quoted SQL string literal.
+     */
+    static String jsonLiteral(final String field) {
+        return '\'' + field.replace("'", "''") + '\'';
+    }
+    
+    /**
+     * @param entity The entity to read the primary key of.
+     *
+     * @return The value of the entity's {@link PrimaryKey} field.
+     */
+    Object primaryKeyOf(final T entity) {
+        return metadata.primaryKeyOf(entity);
+    }
+    
+    private long versionOf(final T entity) {
+        return metadata.versionOf(entity);
+    }
+    
+    private void setVersion(final T entity, final long version) {
+        metadata.setVersion(entity, version);
+    }
+    
+    private String subkeySql(final String subKey) {
+        final String cached = subkeySqlCache.get(subKey);
+        if(cached != null) {
+            return cached;
+        }
+        final String sql = "SELECT " + metadata.selectColumns() + " FROM " + table.value() + " WHERE " + subKey + " = ?;";
+        // Racing threads can overshoot the bound a little, which is fine
+        if(subkeySqlCache.size() < MAX_CACHED_SUBKEYS) {
+            subkeySqlCache.putIfAbsent(subKey, sql);
+        }
+        return sql;
+    }
+    
+    /**
+     * @param pk A primary key as a string, ex. from a notification payload.
+     *
+     * @return The primary key as the type of the {@link PrimaryKey} field.
+     */
+    Object parsePrimaryKey(final String pk) {
+        return metadata.parsePrimaryKey(pk);
+    }
+    
+    /**
+     * @see EntityMetadata#normalizePrimaryKey(Object)
+     */
+    Object normalizePrimaryKey(final Object pk) {
+        return metadata.normalizePrimaryKey(pk);
+    }
+    
+    /**
+     * @return A statement to tack on to the end of a write, notifying other
+     * nodes that the written entity changed. Takes the channel and primary
+     * key as parameters. Empty if cross-node invalidation is off.
+     */
+    private String notifySql() {
+        return invalidationChannel != null ? " SELECT pg_notify(?, ?);" : "";
+    }
+    
+    /**
+     * @param saveChunkSize The maximum number of entities sent per JDBC batch
+     *                      by {@link #saveAll(Collection)}. Must be positive.
+     */
+    public void setSaveChunkSize(final int saveChunkSize) {
+        if(saveChunkSize <= 0) {
+            throw new IllegalArgumentException("Save chunk size must be positive, but got " + saveChunkSize);
+        }
+        this.saveChunkSize = saveChunkSize;
+    }
+    
+    /**
+     * @param loadChunkSize The maximum number of primary keys looked up per
+     *                      query by {@link #loadMany(Collection)}. Must be
+     *                      positive.
+     */
+    public void setLoadChunkSize(final int loadChunkSize) {
+        if(loadChunkSize <= 0) {
+            throw new IllegalArgumentException("Load chunk size must be positive, but got " + loadChunkSize);
+        }
+        this.loadChunkSize = loadChunkSize;
+    }
+    
+    /**
+     * @param fetchSize The number of rows fetched per round trip by streaming
+     *                  queries. Must be positive.
+     */
+    public void setFetchSize(final int fetchSize) {
+        if(fetchSize <= 0) {
+            throw new IllegalArgumentException("Fetch size must be positive, but got " + fetchSize);
+        }
+        this.fetchSize = fetchSize;
     }
     
     public String getTableName() {
@@ -213,6 +1194,98 @@ public class PgMapper<T> {
         return primaryKey.value();
     }
     
+    /**
+     * Buffers rows of <code>COPY</code> text-format data, so that the driver
+     * gets them in large chunks instead of a write per field.
+     */
+    private static final class CopyBuffer {
+        private static final int SIZE = 64 * 1024;
+        private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+        private final CopyIn copy;
+        private final byte[] buffer = new byte[SIZE];
+        private int position;
+        private long total;
+        
+        private CopyBuffer(final CopyIn copy) {
+            this.copy = copy;
+        }
+        
+        private void write(final int b) throws SQLException {
+            if(position == SIZE) {
+                flush();
+            }
+            buffer[position++] = (byte) b;
+        }
+        
+        /**
+         * Writes a field, escaping the characters the text format treats
+         * specially. None of them can show up inside a multibyte UTF-8
+         * character, so this is safe to do byte by byte.
+         */
+        private void writeField(final byte[] field) throws SQLException {
+            for(final byte b : field) {
+                switch(b) {
+                    case '\\': {
+                        write('\\');
+                        write('\\');
+                        break;
+                    }
+                    case '\t': {
+                        write('\\');
+                        write('t');
+                        break;
+                    }
+                    case '\n': {
+                        write('\\');
+                        write('n');
+                        break;
+                    }
+                    case '\r': {
+                        write('\\');
+                        write('r');
+                        break;
+                    }
+                    default: {
+                        write(b);
+                        break;
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Writes a <code>BYTEA</code> field in hex format, or
+         * <code>NULL</code>.
+         */
+        private void writeBytea(final byte[] field) throws SQLException {
+            if(field == null) {
+                write('\\');
+                write('N');
+                return;
+            }
+            // The backslash of \x has to be escaped like any other
+            write('\\');
+            write('\\');
+            write('x');
+            for(final byte b : field) {
+                write(HEX[(b >> 4) & 0xF]);
+                write(HEX[b & 0xF]);
+            }
+        }
+        
+        private void flush() throws SQLException {
+            if(position > 0) {
+                copy.writeToCopy(buffer, 0, position);
+                total += position;
+                position = 0;
+            }
+        }
+        
+        private long total() {
+            return total + position;
+        }
+    }
+    
     // Ugly hack to allow bringing an optional out of a lambda
     private final class OptionalHolder {
         // This is intentionally done. . _.
@@ -0,0 +1,108 @@
+package gg.amy.pgorm;
+
+/**
+ * Receives measurements from a {@link PgStore} and its mappers. Set one with
+ * {@link PgStore#setMetrics(PgMetrics)}; {@link MicrometerPgMetrics} sends
+ * them to a Micrometer registry. <p/>
+ * Every method has a no-op default, so implementations only need to override
+ * what they care about. Methods are called on the hot path of every
+ * operation, so they should be cheap and must not block. <p/>
+ * Times are recorded per {@link Phase}:
+ * <ul>
+ * <li>{@link Phase#ACQUIRE}: getting a connection from the pool and preparing
+ * the statement.</li>
+ * <li>{@link Phase#EXECUTE}: everything done with the connection after that,
+ * including reading the results.</li>
+ * <li>{@link Phase#SERIALIZE} / {@link Phase#DESERIALIZE}: mapping a single
+ * entity to or from JSON. Deserializing happens while reading the results,
+ * so it's part of {@link Phase#EXECUTE} as well.</li>
+ * </ul>
+ * Rows are recorded once per call, and bytes once per JSON document.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@SuppressWarnings("unused")
+public interface PgMetrics {
+    /**
+     * Records nothing. The mappers check {@link #isEnabled()} and skip
+     * measuring anything at all, so this costs nothing.
+     */
+    PgMetrics NOOP = new PgMetrics() {
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+    };
+    
+    /**
+     * @return Whether to measure anything at all.
+     */
+    default boolean isEnabled() {
+        return true;
+    }
+    
+    /**
+     * Called when this is set as a store's metrics, ex. to register gauges
+     * for the connection pool.
+     */
+    default void bind(final PgStore store) {
+    }
+    
+    /**
+     * Called for each of the store's async mappers, ex. to register gauges
+     * for their write-behind queues.
+     */
+    default void bind(final AsyncPgMapper<?> mapper) {
+    }
+    
+    default void recordTime(final String table, final Operation operation, final Phase phase, final long nanos) {
+    }
+    
+    default void recordRows(final String table, final Operation operation, final long rows) {
+    }
+    
+    default void recordBytes(final String table, final Operation operation, final long bytes) {
+    }
+    
+    enum Operation {
+        SAVE,
+        SAVE_ALL,
+        LOAD,
+        LOAD_MANY,
+        LOAD_BY_SUBKEY,
+        STREAM,
+        QUERY,
+        UPDATE,
+        DELETE,
+        BULK_IMPORT,
+        CHANGE_FEED,
+        ;
+        
+        private final String tag = name().toLowerCase();
+        
+        /**
+         * @return The operation's name in lowercase, for use as a tag.
+         */
+        public String tag() {
+            return tag;
+        }
+    }
+    
+    enum Phase {
+        ACQUIRE,
+        EXECUTE,
+        SERIALIZE,
+        DESERIALIZE,
+        ;
+        
+        private final String tag = name().toLowerCase();
+        
+        /**
+         * @return The phase's name in lowercase, for use as a tag.
+         */
+        public String tag() {
+            return tag;
+        }
+    }
+}
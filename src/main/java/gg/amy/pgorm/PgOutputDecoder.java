@@ -0,0 +1,167 @@
+package gg.amy.pgorm;
+
+import gg.amy.pgorm.ChangeEvent.Type;
+import lombok.Value;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decodes the messages of Postgres's built-in <code>pgoutput</code> logical
+ * decoding plugin, protocol version 1. Only row changes and commits are
+ * reported; everything else is only read as far as it needs to be. <p/>
+ * Column values are sent as text, which is all a {@link ChangeFeed} needs,
+ * since documents come out of <code>jsonb</code> as JSON text anyway.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+final class PgOutputDecoder {
+    /**
+     * Decoded from a message that starts a transaction.
+     */
+    static final Object BEGIN = new Object();
+    /**
+     * Tables by relation id. Postgres sends a table's relation message before
+     * the first change to it on every connection, and again whenever it
+     * changes.
+     */
+    private final Map<Integer, Relation> relations = new HashMap<>();
+    
+    /**
+     * Decodes one message.
+     *
+     * @return The row change or commit in it, {@link #BEGIN} if it starts
+     * a transaction, or {@code null} if it's none of those.
+     */
+    Object decode(final ByteBuffer buffer) {
+        final char kind = (char) buffer.get();
+        switch(kind) {
+            case 'R': {
+                final int id = buffer.getInt();
+                readString(buffer); // Namespace
+                final String name = readString(buffer);
+                buffer.get(); // Replica identity
+                final String[] columns = new String[buffer.getShort()];
+                for(int i = 0; i < columns.length; i++) {
+                    buffer.get(); // Flags
+                    columns[i] = readString(buffer);
+                    buffer.getInt(); // Type
+                    buffer.getInt(); // Type modifier
+                }
+                relations.put(id, new Relation(name, columns));
+                return null;
+            }
+            case 'I': {
+                final Relation relation = relation(buffer.getInt());
+                buffer.get(); // 'N'
+                return new RowChange(Type.INSERT, relation.getName(), readTuple(buffer, relation));
+            }
+            case 'U': {
+                final Relation relation = relation(buffer.getInt());
+                char tuple = (char) buffer.get();
+                Map<String, String> old = null;
+                if(tuple == 'K' || tuple == 'O') {
+                    // The old key if it changed, or the old row with
+                    // REPLICA IDENTITY FULL
+                    old = readTuple(buffer, relation);
+                    tuple = (char) buffer.get();
+                }
+                final Map<String, String> values = readTuple(buffer, relation);
+                if(old != null) {
+                    // Unchanged TOASTed values are only in the old row
+                    for(final Map.Entry<String, String> value : old.entrySet()) {
+                        if(!values.containsKey(value.getKey())) {
+                            values.put(value.getKey(), value.getValue());
+                        }
+                    }
+                }
+                return new RowChange(Type.UPDATE, relation.getName(), values);
+            }
+            case 'D': {
+                final Relation relation = relation(buffer.getInt());
+                buffer.get(); // 'K' or 'O'
+                return new RowChange(Type.DELETE, relation.getName(), readTuple(buffer, relation));
+            }
+            case 'B': {
+                return BEGIN;
+            }
+            case 'C': {
+                buffer.get(); // Flags
+                buffer.getLong(); // Commit LSN
+                return new Commit(buffer.getLong());
+            }
+            default: {
+                // Origin, type and truncate messages
+                return null;
+            }
+        }
+    }
+    
+    /**
+     * Forgets every relation, for a new connection.
+     */
+    void reset() {
+        relations.clear();
+    }
+    
+    private Relation relation(final int id) {
+        final Relation relation = relations.get(id);
+        if(relation == null) {
+            throw new IllegalStateException("Got a change to relation " + id + " before its relation message!");
+        }
+        return relation;
+    }
+    
+    /**
+     * @return The row's values as text, by column. <code>NULL</code>s are
+     * {@code null}, and TOASTed values that didn't change aren't sent at
+     * all, so they're missing.
+     */
+    private static Map<String, String> readTuple(final ByteBuffer buffer, final Relation relation) {
+        final int count = buffer.getShort();
+        final Map<String, String> values = new HashMap<>(count * 2);
+        for(int i = 0; i < count; i++) {
+            final char kind = (char) buffer.get();
+            if(kind == 'n') {
+                values.put(relation.getColumns()[i], null);
+            } else if(kind == 't') {
+                final byte[] value = new byte[buffer.getInt()];
+                buffer.get(value);
+                values.put(relation.getColumns()[i], new String(value, StandardCharsets.UTF_8));
+            }
+        }
+        return values;
+    }
+    
+    private static String readString(final ByteBuffer buffer) {
+        final int start = buffer.position();
+        while(buffer.get() != 0) {
+            // Strings are null-terminated
+        }
+        return new String(buffer.array(), buffer.arrayOffset() + start, buffer.position() - start - 1, StandardCharsets.UTF_8);
+    }
+    
+    @Value
+    private static class Relation {
+        private String name;
+        private String[] columns;
+    }
+    
+    @Value
+    static class RowChange {
+        private Type type;
+        private String table;
+        private Map<String, String> values;
+    }
+    
+    @Value
+    static class Commit {
+        /**
+         * The end of the transaction in the WAL.
+         */
+        private long lsn;
+    }
+}
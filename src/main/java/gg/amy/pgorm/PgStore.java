@@ -4,15 +4,37 @@ import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 import lombok.AccessLevel;
 import lombok.Getter;
+import lombok.Setter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * The actual datastore. Does the "heavy work" of interfacing with the
@@ -33,30 +55,128 @@ import java.util.function.Consumer;
  * <li><code>cachePrepStmts</code> - <code>true</code></li>
  * <li><code>prepStmtCacheSize</code> - <code>250</code></li>
  * <li><code>prepStmtCacheSqlLimit</code> - <code>2048</code></li>
+ * <li><code>reWriteBatchedInserts</code> - <code>true</code></li>
  * </ul>
  * If these values don't work for you for some reason, pass your own
- * {@link HikariConfig} to the constructor.
+ * {@link HikariConfig} to the constructor. <p/>
+ * The store also owns the threads that {@link AsyncPgMapper}s run on. See
+ * {@link ExecutionMode} for the available options. <p/>
+ * Reads can be spread over read replicas by passing a {@link ReplicaConfig}
+ * as well. Loads, queries and streams then go to a replica, and everything
+ * else, including anything in a transaction, to the primary. <p/>
+ * To keep an overloaded database from being buried under ever more work,
+ * {@link #enableConcurrencyLimit(ConcurrencyLimitConfig)} limits how many
+ * async operations run at once; see {@link ConcurrencyLimiter}.
  *
  * @author amy
  * @since 4/10/18.
  */
 @SuppressWarnings({"WeakerAccess", "unused"})
-public class PgStore {
+public class PgStore implements AsyncStore {
+    /**
+     * Hikari's default pool size, used while the config doesn't set one.
+     */
+    private static final int DEFAULT_POOL_SIZE = 10;
+    /**
+     * Row locks and <code>SELECT INTO</code>, which would lock or create
+     * something when a query is run again to analyze it.
+     */
+    private static final Pattern NOT_ANALYZABLE = Pattern.compile("\\b(FOR\\s+(NO\\s+KEY\\s+)?UPDATE|FOR\\s+(KEY\\s+)?SHARE|INTO)\\b",
+            Pattern.CASE_INSENSITIVE);
     private final Map<Class<?>, PgMapper<?>> syncMappers = new ConcurrentHashMap<>();
     private final Map<Class<?>, AsyncPgMapper<?>> asyncMappers = new ConcurrentHashMap<>();
+    // Guarded by itself
+    private final Map<ExecutionMode, ExecutorService> executors = new EnumMap<>(ExecutionMode.class);
     private final HikariConfig config;
     private final Logger logger = LoggerFactory.getLogger(getClass());
     @Getter(AccessLevel.PACKAGE)
     private HikariDataSource hikari;
     @Getter
     private boolean connected;
+    /**
+     * The execution mode used by {@link AsyncPgMapper}s that weren't given
+     * their own executor.
+     */
+    @Getter
+    @Setter
+    private ExecutionMode executionMode = ExecutionMode.BOUNDED;
+    private NotificationListener notificationListener;
+    /**
+     * Change feeds that are stopped on {@link #disconnect()}.
+     */
+    private final List<ChangeFeed> changeFeeds = new ArrayList<>();
+    /**
+     * Where the store and its mappers send their measurements. Records
+     * nothing by default.
+     */
+    @Getter
+    private volatile PgMetrics metrics = PgMetrics.NOOP;
+    /**
+     * Statements that take at least this many milliseconds are reported to
+     * the {@link #getSlowQueryListener() slow query listener}. {@code 0}, the
+     * default, turns slow query capture off.
+     */
+    @Getter
+    private volatile long slowQueryThresholdMillis;
+    /**
+     * The fraction of slow statements that get explained.
+     */
+    @Getter
+    private volatile double explainSampleRate = 0.1D;
+    /**
+     * Whether sampled plain <code>SELECT</code>s are explained with
+     * <code>EXPLAIN (ANALYZE, BUFFERS)</code>, which runs them again for
+     * their actual row counts, timings and buffer use, instead of only being
+     * planned. Off by default, as it doubles the cost of every sampled query.
+     */
+    @Getter
+    @Setter
+    private volatile boolean explainAnalyze;
+    /**
+     * Receives slow query reports. Logs them as warnings by default. Called
+     * on the thread that ran the statement.
+     */
+    @Getter
+    @Setter
+    private volatile Consumer<SlowQuery> slowQueryListener = this::logSlowQuery;
+    /**
+     * What to do about missing tables and indexes when mapping a class.
+     */
+    @Getter
+    @Setter
+    private volatile SchemaMode schemaMode = SchemaMode.CREATE;
+    @Getter(AccessLevel.PACKAGE)
+    private final SchemaBootstrap schema = new SchemaBootstrap(this);
+    @Getter(AccessLevel.PACKAGE)
+    private final PartitionMaintainer partitions = new PartitionMaintainer(this);
+    @Getter(AccessLevel.PACKAGE)
+    private final ReplicaRouter replicas;
+    /**
+     * The limiter that async mappers' operations go through, or {@code null}
+     * if concurrency limiting is off.
+     */
+    @Getter
+    private volatile ConcurrencyLimiter concurrencyLimiter;
+    /**
+     * The transaction running on the current thread, if any.
+     */
+    private final ThreadLocal<Transaction> transaction = new ThreadLocal<>();
     
     public PgStore(final String url, final String user, final String pass) {
         this(buildConfig(url, user, pass));
     }
     
     public PgStore(final HikariConfig config) {
+        this(config, ReplicaConfig.none());
+    }
+    
+    /**
+     * @param config   The primary's connection pool.
+     * @param replicas The read replicas, and how reads are spread over them.
+     */
+    public PgStore(final HikariConfig config, final ReplicaConfig replicas) {
         this.config = config;
+        this.replicas = new ReplicaRouter(replicas);
     }
     
     private static HikariConfig buildConfig(final String url, final String user, final String pass) {
@@ -67,6 +187,8 @@ public class PgStore {
         config.addDataSourceProperty("cachePrepStmts", "true");
         config.addDataSourceProperty("prepStmtCacheSize", "250");
         config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+        // Lets the driver turn batched upserts into multi-row inserts
+        config.addDataSourceProperty("reWriteBatchedInserts", "true");
         return config;
     }
     
@@ -81,18 +203,37 @@ public class PgStore {
         return new PgStore(config);
     }
     
+    @Override
     public void connect() {
         if(connected) {
             return;
         }
         hikari = new HikariDataSource(config);
+        replicas.start();
         connected = true;
     }
     
+    @Override
     public void disconnect() {
         if(!connected) {
             return;
         }
+        // Make sure nothing queued for writing gets lost
+        asyncMappers.values().forEach(AsyncPgMapper::shutdown);
+        disableConcurrencyLimit();
+        shutdownExecutors();
+        schema.shutdown();
+        partitions.shutdown();
+        synchronized(this) {
+            if(notificationListener != null) {
+                notificationListener.shutdown();
+                notificationListener = null;
+            }
+            // Slots are kept, so that the feeds can carry on where they left off
+            changeFeeds.forEach(ChangeFeed::close);
+            changeFeeds.clear();
+        }
+        replicas.shutdown();
         hikari.close();
         connected = false;
     }
@@ -118,6 +259,52 @@ public class PgStore {
         return mapper;
     }
     
+    /**
+     * Maps all the classes at once. The catalog is only read once, the DDL
+     * for all the missing tables is sent in one go, and missing indexes on
+     * existing tables are built concurrently, several tables at a time. Use
+     * this at startup instead of mapping classes one by one.
+     *
+     * @return A future that completes once all the missing indexes have been
+     * built. Unless the {@link SchemaMode} is
+     * {@link SchemaMode#CREATE_INDEXES_IN_BACKGROUND}, that's already
+     * happened by the time this returns.
+     */
+    public CompletableFuture<Void> bootstrap(final Collection<Class<?>> classes) {
+        final List<EntityMetadata<?>> entities = new ArrayList<>();
+        for(final Class<?> c : classes) {
+            if(!syncMappers.containsKey(c)) {
+                entities.add(new EntityMetadata<>(c));
+            }
+        }
+        final CompletableFuture<Void> indexes = schema.ensure(entities);
+        // Nothing is missing any more, so these don't run any DDL, or read
+        // the catalog again
+        schema.reusingCatalog(() -> classes.forEach(this::mapSync));
+        return indexes;
+    }
+    
+    /**
+     * Maps the class, and makes its async mapper run on the store's executor
+     * for the given execution mode.
+     */
+    public <T> AsyncPgMapper<T> mapAsync(final Class<T> c, final ExecutionMode mode) {
+        final AsyncPgMapper<T> async = mapAsync(c);
+        async.setExecutor(executor(mode));
+        return async;
+    }
+    
+    /**
+     * Maps the class, and makes its async mapper run on the given executor.
+     * The store will <strong>not</strong> shut the executor down.
+     */
+    public <T> AsyncPgMapper<T> mapAsync(final Class<T> c, final Executor executor) {
+        final AsyncPgMapper<T> async = mapAsync(c);
+        async.setExecutor(executor);
+        return async;
+    }
+    
+    @Override
     public <T> AsyncPgMapper<T> mapAsync(final Class<T> c) {
         if(asyncMappers.containsKey(c)) {
             // This should be safe
@@ -129,11 +316,319 @@ public class PgStore {
         final PgMapper<T> sync = mapSync(c);
         final AsyncPgMapper<T> async = new AsyncPgMapper<>(sync);
         asyncMappers.put(c, async);
+        metrics.bind(async);
         return async;
     }
     
+    /**
+     * Sets where the store and its mappers send their measurements, ex. a
+     * {@link MicrometerPgMetrics}. Pass {@link PgMetrics#NOOP} to stop
+     * recording.
+     */
+    public void setMetrics(final PgMetrics metrics) {
+        this.metrics = metrics;
+        metrics.bind(this);
+        asyncMappers.values().forEach(metrics::bind);
+    }
+    
+    /**
+     * Turns on concurrency limiting. Once enabled, the operations of every
+     * async mapper of this store share one adaptive limit, since they share
+     * one connection pool and one database. Does nothing if concurrency
+     * limiting is already on.
+     *
+     * @param config The concurrency limit configuration.
+     */
+    public synchronized void enableConcurrencyLimit(final ConcurrencyLimitConfig config) {
+        if(concurrencyLimiter == null) {
+            concurrencyLimiter = new ConcurrencyLimiter(config);
+        }
+    }
+    
+    /**
+     * Turns off concurrency limiting, starting anything that's still waiting
+     * for room straight away.
+     */
+    public synchronized void disableConcurrencyLimit() {
+        if(concurrencyLimiter != null) {
+            final ConcurrencyLimiter limiter = concurrencyLimiter;
+            concurrencyLimiter = null;
+            limiter.shutdown();
+        }
+    }
+    
+    /**
+     * @return The executor for the store's current {@link ExecutionMode}.
+     */
+    public ExecutorService getAsyncExecutor() {
+        return executor(executionMode);
+    }
+    
+    /**
+     * @param mode The execution mode to get the executor for.
+     *
+     * @return The store's executor for the given mode. It's created the first
+     * time it's asked for, and shut down by {@link #disconnect()}.
+     */
+    public ExecutorService executor(final ExecutionMode mode) {
+        synchronized(executors) {
+            return executors.computeIfAbsent(mode, this::createExecutor);
+        }
+    }
+    
+    /**
+     * @return The number of tasks waiting for a thread in the store's
+     * executors. Only bounded executors queue tasks, so for the other
+     * {@link ExecutionMode}s this is always 0.
+     */
+    public int getQueuedTasks() {
+        int queued = 0;
+        synchronized(executors) {
+            for(final ExecutorService executor : executors.values()) {
+                if(executor instanceof ThreadPoolExecutor) {
+                    queued += ((ThreadPoolExecutor) executor).getQueue().size();
+                }
+            }
+        }
+        return queued;
+    }
+    
+    private ExecutorService createExecutor(final ExecutionMode mode) {
+        switch(mode) {
+            case VIRTUAL: {
+                try {
+                    final ExecutorService virtual = (ExecutorService) Executors.class
+                            .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                    logger.info("Using virtual threads for async mappers.");
+                    return virtual;
+                } catch(final ReflectiveOperationException e) {
+                    logger.warn("Virtual threads aren't available on this JVM, using a bounded executor instead.");
+                    return createExecutor(ExecutionMode.BOUNDED);
+                }
+            }
+            case CACHED: {
+                return Executors.newCachedThreadPool(threadFactory("pgorm-async-cached-"));
+            }
+            case BOUNDED:
+            default: {
+                // No point having more threads than connections, the rest would
+                // just block waiting for the pool
+                final int threads = poolSize();
+                final ThreadPoolExecutor bounded = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>(), threadFactory("pgorm-async-"));
+                bounded.allowCoreThreadTimeOut(true);
+                logger.info("Using a bounded executor with {} threads for async mappers.", threads);
+                return bounded;
+            }
+        }
+    }
+    
+    /**
+     * @return The most connections the pool will open. Hikari only fills in
+     * its default once it's validated the config on connecting, so this
+     * mirrors it until then.
+     */
+    private int poolSize() {
+        final HikariDataSource pool = hikari;
+        final int size = pool != null ? pool.getMaximumPoolSize() : config.getMaximumPoolSize();
+        return size >= 1 ? size : DEFAULT_POOL_SIZE;
+    }
+    
+    static ThreadFactory threadFactory(final String prefix) {
+        final AtomicInteger threadId = new AtomicInteger();
+        return r -> {
+            final Thread thread = new Thread(r, prefix + threadId.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+    
+    private void shutdownExecutors() {
+        synchronized(executors) {
+            executors.values().forEach(ExecutorService::shutdown);
+            for(final Map.Entry<ExecutionMode, ExecutorService> entry : executors.entrySet()) {
+                try {
+                    if(!entry.getValue().awaitTermination(30, TimeUnit.SECONDS)) {
+                        logger.warn("{} executor didn't finish its work in time, interrupting it.", entry.getKey());
+                        entry.getValue().shutdownNow();
+                    }
+                } catch(final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    entry.getValue().shutdownNow();
+                }
+            }
+            executors.clear();
+        }
+    }
+    
+    /**
+     * @return The store's notification listener. The first call starts it,
+     * which permanently takes one connection out of the pool.
+     */
+    public synchronized NotificationListener getNotificationListener() {
+        if(!connected) {
+            throw new IllegalStateException("Can't listen for notifications without being connected!");
+        }
+        if(notificationListener == null) {
+            notificationListener = new NotificationListener(this);
+        }
+        return notificationListener;
+    }
+    
+    /**
+     * @return A new change feed, to subscribe entity classes to and then
+     * {@link ChangeFeed#start() start}. It's stopped by {@link #disconnect()}.
+     */
+    public synchronized ChangeFeed changeFeed(final ChangeFeedConfig config) {
+        if(!connected) {
+            throw new IllegalStateException("Can't follow changes without being connected!");
+        }
+        final ChangeFeed feed = new ChangeFeed(this, config);
+        changeFeeds.add(feed);
+        return feed;
+    }
+    
+    /**
+     * Runs the given work in a transaction, with the default
+     * {@link TransactionConfig}. See
+     * {@link #transaction(TransactionConfig, SqlConsumer)}.
+     */
+    public void transaction(final SqlConsumer<Transaction> work) {
+        transaction(TransactionConfig.defaults(), work);
+    }
+    
+    /**
+     * Runs the given work in a transaction on a single connection. All
+     * {@link PgMapper} calls the work makes on the current thread are part of
+     * the transaction, and saves are batched; see {@link Transaction}. <p/>
+     * If the work throws, the transaction is rolled back and the exception
+     * is rethrown. If it fails with a serialization failure or a deadlock,
+     * the whole transaction, including the work, is retried up to
+     * {@link TransactionConfig#getMaxRetries()} times, so the work shouldn't
+     * have side effects outside of the database. <p/>
+     * Calling this from inside another transaction just runs the work as
+     * part of the outer transaction.
+     *
+     * @param config The transaction configuration.
+     * @param work   The work to run.
+     */
+    public void transaction(final TransactionConfig config, final SqlConsumer<Transaction> work) {
+        final Transaction outer = transaction.get();
+        if(outer != null) {
+            work.accept(outer);
+            return;
+        }
+        for(int attempt = 0; ; attempt++) {
+            final Transaction tx;
+            try(final Connection connection = connection(false)) {
+                connection.setAutoCommit(false);
+                connection.setTransactionIsolation(config.getIsolation());
+                connection.setReadOnly(config.isReadOnly());
+                tx = new Transaction(connection);
+                transaction.set(tx);
+                try {
+                    work.sql(tx);
+                    tx.flush();
+                    connection.commit();
+                } catch(final SQLException | RuntimeException e) {
+                    connection.rollback();
+                    if(attempt >= config.getMaxRetries() || !isRetryable(e)) {
+                        throw e;
+                    }
+                    logger.debug("Retrying transaction after attempt {} failed:", attempt + 1, e);
+                    backoff(config.getRetryBackoffMillis() << attempt);
+                    continue;
+                } finally {
+                    transaction.remove();
+                    // Hikari resets the isolation level and read-only flag itself
+                    connection.setAutoCommit(true);
+                }
+            } catch(final SQLException e) {
+                logger.error("Exception while executing transaction:", e);
+                throw new IllegalStateException(e);
+            }
+            tx.committed();
+            return;
+        }
+    }
+    
+    /**
+     * Runs {@link #transaction(TransactionConfig, SqlConsumer)} on the
+     * store's {@link #getAsyncExecutor() async executor}.
+     */
+    public CompletableFuture<Void> transactionAsync(final TransactionConfig config, final SqlConsumer<Transaction> work) {
+        return CompletableFuture.runAsync(() -> transaction(config, work), getAsyncExecutor());
+    }
+    
+    public CompletableFuture<Void> transactionAsync(final SqlConsumer<Transaction> work) {
+        return transactionAsync(TransactionConfig.defaults(), work);
+    }
+    
+    /**
+     * @return The transaction running on the current thread, or
+     * {@code null} if there isn't one.
+     */
+    Transaction currentTransaction() {
+        return transaction.get();
+    }
+    
+    /**
+     * Runs the action once the current thread's transaction commits, or
+     * straight away if there isn't one. Used for things like cache
+     * invalidation, which mustn't happen before the change is visible.
+     */
+    void afterCommit(final Runnable action) {
+        final Transaction tx = transaction.get();
+        if(tx != null) {
+            tx.afterCommit(action);
+        } else {
+            action.run();
+        }
+    }
+    
+    private static boolean isRetryable(final Throwable e) {
+        for(Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if(cause instanceof SQLException) {
+                final String state = ((SQLException) cause).getSQLState();
+                // serialization_failure and deadlock_detected
+                if("40001".equals(state) || "40P01".equals(state)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    private static void backoff(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch(final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to retry transaction", e);
+        }
+    }
+    
     public void sql(@SuppressWarnings("TypeMayBeWeakened") final SqlConsumer<Connection> consumer) {
-        try(final Connection connection = hikari.getConnection()) {
+        sql(consumer, false);
+    }
+    
+    /**
+     * Runs read-only work on a replica, if there's one to read from. See
+     * {@link ReplicaRouter}.
+     */
+    void read(final SqlConsumer<Connection> consumer) {
+        sql(consumer, true);
+    }
+    
+    private void sql(final SqlConsumer<Connection> consumer, final boolean read) {
+        final Transaction tx = transaction.get();
+        if(tx != null) {
+            // Queued saves have to be written before anything can read them
+            tx.flush();
+            consumer.accept(tx.getConnection());
+            return;
+        }
+        try(final Connection connection = connection(read)) {
             consumer.accept(connection);
         } catch(final SQLException e) {
             logger.error("Exception while executing SQL:", e);
@@ -141,16 +636,47 @@ public class PgStore {
         }
     }
     
+    /**
+     * Where all of the store's statements get their connection, including
+     * transactions and streams. Can be overridden to run without a real
+     * database, ex. in benchmarks.
+     *
+     * @param read Whether the connection is only read from, and so can be to
+     *             a replica.
+     */
+    protected Connection connection(final boolean read) throws SQLException {
+        final Connection replica = read ? replicas.connection() : null;
+        return replica != null ? replica : hikari.getConnection();
+    }
+    
     public void sql(final String sql, @SuppressWarnings("TypeMayBeWeakened") final SqlConsumer<PreparedStatement> consumer) {
+        sql(sql, consumer, false);
+    }
+    
+    /**
+     * Runs a read-only statement on a replica, if there's one to read from.
+     */
+    void read(final String sql, final SqlConsumer<PreparedStatement> consumer) {
+        sql(sql, consumer, true);
+    }
+    
+    private void sql(final String sql, final SqlConsumer<PreparedStatement> consumer, final boolean read) {
         sql(connection -> {
             try(final PreparedStatement statement = connection.prepareStatement(sql)) {
                 logger.debug("Accepting consumer to prepare statement: {}", sql);
-                consumer.accept(statement);
+                final long threshold = slowQueryThresholdMillis;
+                if(threshold <= 0L) {
+                    consumer.accept(statement);
+                } else {
+                    final StatementRecorder recorder = new StatementRecorder(statement, TimeUnit.MILLISECONDS.toNanos(threshold));
+                    consumer.accept(recorder.statement());
+                    reportSlow(connection, sql, recorder);
+                }
             } catch(final SQLException e) {
                 logger.error("Exception while executing SQL statement '{}':", sql, e);
                 throw new IllegalStateException(e);
             }
-        });
+        }, read);
     }
     
     public void sql(final String sql) {
@@ -158,6 +684,300 @@ public class PgStore {
         sql(sql, PreparedStatement::execute);
     }
     
+    /**
+     * Runs a query and lazily streams its rows, fetching {@code fetchSize}
+     * rows from the server at a time. This is done inside a transaction,
+     * since otherwise the driver reads the whole result set into memory
+     * anyway. <p/>
+     * The stream holds on to a connection until it's either closed or fully
+     * consumed, so it should always be used in a try-with-resources block.
+     * Inside a {@link #transaction(SqlConsumer)}, the transaction's connection
+     * is used instead.
+     *
+     * @param sql       The query to run.
+     * @param binder    Binds the query's parameters.
+     * @param fetchSize The number of rows to fetch per round trip.
+     * @param mapper    Maps the current row of the result set to a value.
+     *                  Must not advance the result set.
+     *
+     * @return A stream of the mapped rows.
+     */
+    public <R> Stream<R> stream(final String sql, final SqlConsumer<PreparedStatement> binder, final int fetchSize,
+                                final SqlFunction<ResultSet, R> mapper) {
+        return stream(sql, binder, fetchSize, mapper, false);
+    }
+    
+    /**
+     * Streams a read-only query from a replica, if there's one to read from.
+     */
+    <R> Stream<R> readStream(final String sql, final SqlConsumer<PreparedStatement> binder, final int fetchSize,
+                             final SqlFunction<ResultSet, R> mapper) {
+        return stream(sql, binder, fetchSize, mapper, true);
+    }
+    
+    private <R> Stream<R> stream(final String sql, final SqlConsumer<PreparedStatement> binder, final int fetchSize,
+                                 final SqlFunction<ResultSet, R> mapper, final boolean read) {
+        final Transaction tx = transaction.get();
+        final Connection connection;
+        if(tx != null) {
+            tx.flush();
+            connection = tx.getConnection();
+        } else {
+            try {
+                connection = connection(read);
+            } catch(final SQLException e) {
+                logger.error("Exception while executing SQL:", e);
+                throw new IllegalStateException(e);
+            }
+        }
+        final RowSpliterator<R> rows = new RowSpliterator<>(connection, tx != null, mapper);
+        try {
+            connection.setAutoCommit(false);
+            rows.statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            rows.statement.setFetchSize(fetchSize);
+            logger.debug("Accepting consumer to prepare streamed statement: {}", sql);
+            final long threshold = slowQueryThresholdMillis;
+            if(threshold <= 0L) {
+                binder.sql(rows.statement);
+                rows.resultSet = rows.statement.executeQuery();
+            } else {
+                // Only the time to the first batch of rows counts here
+                final StatementRecorder recorder = new StatementRecorder(rows.statement, TimeUnit.MILLISECONDS.toNanos(threshold));
+                binder.sql(recorder.statement());
+                rows.resultSet = recorder.statement().executeQuery();
+                reportSlow(connection, sql, recorder);
+            }
+        } catch(final SQLException | RuntimeException e) {
+            logger.error("Exception while executing SQL statement '{}':", sql, e);
+            rows.close();
+            throw new IllegalStateException(e);
+        }
+        return StreamSupport.stream(rows, false).onClose(rows::close);
+    }
+    
+    /**
+     * @param slowQueryThresholdMillis Statements that take at least this many
+     *                                 milliseconds are reported as slow.
+     *                                 {@code 0} turns slow query capture off.
+     */
+    public void setSlowQueryThresholdMillis(final long slowQueryThresholdMillis) {
+        if(slowQueryThresholdMillis < 0L) {
+            throw new IllegalArgumentException("Slow query threshold can't be negative, but got " + slowQueryThresholdMillis);
+        }
+        this.slowQueryThresholdMillis = slowQueryThresholdMillis;
+    }
+    
+    /**
+     * @param explainSampleRate The fraction of slow statements to run
+     *                          <code>EXPLAIN</code> on, from {@code 0} to
+     *                          {@code 1}. Statements are only planned, not
+     *                          run again, unless {@link #setExplainAnalyze(boolean)}
+     *                          says otherwise, on the connection that ran
+     *                          them, so that temporary tables and the
+     *                          caller's transaction are visible to the plan.
+     */
+    public void setExplainSampleRate(final double explainSampleRate) {
+        if(explainSampleRate < 0D || explainSampleRate > 1D) {
+            throw new IllegalArgumentException("Explain sample rate must be between 0 and 1, but got " + explainSampleRate);
+        }
+        this.explainSampleRate = explainSampleRate;
+    }
+    
+    private void reportSlow(final Connection connection, final String sql, final StatementRecorder recorder) {
+        for(final StatementRecorder.Execution execution : recorder.slowExecutions()) {
+            final String plan = explainable(sql) && ThreadLocalRandom.current().nextDouble() < explainSampleRate
+                    ? explain(connection, sql, execution) : null;
+            report(new SlowQuery(sql, execution.parameterTypes(), execution.nanos(), plan));
+        }
+    }
+    
+    private void report(final SlowQuery query) {
+        try {
+            slowQueryListener.accept(query);
+        } catch(final RuntimeException e) {
+            logger.error("Slow query listener failed:", e);
+        }
+    }
+    
+    /**
+     * @return Whether the statement is a single query or write that
+     * <code>EXPLAIN</code> understands.
+     */
+    private static boolean explainable(final String sql) {
+        final String trimmed = sql.trim();
+        final int semicolon = trimmed.indexOf(';');
+        if(semicolon != -1 && semicolon != trimmed.length() - 1) {
+            return false;
+        }
+        final String start = trimmed.substring(0, Math.min(6, trimmed.length())).toUpperCase();
+        return start.startsWith("SELECT") || start.startsWith("INSERT") || start.startsWith("UPDATE")
+                || start.startsWith("DELETE") || start.startsWith("WITH");
+    }
+    
+    /**
+     * @return Whether the statement is a plain query that can safely be run
+     * again to analyze it, ie. one that doesn't lock rows or create a table.
+     * Writes, and <code>WITH</code> queries that might hide one, aren't.
+     */
+    private static boolean analyzable(final String statement) {
+        return statement.substring(0, Math.min(6, statement.length())).equalsIgnoreCase("SELECT")
+                && !NOT_ANALYZABLE.matcher(statement).find();
+    }
+    
+    /**
+     * Plans the statement on the connection that ran it. Inside a
+     * transaction, this happens in a savepoint, so that a failure doesn't
+     * abort the caller's transaction. Analyzing runs the query again, so it
+     * always gets a savepoint, in a transaction of its own if need be, and
+     * whatever it did is rolled back, ex. if it calls a function that writes.
+     */
+    private String explain(final Connection connection, final String sql, final StatementRecorder.Execution execution) {
+        final String trimmed = sql.trim();
+        final String statement = trimmed.endsWith(";") ? trimmed.substring(0, trimmed.length() - 1) : trimmed;
+        final boolean analyze = explainAnalyze && analyzable(statement);
+        Savepoint savepoint = null;
+        boolean ownTransaction = false;
+        try {
+            if(analyze && connection.getAutoCommit()) {
+                connection.setAutoCommit(false);
+                ownTransaction = true;
+            }
+            savepoint = connection.getAutoCommit() ? null : connection.setSavepoint();
+            final StringBuilder plan = new StringBuilder();
+            try(final PreparedStatement explain = connection.prepareStatement((analyze ? "EXPLAIN (ANALYZE, BUFFERS) " : "EXPLAIN ")
+                    + statement)) {
+                execution.replay(explain);
+                try(final ResultSet resultSet = explain.executeQuery()) {
+                    while(resultSet.next()) {
+                        plan.append(resultSet.getString(1)).append('\n');
+                    }
+                }
+            }
+            if(analyze) {
+                connection.rollback(savepoint);
+            } else if(savepoint != null) {
+                connection.releaseSavepoint(savepoint);
+            }
+            return plan.toString();
+        } catch(final SQLException | RuntimeException e) {
+            logger.warn("Couldn't explain slow statement '{}':", sql, e);
+            if(savepoint != null) {
+                try {
+                    connection.rollback(savepoint);
+                } catch(final SQLException rollback) {
+                    logger.warn("Couldn't roll back to before explaining '{}':", sql, rollback);
+                }
+            }
+            return null;
+        } finally {
+            if(ownTransaction) {
+                try {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                } catch(final SQLException e) {
+                    logger.warn("Couldn't end the transaction '{}' was analyzed in:", sql, e);
+                }
+            }
+        }
+    }
+    
+    private void logSlowQuery(final SlowQuery query) {
+        if(query.getPlan() != null) {
+            logger.warn("Slow statement ({}ms): {} with parameters {}\n{}", query.getDurationMillis(), query.getSql(),
+                    query.getParameterTypes(), query.getPlan());
+        } else {
+            logger.warn("Slow statement ({}ms): {} with parameters {}", query.getDurationMillis(), query.getSql(),
+                    query.getParameterTypes());
+        }
+    }
+    
+    @FunctionalInterface
+    public interface SqlFunction<T, R> {
+        R apply(T t) throws SQLException;
+    }
+    
+    /**
+     * Walks over a result set for {@link #stream(String, SqlConsumer, int, SqlFunction)},
+     * cleaning up after itself once it runs out of rows or is closed.
+     */
+    private final class RowSpliterator<R> extends Spliterators.AbstractSpliterator<R> {
+        private final Connection connection;
+        /**
+         * Whether the connection belongs to a transaction, and so must be
+         * left alone when done.
+         */
+        private final boolean borrowed;
+        private final SqlFunction<ResultSet, R> mapper;
+        private PreparedStatement statement;
+        private ResultSet resultSet;
+        private boolean closed;
+        
+        private RowSpliterator(final Connection connection, final boolean borrowed, final SqlFunction<ResultSet, R> mapper) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.connection = connection;
+            this.borrowed = borrowed;
+            this.mapper = mapper;
+        }
+        
+        @Override
+        public boolean tryAdvance(final Consumer<? super R> action) {
+            if(closed) {
+                return false;
+            }
+            try {
+                if(!resultSet.next()) {
+                    close();
+                    return false;
+                }
+                action.accept(mapper.apply(resultSet));
+                return true;
+            } catch(final SQLException e) {
+                logger.error("Exception while streaming rows:", e);
+                close();
+                throw new IllegalStateException(e);
+            }
+        }
+        
+        private void close() {
+            if(closed) {
+                return;
+            }
+            closed = true;
+            if(borrowed) {
+                try {
+                    if(resultSet != null) {
+                        resultSet.close();
+                    }
+                    if(statement != null) {
+                        statement.close();
+                    }
+                } catch(final SQLException e) {
+                    logger.error("Exception while closing streamed statement:", e);
+                }
+                return;
+            }
+            try {
+                if(resultSet != null) {
+                    resultSet.close();
+                }
+                if(statement != null) {
+                    statement.close();
+                }
+                // Nothing was written, so there's nothing to keep
+                connection.rollback();
+                connection.setAutoCommit(true);
+            } catch(final SQLException e) {
+                logger.error("Exception while closing streamed statement:", e);
+            } finally {
+                try {
+                    connection.close();
+                } catch(final SQLException e) {
+                    logger.error("Exception while closing connection:", e);
+                }
+            }
+        }
+    }
+    
     @FunctionalInterface
     public interface SqlConsumer<T> extends Consumer<T> {
         @Override
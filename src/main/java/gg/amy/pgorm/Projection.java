@@ -0,0 +1,162 @@
+package gg.amy.pgorm;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.databind.ObjectReader;
+import gg.amy.pgorm.PgMetrics.Operation;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Loads only some fields of a {@link PgMapper}'s documents, into a lighter
+ * view class. Get one from {@link PgMapper#project(Class)}. <p/>
+ * Instead of the whole document, Postgres sends
+ * <code>json_build_object('a', data-&gt;'a', 'b', data-&gt;'b')</code>, so
+ * large documents don't have to be sent over the network and deserialized
+ * just to read a few fields of them. The view class is mapped with Jackson,
+ * and by default gets the top-level fields named after its own fields. <p/>
+ * Example:
+ * <pre>
+ * Optional&lt;Summary&gt; summary = store.mapSync(Data.class).project(Summary.class).load(id);
+ * </pre>
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class Projection<V> {
+    private final PgMapper<?> mapper;
+    @Getter
+    private final Class<V> type;
+    @Getter
+    private final List<String> fields;
+    private final ObjectReader reader;
+    /**
+     * The SQL expression for the projected document.
+     */
+    @Getter
+    private final String expression;
+    private final String loadSql;
+    private final String loadManySql;
+    
+    Projection(final PgMapper<?> mapper, final Class<V> type, final List<String> fields) {
+        this.mapper = mapper;
+        this.type = type;
+        this.fields = Collections.unmodifiableList(new ArrayList<>(fields.isEmpty() ? fieldsOf(type) : fields));
+        if(this.fields.isEmpty()) {
+            throw new IllegalStateException("Projection of " + mapper.getTableName() + " into " + type.getName() + " has no fields!");
+        }
+        final StringBuilder builder = new StringBuilder("json_build_object(");
+        for(int i = 0; i < this.fields.size(); i++) {
+            final String field = this.fields.get(i);
+            if(mapper.getMetadata().getCompressedFields().containsKey(field)) {
+                throw new IllegalStateException("Field " + field + " of " + mapper.getTableName() + " is @Compressed, so it isn't part of the document!");
+            }
+            if(i > 0) {
+                builder.append(", ");
+            }
+            builder.append(PgMapper.jsonLiteral(field)).append(", ").append(PgMapper.jsonPath(field));
+        }
+        expression = builder.append(')').toString();
+        reader = EntityMetadata.MAPPER.readerFor(type);
+        loadSql = "SELECT " + expression + " FROM " + mapper.getTableName() + " WHERE " + mapper.getPrimaryKeyName() + " = ?;";
+        loadManySql = "SELECT " + mapper.getPrimaryKeyName() + ", " + expression + " FROM " + mapper.getTableName()
+                + " WHERE " + mapper.getPrimaryKeyName() + " = ANY(?);";
+    }
+    
+    /**
+     * @return The projected entity with the given primary key, if it exists.
+     */
+    public Optional<V> load(final Object pk) {
+        final List<V> result = new ArrayList<>(1);
+        mapper.sql(Operation.LOAD, loadSql, c -> {
+            c.setObject(1, pk);
+            try(final ResultSet resultSet = c.executeQuery()) {
+                if(resultSet.next()) {
+                    result.add(read(resultSet.getBytes(1)));
+                }
+            }
+        });
+        mapper.recordRows(Operation.LOAD, result.size());
+        return result.isEmpty() ? Optional.empty() : Optional.of(result.get(0));
+    }
+    
+    /**
+     * Like {@link PgMapper#loadMany(Collection)}, but projected. Nothing is
+     * cached.
+     */
+    public Map<Object, V> loadMany(final Collection<?> pks) {
+        final Map<Object, V> loaded = new HashMap<>();
+        if(pks.isEmpty()) {
+            return loaded;
+        }
+        final List<?> all = new ArrayList<>(pks);
+        final int chunkSize = mapper.getLoadChunkSize();
+        mapper.sql(Operation.LOAD_MANY, loadManySql, c -> {
+            for(int i = 0; i < all.size(); i += chunkSize) {
+                final List<?> chunk = all.subList(i, Math.min(all.size(), i + chunkSize));
+                c.setArray(1, c.getConnection().createArrayOf(mapper.getPkArrayType(), chunk.toArray()));
+                try(final ResultSet resultSet = c.executeQuery()) {
+                    while(resultSet.next()) {
+                        loaded.put(resultSet.getObject(1), read(resultSet.getBytes(2)));
+                    }
+                }
+            }
+        });
+        mapper.recordRows(Operation.LOAD_MANY, loaded.size());
+        return loaded;
+    }
+    
+    /**
+     * Like {@link PgMapper#loadManyBySubkey(String, String)}, but projected.
+     */
+    public List<V> loadManyBySubkey(final String subKey, final String subKeyData) {
+        final List<V> data = new ArrayList<>();
+        mapper.sql(Operation.LOAD_BY_SUBKEY, "SELECT " + expression + " FROM " + mapper.getTableName() + " WHERE " + subKey + " = ?;", c -> {
+            c.setObject(1, subKeyData);
+            try(final ResultSet resultSet = c.executeQuery()) {
+                while(resultSet.next()) {
+                    data.add(read(resultSet.getBytes(1)));
+                }
+            }
+        });
+        mapper.recordRows(Operation.LOAD_BY_SUBKEY, data.size());
+        return data;
+    }
+    
+    V read(final byte[] json) {
+        try {
+            return reader.readValue(json);
+        } catch(final IOException e) {
+            throw new IllegalStateException("Couldn't load projection " + type.getName() + " from JSON "
+                    + new String(json, StandardCharsets.UTF_8), e);
+        }
+    }
+    
+    /**
+     * @return The document fields the view class's fields are mapped from.
+     */
+    private static List<String> fieldsOf(final Class<?> type) {
+        final List<String> fields = new ArrayList<>();
+        for(final Field field : type.getDeclaredFields()) {
+            final int modifiers = field.getModifiers();
+            if(Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()
+                    || field.isAnnotationPresent(JsonIgnore.class) || field.getType() == Lazy.class) {
+                continue;
+            }
+            fields.add(EntityMetadata.jsonKey(field));
+        }
+        return fields;
+    }
+}
@@ -0,0 +1,389 @@
+package gg.amy.pgorm;
+
+import gg.amy.pgorm.EntityMetadata.DocumentColumn;
+import gg.amy.pgorm.PgMetrics.Operation;
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * A query over the JSONB documents of a {@link PgMapper}'s table. Get one
+ * from {@link PgMapper#query()}. <p/>
+ * Predicates are compiled to the same expressions that the indexes created
+ * for {@link gg.amy.pgorm.annotations.BtreeIndex} and
+ * {@link gg.amy.pgorm.annotations.GIndex} are built on, so the planner can
+ * use them:
+ * <ul>
+ * <li>{@link #eq(String, Object)}, {@link #in(String, Collection)} and the
+ * range predicates compare <code>data-&gt;'field'</code>, which matches
+ * <code>@BtreeIndex</code>.</li>
+ * <li>{@link #contains(Object)} is <code>data @&gt; ?</code>, which matches
+ * the GIN index every table gets.</li>
+ * <li>{@link #contains(String, Object)} is
+ * <code>data-&gt;'field' @&gt; ?</code>, which matches <code>@GIndex</code>.
+ * </li>
+ * </ul>
+ * Fields extracted into typed columns with
+ * {@link gg.amy.pgorm.annotations.Column} are filtered and sorted on their
+ * column instead, comparing them as real strings and numbers, and using the
+ * column's indexes and any {@link gg.amy.pgorm.annotations.Index}. The
+ * partition field of a range partitioned table is filtered on its partition
+ * column the same way, so Postgres only scans the partitions that can match.
+ * <p/>
+ * Values are always bound as parameters, and the SQL only depends on the
+ * shape of the query, so the driver reuses its server-side prepared
+ * statements across executions of the same query shape. <p/>
+ * Other values are compared as JSON, so they're mapped with Jackson the same
+ * way entities are. <p/>
+ * Example:
+ * <pre>
+ * List&lt;Data&gt; page = store.mapSync(Data.class).query()
+ *         .eq("name", "some name")
+ *         .gte("someNumber", 100)
+ *         .orderBy("someNumber")
+ *         .limit(50)
+ *         .list();
+ * </pre>
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class Query<T> {
+    private final PgMapper<T> mapper;
+    private final List<String> predicates = new ArrayList<>();
+    private final List<ParamBinder> params = new ArrayList<>();
+    private final List<Sort> order = new ArrayList<>();
+    private String projection;
+    @Getter(AccessLevel.PACKAGE)
+    private Integer limit;
+    private String sql;
+    
+    Query(final PgMapper<T> mapper) {
+        this.mapper = mapper;
+    }
+    
+    /**
+     * Matches documents where {@code field} equals {@code value}.
+     */
+    public Query<T> eq(final String field, final Object value) {
+        return compare(field, "=", value);
+    }
+    
+    /**
+     * Matches documents where {@code field} is greater than {@code value}.
+     */
+    public Query<T> gt(final String field, final Object value) {
+        return compare(field, ">", value);
+    }
+    
+    /**
+     * Matches documents where {@code field} is greater than or equal to
+     * {@code value}.
+     */
+    public Query<T> gte(final String field, final Object value) {
+        return compare(field, ">=", value);
+    }
+    
+    /**
+     * Matches documents where {@code field} is less than {@code value}.
+     */
+    public Query<T> lt(final String field, final Object value) {
+        return compare(field, "<", value);
+    }
+    
+    /**
+     * Matches documents where {@code field} is less than or equal to
+     * {@code value}.
+     */
+    public Query<T> lte(final String field, final Object value) {
+        return compare(field, "<=", value);
+    }
+    
+    /**
+     * Matches documents where {@code field} equals any of {@code values}.
+     */
+    public Query<T> in(final String field, final Collection<?> values) {
+        final DocumentColumn column = column(field, values.stream().anyMatch(Objects::isNull) ? null : values);
+        if(column != null) {
+            final Object[] text = values.stream().map(column::text).toArray();
+            return where(column.getName() + " = ANY(?::" + column.getSqlType() + "[])",
+                    (s, i) -> s.setArray(i, s.getConnection().createArrayOf("text", text)));
+        }
+        final Object[] json = values.stream().map(mapper::toJson).toArray();
+        return where(PgMapper.jsonPath(field) + " = ANY(?::text[]::jsonb[])",
+                (s, i) -> s.setArray(i, s.getConnection().createArrayOf("text", json)));
+    }
+    
+    /**
+     * Matches documents that contain the given partial document, ex.
+     * <code>contains(Collections.singletonMap("name", "some name"))</code>.
+     */
+    public Query<T> contains(final Object partialDocument) {
+        final String json = mapper.toJson(partialDocument);
+        return where("data @> ?::jsonb", (s, i) -> s.setString(i, json));
+    }
+    
+    /**
+     * Matches documents where the value of {@code field} contains
+     * {@code value}, ex. where an array field has a certain element.
+     */
+    public Query<T> contains(final String field, final Object value) {
+        final String json = mapper.toJson(value);
+        return where(PgMapper.jsonPath(field) + " @> ?::jsonb", (s, i) -> s.setString(i, json));
+    }
+    
+    /**
+     * Matches documents that have the top-level key {@code field} at all.
+     */
+    public Query<T> exists(final String field) {
+        // ?? is how the driver spells the jsonb ? operator
+        return where("data ?? ?", (s, i) -> s.setString(i, field));
+    }
+    
+    /**
+     * Sorts the results by {@code field}, ascending. Can be called more than
+     * once to sort by several fields.
+     */
+    public Query<T> orderBy(final String field) {
+        return orderBy(field, false);
+    }
+    
+    /**
+     * Sorts the results by {@code field}, descending.
+     */
+    public Query<T> orderByDescending(final String field) {
+        return orderBy(field, true);
+    }
+    
+    /**
+     * Keyset pagination: skips to the results after the given position in a
+     * query sorted by exactly one field. Pass the sorted field's value and the
+     * primary key of the last result of the previous page.
+     */
+    public Query<T> after(final Object value, final Object pk) {
+        if(order.size() != 1) {
+            throw new IllegalStateException("Keyset pagination needs a query sorted by exactly one field!");
+        }
+        final Sort sort = order.get(0);
+        final String bound = sort.column != null ? sort.column.text(value) : mapper.toJson(value);
+        final String type = sort.column != null ? sort.column.getSqlType() : "jsonb";
+        return where('(' + sort.expression + ", " + mapper.getPrimaryKeyName() + ") " + (sort.descending ? '<' : '>') + " (?::" + type + ", ?)",
+                (s, i) -> s.setString(i, bound), (s, i) -> s.setObject(i, pk));
+    }
+    
+    /**
+     * Limits the number of results.
+     */
+    public Query<T> limit(final int limit) {
+        if(limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive, but got " + limit);
+        }
+        invalidate();
+        this.limit = limit;
+        return this;
+    }
+    
+    /**
+     * Only fetches the given top-level fields of each document. The results
+     * are still mapped to {@code <T>}, with every other field left at its
+     * default value.
+     */
+    public Query<T> select(final String... fields) {
+        invalidate();
+        final StringBuilder builder = new StringBuilder("jsonb_build_object(");
+        for(int i = 0; i < fields.length; i++) {
+            if(i > 0) {
+                builder.append(", ");
+            }
+            builder.append(PgMapper.jsonLiteral(fields[i])).append(", ").append(PgMapper.jsonPath(fields[i]));
+        }
+        projection = builder.append(") AS data").toString();
+        return this;
+    }
+    
+    /**
+     * @return Every matching entity.
+     */
+    public List<T> list() {
+        final List<T> data = new ArrayList<>();
+        mapper.sql(Operation.QUERY, sql(), c -> {
+            bind(c);
+            try(final ResultSet resultSet = c.executeQuery()) {
+                while(resultSet.next()) {
+                    try {
+                        data.add(mapper.loadFromResultSet(resultSet, Operation.QUERY));
+                    } catch(final IllegalStateException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+        mapper.recordRows(Operation.QUERY, data.size());
+        return data;
+    }
+    
+    /**
+     * @return Every matching entity, projected into the view class, see
+     * {@link PgMapper#project(Class)}. Ignores {@link #select(String...)}.
+     */
+    public <V> List<V> list(final Class<V> view) {
+        final Projection<V> projection = mapper.project(view);
+        final List<V> data = new ArrayList<>();
+        mapper.sql(Operation.QUERY, sql(projection.getExpression()), c -> {
+            bind(c);
+            try(final ResultSet resultSet = c.executeQuery()) {
+                while(resultSet.next()) {
+                    data.add(projection.read(resultSet.getBytes(1)));
+                }
+            }
+        });
+        mapper.recordRows(Operation.QUERY, data.size());
+        return data;
+    }
+    
+    /**
+     * @return The first matching entity, if any.
+     */
+    public Optional<T> first() {
+        if(limit == null) {
+            limit(1);
+        }
+        final List<T> results = list();
+        return results.isEmpty() ? Optional.empty() : Optional.of(results.get(0));
+    }
+    
+    /**
+     * Streams the matching entities. See
+     * {@link PgMapper#streamManyBySubkey(String, String)} for details.
+     */
+    public Stream<T> stream() {
+        return mapper.getStore().readStream(sql(), this::bind, mapper.getFetchSize(), mapper::streamFromResultSet);
+    }
+    
+    /**
+     * @return The number of matching entities. Ignores sorting and limits.
+     */
+    public long count() {
+        final long[] count = {0L};
+        mapper.sql(Operation.QUERY, "SELECT count(*) FROM " + mapper.getTableName() + where() + ';', c -> {
+            bindPredicates(c);
+            try(final ResultSet resultSet = c.executeQuery()) {
+                resultSet.next();
+                count[0] = resultSet.getLong(1);
+            }
+        });
+        return count[0];
+    }
+    
+    /**
+     * @return The SQL this query runs.
+     */
+    public String sql() {
+        if(sql == null) {
+            final String version = mapper.getVersionColumn() != null ? ", " + mapper.getVersionColumn() : "";
+            sql = sql(projection == null ? mapper.getMetadata().selectColumns() : mapper.getPrimaryKeyName() + version + ", " + projection);
+        }
+        return sql;
+    }
+    
+    private String sql(final String columns) {
+        final StringBuilder builder = new StringBuilder("SELECT ");
+        builder.append(columns).append(" FROM ").append(mapper.getTableName()).append(where());
+        if(!order.isEmpty()) {
+            builder.append(" ORDER BY ");
+            for(final Sort sort : order) {
+                builder.append(sort.expression).append(sort.descending ? " DESC, " : " ASC, ");
+            }
+            // Sort on the primary key last, so that results have a stable order
+            builder.append(mapper.getPrimaryKeyName()).append(order.get(order.size() - 1).descending ? " DESC" : " ASC");
+        }
+        if(limit != null) {
+            builder.append(" LIMIT ?");
+        }
+        return builder.append(';').toString();
+    }
+    
+    private Query<T> compare(final String field, final String operator, final Object value) {
+        final DocumentColumn column = column(field, value);
+        if(column != null) {
+            // Bound as text and cast by Postgres, which parses it the same
+            // way it parsed the document's value into the column
+            final String text = column.text(value);
+            return where(column.getName() + ' ' + operator + " ?::" + column.getSqlType(), (s, i) -> s.setString(i, text));
+        }
+        final String json = mapper.toJson(value);
+        return where(PgMapper.jsonPath(field) + ' ' + operator + " ?::jsonb", (s, i) -> s.setString(i, json));
+    }
+    
+    private Query<T> orderBy(final String field, final boolean descending) {
+        invalidate();
+        final DocumentColumn column = mapper.getMetadata().getColumns().get(field);
+        order.add(new Sort(column != null ? column.getName() : PgMapper.jsonPath(field), column, descending));
+        return this;
+    }
+    
+    /**
+     * @return The field's typed column, or {@code null} if it doesn't have
+     * one, or if comparing to {@code null}, which only means anything as
+     * JSON.
+     */
+    private DocumentColumn column(final String field, final Object value) {
+        return value == null ? null : mapper.getMetadata().getColumns().get(field);
+    }
+    
+    private Query<T> where(final String predicate, final ParamBinder... binders) {
+        invalidate();
+        predicates.add(predicate);
+        for(final ParamBinder binder : binders) {
+            params.add(binder);
+        }
+        return this;
+    }
+    
+    private String where() {
+        return predicates.isEmpty() ? "" : " WHERE " + String.join(" AND ", predicates);
+    }
+    
+    private void bind(final PreparedStatement statement) throws SQLException {
+        bindPredicates(statement);
+        if(limit != null) {
+            statement.setInt(params.size() + 1, limit);
+        }
+    }
+    
+    private void bindPredicates(final PreparedStatement statement) throws SQLException {
+        for(int i = 0; i < params.size(); i++) {
+            params.get(i).bind(statement, i + 1);
+        }
+    }
+    
+    private void invalidate() {
+        sql = null;
+    }
+    
+    private static final class Sort {
+        private final String expression;
+        /**
+         * The column being sorted on, or {@code null} if sorting on the
+         * document.
+         */
+        private final DocumentColumn column;
+        private final boolean descending;
+        
+        private Sort(final String expression, final DocumentColumn column, final boolean descending) {
+            this.expression = expression;
+            this.column = column;
+            this.descending = descending;
+        }
+    }
+}
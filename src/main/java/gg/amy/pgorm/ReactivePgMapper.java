@@ -0,0 +1,353 @@
+package gg.amy.pgorm;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import gg.amy.pgorm.EntityMetadata.CompressedField;
+import io.vertx.core.Context;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.RowSet;
+import io.vertx.sqlclient.Tuple;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Maps an entity class for a {@link ReactivePgStore}. Every operation is sent
+ * straight to Postgres without blocking; see the store for how. <p/>
+ * The table and indexes are created in the background as soon as the class
+ * is mapped. Operations wait for that to finish before they run. If it
+ * fails, the operations waiting on it fail too, and the next one tries
+ * again.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class ReactivePgMapper<T> implements AsyncMapper<T> {
+    @Getter
+    private final ReactivePgStore store;
+    private final EntityMetadata<T> metadata;
+    /**
+     * Completes once the table and indexes exist. Replaced with a fresh
+     * attempt by the first operation after it fails.
+     */
+    private volatile CompletableFuture<Void> ready;
+    private final String saveSql;
+    private final String loadSql;
+    private final String loadManySql;
+    private final String deleteSql;
+    /**
+     * Loads compressed fields, once the columns are filled in.
+     */
+    private final String compressedLoadSql;
+    
+    ReactivePgMapper(final ReactivePgStore store, final Class<T> type) {
+        this.store = store;
+        metadata = new EntityMetadata<>(type);
+        final String table = metadata.getTableName();
+        final String pk = metadata.getPrimaryKeyName();
+        final String version = metadata.getVersionColumn();
+        final String channel = metadata.getInvalidationChannel();
+        // Same statements as PgMapper's, with $n placeholders
+        final String partitionKey = metadata.partitionKeyOf("v.data");
+        final String partitionColumn = partitionKey != null ? ", " + metadata.getPartitionColumn().getName() : "";
+        final String partitionValue = partitionKey != null ? ", " + partitionKey : "";
+        final String compressed = metadata.compressedColumns("", "");
+        // Compressed fields come after the document and version
+        int param = version != null ? 4 : 3;
+        final StringBuilder compressedParams = new StringBuilder();
+        for(int i = 0; i < metadata.getCompressedFields().size(); i++) {
+            compressedParams.append(", $").append(param++).append("::bytea");
+        }
+        final String save;
+        if(version != null) {
+            // Only overwrite the version before the one being saved, and only
+            // return the rows that were written
+            save = "INSERT INTO " + table + " (" + pk + ", data, " + version + compressed + partitionColumn + ") "
+                    + "SELECT v.*" + partitionValue + " FROM (VALUES ($1::" + metadata.getPkSqlType() + ", convert_from($2, 'UTF8')::jsonb, $3::bigint"
+                    + compressedParams + ")) AS v (pk, data, version" + compressed + ") "
+                    + "ON CONFLICT (" + metadata.getConflictTarget() + ") DO UPDATE SET data = EXCLUDED.data, " + version + " = EXCLUDED." + version
+                    + metadata.compressedUpdates() + " WHERE " + table + '.' + version + " = EXCLUDED." + version + " - 1 RETURNING " + pk;
+        } else {
+            save = "INSERT INTO " + table + " (" + pk + ", data" + compressed + partitionColumn + ") "
+                    + "SELECT v.*" + partitionValue + " FROM (VALUES ($1::" + metadata.getPkSqlType() + ", convert_from($2, 'UTF8')::jsonb"
+                    + compressedParams + ")) AS v (pk, data" + compressed + ") "
+                    + "ON CONFLICT (" + metadata.getConflictTarget() + ") DO UPDATE SET data = EXCLUDED.data" + metadata.compressedUpdates()
+                    + " RETURNING " + pk;
+        }
+        final String delete = "DELETE FROM " + table + " WHERE " + pk + " = $1 RETURNING " + pk;
+        if(channel != null) {
+            // A single statement per operation keeps it pipelineable, so the
+            // notification goes in a CTE instead of a second statement
+            saveSql = "WITH saved AS (" + save + ") SELECT pg_notify($" + param + ", " + pk + "::text) FROM saved";
+            deleteSql = "WITH deleted AS (" + delete + ") SELECT pg_notify($2, " + pk + "::text) FROM deleted";
+        } else {
+            saveSql = save;
+            deleteSql = delete;
+        }
+        final String columns = "data::text" + (version != null ? ", " + version : "");
+        compressedLoadSql = "SELECT %s FROM " + table + " WHERE " + pk + " = $1";
+        loadSql = "SELECT " + columns + " FROM " + table + " WHERE " + pk + " = $1";
+        loadManySql = "SELECT " + columns + ", " + pk + " FROM " + table + " WHERE " + pk + " = ANY($1)";
+        ready = store.run(metadata.ddl());
+    }
+    
+    /**
+     * @return A future that completes once the table and indexes exist. If
+     * the last attempt to create them failed, this starts a new one.
+     */
+    public CompletableFuture<Void> getReady() {
+        final CompletableFuture<Void> current = ready;
+        if(!current.isCompletedExceptionally()) {
+            return current;
+        }
+        synchronized(this) {
+            if(ready == current) {
+                ready = store.run(metadata.ddl());
+            }
+            return ready;
+        }
+    }
+    
+    public Class<T> getType() {
+        return metadata.getType();
+    }
+    
+    public String getTableName() {
+        return metadata.getTableName();
+    }
+    
+    @Override
+    public CompletableFuture<Void> save(final T entity) {
+        final Tuple params;
+        try {
+            params = saveParams(entity);
+        } catch(final JsonProcessingException | RuntimeException e) {
+            return failed(new IllegalStateException("Couldn't save entity " + entity, e));
+        }
+        return getReady().thenCompose(ignored -> store.execute(saveSql, params)).thenApply(rows -> {
+            if(metadata.getVersionColumn() != null) {
+                if(rows.rowCount() == 0) {
+                    throw new VersionConflictException(entity);
+                }
+                metadata.setVersion(entity, metadata.versionOf(entity) + 1L);
+            }
+            return null;
+        });
+    }
+    
+    /**
+     * Saves all the entities in one pipelined batch.
+     */
+    @Override
+    public CompletableFuture<List<T>> saveAll(final Collection<T> entities) {
+        if(entities.isEmpty()) {
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }
+        final List<T> batch = new ArrayList<>(entities);
+        final List<Tuple> params = new ArrayList<>(batch.size());
+        try {
+            for(final T entity : batch) {
+                params.add(saveParams(entity));
+            }
+        } catch(final JsonProcessingException | RuntimeException e) {
+            return failed(new IllegalStateException("Couldn't save entities of class " + getType().getName(), e));
+        }
+        return getReady().thenCompose(ignored -> store.executeBatch(saveSql, params)).thenApply(rows -> {
+            if(metadata.getVersionColumn() == null) {
+                return Collections.emptyList();
+            }
+            // Every entity gets its own result, in order. Duplicates run one
+            // after another, so all but the first of them conflict.
+            final List<T> conflicts = new ArrayList<>();
+            RowSet<Row> result = rows;
+            for(final T entity : batch) {
+                if(result.rowCount() == 0) {
+                    conflicts.add(entity);
+                } else {
+                    metadata.setVersion(entity, metadata.versionOf(entity) + 1L);
+                }
+                result = result.next();
+            }
+            return conflicts;
+        });
+    }
+    
+    @Override
+    public CompletableFuture<Void> delete(final Object pk) {
+        final String channel = metadata.getInvalidationChannel();
+        final Tuple params = channel != null ? Tuple.of(primaryKey(pk), channel) : Tuple.of(primaryKey(pk));
+        return getReady().thenCompose(ignored -> store.execute(deleteSql, params)).thenApply(ignored -> null);
+    }
+    
+    @Override
+    public CompletableFuture<Optional<T>> load(final Object pk) {
+        final Tuple params = Tuple.of(primaryKey(pk));
+        return getReady().thenCompose(ignored -> store.execute(loadSql, params)).thenApply(rows -> {
+            for(final Row row : rows) {
+                return Optional.of(read(row));
+            }
+            return Optional.empty();
+        });
+    }
+    
+    @Override
+    public CompletableFuture<Map<Object, T>> loadMany(final Collection<?> pks) {
+        if(pks.isEmpty()) {
+            return CompletableFuture.completedFuture(Collections.emptyMap());
+        }
+        final Tuple params = Tuple.tuple().addValue(primaryKeys(pks));
+        final int pkColumn = metadata.getVersionColumn() != null ? 2 : 1;
+        return getReady().thenCompose(ignored -> store.execute(loadManySql, params)).thenApply(rows -> {
+            final Map<Object, T> entities = new HashMap<>();
+            for(final Row row : rows) {
+                entities.put(row.getValue(pkColumn), read(row));
+            }
+            return entities;
+        });
+    }
+    
+    private Tuple saveParams(final T entity) throws JsonProcessingException {
+        final Object pk = metadata.primaryKeyOf(entity);
+        // Sent as raw UTF-8, like PgMapper does
+        final Buffer json = Buffer.buffer(metadata.getWriter().writeValueAsBytes(entity));
+        final Tuple params = Tuple.of(pk, json);
+        if(metadata.getVersionColumn() != null) {
+            params.addValue(metadata.versionOf(entity) + 1L);
+        }
+        for(final CompressedField field : metadata.getCompressedFields().values()) {
+            final byte[] compressed = field.compress(entity);
+            params.addValue(compressed != null ? Buffer.buffer(compressed) : null);
+        }
+        if(metadata.getInvalidationChannel() != null) {
+            params.addValue(metadata.getInvalidationChannel());
+        }
+        return params;
+    }
+    
+    private T read(final Row row) {
+        try {
+            final T entity = metadata.getReader().readValue(row.getString(0));
+            if(metadata.getVersionColumn() != null) {
+                metadata.setVersion(entity, row.getLong(1));
+            }
+            if(!metadata.getCompressedFields().isEmpty()) {
+                final Object pk = metadata.primaryKeyOf(entity);
+                metadata.attachCompressedFields(entity, field -> loadCompressed(pk, field));
+            }
+            return entity;
+        } catch(final IOException e) {
+            throw new IllegalStateException("Couldn't load entity of class " + getType().getName(), e);
+        }
+    }
+    
+    /**
+     * Loads every {@link gg.amy.pgorm.annotations.Compressed} field of the
+     * entity that isn't loaded yet, in one statement. Use this instead of
+     * {@link Lazy#get()} on an event loop, which would have to block.
+     *
+     * @return A future of the entity, once its fields are loaded. Fails with
+     * an {@link IllegalStateException} if the entity's row doesn't exist any
+     * more, and the fields stay unloaded.
+     */
+    public CompletableFuture<T> loadCompressed(final T entity) {
+        final List<CompressedField> fields = new ArrayList<>();
+        for(final CompressedField field : metadata.getCompressedFields().values()) {
+            final Lazy<Object> lazy = field.lazy(entity);
+            if(lazy != null && !lazy.isLoaded()) {
+                fields.add(field);
+            }
+        }
+        if(fields.isEmpty()) {
+            return CompletableFuture.completedFuture(entity);
+        }
+        final Object pk = metadata.primaryKeyOf(entity);
+        return fetchCompressed(pk, fields).thenApply(values -> {
+            for(int i = 0; i < fields.size(); i++) {
+                fields.get(i).lazy(entity).complete(values.get(i));
+            }
+            return entity;
+        });
+    }
+    
+    /**
+     * Loads a field on the calling thread, for {@link Lazy#get()}. This
+     * blocks, so it refuses to run on an event loop, where it would wait on
+     * itself.
+     */
+    private Object loadCompressed(final Object pk, final CompressedField field) {
+        if(Context.isOnEventLoopThread()) {
+            throw new IllegalStateException("Can't load field " + field.getField().getName() + " of entity " + getType().getName()
+                    + " on an event loop! Use ReactivePgMapper#loadCompressed instead.");
+        }
+        try {
+            return fetchCompressed(pk, Collections.singletonList(field)).join().get(0);
+        } catch(final CompletionException e) {
+            throw e.getCause() instanceof IllegalStateException ? (IllegalStateException) e.getCause()
+                    : new IllegalStateException("Couldn't load field " + field.getField().getName() + " of entity " + getType().getName(), e.getCause());
+        }
+    }
+    
+    /**
+     * @return A future of the fields' values, in the same order.
+     */
+    private CompletableFuture<List<Object>> fetchCompressed(final Object pk, final List<CompressedField> fields) {
+        final StringBuilder columns = new StringBuilder();
+        for(final CompressedField field : fields) {
+            columns.append(columns.length() > 0 ? ", " : "").append(field.getColumn());
+        }
+        return store.execute(String.format(compressedLoadSql, columns), Tuple.of(primaryKey(pk))).thenApply(rows -> {
+            for(final Row row : rows) {
+                final List<Object> values = new ArrayList<>(fields.size());
+                for(int i = 0; i < fields.size(); i++) {
+                    final Buffer compressed = row.getBuffer(i);
+                    values.add(fields.get(i).decompress(compressed != null ? compressed.getBytes() : null));
+                }
+                return values;
+            }
+            throw new IllegalStateException("Couldn't load compressed fields of entity " + getType().getName() + ' ' + pk
+                    + ", since it doesn't exist any more!");
+        });
+    }
+    
+    /**
+     * The client binds parameters by their exact Java type, so primary keys
+     * have to be the same type as the column, ex. not a long for an
+     * <code>INT</code>.
+     */
+    private Object primaryKey(final Object pk) {
+        return metadata.parsePrimaryKey(String.valueOf(pk));
+    }
+    
+    private Object[] primaryKeys(final Collection<?> pks) {
+        final Class<?> pkType = metadata.getPkField().getType();
+        final Object[] array;
+        if(pkType == int.class || pkType == Integer.class) {
+            array = new Integer[pks.size()];
+        } else if(pkType == long.class || pkType == Long.class) {
+            array = new Long[pks.size()];
+        } else {
+            array = new String[pks.size()];
+        }
+        int i = 0;
+        for(final Object pk : pks) {
+            array[i++] = primaryKey(pk);
+        }
+        return array;
+    }
+    
+    private static <R> CompletableFuture<R> failed(final Throwable cause) {
+        final CompletableFuture<R> future = new CompletableFuture<>();
+        future.completeExceptionally(cause);
+        return future;
+    }
+}
@@ -0,0 +1,232 @@
+package gg.amy.pgorm;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.pgclient.PgConnectOptions;
+import io.vertx.pgclient.PgConnection;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.RowSet;
+import io.vertx.sqlclient.SqlConnection;
+import io.vertx.sqlclient.Tuple;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A store backed by the non-blocking Vert.x Postgres client, instead of JDBC.
+ * <p/>
+ * {@link PgStore}'s async mappers run blocking JDBC calls on an executor, so
+ * every operation in flight holds a thread and a pooled connection until it
+ * finishes. This store keeps a few connections open instead, spreads
+ * operations across them, and pipelines them: up to
+ * {@link #DEFAULT_PIPELINING_LIMIT} statements are sent down each connection
+ * without waiting for the ones before them to come back. No thread waits on
+ * any of them. <p/>
+ * Entities are mapped exactly as they are by {@link PgMapper}, to the same
+ * tables, so the two stores can be used side by side on the same data. Only
+ * the operations of {@link AsyncMapper} are supported. Saves and deletes of
+ * {@link gg.amy.pgorm.annotations.Cached} entities still notify the other
+ * nodes, but this store doesn't cache anything itself. Range partitioned
+ * tables only get their default partition from this store; their partitions
+ * are created and dropped by a {@link PgStore} the class is mapped on. <p/>
+ * Futures are completed on a Vert.x event loop, so don't block in callbacks
+ * chained onto them.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class ReactivePgStore implements AsyncStore {
+    /**
+     * The default number of connections operations are spread across.
+     */
+    public static final int DEFAULT_CONNECTIONS = 4;
+    /**
+     * The default number of statements sent down a connection before waiting
+     * for any of them to complete.
+     */
+    public static final int DEFAULT_PIPELINING_LIMIT = 256;
+    private final Map<Class<?>, ReactivePgMapper<?>> mappers = new ConcurrentHashMap<>();
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final AtomicInteger nextConnection = new AtomicInteger();
+    @Getter
+    private final PgConnectOptions options;
+    @Getter
+    private final int connections;
+    private volatile Vertx vertx;
+    /**
+     * One slot per connection. A slot is emptied when its connection closes,
+     * and reconnected the next time it's picked.
+     */
+    private volatile AtomicReferenceArray<CompletableFuture<SqlConnection>> slots;
+    
+    /**
+     * @param url  The same JDBC url {@link PgStore} takes, ex.
+     *             <code>jdbc:postgresql://localhost:5432/db</code>.
+     * @param user The user to connect as.
+     * @param pass The user's password.
+     */
+    public ReactivePgStore(final String url, final String user, final String pass) {
+        this(PgConnectOptions.fromUri(url.startsWith("jdbc:") ? url.substring("jdbc:".length()) : url)
+                .setUser(user)
+                .setPassword(pass)
+                .setPipeliningLimit(DEFAULT_PIPELINING_LIMIT)
+                .setCachePreparedStatements(true), DEFAULT_CONNECTIONS);
+    }
+    
+    /**
+     * @param options     How to connect. Set the pipelining limit and
+     *                    prepared statement caching here.
+     * @param connections The number of connections to spread operations
+     *                    across. Must be positive.
+     */
+    public ReactivePgStore(final PgConnectOptions options, final int connections) {
+        if(connections <= 0) {
+            throw new IllegalArgumentException("Connection count must be positive, but got " + connections);
+        }
+        this.options = options;
+        this.connections = connections;
+    }
+    
+    public static ReactivePgStore fromEnv() {
+        return new ReactivePgStore(System.getenv("POSTGRES_URL"), System.getenv("POSTGRES_USERNAME"),
+                System.getenv("POSTGRES_PASSWORD"));
+    }
+    
+    @Override
+    public synchronized void connect() {
+        if(vertx != null) {
+            return;
+        }
+        vertx = Vertx.vertx();
+        slots = new AtomicReferenceArray<>(connections);
+        logger.info("Connecting with up to {} pipelined connections.", connections);
+    }
+    
+    @Override
+    public synchronized void disconnect() {
+        if(vertx == null) {
+            return;
+        }
+        final AtomicReferenceArray<CompletableFuture<SqlConnection>> open = slots;
+        slots = null;
+        for(int i = 0; i < open.length(); i++) {
+            final CompletableFuture<SqlConnection> connection = open.get(i);
+            if(connection != null) {
+                connection.thenAccept(SqlConnection::close);
+            }
+        }
+        vertx.close();
+        vertx = null;
+        mappers.clear();
+    }
+    
+    public boolean isConnected() {
+        return vertx != null;
+    }
+    
+    public <T> boolean isMappedAsync(final Class<T> c) {
+        return mappers.containsKey(c);
+    }
+    
+    @Override
+    public <T> ReactivePgMapper<T> mapAsync(final Class<T> c) {
+        if(vertx == null) {
+            throw new IllegalStateException("Store isn't connected!");
+        }
+        // This should be safe
+        // If it's not, we REALLY screwed up...
+        //noinspection unchecked
+        return (ReactivePgMapper<T>) mappers.computeIfAbsent(c, k -> new ReactivePgMapper<>(this, c));
+    }
+    
+    /**
+     * Runs a single prepared statement.
+     */
+    CompletableFuture<RowSet<Row>> execute(final String sql, final Tuple params) {
+        return connection().thenCompose(c -> {
+            final CompletableFuture<RowSet<Row>> result = new CompletableFuture<>();
+            c.preparedQuery(sql).execute(params, complete(result));
+            return result;
+        });
+    }
+    
+    /**
+     * Runs a prepared statement once per tuple, pipelined on one connection.
+     * The result has one row set per tuple, chained with
+     * {@link RowSet#next()}.
+     */
+    CompletableFuture<RowSet<Row>> executeBatch(final String sql, final List<Tuple> params) {
+        return connection().thenCompose(c -> {
+            final CompletableFuture<RowSet<Row>> result = new CompletableFuture<>();
+            c.preparedQuery(sql).executeBatch(params, complete(result));
+            return result;
+        });
+    }
+    
+    /**
+     * Runs the statements one after another, ex. DDL.
+     */
+    CompletableFuture<Void> run(final List<String> statements) {
+        CompletableFuture<Void> result = CompletableFuture.completedFuture(null);
+        for(final String sql : statements) {
+            result = result.thenCompose(ignored -> connection().thenCompose(c -> {
+                final CompletableFuture<RowSet<Row>> done = new CompletableFuture<>();
+                c.query(sql).execute(complete(done));
+                return done;
+            })).thenApply(ignored -> null);
+        }
+        return result;
+    }
+    
+    private CompletableFuture<SqlConnection> connection() {
+        final AtomicReferenceArray<CompletableFuture<SqlConnection>> open = slots;
+        if(open == null) {
+            final CompletableFuture<SqlConnection> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalStateException("Store isn't connected!"));
+            return failed;
+        }
+        final int slot = Math.floorMod(nextConnection.getAndIncrement(), open.length());
+        while(true) {
+            final CompletableFuture<SqlConnection> current = open.get(slot);
+            if(current != null && !current.isCompletedExceptionally()) {
+                return current;
+            }
+            final CompletableFuture<SqlConnection> fresh = new CompletableFuture<>();
+            if(open.compareAndSet(slot, current, fresh)) {
+                PgConnection.connect(vertx, options, res -> {
+                    if(res.succeeded()) {
+                        final PgConnection connection = res.result();
+                        connection.closeHandler(ignored -> {
+                            logger.warn("Connection {} closed, reconnecting when it's next used.", slot);
+                            open.compareAndSet(slot, fresh, null);
+                        });
+                        fresh.complete(connection);
+                    } else {
+                        logger.error("Couldn't open connection {}:", slot, res.cause());
+                        fresh.completeExceptionally(res.cause());
+                    }
+                });
+                return fresh;
+            }
+        }
+    }
+    
+    private static <R> Handler<AsyncResult<R>> complete(final CompletableFuture<R> future) {
+        return res -> {
+            if(res.succeeded()) {
+                future.complete(res.result());
+            } else {
+                future.completeExceptionally(res.cause());
+            }
+        };
+    }
+}
@@ -0,0 +1,39 @@
+package gg.amy.pgorm;
+
+/**
+ * How far along a {@link ShardedPgStore} is with moving keys between shards.
+ * The phase is kept in the shard map, so every node using the shards goes
+ * through the same ones, and a rebalance that was interrupted can be picked
+ * up again by any node.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+public enum RebalancePhase {
+    /**
+     * Reads and writes go to the ring's shards. This is the default.
+     */
+    STABLE,
+    /**
+     * Writes to keys that are moving go to both their shard in the ring and
+     * their shard in the target ring; reads still only go to the ring.
+     */
+    DUAL_WRITE,
+    /**
+     * Like {@link #DUAL_WRITE}, and every moving row has been copied to its
+     * new shard.
+     */
+    BACKFILLED,
+    /**
+     * Reads and writes go by the new ring. Writes to keys that moved are
+     * still copied back to the shards they moved off, for nodes that haven't
+     * switched yet.
+     */
+    SWITCHED,
+    /**
+     * Every node has stopped writing by the old ring, and moved rows are
+     * being deleted from the shards they moved off. Queries still check
+     * which shard their rows belong on.
+     */
+    CLEANUP
+}
@@ -0,0 +1,21 @@
+package gg.amy.pgorm;
+
+/**
+ * How a {@link PgStore} picks which of its replicas a read goes to. Either
+ * way, only replicas that are up and not too far behind are picked; see
+ * {@link ReplicaConfig}.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+public enum ReplicaBalancing {
+    /**
+     * Take turns. This is the default.
+     */
+    ROUND_ROBIN,
+    /**
+     * Pick the replica with the fewest connections in use, for when some
+     * replicas are slower than others, or reads vary a lot in cost.
+     */
+    LEAST_LOADED
+}
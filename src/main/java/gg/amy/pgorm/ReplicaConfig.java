@@ -0,0 +1,51 @@
+package gg.amy.pgorm;
+
+import com.zaxxer.hikari.HikariConfig;
+import lombok.Builder;
+import lombok.Singular;
+import lombok.Value;
+
+import java.util.List;
+
+/**
+ * Configuration for the read replicas of a {@link PgStore}. See
+ * {@link PgStore#PgStore(HikariConfig, ReplicaConfig)}.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@Value
+@Builder
+public class ReplicaConfig {
+    /**
+     * The replicas' connection pools. They're made read-only, and don't fail
+     * to start if the replica is down; it's just left out until it's back.
+     */
+    @Singular
+    private List<HikariConfig> replicas;
+    @Builder.Default
+    private ReplicaBalancing balancing = ReplicaBalancing.ROUND_ROBIN;
+    /**
+     * Replicas further behind the primary than this many milliseconds aren't
+     * read from until they catch up.
+     */
+    @Builder.Default
+    private long maxLagMillis = 5_000L;
+    /**
+     * How often, in milliseconds, every replica is checked for being up and
+     * how far behind it is.
+     */
+    @Builder.Default
+    private long healthCheckIntervalMillis = 1_000L;
+    /**
+     * For how many milliseconds after writing something the same caller's
+     * reads go to the primary, so that it sees its own writes. At least
+     * {@link #getMaxLagMillis()} makes sure of that. {@code 0} turns it off.
+     */
+    @Builder.Default
+    private long readYourWritesMillis = 5_000L;
+    
+    public static ReplicaConfig none() {
+        return builder().build();
+    }
+}
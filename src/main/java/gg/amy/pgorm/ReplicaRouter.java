@@ -0,0 +1,259 @@
+package gg.amy.pgorm;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends a {@link PgStore}'s reads to its replicas. <p/>
+ * Every replica is checked every {@link ReplicaConfig#getHealthCheckIntervalMillis()}
+ * milliseconds. Replicas that can't be reached, or that are more than
+ * {@link ReplicaConfig#getMaxLagMillis()} behind the primary, are left out
+ * until a later check says otherwise; if every replica is left out, reads go
+ * to the primary. So are replicas that aren't streaming WAL from the primary,
+ * however recently they replayed something. <p/>
+ * Callers that just wrote something read from the primary for
+ * {@link ReplicaConfig#getReadYourWritesMillis()} afterwards. A caller is a
+ * thread, plus whatever {@link AsyncPgMapper} work it starts; see
+ * {@link #propagate(Executor)}.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+final class ReplicaRouter {
+    /**
+     * How far behind the primary the replica is, in milliseconds, or
+     * {@link #NOT_STREAMING} if it isn't streaming WAL from the primary, ex.
+     * because it lost its connection; it has nothing left to replay then, but
+     * falls further behind all the time. A streaming replica that has
+     * replayed everything it received isn't behind, even if nothing was
+     * written for a while. Users without <code>pg_read_all_stats</code>
+     * can't see the WAL receiver's status, only whether it's running.
+     */
+    private static final String LAG_SQL = "SELECT CASE WHEN NOT pg_is_in_recovery() THEN 0 "
+            + "WHEN NOT EXISTS (SELECT 1 FROM pg_stat_wal_receiver WHERE COALESCE(status, 'streaming') = 'streaming') THEN -1 "
+            + "WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 "
+            + "ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) END::bigint;";
+    private static final long NOT_STREAMING = -1L;
+    private final ReplicaConfig config;
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final AtomicInteger next = new AtomicInteger();
+    private final ThreadLocal<Session> sessions = ThreadLocal.withInitial(Session::new);
+    private volatile List<Replica> replicas = Collections.emptyList();
+    // Guarded by this
+    private ScheduledExecutorService checker;
+    
+    ReplicaRouter(final ReplicaConfig config) {
+        this.config = config;
+    }
+    
+    /**
+     * Starts the replicas' pools, and starts checking them. Reads go to the
+     * primary until a replica has passed its first check.
+     */
+    synchronized void start() {
+        if(config.getReplicas().isEmpty()) {
+            return;
+        }
+        final List<Replica> started = new ArrayList<>();
+        for(final HikariConfig replica : config.getReplicas()) {
+            replica.setReadOnly(true);
+            // A replica that's down shouldn't stop the store from starting
+            replica.setInitializationFailTimeout(-1L);
+            started.add(new Replica(new HikariDataSource(replica)));
+        }
+        replicas = started;
+        checker = Executors.newSingleThreadScheduledExecutor(PgStore.threadFactory("pgorm-replicas-"));
+        checker.scheduleWithFixedDelay(this::checkAll, 0L,
+                config.getHealthCheckIntervalMillis(), TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * @return A connection to a replica, or {@code null} if the read should
+     * go to the primary instead.
+     */
+    Connection connection() {
+        final List<Replica> current = replicas;
+        if(current.isEmpty() || pinned()) {
+            return null;
+        }
+        final Replica replica = pick(current);
+        if(replica == null) {
+            return null;
+        }
+        try {
+            return replica.pool.getConnection();
+        } catch(final SQLException e) {
+            // Don't wait for the next check to stop using it
+            replica.down(e);
+            return null;
+        }
+    }
+    
+    private Replica pick(final List<Replica> current) {
+        final int start = Math.floorMod(next.getAndIncrement(), current.size());
+        Replica picked = null;
+        int least = Integer.MAX_VALUE;
+        for(int i = 0; i < current.size(); i++) {
+            final Replica replica = current.get((start + i) % current.size());
+            if(!replica.usable) {
+                continue;
+            }
+            if(config.getBalancing() == ReplicaBalancing.ROUND_ROBIN) {
+                return replica;
+            }
+            final HikariPoolMXBean pool = replica.pool.getHikariPoolMXBean();
+            final int active = pool != null ? pool.getActiveConnections() : 0;
+            if(active < least) {
+                picked = replica;
+                least = active;
+            }
+        }
+        return picked;
+    }
+    
+    /**
+     * Sends the current caller's reads to the primary for a while. Called
+     * after every write.
+     */
+    void wrote() {
+        if(!replicas.isEmpty() && config.getReadYourWritesMillis() > 0L) {
+            pin(sessions.get());
+        }
+    }
+    
+    /**
+     * @return Sends the current caller's reads to the primary for a while
+     * when run, for writes that are made for it later on another thread, ex.
+     * by a {@link WriteBehindQueue}. Run it once the write is committed.
+     */
+    Runnable writer() {
+        if(replicas.isEmpty() || config.getReadYourWritesMillis() <= 0L) {
+            return () -> {
+            };
+        }
+        final Session session = sessions.get();
+        return () -> pin(session);
+    }
+    
+    private void pin(final Session session) {
+        session.pinnedUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getReadYourWritesMillis());
+    }
+    
+    /**
+     * @return Whether the current caller's reads go to the primary, because
+     * it wrote something recently.
+     */
+    boolean pinned() {
+        return config.getReadYourWritesMillis() > 0L && sessions.get().pinnedUntil - System.nanoTime() > 0L;
+    }
+    
+    /**
+     * @return An executor that runs work as part of the current caller, so
+     * that writes it makes pin the caller to the primary, and the caller's
+     * reads it makes see earlier writes.
+     */
+    Executor propagate(final Executor executor) {
+        if(replicas.isEmpty() || config.getReadYourWritesMillis() <= 0L) {
+            return executor;
+        }
+        final Session session = sessions.get();
+        return task -> executor.execute(() -> {
+            final Session previous = sessions.get();
+            sessions.set(session);
+            try {
+                task.run();
+            } finally {
+                sessions.set(previous);
+            }
+        });
+    }
+    
+    private void checkAll() {
+        for(final Replica replica : replicas) {
+            replica.check();
+        }
+    }
+    
+    /**
+     * Stops checking the replicas, and closes their pools. Called by
+     * {@link PgStore#disconnect()}.
+     */
+    synchronized void shutdown() {
+        if(checker != null) {
+            checker.shutdownNow();
+            checker = null;
+        }
+        replicas.forEach(replica -> replica.pool.close());
+        replicas = Collections.emptyList();
+    }
+    
+    /**
+     * When the caller last wrote something, shared with the work it hands
+     * off to other threads.
+     */
+    private static final class Session {
+        private volatile long pinnedUntil = System.nanoTime();
+    }
+    
+    private final class Replica {
+        private final HikariDataSource pool;
+        private volatile boolean usable;
+        
+        private Replica(final HikariDataSource pool) {
+            this.pool = pool;
+        }
+        
+        private void check() {
+            try(final Connection connection = pool.getConnection();
+                final PreparedStatement statement = connection.prepareStatement(LAG_SQL)) {
+                statement.setQueryTimeout((int) Math.max(1L, TimeUnit.MILLISECONDS.toSeconds(config.getHealthCheckIntervalMillis())));
+                final long lag;
+                try(final ResultSet resultSet = statement.executeQuery()) {
+                    resultSet.next();
+                    lag = resultSet.getLong(1);
+                }
+                if(lag == NOT_STREAMING) {
+                    if(usable) {
+                        logger.warn("Replica {} isn't streaming from the primary, not reading from it until it is.", pool.getJdbcUrl());
+                    }
+                    usable = false;
+                } else if(lag > config.getMaxLagMillis()) {
+                    if(usable) {
+                        logger.warn("Replica {} is {}ms behind, not reading from it until it catches up.", pool.getJdbcUrl(), lag);
+                    }
+                    usable = false;
+                } else {
+                    if(!usable) {
+                        logger.info("Reading from replica {}, {}ms behind.", pool.getJdbcUrl(), lag);
+                    }
+                    usable = true;
+                }
+            } catch(final SQLException | RuntimeException e) {
+                down(e);
+            }
+        }
+        
+        private void down(final Exception cause) {
+            if(usable) {
+                logger.warn("Replica {} is down, not reading from it until it's back:", pool.getJdbcUrl(), cause);
+            }
+            usable = false;
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package gg.amy.pgorm;
+
+import gg.amy.pgorm.EntityMetadata.IndexDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Creates the tables and indexes of a {@link PgStore}'s entity classes,
+ * according to its {@link SchemaMode}. <p/>
+ * The schema's tables, columns and indexes are read from
+ * <code>pg_catalog</code> in one query every time classes are mapped, and
+ * every class is diffed against that, so anything dropped since is created
+ * again. Only the DDL that's actually missing is run, and new tables are
+ * created with all their indexes in a single round trip. Missing indexes on
+ * existing tables are built <code>CONCURRENTLY</code>, one table at a time,
+ * but several tables in parallel; an index left invalid by a failed
+ * concurrent build is dropped and built again. Postgres can't build indexes
+ * on partitioned tables concurrently, so those are built normally. <p/>
+ * An index being built concurrently is invalid until it's done, so every
+ * node takes an advisory lock on the index's name before building it, and
+ * checks again once it has the lock. Only one node builds an index, and the
+ * others don't mistake its build for a failed one.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+final class SchemaBootstrap {
+    /**
+     * The most tables whose indexes are built at the same time. Each build
+     * holds a connection for as long as it runs.
+     */
+    static final int MAX_PARALLEL_INDEX_BUILDS = 4;
+    /**
+     * Tables, indexes and columns of the current schema. Index builds on the
+     * same table wait for each other anyway, so they're grouped per table.
+     */
+    private static final String CATALOG_SQL = "SELECT c.relname, c.relkind::text, COALESCE(i.indisvalid, TRUE), a.attname " +
+            "FROM pg_class c JOIN pg_namespace n ON n.oid = c.relnamespace " +
+            "LEFT JOIN pg_index i ON i.indexrelid = c.oid " +
+            "LEFT JOIN pg_attribute a ON a.attrelid = c.oid AND c.relkind IN ('r', 'p') AND a.attnum > 0 AND NOT a.attisdropped " +
+            "WHERE n.nspname = current_schema() AND c.relkind IN ('r', 'p', 'i', 'I');";
+    /**
+     * Whether an index exists in the current schema, and is valid.
+     */
+    private static final String INDEX_VALID_SQL = "SELECT i.indisvalid FROM pg_index i " +
+            "JOIN pg_class c ON c.oid = i.indexrelid JOIN pg_namespace n ON n.oid = c.relnamespace " +
+            "WHERE n.nspname = current_schema() AND c.relname = ?;";
+    /**
+     * The first key of the advisory locks taken on index names, so that they
+     * don't collide with an application's own advisory locks.
+     */
+    private static final int INDEX_LOCK_KEY = 0x70676f72;
+    /**
+     * How long to wait between attempts to take an index's lock, while
+     * another node is building it.
+     */
+    private static final long INDEX_LOCK_POLL_MILLIS = 500L;
+    /**
+     * Postgres cuts identifiers off at this many bytes.
+     */
+    private static final int MAX_IDENTIFIER_LENGTH = 63;
+    private final PgStore store;
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    // All guarded by this
+    private Map<String, Set<String>> columns;
+    private Map<String, Boolean> indexes;
+    private Set<String> partitioned;
+    /**
+     * Indexes being built right now, so that they aren't built twice.
+     */
+    private final Set<String> building = new HashSet<>();
+    /**
+     * Set while mapping classes that were just ensured, so that the catalog
+     * that was just read isn't read again for each of them.
+     */
+    private final ThreadLocal<Boolean> reusingCatalog = new ThreadLocal<>();
+    private ExecutorService builder;
+    
+    SchemaBootstrap(final PgStore store) {
+        this.store = store;
+    }
+    
+    /**
+     * Makes sure the tables and indexes of the given entities exist, as the
+     * store's {@link SchemaMode} says.
+     *
+     * @return A future that completes once every missing index has been
+     * built. Already complete unless the mode is
+     * {@link SchemaMode#CREATE_INDEXES_IN_BACKGROUND}.
+     *
+     * @throws IllegalStateException If the mode is {@link SchemaMode#VALIDATE}
+     *                               and anything is missing, or if creating
+     *                               anything failed.
+     */
+    CompletableFuture<Void> ensure(final Collection<EntityMetadata<?>> entities) {
+        final SchemaMode mode = store.getSchemaMode();
+        final List<String> missing = new ArrayList<>();
+        // Statements for new tables are run together, and their indexes are
+        // built straight away; there's nothing in them to block yet
+        final List<String> ddl = new ArrayList<>();
+        final Map<String, Map<String, IndexDefinition>> builds = new LinkedHashMap<>();
+        final Set<String> concurrently;
+        synchronized(this) {
+            if(columns == null || reusingCatalog.get() == null) {
+                loadCatalog();
+            }
+            for(final EntityMetadata<?> entity : entities) {
+                final String table = identifier(entity.getTableName());
+                final Set<String> tableColumns = columns.get(table);
+                if(tableColumns == null) {
+                    missing.add("table " + entity.getTableName());
+                    ddl.add(entity.createTableSql());
+                    ddl.addAll(entity.partitionSql());
+                    entity.indexes().forEach((name, index) -> ddl.add(index.sql(name, false)));
+                    continue;
+                }
+                if(entity.isPartitioned() && !partitioned.contains(table)) {
+                    throw new IllegalStateException("Table " + entity.getTableName() + " already exists, but isn't partitioned! "
+                            + "It has to be migrated to a partitioned table by hand.");
+                }
+                entity.addColumnSql().forEach((column, sql) -> {
+                    if(!tableColumns.contains(identifier(column))) {
+                        missing.add("column " + entity.getTableName() + '.' + column);
+                        ddl.add(sql);
+                    }
+                });
+                entity.indexes().forEach((name, definition) -> {
+                    final String index = identifier(name);
+                    final Boolean valid = indexes.get(index);
+                    if((valid == null || !valid) && !building.contains(index)) {
+                        missing.add((valid == null ? "index " : "invalid index ") + name);
+                        builds.computeIfAbsent(table, k -> new LinkedHashMap<>()).put(name, definition);
+                    }
+                });
+            }
+            if(missing.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            if(mode == SchemaMode.VALIDATE) {
+                throw new IllegalStateException("Schema is missing " + String.join(", ", missing) + '!');
+            }
+            if(!ddl.isEmpty()) {
+                // The driver sends all the statements in one round trip
+                store.sql(String.join("\n", ddl));
+                for(final EntityMetadata<?> entity : entities) {
+                    final String table = identifier(entity.getTableName());
+                    if(!columns.containsKey(table)) {
+                        columns.put(table, new HashSet<>());
+                        if(entity.isPartitioned()) {
+                            partitioned.add(table);
+                        }
+                        entity.indexes().keySet().forEach(name -> indexes.put(identifier(name), true));
+                    }
+                    entity.addColumnSql().keySet().forEach(column -> columns.get(table).add(identifier(column)));
+                }
+                logger.info("Ran {} DDL statements for {} entity classes.", ddl.size(), entities.size());
+            }
+            builds.values().forEach(tableBuilds -> tableBuilds.keySet().forEach(name -> building.add(identifier(name))));
+            concurrently = builds.keySet().stream().filter(table -> !partitioned.contains(table)).collect(Collectors.toSet());
+        }
+        if(builds.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        builds.forEach((table, tableBuilds) -> futures.add(CompletableFuture.runAsync(() -> {
+            // Try every index, even if one of them fails
+            RuntimeException failure = null;
+            for(final Map.Entry<String, IndexDefinition> build : tableBuilds.entrySet()) {
+                try {
+                    buildIndex(build.getKey(), build.getValue(), concurrently.contains(table));
+                } catch(final RuntimeException e) {
+                    if(failure == null) {
+                        failure = e;
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+            if(failure != null) {
+                throw failure;
+            }
+        }, builder())));
+        final CompletableFuture<Void> done = CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+        if(mode == SchemaMode.CREATE_INDEXES_IN_BACKGROUND) {
+            done.whenComplete((ignored, t) -> {
+                if(t != null) {
+                    logger.error("Building indexes in the background failed:", t);
+                }
+            });
+            return done;
+        }
+        try {
+            done.join();
+        } catch(final CompletionException e) {
+            throw new IllegalStateException("Couldn't build indexes", e.getCause());
+        }
+        return done;
+    }
+    
+    private void buildIndex(final String name, final IndexDefinition definition, final boolean concurrently) {
+        final String index = identifier(name);
+        try {
+            // CONCURRENTLY can't run in a transaction, so each statement has
+            // to go on its own, and the lock is held by the session instead
+            store.sql(connection -> {
+                lockIndex(connection, name);
+                try {
+                    // Another node may have built it while this one waited
+                    final Boolean valid = indexValid(connection, index);
+                    if(valid != null && valid) {
+                        logger.info("Index {} was built by another node.", name);
+                        return;
+                    }
+                    final long start = System.nanoTime();
+                    try(final Statement statement = connection.createStatement()) {
+                        if(valid != null) {
+                            logger.warn("Index {} is invalid, probably from a failed concurrent build. Rebuilding it.", name);
+                            statement.execute("DROP INDEX " + (concurrently ? "CONCURRENTLY " : "") + "IF EXISTS " + name + ';');
+                        }
+                        logger.info(concurrently ? "Building index {} concurrently..." : "Building index {}...", name);
+                        statement.execute(definition.sql(name, concurrently));
+                    }
+                    logger.info("Built index {} in {}ms.", name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                } finally {
+                    try(final PreparedStatement unlock = connection.prepareStatement("SELECT pg_advisory_unlock(?, hashtext(?));")) {
+                        unlock.setInt(1, INDEX_LOCK_KEY);
+                        unlock.setString(2, name);
+                        unlock.execute();
+                    }
+                }
+            });
+            synchronized(this) {
+                indexes.put(index, true);
+            }
+        } finally {
+            synchronized(this) {
+                building.remove(index);
+            }
+        }
+    }
+    
+    /**
+     * Takes the session's advisory lock on the index. This polls instead of
+     * waiting in <code>pg_advisory_lock</code>, since a session waiting in a
+     * statement holds a snapshot, and a concurrent build waits for every
+     * snapshot older than its own.
+     */
+    private void lockIndex(final Connection connection, final String name) throws SQLException {
+        boolean waited = false;
+        try(final PreparedStatement lock = connection.prepareStatement("SELECT pg_try_advisory_lock(?, hashtext(?));")) {
+            lock.setInt(1, INDEX_LOCK_KEY);
+            lock.setString(2, name);
+            while(true) {
+                try(final ResultSet resultSet = lock.executeQuery()) {
+                    if(resultSet.next() && resultSet.getBoolean(1)) {
+                        return;
+                    }
+                }
+                if(!waited) {
+                    logger.info("Index {} is being built by another node, waiting for it to finish...", name);
+                    waited = true;
+                }
+                try {
+                    Thread.sleep(INDEX_LOCK_POLL_MILLIS);
+                } catch(final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting to build index " + name, e);
+                }
+            }
+        }
+    }
+    
+    /**
+     * @return Whether the index is valid, or {@code null} if it doesn't
+     * exist.
+     */
+    private static Boolean indexValid(final Connection connection, final String index) throws SQLException {
+        try(final PreparedStatement statement = connection.prepareStatement(INDEX_VALID_SQL)) {
+            statement.setString(1, index);
+            try(final ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getBoolean(1) : null;
+            }
+        }
+    }
+    
+    /**
+     * Reads the schema again, so that anything dropped since the last time is
+     * noticed.
+     */
+    private void loadCatalog() {
+        final Map<String, Set<String>> tables = new HashMap<>();
+        final Map<String, Boolean> catalogIndexes = new HashMap<>();
+        final Set<String> partitionedTables = new HashSet<>();
+        store.sql(CATALOG_SQL, s -> {
+            try(final ResultSet resultSet = s.executeQuery()) {
+                while(resultSet.next()) {
+                    final String name = resultSet.getString(1);
+                    final String kind = resultSet.getString(2);
+                    if("i".equals(kind) || "I".equals(kind)) {
+                        catalogIndexes.put(name, resultSet.getBoolean(3));
+                    } else {
+                        if("p".equals(kind)) {
+                            partitionedTables.add(name);
+                        }
+                        final Set<String> tableColumns = tables.computeIfAbsent(name, k -> new HashSet<>());
+                        final String column = resultSet.getString(4);
+                        if(column != null) {
+                            tableColumns.add(column);
+                        }
+                    }
+                }
+            }
+        });
+        columns = tables;
+        indexes = catalogIndexes;
+        partitioned = partitionedTables;
+        logger.debug("Read {} tables and {} indexes from the catalog.", tables.size(), catalogIndexes.size());
+    }
+    
+    /**
+     * Runs the work without reading the catalog again, ex. to map classes
+     * that were just ensured together.
+     */
+    void reusingCatalog(final Runnable work) {
+        reusingCatalog.set(true);
+        try {
+            work.run();
+        } finally {
+            reusingCatalog.remove();
+        }
+    }
+    
+    private synchronized ExecutorService builder() {
+        if(builder == null) {
+            builder = Executors.newFixedThreadPool(MAX_PARALLEL_INDEX_BUILDS, PgStore.threadFactory("pgorm-schema-"));
+        }
+        return builder;
+    }
+    
+    /**
+     * Forgets everything read from the catalog, and stops any index builds.
+     * Called by {@link PgStore#disconnect()}.
+     */
+    synchronized void shutdown() {
+        columns = null;
+        indexes = null;
+        partitioned = null;
+        building.clear();
+        if(builder != null) {
+            // An interrupted build leaves an invalid index behind, which is
+            // rebuilt the next time the class is mapped
+            builder.shutdownNow();
+            builder = null;
+        }
+    }
+    
+    /**
+     * @return The name as it appears in the catalog: unquoted identifiers are
+     * folded to lower case, and cut off if they're too long.
+     */
+    private static String identifier(final String name) {
+        final String folded = name.toLowerCase(Locale.ROOT);
+        return folded.length() > MAX_IDENTIFIER_LENGTH ? folded.substring(0, MAX_IDENTIFIER_LENGTH) : folded;
+    }
+}
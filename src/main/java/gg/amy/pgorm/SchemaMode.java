@@ -0,0 +1,30 @@
+package gg.amy.pgorm;
+
+/**
+ * What a {@link PgStore} does about the tables and indexes of the entity
+ * classes it maps. Either way, the database's catalog is only read once, and
+ * nothing that already exists is created again.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+public enum SchemaMode {
+    /**
+     * Create whatever is missing before the class is mapped. Missing indexes
+     * on existing tables are built <code>CONCURRENTLY</code>, so writes to
+     * the table aren't blocked while they're built. This is the default.
+     */
+    CREATE,
+    /**
+     * Create missing tables before the class is mapped, but build missing
+     * indexes on existing tables in the background. Queries may be slow until
+     * they're done.
+     */
+    CREATE_INDEXES_IN_BACKGROUND,
+    /**
+     * Never run any DDL. Mapping a class whose table, version column or
+     * indexes are missing fails instead. For when the schema is managed by
+     * migrations.
+     */
+    VALIDATE
+}
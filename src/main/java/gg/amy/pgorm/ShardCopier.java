@@ -0,0 +1,221 @@
+package gg.amy.pgorm;
+
+import gg.amy.pgorm.EntityMetadata.CompressedField;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Copies the rows of an entity class's table from one shard of a
+ * {@link ShardedPgStore} to another, for rebalancing. <p/>
+ * Rows are copied as they're stored, column for column, so versions and
+ * {@link gg.amy.pgorm.annotations.Compressed} fields come across unchanged,
+ * and nothing is decoded into entities on the way.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+final class ShardCopier<T> {
+    /**
+     * The current transaction's ID, as the rows it writes have it in xmin.
+     */
+    private static final String XID_SQL = "SELECT (txid_current() % 4294967296)::text;";
+    private final EntityMetadata<T> metadata;
+    private final String selectSql;
+    /**
+     * Only writes rows the target doesn't have yet, for backfilling, where
+     * anything the target already has was dual-written and so is newer. A
+     * dual-write that failed halfway is copied again with {@link #upsertSql}
+     * before the rebalance moves on; see {@link ShardMap}.
+     */
+    private final String insertSql;
+    /**
+     * Overwrites whatever the target has, for dual-writes.
+     */
+    private final String upsertSql;
+    private final String deleteSql;
+    /**
+     * Deletes the rows with the given keys only if they haven't been written
+     * since the given transaction wrote them.
+     */
+    private final String deleteUnchangedSql;
+    private final String existingSql;
+    private final String keysSql;
+    
+    ShardCopier(final EntityMetadata<T> metadata) {
+        this.metadata = metadata;
+        final String table = metadata.getTableName();
+        final String pk = metadata.getPrimaryKeyName();
+        final String version = metadata.getVersionColumn();
+        final String compressed = metadata.compressedColumns("", "");
+        selectSql = "SELECT " + metadata.selectColumns() + compressed + " FROM " + table + " WHERE " + pk + " = ANY(?);";
+        final String partitionKey = metadata.partitionKeyOf("v.data");
+        final String insert = "INSERT INTO " + table + " (" + pk + ", data" + (version != null ? ", " + version : "") + compressed
+                + (partitionKey != null ? ", " + metadata.getPartitionColumn().getName() : "") + ") "
+                + "SELECT v.*" + (partitionKey != null ? ", " + partitionKey : "")
+                + " FROM (VALUES (?::" + metadata.getPkSqlType() + ", convert_from(?, 'UTF8')::jsonb" + (version != null ? ", ?::bigint" : "")
+                + metadata.compressedParameters("?", "::bytea") + ")) AS v (pk, data" + (version != null ? ", version" : "") + compressed + ") "
+                + "ON CONFLICT (" + metadata.getConflictTarget() + ") ";
+        insertSql = insert + "DO NOTHING;";
+        final StringBuilder updates = new StringBuilder("data = EXCLUDED.data");
+        if(version != null) {
+            updates.append(", ").append(version).append(" = EXCLUDED.").append(version);
+        }
+        for(final CompressedField field : metadata.getCompressedFields().values()) {
+            updates.append(", ").append(field.getColumn()).append(" = EXCLUDED.").append(field.getColumn());
+        }
+        upsertSql = insert + "DO UPDATE SET " + updates + ';';
+        deleteSql = "DELETE FROM " + table + " WHERE " + pk + " = ANY(?);";
+        deleteUnchangedSql = "DELETE FROM " + table + " WHERE " + pk + " = ANY(?) AND xmin::text = ?;";
+        existingSql = "SELECT " + pk + " FROM " + table + " WHERE " + pk + " = ANY(?);";
+        keysSql = "SELECT " + pk + " FROM " + table + ';';
+    }
+    
+    /**
+     * Copies the rows with the given keys. Keys the source doesn't have
+     * (any more) are deleted from the target when overwriting. <p/>
+     * A row can be deleted from both shards after it's read from the source,
+     * but before it's written to the target, which would bring it back on the
+     * target. So once the target has committed, the source is checked again,
+     * and rows it no longer has are deleted from the target, unless they've
+     * been written again since the copy wrote them.
+     *
+     * @param overwrite Whether to overwrite rows the target already has.
+     *
+     * @return The number of rows written.
+     */
+    int copy(final PgMapper<T> from, final PgMapper<T> to, final List<?> pks, final boolean overwrite) {
+        if(pks.isEmpty()) {
+            return 0;
+        }
+        final List<Object[]> rows = new ArrayList<>(pks.size());
+        final int columns = 2 + (metadata.getVersionColumn() != null ? 1 : 0) + metadata.getCompressedFields().size();
+        // Straight from the primary, which replicas might be behind
+        from.getStore().sql(c -> {
+            try(final PreparedStatement s = c.prepareStatement(selectSql)) {
+                s.setArray(1, c.createArrayOf(metadata.getPkArrayType(), pks.toArray()));
+                try(final ResultSet resultSet = s.executeQuery()) {
+                    while(resultSet.next()) {
+                        final Object[] row = new Object[columns];
+                        row[0] = resultSet.getObject(1);
+                        row[1] = resultSet.getBytes(2);
+                        for(int i = 2; i < columns; i++) {
+                            row[i] = i == 2 && metadata.getVersionColumn() != null ? resultSet.getLong(i + 1) : resultSet.getBytes(i + 1);
+                        }
+                        rows.add(row);
+                    }
+                }
+            }
+        });
+        final Set<String> found = new HashSet<>();
+        rows.forEach(row -> found.add(String.valueOf(row[0])));
+        final List<Object> missing = new ArrayList<>();
+        for(final Object pk : pks) {
+            if(!found.contains(String.valueOf(pk))) {
+                missing.add(pk);
+            }
+        }
+        final String[] xid = {null};
+        to.getStore().sql(c -> {
+            final boolean autoCommit = c.getAutoCommit();
+            c.setAutoCommit(false);
+            try {
+                if(!rows.isEmpty()) {
+                    try(final PreparedStatement s = c.prepareStatement(overwrite ? upsertSql : insertSql)) {
+                        for(final Object[] row : rows) {
+                            for(int i = 0; i < row.length; i++) {
+                                s.setObject(i + 1, row[i]);
+                            }
+                            s.addBatch();
+                        }
+                        s.executeBatch();
+                    }
+                    // What the rows' xmin is, if nothing writes them again
+                    try(final PreparedStatement s = c.prepareStatement(XID_SQL);
+                        final ResultSet resultSet = s.executeQuery()) {
+                        resultSet.next();
+                        xid[0] = resultSet.getString(1);
+                    }
+                }
+                // A backfill's missing keys were dual-deleted, and could be
+                // saved again by now
+                if(overwrite && !missing.isEmpty()) {
+                    delete(c, missing);
+                }
+                c.commit();
+            } catch(final SQLException | RuntimeException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(autoCommit);
+            }
+        });
+        if(!rows.isEmpty()) {
+            final List<Object> copied = new ArrayList<>(rows.size());
+            rows.forEach(row -> copied.add(row[0]));
+            final Set<String> existing = new HashSet<>();
+            from.getStore().sql(existingSql, s -> {
+                s.setArray(1, s.getConnection().createArrayOf(metadata.getPkArrayType(), copied.toArray()));
+                try(final ResultSet resultSet = s.executeQuery()) {
+                    while(resultSet.next()) {
+                        existing.add(String.valueOf(resultSet.getObject(1)));
+                    }
+                }
+            });
+            final List<Object> deleted = new ArrayList<>();
+            for(final Object pk : copied) {
+                if(!existing.contains(String.valueOf(pk))) {
+                    deleted.add(pk);
+                }
+            }
+            if(!deleted.isEmpty()) {
+                to.getStore().sql(deleteUnchangedSql, s -> {
+                    s.setArray(1, s.getConnection().createArrayOf(metadata.getPkArrayType(), deleted.toArray()));
+                    s.setString(2, xid[0]);
+                    s.execute();
+                });
+            }
+        }
+        final EntityCache<T> cache = to.getCache();
+        if(cache != null) {
+            pks.forEach(cache::invalidate);
+        }
+        return rows.size();
+    }
+    
+    /**
+     * Deletes the rows with the given keys.
+     */
+    void delete(final PgMapper<T> mapper, final List<?> pks) {
+        if(pks.isEmpty()) {
+            return;
+        }
+        mapper.getStore().sql(c -> delete(c, pks));
+        final EntityCache<T> cache = mapper.getCache();
+        if(cache != null) {
+            pks.forEach(cache::invalidate);
+        }
+    }
+    
+    private void delete(final Connection c, final List<?> pks) throws SQLException {
+        try(final PreparedStatement s = c.prepareStatement(deleteSql)) {
+            s.setArray(1, c.createArrayOf(metadata.getPkArrayType(), pks.toArray()));
+            s.execute();
+        }
+    }
+    
+    /**
+     * @return Every key in the mapper's table. Has to be closed.
+     */
+    Stream<Object> keys(final PgMapper<T> mapper) {
+        return mapper.getStore().stream(keysSql, s -> {
+        }, mapper.getFetchSize(), resultSet -> resultSet.getObject(1));
+    }
+}
@@ -0,0 +1,280 @@
+package gg.amy.pgorm;
+
+import lombok.Value;
+
+import java.sql.Array;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a {@link ShardedPgStore}'s ring, target ring and
+ * {@link RebalancePhase} in a table on its coordinator, along with which
+ * version of them every node is routing by, so that a rebalance can wait for
+ * every node to catch up before it moves on. <p/>
+ * Every change bumps the map's epoch, and is only made if the epoch is still
+ * the one the change was based on, so two nodes can't rebalance at once. <p/>
+ * Dual-writes record the keys they're about to copy here before they write
+ * anything, and clear them once the copy is done, so keys whose copy failed,
+ * or whose writer died halfway, can be copied again before the rebalance
+ * relies on them.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+final class ShardMap {
+    private static final String CREATE_MAP_SQL = "CREATE TABLE IF NOT EXISTS pgorm_shard_map (name TEXT PRIMARY KEY, "
+            + "ring TEXT[] NOT NULL, ring_virtual_nodes INT NOT NULL, target TEXT[], target_virtual_nodes INT, "
+            + "phase TEXT NOT NULL, epoch BIGINT NOT NULL);";
+    private static final String CREATE_NODES_SQL = "CREATE TABLE IF NOT EXISTS pgorm_shard_nodes (name TEXT NOT NULL, "
+            + "node TEXT NOT NULL, epoch BIGINT NOT NULL, seen_at TIMESTAMPTZ NOT NULL, PRIMARY KEY (name, node));";
+    private static final String INSERT_SQL = "INSERT INTO pgorm_shard_map (name, ring, ring_virtual_nodes, phase, epoch) "
+            + "VALUES (?, ?, ?, 'STABLE', 0) ON CONFLICT (name) DO NOTHING;";
+    private static final String LOAD_SQL = "SELECT ring, ring_virtual_nodes, target, target_virtual_nodes, phase, epoch "
+            + "FROM pgorm_shard_map WHERE name = ?;";
+    private static final String UPDATE_SQL = "UPDATE pgorm_shard_map SET ring = ?, ring_virtual_nodes = ?, target = ?, "
+            + "target_virtual_nodes = ?, phase = ?, epoch = epoch + 1 WHERE name = ? AND epoch = ?;";
+    private static final String ACK_SQL = "INSERT INTO pgorm_shard_nodes (name, node, epoch, seen_at) VALUES (?, ?, ?, now()) "
+            + "ON CONFLICT (name, node) DO UPDATE SET epoch = EXCLUDED.epoch, seen_at = EXCLUDED.seen_at;";
+    private static final String LAGGING_SQL = "SELECT node FROM pgorm_shard_nodes WHERE name = ? AND epoch < ? "
+            + "AND seen_at > now() - ? * INTERVAL '1 millisecond' ORDER BY node;";
+    private static final String FORGET_SQL = "DELETE FROM pgorm_shard_nodes WHERE name = ? AND node = ?;";
+    private static final String CREATE_COPIES_SQL = "CREATE TABLE IF NOT EXISTS pgorm_shard_copies (id BIGSERIAL PRIMARY KEY, "
+            + "name TEXT NOT NULL, table_name TEXT NOT NULL, pk TEXT NOT NULL, created_at TIMESTAMPTZ NOT NULL DEFAULT now());";
+    private static final String MARK_SQL = "INSERT INTO pgorm_shard_copies (name, table_name, pk) SELECT ?, ?, unnest(?::text[]) RETURNING id;";
+    private static final String CLEAR_SQL = "DELETE FROM pgorm_shard_copies WHERE id = ANY(?);";
+    private static final String CLEAR_ALL_SQL = "DELETE FROM pgorm_shard_copies WHERE name = ?;";
+    private static final String STALE_SQL = "SELECT id, pk FROM pgorm_shard_copies WHERE name = ? AND table_name = ? "
+            + "AND created_at < now() - ? * INTERVAL '1 millisecond' ORDER BY id;";
+    private static final String LATEST_SQL = "SELECT COALESCE(max(id), 0) FROM pgorm_shard_copies WHERE name = ?;";
+    private static final String PENDING_SQL = "SELECT count(*) FROM pgorm_shard_copies WHERE name = ? AND id <= ?;";
+    private final PgStore coordinator;
+    private final String name;
+    
+    ShardMap(final PgStore coordinator, final String name) {
+        this.coordinator = coordinator;
+        this.name = name;
+    }
+    
+    /**
+     * Creates the tables, and the map with the given ring if it doesn't
+     * exist yet.
+     */
+    void create(final ShardRing ring) {
+        coordinator.sql(CREATE_MAP_SQL);
+        coordinator.sql(CREATE_NODES_SQL);
+        coordinator.sql(CREATE_COPIES_SQL);
+        coordinator.sql(INSERT_SQL, s -> {
+            s.setString(1, name);
+            s.setArray(2, s.getConnection().createArrayOf("text", ring.getShards().toArray()));
+            s.setInt(3, ring.getVirtualNodes());
+            s.execute();
+        });
+    }
+    
+    State load() {
+        final State[] state = {null};
+        coordinator.sql(LOAD_SQL, s -> {
+            s.setString(1, name);
+            try(final ResultSet resultSet = s.executeQuery()) {
+                if(!resultSet.next()) {
+                    throw new IllegalStateException("Shard map " + name + " doesn't exist!");
+                }
+                state[0] = new State(ring(resultSet.getArray(1), resultSet.getInt(2)), ring(resultSet.getArray(3), resultSet.getInt(4)),
+                        RebalancePhase.valueOf(resultSet.getString(5)), resultSet.getLong(6));
+            }
+        });
+        return state[0];
+    }
+    
+    /**
+     * Moves the map on from the given state.
+     *
+     * @return The new state.
+     *
+     * @throws IllegalStateException If the map was changed since the given
+     *                               state was read, ex. by another node.
+     */
+    State update(final State from, final ShardRing ring, final ShardRing target, final RebalancePhase phase) {
+        coordinator.sql(UPDATE_SQL, s -> {
+            s.setArray(1, s.getConnection().createArrayOf("text", ring.getShards().toArray()));
+            s.setInt(2, ring.getVirtualNodes());
+            if(target != null) {
+                s.setArray(3, s.getConnection().createArrayOf("text", target.getShards().toArray()));
+                s.setInt(4, target.getVirtualNodes());
+            } else {
+                s.setNull(3, Types.ARRAY);
+                s.setNull(4, Types.INTEGER);
+            }
+            s.setString(5, phase.name());
+            s.setString(6, name);
+            s.setLong(7, from.getEpoch());
+            if(s.executeUpdate() == 0) {
+                throw new IllegalStateException("Shard map " + name + " changed since epoch " + from.getEpoch()
+                        + "; is another node rebalancing?");
+            }
+        });
+        return new State(ring, target, phase, from.getEpoch() + 1);
+    }
+    
+    /**
+     * Records that the node is routing by the given epoch.
+     */
+    void acknowledge(final String node, final long epoch) {
+        coordinator.sql(ACK_SQL, s -> {
+            s.setString(1, name);
+            s.setString(2, node);
+            s.setLong(3, epoch);
+            s.execute();
+        });
+    }
+    
+    /**
+     * @return The nodes that checked in within the timeout, but are still
+     * routing by an earlier epoch.
+     */
+    List<String> lagging(final long epoch, final long nodeTimeoutMillis) {
+        final List<String> nodes = new ArrayList<>();
+        coordinator.sql(LAGGING_SQL, s -> {
+            s.setString(1, name);
+            s.setLong(2, epoch);
+            s.setLong(3, nodeTimeoutMillis);
+            try(final ResultSet resultSet = s.executeQuery()) {
+                while(resultSet.next()) {
+                    nodes.add(resultSet.getString(1));
+                }
+            }
+        });
+        return nodes;
+    }
+    
+    /**
+     * Stops waiting for a node that's going away.
+     */
+    void forget(final String node) {
+        coordinator.sql(FORGET_SQL, s -> {
+            s.setString(1, name);
+            s.setString(2, node);
+            s.execute();
+        });
+    }
+    
+    /**
+     * Records that the keys of the table are about to be dual-written.
+     *
+     * @return The records' IDs, to {@link #clearCopies(List) clear} them
+     * once the keys have been copied.
+     */
+    List<Long> markCopies(final String table, final Collection<?> pks) {
+        final List<Long> ids = new ArrayList<>(pks.size());
+        if(pks.isEmpty()) {
+            return ids;
+        }
+        final List<String> keys = new ArrayList<>(pks.size());
+        pks.forEach(pk -> keys.add(String.valueOf(pk)));
+        coordinator.sql(MARK_SQL, s -> {
+            s.setString(1, name);
+            s.setString(2, table);
+            s.setArray(3, s.getConnection().createArrayOf("text", keys.toArray()));
+            try(final ResultSet resultSet = s.executeQuery()) {
+                while(resultSet.next()) {
+                    ids.add(resultSet.getLong(1));
+                }
+            }
+        });
+        return ids;
+    }
+    
+    void clearCopies(final List<Long> ids) {
+        if(ids.isEmpty()) {
+            return;
+        }
+        coordinator.sql(CLEAR_SQL, s -> {
+            s.setArray(1, s.getConnection().createArrayOf("int8", ids.toArray()));
+            s.execute();
+        });
+    }
+    
+    /**
+     * Forgets every recorded dual-write, once nothing routes by the ring
+     * they were copying to any more.
+     */
+    void clearAllCopies() {
+        coordinator.sql(CLEAR_ALL_SQL, s -> {
+            s.setString(1, name);
+            s.execute();
+        });
+    }
+    
+    /**
+     * @return The dual-writes to the table that were recorded longer ago
+     * than the given time, by ID, so their writer has either failed or given
+     * up. Their keys are only strings, as every node agrees where they live.
+     */
+    Map<Long, String> staleCopies(final String table, final long olderThanMillis) {
+        final Map<Long, String> copies = new LinkedHashMap<>();
+        coordinator.sql(STALE_SQL, s -> {
+            s.setString(1, name);
+            s.setString(2, table);
+            s.setLong(3, olderThanMillis);
+            try(final ResultSet resultSet = s.executeQuery()) {
+                while(resultSet.next()) {
+                    copies.put(resultSet.getLong(1), resultSet.getString(2));
+                }
+            }
+        });
+        return copies;
+    }
+    
+    /**
+     * @return The ID of the last dual-write recorded so far, or {@code 0}.
+     */
+    long latestCopy() {
+        final long[] latest = {0L};
+        coordinator.sql(LATEST_SQL, s -> {
+            s.setString(1, name);
+            try(final ResultSet resultSet = s.executeQuery()) {
+                resultSet.next();
+                latest[0] = resultSet.getLong(1);
+            }
+        });
+        return latest[0];
+    }
+    
+    /**
+     * @return How many dual-writes up to the given ID haven't been cleared.
+     */
+    long pendingCopies(final long upTo) {
+        final long[] pending = {0L};
+        coordinator.sql(PENDING_SQL, s -> {
+            s.setString(1, name);
+            s.setLong(2, upTo);
+            try(final ResultSet resultSet = s.executeQuery()) {
+                resultSet.next();
+                pending[0] = resultSet.getLong(1);
+            }
+        });
+        return pending[0];
+    }
+    
+    private static ShardRing ring(final Array shards, final int virtualNodes) throws SQLException {
+        return shards != null ? new ShardRing(Arrays.asList((String[]) shards.getArray()), virtualNodes) : null;
+    }
+    
+    @Value
+    static class State {
+        private ShardRing ring;
+        /**
+         * {@code null} unless moving keys are being written to two shards.
+         */
+        private ShardRing target;
+        private RebalancePhase phase;
+        private long epoch;
+    }
+}
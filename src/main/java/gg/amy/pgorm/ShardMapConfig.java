@@ -0,0 +1,54 @@
+package gg.amy.pgorm;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * Configuration for where and how a {@link ShardedPgStore} keeps its shard
+ * map, the ring and {@link RebalancePhase} that every node using the shards
+ * routes by. See
+ * {@link ShardedPgStore#ShardedPgStore(java.util.Map, ShardRing, ShardMapConfig)}.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@Value
+@Builder
+public class ShardMapConfig {
+    /**
+     * The store the shard map is kept in. {@code null} to use the shard with
+     * the first name, in which case that shard mustn't ever be removed.
+     */
+    private PgStore coordinator;
+    /**
+     * Tells apart the shard maps of sharded stores that share a coordinator.
+     */
+    @Builder.Default
+    private String name = "default";
+    /**
+     * How often, in milliseconds, every node reads the shard map, and tells
+     * the others which version of it it's routing by.
+     */
+    @Builder.Default
+    private long syncIntervalMillis = 1_000L;
+    /**
+     * Nodes that haven't checked in for this many milliseconds are assumed
+     * to be gone, and aren't waited for. That's only safe because a node
+     * fences itself: once it hasn't read the shard map for this long, ex.
+     * after a long GC pause or losing the coordinator, its writes fail until
+     * it has read it again. A write that has already been routed isn't
+     * stopped, so this should be well above how long a write can take.
+     */
+    @Builder.Default
+    private long nodeTimeoutMillis = 10_000L;
+    /**
+     * How long, in milliseconds, a rebalance waits for every node to catch up
+     * with the shard map before it moves on to its next phase.
+     */
+    @Builder.Default
+    private long switchTimeoutMillis = 60_000L;
+    
+    public static ShardMapConfig defaults() {
+        return builder().build();
+    }
+}
@@ -0,0 +1,117 @@
+package gg.amy.pgorm;
+
+import lombok.Getter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Decides which shard of a {@link ShardedPgStore} every primary key lives on,
+ * with a consistent hash ring. <p/>
+ * Every shard is put on the ring {@link #getVirtualNodes()} times, and a key
+ * belongs to the first shard after the key's hash. Adding a shard only moves
+ * the keys that the new shard takes over, about <code>1 / shards</code> of
+ * them, and removing one only moves its own keys. <p/>
+ * Keys are hashed by their string form, with a hash that doesn't depend on
+ * the JVM, so every node agrees on where a key lives. Rings are immutable.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class ShardRing {
+    /**
+     * Enough points per shard for keys to be spread within about 10% of
+     * evenly.
+     */
+    public static final int DEFAULT_VIRTUAL_NODES = 256;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    @Getter
+    private final Set<String> shards;
+    @Getter
+    private final int virtualNodes;
+    private final NavigableMap<Long, String> ring = new TreeMap<>();
+    
+    public ShardRing(final Collection<String> shards) {
+        this(shards, DEFAULT_VIRTUAL_NODES);
+    }
+    
+    public ShardRing(final Collection<String> shards, final int virtualNodes) {
+        if(shards.isEmpty()) {
+            throw new IllegalArgumentException("A shard ring needs at least one shard!");
+        }
+        if(virtualNodes <= 0) {
+            throw new IllegalArgumentException("Virtual nodes must be positive, but got " + virtualNodes);
+        }
+        this.shards = Collections.unmodifiableSet(new LinkedHashSet<>(shards));
+        this.virtualNodes = virtualNodes;
+        for(final String shard : this.shards) {
+            for(int i = 0; i < virtualNodes; i++) {
+                // On a collision, the first shard in order keeps the point,
+                // whatever order the ring was built in
+                final long point = hash(shard + '#' + i);
+                final String existing = ring.get(point);
+                if(existing == null || existing.compareTo(shard) > 0) {
+                    ring.put(point, shard);
+                }
+            }
+        }
+    }
+    
+    /**
+     * @return The shard the key lives on.
+     */
+    public String shardFor(final Object pk) {
+        final Map.Entry<Long, String> entry = ring.ceilingEntry(hash(String.valueOf(pk)));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+    
+    /**
+     * @return A ring with the shard added, to rebalance onto.
+     */
+    public ShardRing withShard(final String shard) {
+        final Set<String> more = new LinkedHashSet<>(shards);
+        more.add(shard);
+        return new ShardRing(more, virtualNodes);
+    }
+    
+    /**
+     * @return A ring without the shard, to rebalance onto before the shard
+     * is taken away.
+     */
+    public ShardRing withoutShard(final String shard) {
+        final Set<String> fewer = new LinkedHashSet<>(shards);
+        fewer.remove(shard);
+        return new ShardRing(fewer, virtualNodes);
+    }
+    
+    /**
+     * 64-bit FNV-1a, with MurmurHash3's finalizer so that similar keys still
+     * land far apart on the ring.
+     */
+    static long hash(final String key) {
+        long hash = FNV_OFFSET_BASIS;
+        for(final byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+    
+    @Override
+    public String toString() {
+        return "ShardRing(shards=" + shards + ", virtualNodes=" + virtualNodes + ')';
+    }
+}
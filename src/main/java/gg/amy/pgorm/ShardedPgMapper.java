@@ -0,0 +1,460 @@
+package gg.amy.pgorm;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Maps an entity class for a {@link ShardedPgStore}, with a {@link PgMapper}
+ * on every shard. <p/>
+ * Operations on a single key go to the shard the key lives on. Operations on
+ * many keys are split up by shard, and run on all of them at once. Queries
+ * run on every shard at once, and their results are merged; rows are only
+ * taken from the shard they belong on, so rows copied by a rebalance that
+ * isn't done yet don't show up twice.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class ShardedPgMapper<T> {
+    /**
+     * The most keys copied to another shard in one go.
+     */
+    private static final int COPY_CHUNK_SIZE = 500;
+    private final ShardedPgStore store;
+    @Getter
+    private final Class<T> type;
+    private final Map<String, PgMapper<T>> mappers = new ConcurrentHashMap<>();
+    private final EntityMetadata<T> metadata;
+    private final ShardCopier<T> copier;
+    
+    ShardedPgMapper(final ShardedPgStore store, final Class<T> type, final Map<String, PgMapper<T>> mappers) {
+        this.store = store;
+        this.type = type;
+        this.mappers.putAll(mappers);
+        metadata = mappers.values().iterator().next().getMetadata();
+        copier = new ShardCopier<>(metadata);
+    }
+    
+    /**
+     * @return The mapper for a single shard, ex. for queries that should
+     * only run there.
+     */
+    public PgMapper<T> getShard(final String name) {
+        final PgMapper<T> mapper = mappers.get(name);
+        if(mapper == null) {
+            throw new IllegalArgumentException("No shard named " + name);
+        }
+        return mapper;
+    }
+    
+    public void save(final T entity) {
+        final Lock lock = store.getRouting().readLock();
+        lock.lock();
+        try {
+            store.checkFenced();
+            final Object pk = primaryKeyOf(entity);
+            final String owner = store.getRing().shardFor(pk);
+            final ShardRing target = store.getTarget();
+            final boolean moving = target != null && !target.shardFor(pk).equals(owner);
+            final List<Long> copies = moving ? markCopies(Collections.singletonList(pk)) : Collections.emptyList();
+            getShard(owner).save(entity);
+            if(moving) {
+                copier.copy(getShard(owner), getShard(target.shardFor(pk)), Collections.singletonList(pk), true);
+                store.getShardMap().clearCopies(copies);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Saves the entities on all their shards at once. Each shard's entities
+     * are saved with {@link PgMapper#saveAll(Collection)}, so each shard
+     * either saves all of its share or none of it, but shards don't wait for
+     * each other.
+     *
+     * @return The entities that weren't saved because of a version conflict.
+     */
+    public List<T> saveAll(final Collection<T> entities) {
+        if(entities.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final Lock lock = store.getRouting().readLock();
+        lock.lock();
+        try {
+            store.checkFenced();
+            final ShardRing ring = store.getRing();
+            final Map<String, List<T>> byShard = new LinkedHashMap<>();
+            for(final T entity : entities) {
+                byShard.computeIfAbsent(ring.shardFor(primaryKeyOf(entity)), k -> new ArrayList<>()).add(entity);
+            }
+            final ShardRing target = store.getTarget();
+            final List<List<T>> conflicts = store.parallel(byShard.entrySet(), e -> () -> {
+                final List<Long> copies = target != null ? markCopies(e.getValue().stream().map(this::primaryKeyOf)
+                        .filter(pk -> !target.shardFor(pk).equals(e.getKey())).collect(Collectors.toList())) : Collections.emptyList();
+                final List<T> shardConflicts = getShard(e.getKey()).saveAll(e.getValue());
+                if(target != null) {
+                    final Set<T> conflicted = Collections.newSetFromMap(new IdentityHashMap<>());
+                    conflicted.addAll(shardConflicts);
+                    copyMoving(e.getKey(), target, e.getValue().stream().filter(entity -> !conflicted.contains(entity))
+                            .map(this::primaryKeyOf).collect(Collectors.toList()), true);
+                    store.getShardMap().clearCopies(copies);
+                }
+                return shardConflicts;
+            });
+            return conflicts.stream().flatMap(List::stream).collect(Collectors.toList());
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public void delete(final Object pk) {
+        final Lock lock = store.getRouting().readLock();
+        lock.lock();
+        try {
+            store.checkFenced();
+            final String owner = store.getRing().shardFor(pk);
+            final ShardRing target = store.getTarget();
+            final boolean moving = target != null && !target.shardFor(pk).equals(owner);
+            final List<Long> copies = moving ? markCopies(Collections.singletonList(pk)) : Collections.emptyList();
+            getShard(owner).delete(pk);
+            if(moving) {
+                getShard(target.shardFor(pk)).delete(pk);
+                store.getShardMap().clearCopies(copies);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public Optional<T> load(final Object pk) {
+        return getShard(store.getRing().shardFor(pk)).load(pk);
+    }
+    
+    /**
+     * Loads the entities from all their shards at once.
+     */
+    public Map<Object, T> loadMany(final Collection<?> pks) {
+        if(pks.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final ShardRing ring = store.getRing();
+        final Map<String, List<Object>> byShard = new LinkedHashMap<>();
+        for(final Object pk : pks) {
+            byShard.computeIfAbsent(ring.shardFor(pk), k -> new ArrayList<>()).add(pk);
+        }
+        final Map<Object, T> loaded = new HashMap<>();
+        store.parallel(byShard.entrySet(), e -> () -> getShard(e.getKey()).loadMany(e.getValue())).forEach(loaded::putAll);
+        return loaded;
+    }
+    
+    /**
+     * Loads the matching entities from every shard at once.
+     */
+    public List<T> loadManyBySubkey(final String subKey, final String subKeyData) {
+        final ShardRing ring = store.getRing();
+        final List<List<T>> loaded = store.parallel(ring.getShards(),
+                shard -> () -> owned(shard, ring, getShard(shard).loadManyBySubkey(subKey, subKeyData).stream()).collect(Collectors.toList()));
+        return loaded.stream().flatMap(List::stream).collect(Collectors.toList());
+    }
+    
+    /**
+     * Streams the matching entities from every shard, one shard's after
+     * another's. Has to be closed, like
+     * {@link PgMapper#streamManyBySubkey(String, String)}.
+     */
+    public Stream<T> streamManyBySubkey(final String subKey, final String subKeyData) {
+        return scatter((shard, ring) -> getShard(shard).streamManyBySubkey(subKey, subKeyData), null);
+    }
+    
+    /**
+     * Runs a query on every shard at once, and streams the results. The
+     * stream has to be closed, like {@link Query#stream()}.
+     *
+     * @param filter Builds the query, ex. <code>q -&gt; q.eq("name", name)</code>.
+     *               Called at least once per shard.
+     * @param order  The order the query sorts by, if it sorts; each shard's
+     *               results are merged in this order. {@code null} to take
+     *               results as they come.
+     */
+    public Stream<T> query(final Consumer<Query<T>> filter, final Comparator<? super T> order) {
+        final Integer[] limit = {null};
+        final Stream<T> merged = scatter((shard, ring) -> {
+            final Query<T> query = getShard(shard).query();
+            filter.accept(query);
+            limit[0] = query.getLimit();
+            return limit[0] != null ? ownedPage(shard, ring, filter, query) : query.stream();
+        }, order);
+        // Every shard returned up to the limit; only the best of them count
+        return limit[0] != null ? merged.limit(limit[0]) : merged;
+    }
+    
+    /**
+     * @return The number of matching entities over every shard.
+     */
+    public long count(final Consumer<Query<T>> filter) {
+        final ShardRing ring = store.getRing();
+        if(store.getPhase() != RebalancePhase.STABLE) {
+            // Copies made by the rebalance would be counted twice
+            try(final Stream<T> matching = query(filter, null)) {
+                return matching.count();
+            }
+        }
+        return store.parallel(ring.getShards(), shard -> () -> {
+            final Query<T> query = getShard(shard).query();
+            filter.accept(query);
+            return query.count();
+        }).stream().mapToLong(Long::longValue).sum();
+    }
+    
+    private Stream<T> scatter(final BiFunction<String, ShardRing, Stream<T>> perShard, final Comparator<? super T> order) {
+        final ShardRing ring = store.getRing();
+        final List<String> shards = new ArrayList<>(ring.getShards());
+        // Queries run as soon as they're streamed, so start them all at once
+        final List<Stream<T>> streams;
+        try {
+            streams = store.parallel(shards, shard -> () -> perShard.apply(shard, ring));
+        } catch(final RuntimeException e) {
+            throw new IllegalStateException("Couldn't query every shard", e);
+        }
+        final List<Stream<T>> owned = new ArrayList<>(streams.size());
+        for(int i = 0; i < streams.size(); i++) {
+            owned.add(owned(shards.get(i), ring, streams.get(i)));
+        }
+        final Stream<T> merged = order != null
+                ? StreamSupport.stream(new MergingSpliterator<>(owned, order), false)
+                : owned.stream().flatMap(Function.identity());
+        return merged.onClose(() -> streams.forEach(Stream::close));
+    }
+    
+    /**
+     * Runs a limited query on one shard, and runs it again with a bigger
+     * limit for as long as rows that belong on other shards, ex. copies made
+     * by a rebalance, leave the shard's own rows short of the limit.
+     *
+     * @return Up to the limit of the shard's own matching entities.
+     */
+    private Stream<T> ownedPage(final String shard, final ShardRing ring, final Consumer<Query<T>> filter, final Query<T> first) {
+        final int limit = first.getLimit();
+        Query<T> query = first;
+        int fetched = limit;
+        while(true) {
+            final List<T> page = query.list();
+            final List<T> owned = owned(shard, ring, page.stream()).collect(Collectors.toList());
+            if(owned.size() >= limit || page.size() < fetched || fetched == Integer.MAX_VALUE) {
+                return owned.stream().limit(limit);
+            }
+            fetched = (int) Math.min(Integer.MAX_VALUE, fetched * 2L);
+            query = getShard(shard).query();
+            filter.accept(query);
+            query.limit(fetched);
+        }
+    }
+    
+    /**
+     * @return Only the entities that belong on the shard they came from.
+     */
+    private Stream<T> owned(final String shard, final ShardRing ring, final Stream<T> entities) {
+        return entities.filter(entity -> ring.shardFor(primaryKeyOf(entity)).equals(shard));
+    }
+    
+    /**
+     * Copies the keys whose shard changes in the target ring over to it.
+     *
+     * @return The number of rows copied.
+     */
+    private long copyMoving(final String owner, final ShardRing target, final List<Object> pks, final boolean overwrite) {
+        final Map<String, List<Object>> byTarget = new HashMap<>();
+        for(final Object pk : pks) {
+            final String next = target.shardFor(pk);
+            if(!next.equals(owner)) {
+                byTarget.computeIfAbsent(next, k -> new ArrayList<>()).add(pk);
+            }
+        }
+        long copied = 0L;
+        for(final Map.Entry<String, List<Object>> entry : byTarget.entrySet()) {
+            copied += copier.copy(getShard(owner), getShard(entry.getKey()), entry.getValue(), overwrite);
+        }
+        return copied;
+    }
+    
+    /**
+     * Records keys that are about to be dual-written onto the ring being
+     * rebalanced onto, so that they're copied again if the write doesn't get
+     * as far as copying them; see {@link ShardMap}. Copies back onto the old
+     * ring, after switching over, aren't recorded, since nothing reads them
+     * once every node has switched.
+     *
+     * @return The records, to clear once the keys have been copied.
+     */
+    private List<Long> markCopies(final List<?> pks) {
+        if(pks.isEmpty() || store.getPhase() == RebalancePhase.SWITCHED) {
+            return Collections.emptyList();
+        }
+        return store.getShardMap().markCopies(metadata.getTableName(), pks);
+    }
+    
+    /**
+     * Copies the keys whose dual-write was recorded longer ago than the
+     * given time, and never cleared, to their shard in the target ring
+     * again, overwriting whatever is there.
+     *
+     * @return The number of dual-writes repaired.
+     */
+    long repairCopies(final ShardRing ring, final ShardRing target, final long olderThanMillis) {
+        final ShardMap shardMap = store.getShardMap();
+        final Map<Long, String> stale = shardMap.staleCopies(metadata.getTableName(), olderThanMillis);
+        if(stale.isEmpty()) {
+            return 0L;
+        }
+        final Map<String, List<Object>> byOwner = new HashMap<>();
+        for(final String pk : new LinkedHashSet<>(stale.values())) {
+            byOwner.computeIfAbsent(ring.shardFor(pk), k -> new ArrayList<>()).add(pk);
+        }
+        byOwner.forEach((owner, pks) -> copyMoving(owner, target, pks, true));
+        // Only the keys' strings are known, so they can't be invalidated
+        // one by one
+        for(final PgMapper<T> mapper : mappers.values()) {
+            final EntityCache<T> cache = mapper.getCache();
+            if(cache != null) {
+                cache.invalidateAll();
+            }
+        }
+        shardMap.clearCopies(new ArrayList<>(stale.keySet()));
+        return stale.size();
+    }
+    
+    /**
+     * Copies every row that moves in the target ring to its new shard, from
+     * every shard at once.
+     */
+    long backfill(final ShardRing ring, final ShardRing target) {
+        return store.parallel(ring.getShards(), shard -> () -> {
+            long copied = 0L;
+            try(final Stream<Object> keys = copier.keys(getShard(shard))) {
+                final Iterator<Object> iterator = keys.iterator();
+                final List<Object> chunk = new ArrayList<>(COPY_CHUNK_SIZE);
+                while(iterator.hasNext()) {
+                    chunk.add(iterator.next());
+                    if(chunk.size() == COPY_CHUNK_SIZE || !iterator.hasNext()) {
+                        // Dual-written rows are newer than what's being read
+                        // here, so they're left alone; ones whose copy
+                        // failed are repaired before the rebalance goes on
+                        copied += copyMoving(shard, target, chunk, false);
+                        chunk.clear();
+                    }
+                }
+            }
+            return copied;
+        }).stream().mapToLong(Long::longValue).sum();
+    }
+    
+    /**
+     * Deletes every row from the shards that the ring doesn't put it on.
+     */
+    long removeStrays(final ShardRing ring) {
+        return store.parallel(new ArrayList<>(mappers.keySet()), shard -> () -> {
+            long removed = 0L;
+            final PgMapper<T> mapper = getShard(shard);
+            try(final Stream<Object> keys = copier.keys(mapper)) {
+                final Iterator<Object> iterator = keys.iterator();
+                final List<Object> chunk = new ArrayList<>(COPY_CHUNK_SIZE);
+                while(iterator.hasNext()) {
+                    final Object pk = iterator.next();
+                    if(!ring.shardFor(pk).equals(shard)) {
+                        chunk.add(pk);
+                    }
+                    if(chunk.size() == COPY_CHUNK_SIZE || !iterator.hasNext() && !chunk.isEmpty()) {
+                        copier.delete(mapper, chunk);
+                        removed += chunk.size();
+                        chunk.clear();
+                    }
+                }
+            }
+            return removed;
+        }).stream().mapToLong(Long::longValue).sum();
+    }
+    
+    void addShard(final String name, final PgStore shard) {
+        mappers.put(name, shard.mapSync(type));
+    }
+    
+    void removeShard(final String name) {
+        mappers.remove(name);
+    }
+    
+    private Object primaryKeyOf(final T entity) {
+        return metadata.primaryKeyOf(entity);
+    }
+    
+    /**
+     * Merges streams that are each sorted into one sorted stream, taking
+     * one element at a time from whichever stream's next element is first.
+     */
+    private static final class MergingSpliterator<T> extends Spliterators.AbstractSpliterator<T> {
+        private final PriorityQueue<Head<T>> heads;
+        
+        private MergingSpliterator(final List<Stream<T>> streams, final Comparator<? super T> order) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED);
+            // Ties go to the earlier stream, so that merging is stable
+            heads = new PriorityQueue<>(Math.max(1, streams.size()), Comparator.<Head<T>, T>comparing(h -> h.value, order)
+                    .thenComparingInt(h -> h.index));
+            for(int i = 0; i < streams.size(); i++) {
+                final Iterator<T> iterator = streams.get(i).iterator();
+                if(iterator.hasNext()) {
+                    heads.add(new Head<>(iterator.next(), iterator, i));
+                }
+            }
+        }
+        
+        @Override
+        public boolean tryAdvance(final Consumer<? super T> action) {
+            final Head<T> head = heads.poll();
+            if(head == null) {
+                return false;
+            }
+            action.accept(head.value);
+            if(head.rest.hasNext()) {
+                heads.add(new Head<>(head.rest.next(), head.rest, head.index));
+            }
+            return true;
+        }
+    }
+    
+    private static final class Head<T> {
+        private final T value;
+        private final Iterator<T> rest;
+        private final int index;
+        
+        private Head(final T value, final Iterator<T> rest, final int index) {
+            this.value = value;
+            this.rest = rest;
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,585 @@
+package gg.amy.pgorm;
+
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Spreads entities over several Postgres clusters, each with its own
+ * {@link PgStore}, by a consistent hash of their primary key; see
+ * {@link ShardRing}. Map classes with {@link #map(Class)}. <p/>
+ * Single-key operations go straight to the key's shard. Bulk loads and saves
+ * are split up by shard and run on every shard at once, and queries are run
+ * on every shard at once, and their results merged. Transactions can't span
+ * shards. <p/>
+ * Shards are added or removed online, without changing call sites:
+ * <ol>
+ * <li>{@link #addShard(String, PgStore)} the new shard, if there is one, on
+ * every node.</li>
+ * <li>{@link #beginRebalance(ShardRing)} with the new ring. From then on,
+ * writes to keys that are moving go to both their current and their new
+ * shard; reads still only go to the current one.</li>
+ * <li>{@link #backfill()} copies the rest of the moving keys over.</li>
+ * <li>{@link #completeRebalance()} switches reads and writes over to the new
+ * ring, and deletes moved rows from the shards they moved off. A shard
+ * that's no longer in the ring can then be {@link #removeShard(String)
+ * removed}.</li>
+ * </ol>
+ * The ring and how far a rebalance has got are kept in a shard map on a
+ * coordinator, see {@link ShardMapConfig}, which every node reads every
+ * {@link ShardMapConfig#getSyncIntervalMillis()} milliseconds, so the steps
+ * only have to be taken on one node. Each step waits for every node to have
+ * caught up with the one before it: backfilling only starts once every node
+ * is dual-writing, and moved rows are only deleted once no node routes by
+ * the old ring any more. Dual-writes that didn't get as far as copying are
+ * copied again before the rebalance is marked backfilled, and again before
+ * it switches over. An interrupted rebalance is picked up where it left
+ * off by calling {@link #completeRebalance()} or {@link #abortRebalance()}
+ * again, on any node. <p/>
+ * Nodes that don't check in for {@link ShardMapConfig#getNodeTimeoutMillis()}
+ * aren't waited for, so a node that can't read the shard map for that long
+ * stops writing until it can again, rather than writing by a ring the
+ * others may have moved on from.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class ShardedPgStore {
+    /**
+     * How often, in milliseconds, a rebalance checks whether every node has
+     * caught up with the shard map.
+     */
+    private static final long AWAIT_POLL_MILLIS = 50L;
+    private final Map<String, PgStore> shards = new ConcurrentHashMap<>();
+    private final Map<Class<?>, ShardedPgMapper<?>> mappers = new ConcurrentHashMap<>();
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    /**
+     * Writes hold the read lock, so that the ring can't change halfway
+     * through a dual-write.
+     */
+    private final ReadWriteLock routing = new ReentrantReadWriteLock();
+    /**
+     * Held while reading or changing the shard map, so that an older version
+     * of it is never applied over a newer one.
+     */
+    private final Object syncLock = new Object();
+    private final ShardMapConfig config;
+    private final PgStore coordinator;
+    /**
+     * Which node this is, in the shard map.
+     */
+    @Getter
+    private final String node = UUID.randomUUID().toString();
+    /**
+     * The version of the shard map that reads and writes are routed by. Its
+     * epoch is -1 until the shard map is first read.
+     */
+    private volatile ShardMap.State state;
+    /**
+     * When the shard map was last read successfully, from
+     * {@link System#nanoTime()}. Timed from before the read, since what was
+     * read can be that old.
+     */
+    private volatile long lastSynced;
+    @Getter
+    private boolean connected;
+    private ShardMap shardMap;
+    private ExecutorService executor;
+    private ScheduledExecutorService syncer;
+    
+    /**
+     * @param shards The shards' stores, by name. Shard names decide where
+     *               keys live, so they mustn't change.
+     */
+    public ShardedPgStore(final Map<String, PgStore> shards) {
+        this(shards, new ShardRing(shards.keySet()));
+    }
+    
+    public ShardedPgStore(final Map<String, PgStore> shards, final ShardRing ring) {
+        this(shards, ring, ShardMapConfig.defaults());
+    }
+    
+    /**
+     * @param ring The ring to start with, if the shard map doesn't have one
+     *             yet. Otherwise, the shard map's ring is used.
+     */
+    public ShardedPgStore(final Map<String, PgStore> shards, final ShardRing ring, final ShardMapConfig config) {
+        if(!shards.keySet().containsAll(ring.getShards())) {
+            throw new IllegalArgumentException("Ring " + ring + " has shards that aren't in " + shards.keySet());
+        }
+        this.shards.putAll(shards);
+        this.config = config;
+        coordinator = config.getCoordinator() != null ? config.getCoordinator() : shards.get(new TreeSet<>(shards.keySet()).first());
+        state = new ShardMap.State(ring, null, RebalancePhase.STABLE, -1L);
+    }
+    
+    /**
+     * Connects to every shard, and reads the shard map, creating it if it
+     * doesn't exist yet.
+     *
+     * @throws IllegalStateException If the shard map's ring has shards that
+     *                               haven't been added to this store.
+     */
+    public synchronized void connect() {
+        if(connected) {
+            return;
+        }
+        shards.values().forEach(PgStore::connect);
+        coordinator.connect();
+        executor = Executors.newCachedThreadPool(PgStore.threadFactory("pgorm-shards-"));
+        shardMap = new ShardMap(coordinator, config.getName());
+        connected = true;
+        try {
+            shardMap.create(state.getRing());
+            sync();
+        } catch(final RuntimeException e) {
+            disconnect();
+            throw e;
+        }
+        syncer = Executors.newSingleThreadScheduledExecutor(PgStore.threadFactory("pgorm-shard-map-"));
+        syncer.scheduleWithFixedDelay(() -> {
+            try {
+                sync();
+            } catch(final RuntimeException e) {
+                logger.error("Couldn't read shard map {}:", config.getName(), e);
+            }
+        }, config.getSyncIntervalMillis(), config.getSyncIntervalMillis(), TimeUnit.MILLISECONDS);
+    }
+    
+    public synchronized void disconnect() {
+        if(!connected) {
+            return;
+        }
+        if(syncer != null) {
+            syncer.shutdownNow();
+            syncer = null;
+        }
+        try {
+            shardMap.forget(node);
+        } catch(final RuntimeException e) {
+            logger.warn("Couldn't take node {} out of shard map {}:", node, config.getName(), e);
+        }
+        executor.shutdownNow();
+        shards.values().forEach(PgStore::disconnect);
+        coordinator.disconnect();
+        connected = false;
+    }
+    
+    /**
+     * @return The ring reads and writes are routed by.
+     */
+    public ShardRing getRing() {
+        return state.getRing();
+    }
+    
+    /**
+     * @return The other ring that writes to moving keys are copied by, or
+     * {@code null} if there's no rebalance going on. While
+     * {@link RebalancePhase#SWITCHED switched}, that's the old ring.
+     */
+    public ShardRing getTarget() {
+        return state.getTarget();
+    }
+    
+    public RebalancePhase getPhase() {
+        return state.getPhase();
+    }
+    
+    /**
+     * @return The shards' stores, by name.
+     */
+    public Map<String, PgStore> getShards() {
+        return Collections.unmodifiableMap(shards);
+    }
+    
+    /**
+     * Maps the class on every shard, creating its table and indexes where
+     * they're missing.
+     */
+    public synchronized <T> ShardedPgMapper<T> map(final Class<T> c) {
+        // This should be safe
+        // If it's not, we REALLY screwed up...
+        //noinspection unchecked
+        return (ShardedPgMapper<T>) mappers.computeIfAbsent(c, k -> {
+            final List<String> names = new ArrayList<>(shards.keySet());
+            final List<PgMapper<T>> mapped = parallel(names, name -> () -> shards.get(name).mapSync(c));
+            final Map<String, PgMapper<T>> shardMappers = new LinkedHashMap<>();
+            for(int i = 0; i < names.size(); i++) {
+                shardMappers.put(names.get(i), mapped.get(i));
+            }
+            return new ShardedPgMapper<>(this, c, shardMappers);
+        });
+    }
+    
+    /**
+     * Adds a shard, and maps every mapped class on it. It isn't used until
+     * it's part of the ring; see {@link #beginRebalance(ShardRing)}.
+     */
+    public synchronized void addShard(final String name, final PgStore store) {
+        if(shards.containsKey(name)) {
+            throw new IllegalArgumentException("Shard " + name + " already exists!");
+        }
+        if(connected) {
+            store.connect();
+        }
+        mappers.values().forEach(mapper -> mapper.addShard(name, store));
+        shards.put(name, store);
+        logger.info("Added shard {}.", name);
+    }
+    
+    /**
+     * Removes a shard that's no longer in the ring, and disconnects it.
+     */
+    public synchronized void removeShard(final String name) {
+        final ShardRing ring = getRing();
+        final ShardRing target = getTarget();
+        if(ring.getShards().contains(name) || target != null && target.getShards().contains(name)) {
+            throw new IllegalStateException("Can't remove shard " + name + " while it's in the ring!");
+        }
+        if(shards.get(name) == coordinator) {
+            throw new IllegalStateException("Can't remove shard " + name + " while the shard map is kept on it!");
+        }
+        final PgStore store = shards.remove(name);
+        if(store != null) {
+            mappers.values().forEach(mapper -> mapper.removeShard(name));
+            store.disconnect();
+            logger.info("Removed shard {}.", name);
+        }
+    }
+    
+    /**
+     * Starts moving keys to the shards the given ring puts them on. Writes
+     * are dual-written from now on, by every node once it's read the shard
+     * map.
+     */
+    public synchronized void beginRebalance(final ShardRing next) {
+        requireConnected();
+        sync();
+        final ShardMap.State current = state;
+        if(current.getPhase() != RebalancePhase.STABLE) {
+            throw new IllegalStateException("Already rebalancing onto " + current.getTarget() + " (" + current.getPhase() + ")!");
+        }
+        if(!shards.keySet().containsAll(next.getShards())) {
+            throw new IllegalArgumentException("Ring " + next + " has shards that aren't in " + shards.keySet());
+        }
+        transition(current.getRing(), next, RebalancePhase.DUAL_WRITE);
+        logger.info("Rebalancing from {} onto {}.", current.getRing(), next);
+    }
+    
+    /**
+     * Copies every row that's moving, and that hasn't been dual-written yet,
+     * to its new shard, once every node is dual-writing. Shards are copied
+     * from all at once, and rows are only copied if the new shard doesn't
+     * have them yet, so this can be run again after a failure.
+     *
+     * @return The number of rows copied.
+     *
+     * @throws IllegalStateException If a node still isn't dual-writing after
+     *                               {@link ShardMapConfig#getSwitchTimeoutMillis()}.
+     */
+    public synchronized long backfill() {
+        requireConnected();
+        sync();
+        final ShardMap.State current = state;
+        if(current.getPhase() != RebalancePhase.DUAL_WRITE && current.getPhase() != RebalancePhase.BACKFILLED) {
+            throw new IllegalStateException("Not rebalancing!");
+        }
+        awaitNodes();
+        long copied = 0L;
+        for(final ShardedPgMapper<?> mapper : mappers.values()) {
+            copied += mapper.backfill(current.getRing(), current.getTarget());
+        }
+        // Backfilling doesn't overwrite what dual-writes copied, so ones that
+        // didn't finish have to be copied again
+        settleCopies(current);
+        if(current.getPhase() == RebalancePhase.DUAL_WRITE) {
+            transition(current.getRing(), current.getTarget(), RebalancePhase.BACKFILLED);
+        }
+        logger.info("Backfilled {} rows onto {}.", copied, current.getTarget());
+        return copied;
+    }
+    
+    /**
+     * Switches over to the ring being rebalanced onto, backfilling first if
+     * that hasn't been done yet, and then deletes moved rows from the shards
+     * they moved off. Picks up where an interrupted call left off.
+     *
+     * @throws IllegalStateException If a node doesn't catch up with a step
+     *                               within {@link ShardMapConfig#getSwitchTimeoutMillis()}.
+     *                               Calling this again carries on from there.
+     */
+    public synchronized void completeRebalance() {
+        requireConnected();
+        sync();
+        if(state.getPhase() == RebalancePhase.STABLE) {
+            throw new IllegalStateException("Not rebalancing!");
+        }
+        while(state.getPhase() != RebalancePhase.STABLE) {
+            final ShardMap.State current = state;
+            switch(current.getPhase()) {
+                case DUAL_WRITE: {
+                    backfill();
+                    break;
+                }
+                case BACKFILLED: {
+                    awaitNodes();
+                    settleCopies(current);
+                    // Writes still go to the old ring too, for nodes that
+                    // haven't switched yet
+                    transition(current.getTarget(), current.getRing(), RebalancePhase.SWITCHED);
+                    logger.info("Switched over to {}.", current.getTarget());
+                    break;
+                }
+                case SWITCHED: {
+                    awaitNodes();
+                    transition(current.getRing(), null, RebalancePhase.CLEANUP);
+                    break;
+                }
+                default: {
+                    cleanUp();
+                    break;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Gives up on rebalancing, and deletes whatever was already copied to
+     * shards that wouldn't have them in the current ring, once no node is
+     * dual-writing any more.
+     *
+     * @throws IllegalStateException If the rebalance has already switched
+     *                               over to the new ring; it has to be
+     *                               completed then.
+     */
+    public synchronized void abortRebalance() {
+        requireConnected();
+        sync();
+        final ShardMap.State current = state;
+        switch(current.getPhase()) {
+            case STABLE: {
+                return;
+            }
+            case SWITCHED: {
+                throw new IllegalStateException("Already switched over to " + current.getRing() + "; complete the rebalance instead!");
+            }
+            case DUAL_WRITE:
+            case BACKFILLED: {
+                transition(current.getRing(), null, RebalancePhase.CLEANUP);
+                logger.info("Gave up rebalancing, staying on {}.", current.getRing());
+                break;
+            }
+            default: {
+                break;
+            }
+        }
+        cleanUp();
+    }
+    
+    /**
+     * Deletes strays once every node has stopped writing them, and goes back
+     * to {@link RebalancePhase#STABLE}.
+     */
+    private void cleanUp() {
+        awaitNodes();
+        final ShardRing ring = getRing();
+        long removed = 0L;
+        for(final ShardedPgMapper<?> mapper : mappers.values()) {
+            removed += mapper.removeStrays(ring);
+        }
+        logger.info("Deleted {} rows from shards they don't belong on.", removed);
+        shardMap.clearAllCopies();
+        transition(ring, null, RebalancePhase.STABLE);
+    }
+    
+    /**
+     * Reads the shard map, routes by it if it's changed, and tells the other
+     * nodes which version of it this node is routing by.
+     */
+    private void sync() {
+        synchronized(syncLock) {
+            final long started = System.nanoTime();
+            final ShardMap.State latest = shardMap.load();
+            if(latest.getEpoch() > state.getEpoch()) {
+                apply(latest);
+            }
+            shardMap.acknowledge(node, state.getEpoch());
+            lastSynced = started;
+        }
+    }
+    
+    /**
+     * Refuses to write while this node may be routing by a shard map that
+     * the other nodes have moved on from without waiting for it; see
+     * {@link ShardMapConfig#getNodeTimeoutMillis()}. Called by
+     * {@link ShardedPgMapper} with the routing lock held, before every write.
+     *
+     * @throws IllegalStateException If the shard map hasn't been read for
+     *                               that long.
+     */
+    void checkFenced() {
+        final long since = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastSynced);
+        if(since >= config.getNodeTimeoutMillis()) {
+            throw new IllegalStateException("Node " + node + " hasn't read shard map " + config.getName() + " for " + since
+                    + "ms, so other nodes may have stopped waiting for it; not writing until it has!");
+        }
+    }
+    
+    /**
+     * Moves the shard map on from the version this node is routing by, and
+     * routes by the new version.
+     */
+    private void transition(final ShardRing ring, final ShardRing target, final RebalancePhase phase) {
+        synchronized(syncLock) {
+            final long started = System.nanoTime();
+            apply(shardMap.update(state, ring, target, phase));
+            shardMap.acknowledge(node, state.getEpoch());
+            lastSynced = started;
+        }
+    }
+    
+    private void apply(final ShardMap.State next) {
+        final Set<String> needed = new LinkedHashSet<>(next.getRing().getShards());
+        if(next.getTarget() != null) {
+            needed.addAll(next.getTarget().getShards());
+        }
+        needed.removeAll(shards.keySet());
+        if(!needed.isEmpty()) {
+            throw new IllegalStateException("Shard map " + config.getName() + " routes to shards " + needed
+                    + " that haven't been added on this node!");
+        }
+        routing.writeLock().lock();
+        try {
+            state = next;
+        } finally {
+            routing.writeLock().unlock();
+        }
+        logger.info("Routing by epoch {} of shard map {}: {} onto {} ({}).", next.getEpoch(), config.getName(),
+                next.getRing(), next.getTarget(), next.getPhase());
+    }
+    
+    /**
+     * Waits for every node that's still around to route by the version of
+     * the shard map this node is routing by.
+     */
+    private void awaitNodes() {
+        final long epoch = state.getEpoch();
+        final long deadline = System.currentTimeMillis() + config.getSwitchTimeoutMillis();
+        List<String> lagging;
+        while(!(lagging = shardMap.lagging(epoch, config.getNodeTimeoutMillis())).isEmpty()) {
+            if(System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Nodes " + lagging + " still aren't routing by epoch " + epoch
+                        + " of shard map " + config.getName() + '!');
+            }
+            pause("nodes " + lagging);
+        }
+    }
+    
+    /**
+     * Waits for every dual-write recorded so far to have copied its keys.
+     * Ones that are still recorded after {@link ShardMapConfig#getNodeTimeoutMillis()}
+     * failed, or their node did, since it would have fenced itself by then,
+     * so their keys are copied again. Only classes mapped on this node can
+     * be repaired.
+     */
+    private void settleCopies(final ShardMap.State current) {
+        final long latest = shardMap.latestCopy();
+        final long deadline = System.currentTimeMillis() + config.getSwitchTimeoutMillis();
+        long repaired = 0L;
+        long pending;
+        while((pending = shardMap.pendingCopies(latest)) > 0L) {
+            for(final ShardedPgMapper<?> mapper : mappers.values()) {
+                repaired += mapper.repairCopies(current.getRing(), current.getTarget(), config.getNodeTimeoutMillis());
+            }
+            if(shardMap.pendingCopies(latest) == 0L) {
+                break;
+            }
+            if(System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException(pending + " dual-writes onto " + current.getTarget()
+                        + " still haven't been copied; are their classes mapped on this node?");
+            }
+            pause(pending + " dual-writes");
+        }
+        if(repaired > 0L) {
+            logger.info("Copied the keys of {} unfinished dual-writes onto {} again.", repaired, current.getTarget());
+        }
+    }
+    
+    private static void pause(final String waitingFor) {
+        try {
+            Thread.sleep(AWAIT_POLL_MILLIS);
+        } catch(final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for " + waitingFor, e);
+        }
+    }
+    
+    private void requireConnected() {
+        if(!connected) {
+            throw new IllegalStateException("Not connected!");
+        }
+    }
+    
+    /**
+     * For {@link ShardedPgMapper} to record its dual-writes in.
+     */
+    ShardMap getShardMap() {
+        return shardMap;
+    }
+    
+    /**
+     * Held around every write, for {@link ShardedPgMapper}.
+     */
+    ReadWriteLock getRouting() {
+        return routing;
+    }
+    
+    /**
+     * Runs a task for every item at once, and waits for all of them.
+     *
+     * @throws RuntimeException The first task's failure, if any failed.
+     */
+    <I, R> List<R> parallel(final Collection<I> items, final Function<I, Supplier<R>> task) {
+        final List<CompletableFuture<R>> futures = new ArrayList<>(items.size());
+        for(final I item : items) {
+            futures.add(items.size() == 1 || executor == null
+                    ? CompletableFuture.completedFuture(task.apply(item).get())
+                    : CompletableFuture.supplyAsync(task.apply(item), executor));
+        }
+        final List<R> results = new ArrayList<>(futures.size());
+        try {
+            for(final CompletableFuture<R> future : futures) {
+                results.add(future.join());
+            }
+        } catch(final CompletionException e) {
+            if(e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        return results;
+    }
+}
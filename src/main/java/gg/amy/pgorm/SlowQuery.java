@@ -0,0 +1,36 @@
+package gg.amy.pgorm;
+
+import lombok.Value;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A statement that took longer than the store's slow query threshold. See
+ * {@link PgStore#setSlowQueryThresholdMillis(long)}.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@Value
+public class SlowQuery {
+    /**
+     * The statement's SQL, with placeholders rather than values.
+     */
+    private String sql;
+    /**
+     * The types of the statement's parameters, in order, ex.
+     * <code>String</code> or <code>Array</code>.
+     */
+    private List<String> parameterTypes;
+    private long durationNanos;
+    /**
+     * The output of <code>EXPLAIN</code> for the statement, or {@code null}
+     * if it wasn't sampled for explaining.
+     */
+    private String plan;
+    
+    public long getDurationMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(durationNanos);
+    }
+}
@@ -0,0 +1,136 @@
+package gg.amy.pgorm;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Wraps a {@link PreparedStatement} to time every execution of it, and to
+ * remember the parameters bound to the ones that were slow, so that they can
+ * be reported with their parameter types, and explained with the same
+ * values. Only used while slow query capture is on.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+final class StatementRecorder {
+    private final PreparedStatement proxy;
+    // Parameter index -> the setter call that bound it
+    private final Map<Integer, Binding> bindings = new TreeMap<>();
+    private final List<Execution> slow = new ArrayList<>();
+    
+    /**
+     * @param thresholdNanos Executions that take at least this long are
+     *                       remembered as slow.
+     */
+    StatementRecorder(final PreparedStatement statement, final long thresholdNanos) {
+        proxy = (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                new Class<?>[] {PreparedStatement.class}, (p, method, args) -> {
+                    final String name = method.getName();
+                    if(name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                        bindings.put((Integer) args[0], new Binding(method, args));
+                    } else if(name.equals("clearParameters")) {
+                        bindings.clear();
+                    } else if(name.startsWith("execute")) {
+                        // Timed one by one, so that ex. every chunk of a
+                        // loadMany is reported with its own parameters
+                        final long start = System.nanoTime();
+                        final Object result = invoke(statement, method, args);
+                        final long nanos = System.nanoTime() - start;
+                        if(nanos >= thresholdNanos) {
+                            slow.add(new Execution(nanos, new ArrayList<>(bindings.values())));
+                        }
+                        return result;
+                    }
+                    return invoke(statement, method, args);
+                });
+    }
+    
+    private static Object invoke(final PreparedStatement statement, final Method method, final Object[] args) throws Throwable {
+        try {
+            return method.invoke(statement, args);
+        } catch(final InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+    
+    /**
+     * @return The statement to hand to the code binding its parameters and
+     * running it.
+     */
+    PreparedStatement statement() {
+        return proxy;
+    }
+    
+    /**
+     * @return The executions so far that took at least the threshold.
+     */
+    List<Execution> slowExecutions() {
+        return slow;
+    }
+    
+    /**
+     * A single slow execution of the statement.
+     */
+    static final class Execution {
+        private final long nanos;
+        private final List<Binding> bindings;
+        
+        private Execution(final long nanos, final List<Binding> bindings) {
+            this.nanos = nanos;
+            this.bindings = bindings;
+        }
+        
+        long nanos() {
+            return nanos;
+        }
+        
+        List<String> parameterTypes() {
+            final List<String> types = new ArrayList<>(bindings.size());
+            for(final Binding binding : bindings) {
+                types.add(binding.type());
+            }
+            return types;
+        }
+        
+        /**
+         * Binds the same parameters to another statement.
+         */
+        void replay(final PreparedStatement target) throws SQLException {
+            for(final Binding binding : bindings) {
+                try {
+                    binding.method.invoke(target, binding.args);
+                } catch(final IllegalAccessException | InvocationTargetException e) {
+                    throw new SQLException("Couldn't replay parameter binding " + binding.method.getName(), e);
+                }
+            }
+        }
+    }
+    
+    private static final class Binding {
+        private final Method method;
+        private final Object[] args;
+        
+        private Binding(final Method method, final Object[] args) {
+            this.method = method;
+            this.args = args;
+        }
+        
+        private String type() {
+            final String name = method.getName();
+            if(name.equals("setObject")) {
+                return args[1] != null ? args[1].getClass().getSimpleName() : "null";
+            } else if(name.equals("setNull")) {
+                return "null";
+            }
+            // ex. setString -> String
+            return name.substring(3);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package gg.amy.pgorm;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A unit of work started by {@link PgStore#transaction(PgStore.SqlConsumer)}.
+ * <p/>
+ * While the transaction's work runs, every {@link PgMapper} call made on the
+ * same thread uses the transaction's connection instead of taking one from
+ * the pool. Saves are queued rather than written immediately, and queued
+ * saves are written as JDBC batches, one per mapper, right before the next
+ * statement that isn't a save, or at commit. A save of an entity that's
+ * already queued replaces the queued one. <p/>
+ * Calls made through an {@link AsyncPgMapper} run on other threads, so they
+ * are <strong>not</strong> part of the transaction.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class Transaction {
+    /**
+     * The connection the transaction runs on. Useful for running SQL of
+     * your own as part of the transaction; don't commit or close it.
+     */
+    @Getter
+    private final Connection connection;
+    private final Map<PgMapper<?>, Map<Object, Object>> queued = new LinkedHashMap<>();
+    private final List<Runnable> afterCommit = new ArrayList<>();
+    @Getter(AccessLevel.PACKAGE)
+    private boolean flushing;
+    
+    Transaction(final Connection connection) {
+        this.connection = connection;
+    }
+    
+    /**
+     * Runs the given action once the transaction commits. Does nothing if it
+     * rolls back.
+     */
+    public void afterCommit(final Runnable action) {
+        afterCommit.add(action);
+    }
+    
+    /**
+     * Writes out all queued saves now, rather than waiting for the next
+     * statement or the commit.
+     */
+    public void flush() {
+        if(flushing || queued.isEmpty()) {
+            return;
+        }
+        flushing = true;
+        try {
+            for(final Map.Entry<PgMapper<?>, Map<Object, Object>> entry : queued.entrySet()) {
+                write(entry.getKey(), entry.getValue().values());
+            }
+            queued.clear();
+        } finally {
+            flushing = false;
+        }
+    }
+    
+    <T> void queue(final PgMapper<T> mapper, final Collection<T> entities) {
+        final Map<Object, Object> pending = queued.computeIfAbsent(mapper, m -> new LinkedHashMap<>());
+        for(final T entity : entities) {
+            pending.put(mapper.primaryKeyOf(entity), entity);
+        }
+    }
+    
+    void committed() {
+        afterCommit.forEach(Runnable::run);
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static <T> void write(final PgMapper<T> mapper, final Collection<Object> entities) {
+        mapper.writeAll((Collection<T>) entities);
+    }
+}
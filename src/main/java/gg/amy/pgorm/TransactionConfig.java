@@ -0,0 +1,41 @@
+package gg.amy.pgorm;
+
+import lombok.Builder;
+import lombok.Value;
+
+import java.sql.Connection;
+
+/**
+ * Configuration for a {@link PgStore#transaction(TransactionConfig, PgStore.SqlConsumer)}.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@Value
+@Builder
+public class TransactionConfig {
+    /**
+     * The isolation level to run at, as one of the
+     * <code>Connection.TRANSACTION_*</code> constants.
+     */
+    @Builder.Default
+    private int isolation = Connection.TRANSACTION_READ_COMMITTED;
+    @Builder.Default
+    private boolean readOnly = false;
+    /**
+     * How many times to retry the whole transaction after a serialization
+     * failure or deadlock. {@code 0} never retries.
+     */
+    @Builder.Default
+    private int maxRetries = 3;
+    /**
+     * How long, in milliseconds, to wait before the first retry. Each retry
+     * after that waits twice as long as the one before.
+     */
+    @Builder.Default
+    private long retryBackoffMillis = 10L;
+    
+    public static TransactionConfig defaults() {
+        return builder().build();
+    }
+}
@@ -0,0 +1,187 @@
+package gg.amy.pgorm;
+
+import gg.amy.pgorm.PgMetrics.Operation;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A partial update of the JSONB documents of a {@link PgMapper}'s table. Get
+ * one from {@link PgMapper#update()}. <p/>
+ * Instead of loading an entity, changing it and saving the whole thing back,
+ * an update is compiled to <code>jsonb_set</code>, <code>||</code> and
+ * <code>#-</code> expressions and runs entirely inside Postgres, as a single
+ * <code>UPDATE</code>. This saves the round trip for the load, only sends the
+ * changed values, and can't lose concurrent changes to other fields, or
+ * concurrent increments. <p/>
+ * Paths are field names, with nested fields separated by dots, ex.
+ * <code>stats.views</code>. Operations are applied in the order they were
+ * added. Values are mapped to JSON with Jackson, the same way entities are.
+ * <p/>
+ * Example:
+ * <pre>
+ * store.mapSync(Data.class).update()
+ *         .set("name", "new name")
+ *         .increment("stats.views", 1)
+ *         .remove("oldField")
+ *         .execute(Arrays.asList(1, 2, 3));
+ * </pre>
+ * Note that a save still waiting in an {@link AsyncPgMapper}'s write-behind
+ * queue will overwrite an update that runs before it. Updates of
+ * {@link gg.amy.pgorm.annotations.Version versioned} entities bump their
+ * version, so saving a copy loaded before the update will conflict.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class Update<T> {
+    private final PgMapper<T> mapper;
+    private final List<ParamBinder> params = new ArrayList<>();
+    private String expression = "data";
+    private String sql;
+    
+    Update(final PgMapper<T> mapper) {
+        this.mapper = mapper;
+    }
+    
+    /**
+     * Sets the value at {@code path}. The last field of the path is created if
+     * it doesn't exist yet, but the ones before it have to.
+     */
+    public Update<T> set(final String path, final Object value) {
+        final String[] keys = keys(path);
+        final String json = mapper.toJson(value);
+        return apply("jsonb_set(" + expression + ", ?::text[], ?::jsonb, true)",
+                (s, i) -> s.setArray(i, s.getConnection().createArrayOf("text", keys)),
+                (s, i) -> s.setString(i, json));
+    }
+    
+    /**
+     * Merges the top-level fields of the given partial document into the
+     * document, replacing fields that already exist, ex.
+     * <code>merge(Collections.singletonMap("name", "new name"))</code>.
+     */
+    public Update<T> merge(final Object partialDocument) {
+        final String json = mapper.toJson(partialDocument);
+        return apply('(' + expression + " || ?::jsonb)", (s, i) -> s.setString(i, json));
+    }
+    
+    /**
+     * Removes the value at {@code path}, if there is one.
+     */
+    public Update<T> remove(final String path) {
+        final String[] keys = keys(path);
+        return apply('(' + expression + " #- ?::text[])",
+                (s, i) -> s.setArray(i, s.getConnection().createArrayOf("text", keys)));
+    }
+    
+    /**
+     * Atomically adds {@code delta} to the number at {@code path}. A missing
+     * value counts as zero. <p/>
+     * The current value is read from the document as it was before this
+     * update, so don't combine this with other operations on the same path.
+     */
+    public Update<T> increment(final String path, final Number delta) {
+        final String[] keys = keys(path);
+        final BigDecimal amount = new BigDecimal(delta.toString());
+        final ParamBinder bindKeys = (s, i) -> s.setArray(i, s.getConnection().createArrayOf("text", keys));
+        return apply("jsonb_set(" + expression + ", ?::text[], to_jsonb(COALESCE((data #>> ?::text[])::numeric, 0) + ?), true)",
+                bindKeys, bindKeys, (s, i) -> s.setBigDecimal(i, amount));
+    }
+    
+    /**
+     * Runs the update on a single entity.
+     *
+     * @param pk The primary key of the entity to update.
+     *
+     * @return Whether the entity existed.
+     */
+    public boolean execute(final Object pk) {
+        return execute(Collections.singletonList(pk)) > 0;
+    }
+    
+    /**
+     * Runs the update on many entities at once, as a single statement.
+     *
+     * @param pks The primary keys of the entities to update.
+     *
+     * @return The number of entities that existed and were updated.
+     */
+    public int execute(final Collection<?> pks) {
+        if(params.isEmpty()) {
+            throw new IllegalStateException("Update of " + mapper.getTableName() + " has nothing to update!");
+        }
+        if(pks.isEmpty()) {
+            return 0;
+        }
+        final int[] updated = {0};
+        final String channel = mapper.getInvalidationChannel();
+        mapper.sql(Operation.UPDATE, sql(), c -> {
+            for(int i = 0; i < params.size(); i++) {
+                params.get(i).bind(c, i + 1);
+            }
+            c.setArray(params.size() + 1, c.getConnection().createArrayOf(mapper.getPkArrayType(), pks.toArray()));
+            if(channel != null) {
+                c.setString(params.size() + 2, channel);
+            }
+            try(final ResultSet resultSet = c.executeQuery()) {
+                while(resultSet.next()) {
+                    ++updated[0];
+                }
+            }
+        });
+        mapper.recordRows(Operation.UPDATE, updated[0]);
+        final EntityCache<T> cache = mapper.getCache();
+        if(cache != null) {
+            mapper.getStore().afterCommit(() -> {
+                for(final Object pk : pks) {
+                    cache.invalidate(pk);
+                }
+            });
+        }
+        return updated[0];
+    }
+    
+    /**
+     * @return The SQL this update runs.
+     */
+    public String sql() {
+        if(sql == null) {
+            final String pk = mapper.getPrimaryKeyName();
+            final String version = mapper.getVersionColumn();
+            final String update = "UPDATE " + mapper.getTableName() + " SET data = " + expression
+                    + (version != null ? ", " + version + " = " + version + " + 1" : "")
+                    + " WHERE " + pk + " = ANY(?) RETURNING " + pk;
+            if(mapper.getInvalidationChannel() != null) {
+                // Tell other nodes about exactly the entities that changed
+                sql = "WITH updated AS (" + update + ") SELECT pg_notify(?, " + pk + "::text) FROM updated;";
+            } else {
+                sql = update + ';';
+            }
+        }
+        return sql;
+    }
+    
+    private Update<T> apply(final String expression, final ParamBinder... binders) {
+        sql = null;
+        this.expression = expression;
+        Collections.addAll(params, binders);
+        return this;
+    }
+    
+    private String[] keys(final String path) {
+        if(path.isEmpty()) {
+            throw new IllegalArgumentException("Update path can't be empty!");
+        }
+        final String[] keys = path.split("\\.");
+        if(mapper.getMetadata().getCompressedFields().containsKey(keys[0])) {
+            throw new IllegalArgumentException("Field " + keys[0] + " of " + mapper.getTableName() + " is @Compressed, so it can't be updated partially!");
+        }
+        return keys;
+    }
+}
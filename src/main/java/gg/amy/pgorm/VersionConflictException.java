@@ -0,0 +1,26 @@
+package gg.amy.pgorm;
+
+import lombok.Getter;
+
+/**
+ * Thrown when saving an entity with a {@link gg.amy.pgorm.annotations.Version}
+ * field fails, because someone else saved a newer version of it first. Load
+ * the entity again, reapply the change, and save it again.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@SuppressWarnings("unused")
+public class VersionConflictException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+    /**
+     * The entity that couldn't be saved.
+     */
+    @Getter
+    private final transient Object entity;
+    
+    public VersionConflictException(final Object entity) {
+        super("Entity " + entity + " was changed by someone else since it was loaded");
+        this.entity = entity;
+    }
+}
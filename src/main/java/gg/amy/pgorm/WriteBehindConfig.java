@@ -0,0 +1,51 @@
+package gg.amy.pgorm;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * Configuration for the write-behind mode of an {@link AsyncPgMapper}. See
+ * {@link WriteBehindQueue} for how these values are used.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@Value
+@Builder
+public class WriteBehindConfig {
+    /**
+     * The maximum number of distinct primary keys that may be waiting to be
+     * written. Saves of an entity that is already queued never count against
+     * this.
+     */
+    @Builder.Default
+    private int capacity = 10_000;
+    /**
+     * The maximum number of entities written per flush. A flush is started as
+     * soon as this many entities are queued.
+     */
+    @Builder.Default
+    private int batchSize = 500;
+    /**
+     * How often, in milliseconds, queued entities are flushed if the batch
+     * size hasn't been reached.
+     */
+    @Builder.Default
+    private long flushIntervalMillis = 50L;
+    /**
+     * The number of threads writing batches to the database.
+     */
+    @Builder.Default
+    private int flushers = 2;
+    /**
+     * How long, in milliseconds, a save may wait for room in a full queue
+     * before its future fails. The caller is never blocked. {@code 0} rejects
+     * immediately.
+     */
+    @Builder.Default
+    private long offerTimeoutMillis = 5_000L;
+    
+    public static WriteBehindConfig defaults() {
+        return builder().build();
+    }
+}
@@ -0,0 +1,367 @@
+package gg.amy.pgorm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue of pending saves for a single mapper, keyed by primary key.
+ * Saving an entity that is already queued replaces the queued version, so a
+ * burst of saves to the same entity only ever writes the latest one. <p/>
+ * A small, fixed number of flusher threads drain the queue with
+ * {@link PgMapper#saveAll(java.util.Collection)}, either every
+ * {@link WriteBehindConfig#getFlushIntervalMillis()} milliseconds or as soon
+ * as {@link WriteBehindConfig#getBatchSize()} entities are queued. An entity
+ * that is currently being written is never part of another in-flight batch,
+ * so an older version can't overwrite a newer one. <p/>
+ * The futures returned by {@link #save(Object)} complete once the batch the
+ * entity was written in has been committed. With read replicas, the callers
+ * that saved the entity read from the primary for a while after that, just
+ * like after a write of their own; see {@link ReplicaRouter}. Saving never blocks: when the
+ * queue is full, a save waits for room in an overflow queue of the same
+ * capacity, and its future fails if there's no room in time.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class WriteBehindQueue<T> {
+    private final PgMapper<T> mapper;
+    private final WriteBehindConfig config;
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final ReentrantLock lock = new ReentrantLock();
+    // Guarded by lock
+    private final Map<Object, Pending<T>> pending = new LinkedHashMap<>();
+    /**
+     * Saves waiting for room in {@link #pending}, in the order they came in.
+     */
+    // Guarded by lock
+    private final Map<Object, Pending<T>> overflow = new LinkedHashMap<>();
+    // Guarded by lock
+    private final Set<Object> inFlight = new HashSet<>();
+    private final ScheduledExecutorService flushers;
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong flushed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    // Guarded by lock, so a save either lands before the final flush or is
+    // rejected
+    private boolean shutdown;
+    
+    public WriteBehindQueue(final PgMapper<T> mapper, final WriteBehindConfig config) {
+        if(config.getCapacity() <= 0 || config.getBatchSize() <= 0 || config.getFlushers() <= 0
+                || config.getFlushIntervalMillis() <= 0) {
+            throw new IllegalArgumentException("Invalid write-behind config: " + config);
+        }
+        this.mapper = mapper;
+        this.config = config;
+        final AtomicInteger threadId = new AtomicInteger();
+        flushers = Executors.newScheduledThreadPool(config.getFlushers(), r -> {
+            final Thread thread = new Thread(r, "pgorm-write-behind-" + mapper.getTableName() + '-' + threadId.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for(int i = 0; i < config.getFlushers(); i++) {
+            flushers.scheduleWithFixedDelay(this::flushBatch, config.getFlushIntervalMillis(),
+                    config.getFlushIntervalMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Queues an entity to be saved. Never blocks.
+     *
+     * @param entity The entity to save.
+     *
+     * @return A future that completes once the entity has been committed to
+     * the database. It fails with a {@link RejectedExecutionException} if the
+     * queue stays full for longer than
+     * {@link WriteBehindConfig#getOfferTimeoutMillis()} or the queue is shut
+     * down, and with an {@link IllegalStateException} if the entity can't be
+     * mapped to JSON.
+     */
+    public CompletableFuture<Void> save(final T entity) {
+        final Object pk = mapper.primaryKeyOf(entity);
+        final CompletableFuture<Void> future;
+        final boolean full;
+        lock.lock();
+        try {
+            if(shutdown) {
+                rejected.incrementAndGet();
+                return failed(shutDown());
+            }
+            Pending<T> existing = pending.get(pk);
+            if(existing == null) {
+                existing = overflow.get(pk);
+            }
+            if(existing != null) {
+                existing.entity = entity;
+                existing.writers.add(mapper.getStore().getReplicas().writer());
+                coalesced.incrementAndGet();
+                return existing.future;
+            }
+            final Pending<T> added = new Pending<>(entity, System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(config.getOfferTimeoutMillis()));
+            added.writers.add(mapper.getStore().getReplicas().writer());
+            if(pending.size() < config.getCapacity()) {
+                pending.put(pk, added);
+            } else if(config.getOfferTimeoutMillis() > 0L && overflow.size() < config.getCapacity()) {
+                // Picked up by a flusher once there's room, or failed once
+                // it's waited too long
+                overflow.put(pk, added);
+            } else {
+                rejected.incrementAndGet();
+                return failed(new RejectedExecutionException("Write-behind queue for " + mapper.getTableName()
+                        + " is full (" + config.getCapacity() + " entities)"));
+            }
+            enqueued.incrementAndGet();
+            future = added.future;
+            full = pending.size() >= config.getBatchSize();
+        } finally {
+            lock.unlock();
+        }
+        if(full) {
+            try {
+                flushers.execute(this::flushBatch);
+            } catch(final RejectedExecutionException ignored) {
+                // Shutting down. It was queued before shutdown() stopped
+                // accepting saves, so its final flush writes it, or fails it
+                // if it can't
+            }
+        }
+        return future;
+    }
+    
+    /**
+     * Writes everything that is currently queued, blocking until done.
+     */
+    public void flush() {
+        while(flushBatch() > 0) {
+            // Keep going until the queue is drained
+        }
+    }
+    
+    /**
+     * Stops accepting new saves, writes everything that is still queued, and
+     * stops the flusher threads. Saves that are still queued after that, ex.
+     * because a flusher didn't stop in time, fail with a
+     * {@link RejectedExecutionException}, so no future is left hanging.
+     */
+    public void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+        } finally {
+            lock.unlock();
+        }
+        flushers.shutdown();
+        try {
+            if(!flushers.awaitTermination(30, TimeUnit.SECONDS)) {
+                logger.warn("Write-behind flushers for {} didn't stop in time!", mapper.getTableName());
+            }
+        } catch(final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        final List<Pending<T>> left = new ArrayList<>();
+        lock.lock();
+        try {
+            left.addAll(pending.values());
+            left.addAll(overflow.values());
+            pending.clear();
+            overflow.clear();
+        } finally {
+            lock.unlock();
+        }
+        rejected.addAndGet(left.size());
+        for(final Pending<T> p : left) {
+            p.future.completeExceptionally(shutDown());
+        }
+    }
+    
+    /**
+     * @return The number of entities currently waiting to be written,
+     * including those waiting for room in the queue.
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return pending.size() + overflow.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public int getCapacity() {
+        return config.getCapacity();
+    }
+    
+    /**
+     * @return The number of saves that added a new entity to the queue.
+     */
+    public long getEnqueued() {
+        return enqueued.get();
+    }
+    
+    /**
+     * @return The number of saves that replaced an already-queued entity.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+    
+    /**
+     * @return The number of entities successfully written.
+     */
+    public long getFlushed() {
+        return flushed.get();
+    }
+    
+    /**
+     * @return The number of entities whose batch failed to write, that
+     * lost a version conflict, or that couldn't be mapped to JSON.
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+    
+    /**
+     * @return The number of saves rejected because the queue was full for
+     * too long, or shut down.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+    
+    private int flushBatch() {
+        final List<Object> keys = new ArrayList<>();
+        final List<Pending<T>> batch = new ArrayList<>();
+        final List<Pending<T>> expired = new ArrayList<>();
+        lock.lock();
+        try {
+            admit(expired);
+            final Iterator<Map.Entry<Object, Pending<T>>> iterator = pending.entrySet().iterator();
+            while(iterator.hasNext() && batch.size() < config.getBatchSize()) {
+                final Map.Entry<Object, Pending<T>> entry = iterator.next();
+                if(inFlight.add(entry.getKey())) {
+                    keys.add(entry.getKey());
+                    batch.add(entry.getValue());
+                    iterator.remove();
+                }
+            }
+            admit(expired);
+        } finally {
+            lock.unlock();
+        }
+        rejected.addAndGet(expired.size());
+        for(final Pending<T> p : expired) {
+            p.future.completeExceptionally(new RejectedExecutionException("Write-behind queue for " + mapper.getTableName()
+                    + " stayed full (" + config.getCapacity() + " entities) for too long"));
+        }
+        if(batch.isEmpty()) {
+            return 0;
+        }
+        final List<T> entities = new ArrayList<>(batch.size());
+        for(final Pending<T> p : batch) {
+            entities.add(p.entity);
+        }
+        try {
+            final Set<T> conflicts = Collections.newSetFromMap(new IdentityHashMap<>());
+            final Set<T> unmapped = Collections.newSetFromMap(new IdentityHashMap<>());
+            conflicts.addAll(mapper.saveAll(entities, unmapped::add));
+            flushed.addAndGet(batch.size() - conflicts.size() - unmapped.size());
+            failed.addAndGet(conflicts.size() + unmapped.size());
+            for(final Pending<T> p : batch) {
+                if(conflicts.contains(p.entity)) {
+                    p.future.completeExceptionally(new VersionConflictException(p.entity));
+                } else if(unmapped.contains(p.entity)) {
+                    p.future.completeExceptionally(new IllegalStateException("Couldn't map entity " + p.entity + " to JSON"));
+                } else {
+                    // The callers' reads have to see it from now on, not
+                    // just the flusher's
+                    p.writers.forEach(Runnable::run);
+                    p.future.complete(null);
+                }
+            }
+        } catch(final RuntimeException e) {
+            logger.error("Couldn't flush {} queued entities to {}:", batch.size(), mapper.getTableName(), e);
+            failed.addAndGet(batch.size());
+            for(final Pending<T> p : batch) {
+                p.future.completeExceptionally(e);
+            }
+        } finally {
+            lock.lock();
+            try {
+                inFlight.removeAll(keys);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return batch.size();
+    }
+    
+    /**
+     * Moves saves waiting for room into the queue while there's room, and
+     * takes out the ones that waited too long. Called with the lock held.
+     */
+    private void admit(final List<Pending<T>> expired) {
+        final long now = System.nanoTime();
+        final Iterator<Map.Entry<Object, Pending<T>>> iterator = overflow.entrySet().iterator();
+        while(iterator.hasNext()) {
+            final Map.Entry<Object, Pending<T>> entry = iterator.next();
+            if(pending.size() < config.getCapacity()) {
+                pending.put(entry.getKey(), entry.getValue());
+                iterator.remove();
+            } else if(now - entry.getValue().deadline >= 0L) {
+                expired.add(entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+    
+    private RejectedExecutionException shutDown() {
+        return new RejectedExecutionException("Write-behind queue for " + mapper.getTableName() + " is shut down");
+    }
+    
+    private static <V> CompletableFuture<V> failed(final Throwable t) {
+        final CompletableFuture<V> future = new CompletableFuture<>();
+        future.completeExceptionally(t);
+        return future;
+    }
+    
+    private static final class Pending<T> {
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        /**
+         * When a save waiting for room gives up, in {@link System#nanoTime()}.
+         */
+        private final long deadline;
+        /**
+         * Pin every caller that saved the entity to the primary. Guarded by
+         * the queue's lock until the entity is taken out of the queue.
+         */
+        private final List<Runnable> writers = new ArrayList<>(1);
+        private T entity;
+        
+        private Pending(final T entity, final long deadline) {
+            this.entity = entity;
+            this.deadline = deadline;
+        }
+    }
+}
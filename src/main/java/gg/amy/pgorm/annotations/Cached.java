@@ -0,0 +1,46 @@
+package gg.amy.pgorm.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Turns on an in-memory, read-through cache for the entity class. Loads by
+ * primary key are served from the cache when possible, and saves invalidate
+ * the cached entity. Only classes with this annotation are cached. <p />
+ *
+ * If the same database is shared by several processes, set
+ * {@link #invalidateAcrossNodes()} so that saves and deletes made by any of
+ * them evict the entity from all of their caches. <p />
+ *
+ * Cached entities are handed out to every caller that loads them, so they
+ * should be immutable.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Cached {
+    /**
+     * The maximum number of entities to keep cached. When full, the least
+     * recently used entity is evicted.
+     */
+    int maxSize() default 10_000;
+    
+    /**
+     * How long, in milliseconds, an entity stays cached after being loaded.
+     * <code>0</code> means forever, or until evicted or invalidated.
+     */
+    long ttlMillis() default 0L;
+    
+    /**
+     * Whether saves and deletes should <code>NOTIFY</code> other processes
+     * using the same database, so they can evict the entity from their
+     * caches. Each process then keeps one extra connection open to
+     * <code>LISTEN</code> for them. Invalidations arrive a few milliseconds
+     * after the write commits.
+     */
+    boolean invalidateAcrossNodes() default false;
+}
@@ -0,0 +1,42 @@
+package gg.amy.pgorm.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Extracts the field from the JSONB document into a typed column of its own,
+ * generated by Postgres (<code>GENERATED ALWAYS AS ... STORED</code>, so
+ * Postgres 12 or newer). Saves, partial updates and bulk imports keep it up
+ * to date without sending anything extra. <p />
+ *
+ * Queries filtering or sorting on the field use the column instead of the
+ * document, so they compare real numbers and strings, can use the column's
+ * indexes, and don't have to detoast the document to check the filter. The
+ * column gets a btree index of its own, unless {@link #indexed()} is
+ * <code>false</code>; see {@link Index} for composite, partial and covering
+ * indexes. <p />
+ *
+ * The column's type comes from the field's type: <code>String</code>,
+ * <code>int</code>, <code>long</code>, <code>double</code>,
+ * <code>float</code>, <code>boolean</code> and <code>BigDecimal</code> are
+ * supported. Saving a document whose value can't be cast to it fails.
+ * Adding a column to an existing table rewrites the table.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@Target(ElementType.FIELD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Column {
+    /**
+     * The name of the column. Defaults to the name of the field.
+     */
+    String value() default "";
+    
+    /**
+     * Whether to create a btree index on just this column.
+     */
+    boolean indexed() default true;
+}
@@ -0,0 +1,32 @@
+package gg.amy.pgorm.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Keeps a large, rarely needed part of an entity out of its JSONB document.
+ * The annotated field, which must be a {@link gg.amy.pgorm.Lazy}, is mapped
+ * to JSON on its own, gzipped, and stored in a <code>BYTEA</code> column of
+ * its own. <p />
+ *
+ * Loading an entity doesn't read the column at all: the field is filled in
+ * with a {@link gg.amy.pgorm.Lazy} that fetches and decompresses it the
+ * first time it's asked for. Saving an entity only writes the column if the
+ * field was loaded or set, and otherwise keeps what's already stored. <p />
+ *
+ * The field isn't part of the document, so it can't be queried, indexed or
+ * partially updated. <p />
+ *
+ * You may optionally pass a string to this annotation as the name of the
+ * column. If none is passed in, it will default to the name of the field.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@Target(ElementType.FIELD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Compressed {
+    String value() default "";
+}
@@ -0,0 +1,50 @@
+package gg.amy.pgorm.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Repeatable;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * A btree index on {@link Column} columns, which can be composite, partial
+ * and / or covering. Can be repeated. Ex.
+ * <pre>
+ * &#64;Index(columns = {"guild", "score DESC"}, include = "name", where = "score &gt; 0")
+ * </pre>
+ * Columns are referred to by their column names, and the primary key column
+ * can be used too.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+@Repeatable(Indexes.class)
+public @interface Index {
+    /**
+     * The columns to index, in order. Each can be followed by
+     * <code>ASC</code> / <code>DESC</code>.
+     */
+    String[] columns();
+    
+    /**
+     * Extra columns to store in the index, so that queries which only need
+     * them can be answered from the index alone (Postgres 11 or newer).
+     */
+    String[] include() default {};
+    
+    /**
+     * Makes this a partial index, only covering the rows matching this SQL
+     * condition.
+     */
+    String where() default "";
+    
+    boolean unique() default false;
+    
+    /**
+     * The name of the index. Defaults to
+     * <code>idx_&lt;table&gt;_&lt;columns&gt;</code>.
+     */
+    String name() default "";
+}
@@ -0,0 +1,18 @@
+package gg.amy.pgorm.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Holds repeated {@link Index} annotations.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Indexes {
+    Index[] value();
+}
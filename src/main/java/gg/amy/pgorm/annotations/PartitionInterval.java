@@ -0,0 +1,15 @@
+package gg.amy.pgorm.annotations;
+
+/**
+ * How much time each partition of a {@link Partitioning#RANGE} partitioned
+ * {@link Table} covers. Partitions start at midnight UTC; weeks start on
+ * Monday.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+public enum PartitionInterval {
+    DAY,
+    WEEK,
+    MONTH
+}
@@ -0,0 +1,27 @@
+package gg.amy.pgorm.annotations;
+
+/**
+ * How a {@link Table} is partitioned.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+public enum Partitioning {
+    NONE,
+    /**
+     * Spread rows evenly over {@link Table#partitions()} partitions, by hash
+     * of the primary key. Loads, saves and deletes by primary key only touch
+     * one partition.
+     */
+    HASH,
+    /**
+     * One partition per {@link Table#partitionInterval()} of the
+     * {@link Table#partitionField()} timestamp. Partitions are created ahead
+     * of time and dropped once they're older than
+     * {@link Table#retainedPartitions()}. Rows outside of every partition go
+     * to a default partition. Queries filtering on the timestamp only look at
+     * the partitions they can match; loads by primary key have to check every
+     * partition.
+     */
+    RANGE
+}
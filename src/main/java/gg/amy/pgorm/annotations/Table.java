@@ -20,7 +20,13 @@ import java.lang.annotation.Target;
  * </pre>
  * where the primary key is the field annotated with {@link PrimaryKey}.
  * Indexes over the JSONB data will be generated based on the values passed to
- * the {@link BtreeIndex} or {@link GIndex} annotations.
+ * the {@link BtreeIndex} or {@link GIndex} annotations. <p />
+ *
+ * Very large tables can be split into partitions with {@link #partitioning()}.
+ * Postgres then only has to look at the partitions a query can match, and
+ * vacuum and indexes work on one partition at a time. Partitioning only
+ * applies when the table is created; an existing table has to be migrated by
+ * hand.
  *
  * @author amy
  * @since 4/10/18.
@@ -29,4 +35,41 @@ import java.lang.annotation.Target;
 @Retention(RetentionPolicy.RUNTIME)
 public @interface Table {
     String value();
+    
+    /**
+     * How to partition the table. Not partitioned by default.
+     */
+    Partitioning partitioning() default Partitioning.NONE;
+    
+    /**
+     * The number of partitions to spread the table over, for
+     * {@link Partitioning#HASH}.
+     */
+    int partitions() default 16;
+    
+    /**
+     * The field holding the timestamp to partition by, for
+     * {@link Partitioning#RANGE}. It must be a <code>long</code> of epoch
+     * milliseconds or a {@link java.util.Date}, and must never change once the
+     * entity has been saved.
+     */
+    String partitionField() default "";
+    
+    /**
+     * How much time each partition covers, for {@link Partitioning#RANGE}.
+     */
+    PartitionInterval partitionInterval() default PartitionInterval.MONTH;
+    
+    /**
+     * How many partitions to create ahead of time, for
+     * {@link Partitioning#RANGE}.
+     */
+    int premadePartitions() default 3;
+    
+    /**
+     * How many past partitions to keep, besides the current one, for
+     * {@link Partitioning#RANGE}. Older ones are dropped, which is far
+     * cheaper than deleting their rows. <code>0</code> keeps everything.
+     */
+    int retainedPartitions() default 0;
 }
@@ -0,0 +1,33 @@
+package gg.amy.pgorm.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Turns on optimistic concurrency for an entity class. The annotated field,
+ * which must be a non-final <code>int</code> or <code>long</code>, holds the
+ * version of the entity that was loaded, and is kept in a column of its
+ * own.<p />
+ *
+ * A save only succeeds if the entity's version still matches the one in the
+ * database, and then bumps it by one, updating the field to match once the
+ * save commits. New
+ * entities start at version <code>0</code>. Saves that lose out to a
+ * concurrent save are reported as conflicts instead of overwriting it; see
+ * {@link gg.amy.pgorm.PgMapper#save(Object)} and
+ * {@link gg.amy.pgorm.PgMapper#saveAll(java.util.Collection)}.<p />
+ *
+ * You may optionally pass a string to this annotation as the name of the
+ * version column. If none is passed in, it will default to
+ * <code>version</code>.
+ *
+ * @author amy
+ * @since 10/17/26.
+ */
+@Target(ElementType.FIELD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Version {
+    String value() default "version";
+}
@@ -0,0 +1,62 @@
+package gg.amy.pgorm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author amy
+ * @since 10/17/26.
+ */
+public class EntityCacheTest {
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        final EntityCache<String> cache = new EntityCache<>(2, 0L);
+        cache.put("a", "A", cache.generation());
+        cache.put("b", "B", cache.generation());
+        assertEquals("A", cache.get("a"));
+        cache.put("c", "C", cache.generation());
+        assertNull(cache.get("b"));
+        assertEquals("A", cache.get("a"));
+        assertEquals("C", cache.get("c"));
+        assertEquals(1L, cache.getEvictions());
+        assertEquals(3L, cache.getHits());
+        assertEquals(1L, cache.getMisses());
+    }
+    
+    @Test
+    public void expiresAfterTtl() throws InterruptedException {
+        final EntityCache<String> cache = new EntityCache<>(10, 10L);
+        cache.put("a", "A", cache.generation());
+        Thread.sleep(50L);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+    
+    @Test
+    public void doesNotCacheAfterInvalidation() {
+        final EntityCache<String> cache = new EntityCache<>(10, 0L);
+        final long generation = cache.generation();
+        // A save happened while the entity was being loaded
+        cache.invalidate("a");
+        cache.put("a", "stale", generation);
+        assertNull(cache.get("a"));
+    }
+    
+    @Test
+    public void invalidationOnlyAffectsItsKey() {
+        final EntityCache<String> cache = new EntityCache<>(1, 0L);
+        final long generation = cache.generation();
+        cache.invalidate("a");
+        cache.put("b", "B", generation);
+        assertEquals("B", cache.get("b"));
+        // Only one invalidation is remembered, so forgetting "a" has to err
+        // on the side of not caching
+        cache.invalidate("c");
+        cache.put("d", "D", generation);
+        assertNull(cache.get("d"));
+        cache.put("d", "D", cache.generation());
+        assertEquals("D", cache.get("d"));
+    }
+}
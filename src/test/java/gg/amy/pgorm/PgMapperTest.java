@@ -1,18 +1,64 @@
 package gg.amy.pgorm;
 
+import com.zaxxer.hikari.HikariConfig;
+import gg.amy.pgorm.ConcurrencyLimiter.Lane;
 import gg.amy.pgorm.annotations.BtreeIndex;
+import gg.amy.pgorm.annotations.Cached;
+import gg.amy.pgorm.annotations.Column;
+import gg.amy.pgorm.annotations.Compressed;
+import gg.amy.pgorm.annotations.Index;
+import gg.amy.pgorm.annotations.PartitionInterval;
+import gg.amy.pgorm.annotations.Partitioning;
 import gg.amy.pgorm.annotations.PrimaryKey;
 import gg.amy.pgorm.annotations.Table;
+import gg.amy.pgorm.annotations.Version;
 import lombok.EqualsAndHashCode;
 import lombok.ToString;
 import lombok.Value;
+import lombok.experimental.NonFinal;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IntSummaryStatistics;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author amy
@@ -21,6 +67,11 @@ import static org.junit.Assert.assertEquals;
 @SuppressWarnings("WeakerAccess")
 public class PgMapperTest {
     public static final String TEST_DATA_TABLE = "test_data_table";
+    public static final String SCORED_TEST_DATA_TABLE = "scored_test_data_table";
+    public static final String EVENT_TEST_DATA_TABLE = "event_test_data_table";
+    public static final String HASHED_TEST_DATA_TABLE = "hashed_test_data_table";
+    public static final String LARGE_TEST_DATA_TABLE = "large_test_data_table";
+    public static final String NUMERIC_TEST_DATA_TABLE = "numeric_test_data_table";
     
     private PgStore store;
     
@@ -80,6 +131,1094 @@ public class PgMapperTest {
         }
     }
     
+    @Test
+    public void saveAll() {
+        if(!canTest()) {
+            return;
+        }
+        final List<CorrectTestDataClass> entities = new ArrayList<>();
+        for(int i = 0; i < 1234; i++) {
+            entities.add(new CorrectTestDataClass("save-all-" + i, "test " + i, "something"));
+        }
+        final PgMapper<CorrectTestDataClass> mapper = store.mapSync(CorrectTestDataClass.class);
+        mapper.setSaveChunkSize(100);
+        mapper.saveAll(entities);
+        for(final CorrectTestDataClass entity : entities) {
+            assertEquals(Optional.of(entity), mapper.load(entity.getId()));
+        }
+        System.out.println("saveAll(): Successfully saved " + entities.size() + " entities");
+    }
+    
+    @Test
+    public void writeBehindCoalescesSaves() throws InterruptedException {
+        if(!canTest()) {
+            return;
+        }
+        final AsyncPgMapper<CorrectTestDataClass> async = store.mapAsync(CorrectTestDataClass.class);
+        async.enableWriteBehind(WriteBehindConfig.builder().flushIntervalMillis(1000L).build());
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        CorrectTestDataClass last = null;
+        for(int i = 0; i < 100; i++) {
+            last = new CorrectTestDataClass("write-behind", "test " + i, "something");
+            futures.add(async.save(last));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        assertEquals(Optional.of(last), store.mapSync(CorrectTestDataClass.class).load("write-behind"));
+        assertEquals(99L, async.getWriteBehind().getCoalesced());
+        async.disableWriteBehind();
+        // Saves racing with shutting down are either written or rejected,
+        // never left hanging
+        async.enableWriteBehind(WriteBehindConfig.builder().flushIntervalMillis(1000L).build());
+        final WriteBehindQueue<CorrectTestDataClass> queue = async.getWriteBehind();
+        final List<CompletableFuture<Void>> racing = new CopyOnWriteArrayList<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for(int i = 0; i < 4; i++) {
+                final int thread = i;
+                executor.execute(() -> {
+                    for(int j = 0; j < 1000; j++) {
+                        racing.add(queue.save(new CorrectTestDataClass("racing-" + thread + '-' + j, "test", "something")));
+                    }
+                });
+            }
+            async.disableWriteBehind();
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        for(final CompletableFuture<Void> future : racing) {
+            assertTrue(future.isDone());
+            if(future.isCompletedExceptionally()) {
+                try {
+                    future.join();
+                    throw new AssertionError("Expected the save to be rejected");
+                } catch(final CompletionException e) {
+                    assertTrue(e.getCause() instanceof RejectedExecutionException);
+                }
+            }
+        }
+        assertEquals(0, queue.getQueueDepth());
+    }
+    
+    @Test
+    public void loadMany() {
+        if(!canTest()) {
+            return;
+        }
+        final PgMapper<CorrectTestDataClass> mapper = store.mapSync(CorrectTestDataClass.class);
+        final CorrectTestDataClass a = new CorrectTestDataClass("a", "test a", "something");
+        final CorrectTestDataClass b = new CorrectTestDataClass("b", "test b", "something");
+        mapper.saveAll(Arrays.asList(a, b));
+        mapper.setLoadChunkSize(1);
+        final Map<Object, CorrectTestDataClass> loaded = mapper.loadMany(Arrays.asList("a", "b", "missing"));
+        assertEquals(2, loaded.size());
+        assertEquals(a, loaded.get("a"));
+        assertEquals(b, loaded.get("b"));
+    }
+    
+    @Test
+    public void loadManyByPassedKeys() {
+        if(!canTest()) {
+            return;
+        }
+        try {
+            final PgMapper<NumericTestDataClass> mapper = store.mapSync(NumericTestDataClass.class);
+            final NumericTestDataClass one = new NumericTestDataClass(1, "one");
+            final NumericTestDataClass two = new NumericTestDataClass(2, "two");
+            mapper.saveAll(Arrays.asList(one, two));
+            // Longs for an int key come back under the same Longs
+            final Map<Object, NumericTestDataClass> loaded = mapper.loadMany(Arrays.asList(1L, 2L, 3L));
+            assertEquals(2, loaded.size());
+            assertEquals(one, loaded.get(1L));
+            assertEquals(two, loaded.get(2L));
+            assertEquals(Optional.of(one), mapper.load(1L));
+        } finally {
+            store.sql("DROP TABLE IF EXISTS " + NUMERIC_TEST_DATA_TABLE + ';');
+        }
+    }
+    
+    @Test
+    public void coalescedAsyncLoads() {
+        if(!canTest()) {
+            return;
+        }
+        final List<CorrectTestDataClass> entities = new ArrayList<>();
+        for(int i = 0; i < 50; i++) {
+            entities.add(new CorrectTestDataClass("coalesced-" + i, "test " + i, "something"));
+        }
+        store.mapSync(CorrectTestDataClass.class).saveAll(entities);
+        final AsyncPgMapper<CorrectTestDataClass> async = store.mapAsync(CorrectTestDataClass.class);
+        async.enableLoadCoalescing(50L, 1000);
+        final List<CompletableFuture<Optional<CorrectTestDataClass>>> futures = new ArrayList<>();
+        for(final CorrectTestDataClass entity : entities) {
+            futures.add(async.load(entity.getId()));
+        }
+        for(int i = 0; i < entities.size(); i++) {
+            assertEquals(Optional.of(entities.get(i)), futures.get(i).join());
+        }
+        assertEquals(1L, async.getLoadCoalescer().getBatches());
+        async.disableLoadCoalescing();
+    }
+    
+    @Test
+    public void concurrencyLimit() {
+        if(!canTest()) {
+            return;
+        }
+        final CorrectTestDataClass entity = new CorrectTestDataClass("limited", "test", "something");
+        final AsyncPgMapper<CorrectTestDataClass> async = store.mapAsync(CorrectTestDataClass.class);
+        store.enableConcurrencyLimit(ConcurrencyLimitConfig.builder().initialLimit(1).minLimit(1).maxLimit(1)
+                .maxQueuedReads(0).build());
+        try {
+            final ConcurrencyLimiter limiter = store.getConcurrencyLimiter();
+            async.save(entity).join();
+            assertEquals(Optional.of(entity), async.load("limited").join());
+            // Hold the only slot, so that reads have nowhere to go
+            final CompletableFuture<Object> slow = limiter.submit(Lane.WRITE, () -> {
+                store.sql("SELECT pg_sleep(0.5);");
+                return null;
+            }, store.getAsyncExecutor());
+            final CompletableFuture<Optional<CorrectTestDataClass>> rejected = async.load("limited");
+            final CompletableFuture<Void> queued = async.delete("limited");
+            assertTrue(rejected.isCompletedExceptionally());
+            assertEquals(1L, limiter.getRejected(Lane.READ));
+            assertEquals(1, limiter.getQueued(Lane.WRITE));
+            slow.join();
+            queued.join();
+            assertEquals(Optional.empty(), async.load("limited").join());
+            // Errors fail the future and give the slot back, too
+            final CompletableFuture<Object> error = limiter.submit(Lane.WRITE, () -> {
+                throw new StackOverflowError();
+            }, store.getAsyncExecutor());
+            try {
+                error.join();
+                throw new AssertionError("Expected the work to fail");
+            } catch(final CompletionException e) {
+                assertTrue(e.getCause() instanceof StackOverflowError);
+            }
+            assertEquals(0, limiter.getInFlight());
+            assertEquals(Optional.empty(), async.load("limited").join());
+        } finally {
+            store.disableConcurrencyLimit();
+        }
+    }
+    
+    @Test
+    public void concurrencyLimitAdapts() {
+        if(!canTest()) {
+            return;
+        }
+        store.enableConcurrencyLimit(ConcurrencyLimitConfig.builder().initialLimit(8).minLimit(2).maxLimit(64)
+                .sampleWindowMillis(20L).baselineWindow(20).smoothing(0.5D).build());
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            final ConcurrencyLimiter limiter = store.getConcurrencyLimiter();
+            // As fast as usual, so the limit grows
+            final int grown = drive(limiter, executor, 500L, i -> sleeping(5L)).getMax();
+            assertTrue(grown > 8);
+            // Ten times slower, so it shrinks
+            final int shrunk = drive(limiter, executor, 300L, i -> sleeping(50L)).getMin();
+            assertTrue(shrunk < grown);
+            // Fast again, so it grows back
+            final int recovered = drive(limiter, executor, 1_000L, i -> sleeping(5L)).getMax();
+            assertTrue(recovered > shrunk);
+            // Fast failures aren't latencies, so they don't make the usual
+            // latency look lower than it is...
+            drive(limiter, executor, 1_000L, i -> i % 4 == 0 ? sleeping(5L) : () -> {
+                throw new VersionConflictException("conflicted");
+            });
+            final int before = limiter.getLimit();
+            // ...and the same latency as before doesn't look slow afterwards
+            final int after = drive(limiter, executor, 300L, i -> sleeping(5L)).getMin();
+            assertTrue(after >= before);
+        } finally {
+            store.disableConcurrencyLimit();
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * Keeps the limiter full of work for a while.
+     *
+     * @return The limits seen after every round of work.
+     */
+    private static IntSummaryStatistics drive(final ConcurrencyLimiter limiter, final Executor executor, final long millis,
+                                              final IntFunction<Supplier<Object>> work) {
+        final IntSummaryStatistics limits = new IntSummaryStatistics();
+        final long deadline = System.currentTimeMillis() + millis;
+        while(System.currentTimeMillis() < deadline) {
+            final List<CompletableFuture<Object>> round = new ArrayList<>();
+            final int limit = limiter.getLimit();
+            for(int i = 0; i < limit; i++) {
+                round.add(limiter.submit(Lane.WRITE, work.apply(i), executor).exceptionally(e -> null));
+            }
+            round.forEach(CompletableFuture::join);
+            limits.accept(limiter.getLimit());
+        }
+        return limits;
+    }
+    
+    private static Supplier<Object> sleeping(final long millis) {
+        return () -> {
+            try {
+                Thread.sleep(millis);
+            } catch(final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        };
+    }
+    
+    @Test
+    public void streamManyBySubkey() {
+        if(!canTest()) {
+            return;
+        }
+        final PgMapper<CorrectTestDataClass> mapper = store.mapSync(CorrectTestDataClass.class);
+        final List<CorrectTestDataClass> entities = new ArrayList<>();
+        for(int i = 0; i < 250; i++) {
+            entities.add(new CorrectTestDataClass("stream-" + i, "test " + i, i % 2 == 0 ? "even" : "odd"));
+        }
+        mapper.saveAll(entities);
+        mapper.setFetchSize(10);
+        try(final Stream<CorrectTestDataClass> stream = mapper.streamManyBySubkey("data->>'something'", "even")) {
+            assertEquals(125L, stream.count());
+        }
+        try(final Stream<CorrectTestDataClass> stream = mapper.streamAll()) {
+            assertEquals(entities.size(), stream.map(CorrectTestDataClass::getId).collect(Collectors.toSet()).size());
+        }
+    }
+    
+    @Test
+    public void query() {
+        if(!canTest()) {
+            return;
+        }
+        final PgMapper<CorrectTestDataClass> mapper = store.mapSync(CorrectTestDataClass.class);
+        final List<CorrectTestDataClass> entities = new ArrayList<>();
+        for(int i = 0; i < 10; i++) {
+            entities.add(new CorrectTestDataClass("query-" + i, "name-" + i, i < 5 ? "low" : "high"));
+        }
+        mapper.saveAll(entities);
+        assertEquals(Collections.singletonList(entities.get(3)), mapper.query().eq("name", "name-3").list());
+        assertEquals(5L, mapper.query().eq("something", "high").count());
+        assertEquals(3L, mapper.query().gte("name", "name-7").count());
+        assertEquals(2L, mapper.query().in("name", Arrays.asList("name-1", "name-2", "nope")).count());
+        assertEquals(5L, mapper.query().contains(Collections.singletonMap("something", "low")).count());
+        assertEquals(10L, mapper.query().exists("something").count());
+        final List<CorrectTestDataClass> firstPage = mapper.query().orderBy("name").limit(4).list();
+        assertEquals(entities.subList(0, 4), firstPage);
+        final CorrectTestDataClass last = firstPage.get(firstPage.size() - 1);
+        final List<CorrectTestDataClass> secondPage = mapper.query().orderBy("name").after(last.getName(), last.getId())
+                .limit(4).list();
+        assertEquals(entities.subList(4, 8), secondPage);
+        final Optional<CorrectTestDataClass> projected = mapper.query().eq("name", "name-1").select("name").first();
+        assertEquals(Optional.of(new CorrectTestDataClass(null, "name-1", null)), projected);
+    }
+    
+    @Test
+    public void generatedColumns() {
+        if(!canTest()) {
+            return;
+        }
+        final PgMapper<ScoredTestDataClass> mapper = store.mapSync(ScoredTestDataClass.class);
+        try {
+            for(int i = 0; i < 20; i++) {
+                mapper.save(new ScoredTestDataClass("scored-" + i, i % 2 == 0 ? "even" : "odd", i));
+            }
+            // Compared as numbers, not as JSON
+            final Query<ScoredTestDataClass> query = mapper.query().eq("kind", "even").gte("score", 9).orderByDescending("score");
+            assertTrue(query.sql().contains("score >= ?::INT"));
+            final List<Integer> scores = query.list().stream().map(ScoredTestDataClass::getScore).collect(Collectors.toList());
+            assertEquals(Arrays.asList(18, 16, 14, 12, 10), scores);
+            assertEquals(2L, mapper.query().in("score", Arrays.asList(3, 4)).count());
+            assertEquals(Arrays.asList(9, 8), mapper.query().orderByDescending("score").after(10, "scored-10").limit(2).list()
+                    .stream().map(ScoredTestDataClass::getScore).collect(Collectors.toList()));
+            mapper.update().increment("score", 100).execute("scored-0");
+            assertEquals(1L, mapper.query().gt("score", 99).count());
+        } finally {
+            store.sql("DROP TABLE IF EXISTS " + SCORED_TEST_DATA_TABLE + ';');
+        }
+    }
+    
+    @Test
+    public void partitionedTables() {
+        if(!canTest()) {
+            return;
+        }
+        final PgMapper<EventTestDataClass> events = store.mapSync(EventTestDataClass.class);
+        final PgMapper<HashedTestDataClass> hashed = store.mapSync(HashedTestDataClass.class);
+        try {
+            final long now = System.currentTimeMillis();
+            final long day = TimeUnit.DAYS.toMillis(1);
+            for(int i = 0; i < 3; i++) {
+                events.save(new EventTestDataClass("event-" + i, now + i * day));
+                hashed.save(new HashedTestDataClass("hashed-" + i, "name " + i));
+            }
+            // Saving again updates the row in place
+            events.save(new EventTestDataClass("event-0", now));
+            assertEquals(3L, events.query().count());
+            assertEquals(Optional.of(new EventTestDataClass("event-1", now + day)), events.load("event-1"));
+            assertEquals(Optional.of(new HashedTestDataClass("hashed-2", "name 2")), hashed.load("hashed-2"));
+            // Today's partition and the ones after it exist, so nothing went
+            // to the default partition
+            final long[] counts = new long[2];
+            store.sql("SELECT count(*), (SELECT count(*) FROM " + EVENT_TEST_DATA_TABLE + "_default) FROM pg_inherits "
+                    + "WHERE inhparent = '" + EVENT_TEST_DATA_TABLE + "'::regclass;", s -> {
+                try(final ResultSet resultSet = s.executeQuery()) {
+                    resultSet.next();
+                    counts[0] = resultSet.getLong(1);
+                    counts[1] = resultSet.getLong(2);
+                }
+            });
+            assertEquals(5L, counts[0]);
+            assertEquals(0L, counts[1]);
+            final Query<EventTestDataClass> recent = events.query().gte("at", now + day);
+            assertTrue(recent.sql().contains("at >= ?::TIMESTAMPTZ"));
+            assertEquals(2L, recent.count());
+        } finally {
+            store.sql("DROP TABLE IF EXISTS " + EVENT_TEST_DATA_TABLE + ", " + HASHED_TEST_DATA_TABLE + ';');
+        }
+    }
+    
+    @Test
+    public void compressedFieldsAndProjections() {
+        if(!canTest()) {
+            return;
+        }
+        final PgMapper<LargeTestDataClass> mapper = store.mapSync(LargeTestDataClass.class);
+        try {
+            final List<String> history = IntStream.range(0, 1000).mapToObj(i -> "entry " + i).collect(Collectors.toList());
+            mapper.save(new LargeTestDataClass("large", "some name", Lazy.of(history)));
+            final LargeTestDataClass loaded = mapper.load("large").orElseThrow(IllegalStateException::new);
+            assertFalse(loaded.getHistory().isLoaded());
+            // Saving without loading the field keeps what's stored
+            mapper.save(new LargeTestDataClass("large", "new name", loaded.getHistory()));
+            assertEquals(history, mapper.load("large").orElseThrow(IllegalStateException::new).getHistory().get());
+            assertEquals(Optional.of(new NameView("new name")), mapper.project(NameView.class).load("large"));
+            assertEquals(Collections.singletonList(new NameView("new name")), mapper.query().eq("name", "new name").list(NameView.class));
+            assertEquals(Collections.singletonMap("name", "new name"), mapper.project(Map.class, "name").load("large").orElse(null));
+            // A row that's gone can't be loaded, and a save doesn't write
+            // anything over the field
+            final LargeTestDataClass gone = mapper.load("large").orElseThrow(IllegalStateException::new);
+            mapper.delete("large");
+            try {
+                gone.getHistory().get();
+                throw new AssertionError("Loading a field of a deleted entity should fail");
+            } catch(final IllegalStateException e) {
+                assertFalse(gone.getHistory().isLoaded());
+            }
+            mapper.save(new LargeTestDataClass("large", "some name", Lazy.of(history)));
+            mapper.save(gone);
+            assertEquals(history, mapper.load("large").orElseThrow(IllegalStateException::new).getHistory().get());
+            // Nor does a null
+            mapper.save(new LargeTestDataClass("large", "some name", Lazy.of(null)));
+            assertEquals(history, mapper.load("large").orElseThrow(IllegalStateException::new).getHistory().get());
+            final ReactivePgStore reactive = ReactivePgStore.fromEnv();
+            reactive.connect();
+            try {
+                final ReactivePgMapper<LargeTestDataClass> async = reactive.mapAsync(LargeTestDataClass.class);
+                final LargeTestDataClass fetched = async.load("large").join().orElseThrow(IllegalStateException::new);
+                assertFalse(fetched.getHistory().isLoaded());
+                assertEquals(history, async.loadCompressed(fetched).join().getHistory().get());
+            } finally {
+                reactive.disconnect();
+            }
+        } finally {
+            store.sql("DROP TABLE IF EXISTS " + LARGE_TEST_DATA_TABLE + ';');
+        }
+    }
+    
+    @Test
+    public void bulkImport() {
+        if(!canTest()) {
+            return;
+        }
+        final PgMapper<CorrectTestDataClass> mapper = store.mapSync(CorrectTestDataClass.class);
+        final List<ImportProgress> reports = new ArrayList<>();
+        // Tabs, newlines and backslashes all need escaping in COPY data
+        final ImportProgress done = mapper.bulkImport(IntStream.range(0, 25_000)
+                .mapToObj(i -> new CorrectTestDataClass("import-" + (i % 20_000), "name\t" + i, "a\\b\nc")), reports::add);
+        assertEquals(25_000L, done.getEntities());
+        assertEquals(2, reports.size());
+        // The last duplicate wins
+        assertEquals(Optional.of(new CorrectTestDataClass("import-5", "name\t20005", "a\\b\nc")), mapper.load("import-5"));
+        assertEquals(Optional.of(new CorrectTestDataClass("import-19999", "name\t19999", "a\\b\nc")),
+                mapper.load("import-19999"));
+    }
+    
+    @Test
+    public void update() {
+        if(!canTest()) {
+            return;
+        }
+        final PgMapper<CorrectTestDataClass> mapper = store.mapSync(CorrectTestDataClass.class);
+        final List<CorrectTestDataClass> entities = new ArrayList<>();
+        for(int i = 0; i < 3; i++) {
+            entities.add(new CorrectTestDataClass("update-" + i, "name-" + i, "something"));
+        }
+        mapper.saveAll(entities);
+        final List<String> pks = Arrays.asList("update-0", "update-1", "update-2", "update-missing");
+        assertEquals(3, mapper.update().set("name", "renamed").execute(pks));
+        assertTrue(mapper.update().merge(Collections.singletonMap("something", "merged")).execute("update-0"));
+        assertFalse(mapper.update().set("name", "nope").execute("update-missing"));
+        assertEquals(Optional.of(new CorrectTestDataClass("update-0", "renamed", "merged")), mapper.load("update-0"));
+        assertEquals(Optional.of(new CorrectTestDataClass("update-1", "renamed", "something")), mapper.load("update-1"));
+        // Increments happen in the database, so none of them get lost
+        final AsyncPgMapper<CorrectTestDataClass> async = store.mapAsync(CorrectTestDataClass.class);
+        final List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for(int i = 0; i < 20; i++) {
+            futures.add(async.update(async.update().increment("counter", 2), pks));
+        }
+        futures.forEach(CompletableFuture::join);
+        assertEquals(3L, mapper.query().eq("counter", 40).count());
+        mapper.update().remove("counter").execute(pks);
+        assertEquals(0L, mapper.query().exists("counter").count());
+    }
+    
+    @Test
+    public void transaction() {
+        if(!canTest()) {
+            return;
+        }
+        final PgMapper<CorrectTestDataClass> mapper = store.mapSync(CorrectTestDataClass.class);
+        final CorrectTestDataClass first = new CorrectTestDataClass("tx-1", "first", "something");
+        final CorrectTestDataClass second = new CorrectTestDataClass("tx-2", "second", "something");
+        store.transaction(tx -> {
+            mapper.save(first);
+            mapper.save(second);
+            // Queued saves are written before anything reads them
+            assertEquals(Optional.of(first), mapper.load("tx-1"));
+            mapper.delete("tx-2");
+        });
+        assertEquals(Optional.of(first), mapper.load("tx-1"));
+        assertEquals(Optional.empty(), mapper.load("tx-2"));
+        try {
+            store.transaction(tx -> {
+                mapper.save(second);
+                throw new IllegalStateException("roll back");
+            });
+        } catch(final IllegalStateException ignored) {
+        }
+        assertEquals(Optional.empty(), mapper.load("tx-2"));
+        // Serialization failures retry the whole transaction
+        final int[] attempts = {0};
+        store.transaction(TransactionConfig.builder().isolation(Connection.TRANSACTION_SERIALIZABLE).build(), tx -> {
+            mapper.save(second);
+            if(++attempts[0] < 3) {
+                throw new SQLException("could not serialize access", "40001");
+            }
+        });
+        assertEquals(3, attempts[0]);
+        assertEquals(Optional.of(second), mapper.load("tx-2"));
+    }
+    
+    @Test
+    public void versionedSave() {
+        if(!canTest()) {
+            return;
+        }
+        // Same table, so this also covers adding the version column to an existing table
+        final PgMapper<VersionedTestDataClass> mapper = store.mapSync(VersionedTestDataClass.class);
+        final VersionedTestDataClass entity = new VersionedTestDataClass("versioned", "first", 0L);
+        mapper.save(entity);
+        assertEquals(1L, entity.getVersion());
+        final VersionedTestDataClass loaded = mapper.load("versioned").orElseThrow(IllegalStateException::new);
+        assertEquals(1L, loaded.getVersion());
+        mapper.save(loaded);
+        assertEquals(2L, loaded.getVersion());
+        // entity is still at version 1, so it lost
+        try {
+            mapper.save(entity);
+            throw new AssertionError("Stale save didn't conflict");
+        } catch(final VersionConflictException e) {
+            assertEquals(entity, e.getEntity());
+        }
+        final VersionedTestDataClass fresh = new VersionedTestDataClass("versioned-new", "new", 0L);
+        final VersionedTestDataClass stale = new VersionedTestDataClass("versioned", "stale", 1L);
+        assertEquals(Collections.singletonList(stale), mapper.saveAll(Arrays.asList(fresh, stale)));
+        assertEquals(1L, fresh.getVersion());
+        assertEquals(Optional.of(new VersionedTestDataClass("versioned", "first", 2L)), mapper.load("versioned"));
+        mapper.update().set("name", "updated").execute("versioned");
+        assertEquals(3L, mapper.load("versioned").map(VersionedTestDataClass::getVersion).orElse(0L).longValue());
+        // Versions only move on once the save commits
+        final VersionedTestDataClass rolledBack = mapper.load("versioned").orElseThrow(IllegalStateException::new);
+        try {
+            store.transaction(tx -> {
+                mapper.save(rolledBack);
+                throw new IllegalStateException("roll back");
+            });
+        } catch(final IllegalStateException ignored) {
+        }
+        assertEquals(3L, rolledBack.getVersion());
+        mapper.save(rolledBack);
+        assertEquals(4L, rolledBack.getVersion());
+    }
+    
+    @Test
+    public void metrics() {
+        if(!canTest()) {
+            return;
+        }
+        final Map<String, Long> recorded = new ConcurrentHashMap<>();
+        store.setMetrics(new PgMetrics() {
+            @Override
+            public void recordTime(final String table, final Operation operation, final Phase phase, final long nanos) {
+                recorded.merge(operation.tag() + '.' + phase.tag(), 1L, Long::sum);
+            }
+            
+            @Override
+            public void recordRows(final String table, final Operation operation, final long rows) {
+                recorded.merge(operation.tag() + ".rows", rows, Long::sum);
+            }
+        });
+        final PgMapper<CorrectTestDataClass> mapper = store.mapSync(CorrectTestDataClass.class);
+        mapper.save(new CorrectTestDataClass("metrics", "test", "something"));
+        mapper.load("metrics");
+        for(final String key : Arrays.asList("save.serialize", "save.acquire", "save.execute", "load.acquire",
+                "load.execute", "load.deserialize", "load.rows")) {
+            assertEquals(key, 1L, (long) recorded.get(key));
+        }
+        store.setMetrics(PgMetrics.NOOP);
+    }
+    
+    @Test
+    public void slowQuery() throws InterruptedException {
+        if(!canTest()) {
+            return;
+        }
+        final BlockingQueue<SlowQuery> reports = new LinkedBlockingQueue<>();
+        final Consumer<SlowQuery> listener = store.getSlowQueryListener();
+        final double sampleRate = store.getExplainSampleRate();
+        store.setSlowQueryListener(reports::add);
+        store.setSlowQueryThresholdMillis(20L);
+        store.setExplainSampleRate(1D);
+        try {
+            store.sql("SELECT pg_sleep(?);", c -> {
+                c.setDouble(1, 0.01D);
+                c.execute();
+                c.setDouble(1, 0.05D);
+                c.execute();
+            });
+            // Only the slow execution, with its own parameters
+            final SlowQuery report = reports.poll(5L, TimeUnit.SECONDS);
+            assertNotNull(report);
+            assertEquals("SELECT pg_sleep(?);", report.getSql());
+            assertEquals(Collections.singletonList("Double"), report.getParameterTypes());
+            assertTrue(report.getDurationMillis() >= 20L && report.getDurationMillis() < 100L);
+            assertTrue(report.getPlan().contains("Result"));
+            assertTrue(reports.isEmpty());
+            // Temporary tables are only visible on the connection that made them
+            store.transaction(tx -> {
+                try(final Statement statement = tx.getConnection().createStatement()) {
+                    statement.execute("CREATE TEMP TABLE slow_temp (id INT) ON COMMIT DROP;");
+                    statement.execute("INSERT INTO slow_temp VALUES (1);");
+                }
+                store.sql("SELECT pg_sleep(0.05) FROM slow_temp;", PreparedStatement::execute);
+            });
+            final SlowQuery temp = reports.poll(5L, TimeUnit.SECONDS);
+            assertNotNull(temp);
+            assertNotNull(temp.getPlan());
+            // Plain SELECTs are run again for their actual timings once
+            // asked to, but nothing that might write or lock
+            store.setExplainAnalyze(true);
+            store.sql("SELECT pg_sleep(0.05);", PreparedStatement::execute);
+            final SlowQuery analyzed = reports.poll(5L, TimeUnit.SECONDS);
+            assertNotNull(analyzed);
+            assertTrue(analyzed.getPlan().contains("actual time"));
+            store.sql("WITH slow AS (SELECT pg_sleep(0.05)) SELECT * FROM slow;", PreparedStatement::execute);
+            final SlowQuery planned = reports.poll(5L, TimeUnit.SECONDS);
+            assertNotNull(planned);
+            assertFalse(planned.getPlan().contains("actual time"));
+            // ...and leaves the connection as it found it
+            store.sql("SELECT 1;", c -> assertTrue(c.getConnection().getAutoCommit()));
+        } finally {
+            store.setExplainAnalyze(false);
+            store.setSlowQueryThresholdMillis(0L);
+            store.setExplainSampleRate(sampleRate);
+            store.setSlowQueryListener(listener);
+        }
+    }
+    
+    @Test
+    public void schemaBootstrap() {
+        if(!canTest()) {
+            return;
+        }
+        final String index = "idx_btree_" + TEST_DATA_TABLE + "_name";
+        store.sql("DROP INDEX " + index + ';');
+        store.mapSync(NumericTestDataClass.class);
+        // A fresh store, so the catalog is read again
+        final PgStore other = PgStore.fromEnv();
+        other.connect();
+        try {
+            other.setSchemaMode(SchemaMode.VALIDATE);
+            try {
+                other.mapSync(CorrectTestDataClass.class);
+                throw new AssertionError("Mapping with a missing index should fail when validating");
+            } catch(final IllegalStateException e) {
+                assertTrue(e.getMessage().contains(index));
+            }
+            other.setSchemaMode(SchemaMode.CREATE);
+            other.bootstrap(Collections.singletonList(CorrectTestDataClass.class)).join();
+            final boolean[] exists = {false};
+            other.sql("SELECT 1 FROM pg_indexes WHERE indexname = ?;", c -> {
+                c.setString(1, index);
+                exists[0] = c.executeQuery().next();
+            });
+            assertTrue(exists[0]);
+            assertTrue(other.isMappedSync(CorrectTestDataClass.class));
+            // Dropped after the other store read the catalog, which has to be
+            // read again to notice
+            store.sql("DROP TABLE " + NUMERIC_TEST_DATA_TABLE + ';');
+            other.mapSync(NumericTestDataClass.class).save(new NumericTestDataClass(1, "one"));
+            assertEquals(Optional.of(new NumericTestDataClass(1, "one")), other.mapSync(NumericTestDataClass.class).load(1));
+        } finally {
+            other.disconnect();
+            store.sql("DROP TABLE IF EXISTS " + NUMERIC_TEST_DATA_TABLE + ';');
+        }
+    }
+    
+    @Test
+    public void delete() {
+        if(!canTest()) {
+            return;
+        }
+        final CorrectTestDataClass test = new CorrectTestDataClass("1234", "test", "something");
+        store.mapSync(CorrectTestDataClass.class).save(test);
+        store.mapSync(CorrectTestDataClass.class).delete("1234");
+        assertEquals(Optional.empty(), store.mapSync(CorrectTestDataClass.class).load("1234"));
+    }
+    
+    @Test
+    public void asyncMappers() {
+        if(!canTest()) {
+            return;
+        }
+        asyncRoundTrip(store.mapAsync(CorrectTestDataClass.class));
+        final ReactivePgStore reactive = ReactivePgStore.fromEnv();
+        reactive.connect();
+        try {
+            asyncRoundTrip(reactive.mapAsync(CorrectTestDataClass.class));
+            // Both map entities the same way, to the same table
+            final CorrectTestDataClass entity = new CorrectTestDataClass("shared", "test", "something");
+            reactive.mapAsync(CorrectTestDataClass.class).save(entity).join();
+            assertEquals(Optional.of(entity), store.mapSync(CorrectTestDataClass.class).load("shared"));
+        } finally {
+            reactive.disconnect();
+        }
+    }
+    
+    private void asyncRoundTrip(final AsyncMapper<CorrectTestDataClass> mapper) {
+        final CorrectTestDataClass first = new CorrectTestDataClass("async-1", "test", "something");
+        final CorrectTestDataClass second = new CorrectTestDataClass("async-2", "test", "something else");
+        mapper.save(first).join();
+        assertEquals(Optional.of(first), mapper.load("async-1").join());
+        assertEquals(Collections.emptyList(), mapper.saveAll(Arrays.asList(first, second)).join());
+        final Map<Object, CorrectTestDataClass> loaded = mapper.loadMany(Arrays.asList("async-1", "async-2", "missing")).join();
+        assertEquals(2, loaded.size());
+        assertEquals(second, loaded.get("async-2"));
+        mapper.delete("async-1").join();
+        mapper.delete("async-2").join();
+        assertEquals(Optional.empty(), mapper.load("async-1").join());
+        assertTrue(mapper.loadMany(Arrays.asList("async-1", "async-2")).join().isEmpty());
+    }
+    
+    @Test
+    public void reactiveSchemaRetries() {
+        if(!canTest()) {
+            return;
+        }
+        store.sql("DROP TABLE IF EXISTS " + NUMERIC_TEST_DATA_TABLE + ';');
+        // Creating the table fails while a type has its name
+        store.sql("CREATE TYPE " + NUMERIC_TEST_DATA_TABLE + " AS (id INT);");
+        final ReactivePgStore reactive = ReactivePgStore.fromEnv();
+        reactive.connect();
+        try {
+            final ReactivePgMapper<NumericTestDataClass> mapper = reactive.mapAsync(NumericTestDataClass.class);
+            assertTrue(mapper.load(1).handle((loaded, e) -> e != null).join());
+            store.sql("DROP TYPE " + NUMERIC_TEST_DATA_TABLE + ';');
+            // The next operation creates the table again, instead of failing
+            mapper.save(new NumericTestDataClass(1, "one")).join();
+            assertEquals(Optional.of(new NumericTestDataClass(1, "one")), mapper.load(1).join());
+        } finally {
+            reactive.disconnect();
+            store.sql("DROP TYPE IF EXISTS " + NUMERIC_TEST_DATA_TABLE + ';');
+            store.sql("DROP TABLE IF EXISTS " + NUMERIC_TEST_DATA_TABLE + ';');
+        }
+    }
+    
+    @Test
+    public void crossNodeCacheInvalidation() throws InterruptedException {
+        if(!canTest()) {
+            return;
+        }
+        // Pretend to be a second node using the same database
+        final PgStore other = PgStore.fromEnv();
+        other.connect();
+        try {
+            final PgMapper<CachedTestDataClass> mapper = store.mapSync(CachedTestDataClass.class);
+            final PgMapper<CachedTestDataClass> otherMapper = other.mapSync(CachedTestDataClass.class);
+            mapper.save(new CachedTestDataClass("cached", "before"));
+            // Let our own notification for that save arrive before caching anything
+            Thread.sleep(500L);
+            assertEquals("before", mapper.load("cached").map(CachedTestDataClass::getName).orElse(null));
+            assertEquals(1, mapper.getCache().size());
+            otherMapper.save(new CachedTestDataClass("cached", "after"));
+            final long deadline = System.currentTimeMillis() + 5000L;
+            while(mapper.getCache().size() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+            }
+            assertEquals("after", mapper.load("cached").map(CachedTestDataClass::getName).orElse(null));
+            System.out.println("crossNodeCacheInvalidation(): Cache was invalidated by the other node");
+        } finally {
+            other.disconnect();
+        }
+    }
+    
+    @Test
+    public void shardedStore() throws InterruptedException {
+        if(!canTest()) {
+            return;
+        }
+        // Schemas stand in for separate clusters
+        for(final String shard : Arrays.asList("a", "b", "c")) {
+            store.sql("CREATE SCHEMA IF NOT EXISTS pgorm_shard_" + shard + ';');
+        }
+        final Map<String, PgStore> shards = shardStores();
+        final PgStore added = shards.remove("c");
+        final ShardMapConfig config = ShardMapConfig.builder().syncIntervalMillis(100L).switchTimeoutMillis(10_000L).build();
+        final ShardedPgStore sharded = new ShardedPgStore(shards, new ShardRing(shards.keySet()), config);
+        // Another node using the same shards
+        final Map<String, PgStore> otherShards = shardStores();
+        final PgStore otherAdded = otherShards.remove("c");
+        final ShardedPgStore other = new ShardedPgStore(otherShards, new ShardRing(Arrays.asList("a", "b")), config);
+        sharded.connect();
+        other.connect();
+        try {
+            final ShardedPgMapper<CorrectTestDataClass> mapper = sharded.map(CorrectTestDataClass.class);
+            final ShardedPgMapper<CorrectTestDataClass> otherMapper = other.map(CorrectTestDataClass.class);
+            final List<CorrectTestDataClass> entities = IntStream.range(0, 100)
+                    .mapToObj(i -> new CorrectTestDataClass(String.format("shard-%03d", i), "name", "something"))
+                    .collect(Collectors.toList());
+            mapper.saveAll(entities);
+            assertEquals(100, mapper.loadMany(entities.stream().map(CorrectTestDataClass::getId).collect(Collectors.toList())).size());
+            assertTrue(mapper.getShard("a").query().count() > 0 && mapper.getShard("b").query().count() > 0);
+            // Merged in order, and cut off at the limit
+            try(final Stream<CorrectTestDataClass> page = mapper.query(q -> q.eq("name", "name").orderBy("id").limit(10),
+                    Comparator.comparing(CorrectTestDataClass::getId))) {
+                assertEquals(entities.subList(0, 10), page.collect(Collectors.toList()));
+            }
+            // Grow onto a third shard, writing from both nodes while rebalancing
+            sharded.addShard("c", added);
+            other.addShard("c", otherAdded);
+            sharded.beginRebalance(sharded.getRing().withShard("c"));
+            mapper.save(new CorrectTestDataClass("shard-100", "name", "during"));
+            mapper.delete("shard-000");
+            assertEquals(100, mapper.count(q -> q.eq("name", "name")));
+            // Backfilling waits for the other node to start dual-writing
+            sharded.backfill();
+            assertNotNull(other.getTarget());
+            otherMapper.save(new CorrectTestDataClass("shard-101", "name", "other"));
+            // A dual-write that saved on the old shard, but died before it
+            // copied, is copied again before switching over
+            final ShardRing grown = sharded.getTarget();
+            final CorrectTestDataClass moving = entities.subList(1, 100).stream()
+                    .filter(entity -> grown.shardFor(entity.getId()).equals("c")).findFirst().orElseThrow(AssertionError::new);
+            final CorrectTestDataClass newer = new CorrectTestDataClass(moving.getId(), "name", "newer");
+            mapper.getShard(sharded.getRing().shardFor(moving.getId())).save(newer);
+            sharded.getShards().get("a").sql("INSERT INTO pgorm_shard_copies (name, table_name, pk, created_at) VALUES ('default', '"
+                    + TEST_DATA_TABLE + "', '" + moving.getId() + "', now() - INTERVAL '1 hour');");
+            sharded.completeRebalance();
+            assertEquals(Optional.of(newer), mapper.load(moving.getId()));
+            assertEquals(RebalancePhase.STABLE, sharded.getPhase());
+            assertEquals(101, mapper.count(q -> q.eq("name", "name")));
+            assertTrue(mapper.getShard("c").query().count() > 0);
+            assertEquals(Optional.of(new CorrectTestDataClass("shard-100", "name", "during")), mapper.load("shard-100"));
+            assertEquals(Optional.of(new CorrectTestDataClass("shard-101", "name", "other")), mapper.load("shard-101"));
+            assertFalse(mapper.load("shard-000").isPresent());
+            for(final CorrectTestDataClass entity : entities.subList(1, 100)) {
+                assertEquals(Optional.of(entity == moving ? newer : entity), mapper.load(entity.getId()));
+            }
+            // Both nodes route by the persisted ring, even one that starts later
+            assertEquals(sharded.getRing().getShards(), other.getRing().getShards());
+            final ShardedPgStore late = new ShardedPgStore(shardStores(), new ShardRing(Arrays.asList("a", "b")), config);
+            late.connect();
+            try {
+                assertEquals(new HashSet<>(Arrays.asList("a", "b", "c")), late.getRing().getShards());
+                assertEquals(Optional.of(entities.get(1)), late.map(CorrectTestDataClass.class).load(entities.get(1).getId()));
+            } finally {
+                late.disconnect();
+            }
+            // Strays on a shard don't cut its page short
+            mapper.getShard("c").saveAll(entities.subList(1, 100));
+            try(final Stream<CorrectTestDataClass> page = mapper.query(q -> q.eq("name", "name").orderBy("id").limit(10),
+                    Comparator.comparing(CorrectTestDataClass::getId))) {
+                assertEquals(entities.subList(1, 11), page.collect(Collectors.toList()));
+            }
+            // Nodes that don't catch up hold the rebalance back
+            other.disconnect();
+            final ShardedPgStore stuck = new ShardedPgStore(shardStores(), new ShardRing(Arrays.asList("a", "b")),
+                    ShardMapConfig.builder().syncIntervalMillis(60_000L).build());
+            stuck.connect();
+            try {
+                sharded.beginRebalance(sharded.getRing().withoutShard("c"));
+                final ShardedPgStore impatient = new ShardedPgStore(shardStores(), new ShardRing(Arrays.asList("a", "b")),
+                        ShardMapConfig.builder().switchTimeoutMillis(200L).build());
+                impatient.connect();
+                try {
+                    impatient.backfill();
+                    throw new AssertionError("Backfilled before every node was dual-writing");
+                } catch(final IllegalStateException e) {
+                    assertTrue(e.getMessage().contains(stuck.getNode()));
+                } finally {
+                    impatient.disconnect();
+                }
+            } finally {
+                stuck.disconnect();
+            }
+            // Now that it's gone, nothing's left to wait for, and the strays
+            // are cleaned up
+            sharded.abortRebalance();
+            assertEquals(RebalancePhase.STABLE, sharded.getPhase());
+            assertEquals(101, mapper.count(q -> q.eq("name", "name")));
+            // A node that hasn't read the shard map for the node timeout
+            // stops writing, since nobody's waiting for it any more
+            final ShardedPgStore fenced = new ShardedPgStore(shardStores(), new ShardRing(Arrays.asList("a", "b")),
+                    ShardMapConfig.builder().syncIntervalMillis(60_000L).nodeTimeoutMillis(200L).build());
+            fenced.connect();
+            try {
+                final ShardedPgMapper<CorrectTestDataClass> fencedMapper = fenced.map(CorrectTestDataClass.class);
+                Thread.sleep(300L);
+                try {
+                    fencedMapper.save(new CorrectTestDataClass("shard-102", "name", "fenced"));
+                    throw new AssertionError("Wrote without having read the shard map for the node timeout");
+                } catch(final IllegalStateException e) {
+                    assertTrue(e.getMessage().contains(fenced.getNode()));
+                }
+                assertFalse(mapper.load("shard-102").isPresent());
+            } finally {
+                fenced.disconnect();
+            }
+        } finally {
+            other.disconnect();
+            sharded.disconnect();
+            for(final String shard : Arrays.asList("a", "b", "c")) {
+                store.sql("DROP SCHEMA IF EXISTS pgorm_shard_" + shard + " CASCADE;");
+            }
+        }
+    }
+    
+    private static Map<String, PgStore> shardStores() {
+        final Map<String, PgStore> shards = new LinkedHashMap<>();
+        for(final String shard : Arrays.asList("a", "b", "c")) {
+            final String url = System.getenv("POSTGRES_URL");
+            shards.put(shard, new PgStore((url.contains("?") ? url + '&' : url + '?') + "currentSchema=pgorm_shard_" + shard,
+                    System.getenv("POSTGRES_USERNAME"), System.getenv("POSTGRES_PASSWORD")));
+        }
+        return shards;
+    }
+    
+    @Test
+    public void replicaReads() throws InterruptedException {
+        if(!canTest()) {
+            return;
+        }
+        // A schema of its own stands in for a replica that's behind, next
+        // to one that's down
+        store.sql("CREATE SCHEMA IF NOT EXISTS pgorm_replica;");
+        final HikariConfig replica = new HikariConfig();
+        replica.setJdbcUrl(System.getenv("POSTGRES_URL"));
+        replica.setUsername(System.getenv("POSTGRES_USERNAME"));
+        replica.setPassword(System.getenv("POSTGRES_PASSWORD"));
+        replica.setSchema("pgorm_replica");
+        final HikariConfig down = new HikariConfig();
+        down.setJdbcUrl("jdbc:postgresql://127.0.0.1:1/nothing");
+        down.setConnectionTimeout(250L);
+        final HikariConfig primary = new HikariConfig();
+        primary.setJdbcUrl(System.getenv("POSTGRES_URL"));
+        primary.setUsername(System.getenv("POSTGRES_USERNAME"));
+        primary.setPassword(System.getenv("POSTGRES_PASSWORD"));
+        final HikariConfig stale = new HikariConfig();
+        replica.copyStateTo(stale);
+        final PgStore behind = new PgStore(stale);
+        final PgStore replicated = new PgStore(primary, ReplicaConfig.builder().replica(replica).replica(down)
+                .healthCheckIntervalMillis(100L).readYourWritesMillis(300L).build());
+        behind.connect();
+        replicated.connect();
+        try {
+            behind.mapSync(NumericTestDataClass.class).save(new NumericTestDataClass(1, "stale"));
+            behind.mapSync(CorrectTestDataClass.class).save(new CorrectTestDataClass("replicated", "stale", "something"));
+            final PgMapper<NumericTestDataClass> mapper = replicated.mapSync(NumericTestDataClass.class);
+            final PgMapper<CorrectTestDataClass> cached = replicated.mapSync(CorrectTestDataClass.class);
+            mapper.save(new NumericTestDataClass(1, "fresh"));
+            cached.save(new CorrectTestDataClass("replicated", "fresh", "something"));
+            // Pinned to the primary right after writing
+            assertEquals("fresh", mapper.load(1).map(NumericTestDataClass::getName).orElse(null));
+            Thread.sleep(500L);
+            // Then reads go to the replica that's up, never the one that's down
+            for(int i = 0; i < 10; i++) {
+                assertEquals("stale", mapper.load(1).map(NumericTestDataClass::getName).orElse(null));
+            }
+            assertEquals("stale", replicated.mapAsync(NumericTestDataClass.class).load(1).join().map(NumericTestDataClass::getName).orElse(null));
+            // Cached entities are only ever loaded from the primary, so a
+            // stale one can't be served from the cache later on
+            assertEquals("fresh", cached.load("replicated").map(CorrectTestDataClass::getName).orElse(null));
+            assertEquals("fresh", cached.loadMany(Collections.singletonList("replicated")).get("replicated").getName());
+            // Write-behind saves pin the caller that made them, not the
+            // flusher thread that wrote them
+            final AsyncPgMapper<NumericTestDataClass> async = replicated.mapAsync(NumericTestDataClass.class);
+            async.enableWriteBehind(WriteBehindConfig.builder().flushIntervalMillis(50L).build());
+            async.save(new NumericTestDataClass(1, "behind")).join();
+            assertEquals("behind", mapper.load(1).map(NumericTestDataClass::getName).orElse(null));
+            async.disableWriteBehind();
+            // Coalesced batches are run by the coalescer's thread, so a
+            // pinned caller's loads skip them and go to the primary...
+            async.enableLoadCoalescing(10L, 100);
+            assertEquals("behind", async.load(1).join().map(NumericTestDataClass::getName).orElse(null));
+            assertEquals(0L, async.getLoadCoalescer().getBatches());
+            Thread.sleep(500L);
+            // ...and are coalesced, and go to the replica, once it isn't
+            assertEquals("stale", async.load(1).join().map(NumericTestDataClass::getName).orElse(null));
+            assertEquals(1L, async.getLoadCoalescer().getBatches());
+            async.disableLoadCoalescing();
+        } finally {
+            replicated.disconnect();
+            behind.disconnect();
+            store.sql("DROP SCHEMA pgorm_replica CASCADE;");
+            store.sql("DROP TABLE IF EXISTS " + NUMERIC_TEST_DATA_TABLE + ';');
+        }
+    }
+    
+    @Test
+    public void changeFeed() throws InterruptedException {
+        if(!canTest() || !logicalWal("changeFeed()")) {
+            return;
+        }
+        final PgMapper<CorrectTestDataClass> mapper = store.mapSync(CorrectTestDataClass.class);
+        final BlockingQueue<ChangeEvent<CorrectTestDataClass>> events = new LinkedBlockingQueue<>();
+        final ChangeFeed feed = store.changeFeed(ChangeFeedConfig.builder().slotName("pgorm_test").publicationName("pgorm_test").build())
+                .subscribe(CorrectTestDataClass.class, events::add)
+                .start();
+        try {
+            mapper.save(new CorrectTestDataClass("feed", "before", "something"));
+            mapper.save(new CorrectTestDataClass("feed", "after", "something"));
+            mapper.delete("feed");
+            final ChangeEvent<CorrectTestDataClass> insert = events.poll(10, TimeUnit.SECONDS);
+            assertNotNull(insert);
+            assertEquals(ChangeEvent.Type.INSERT, insert.getType());
+            assertEquals(new CorrectTestDataClass("feed", "before", "something"), insert.getEntity());
+            final ChangeEvent<CorrectTestDataClass> update = events.poll(10, TimeUnit.SECONDS);
+            assertNotNull(update);
+            assertEquals(ChangeEvent.Type.UPDATE, update.getType());
+            assertEquals("after", update.getEntity().getName());
+            final ChangeEvent<CorrectTestDataClass> delete = events.poll(10, TimeUnit.SECONDS);
+            assertNotNull(delete);
+            assertEquals(ChangeEvent.Type.DELETE, delete.getType());
+            assertEquals("feed", delete.getPrimaryKey());
+            // Transactions are handled in commit order
+            assertTrue(insert.getLsn() < update.getLsn() && update.getLsn() < delete.getLsn());
+            final long deadline = System.currentTimeMillis() + 5000L;
+            while(feed.getCheckpoint() < delete.getLsn() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+            }
+            assertEquals(delete.getLsn(), feed.getCheckpoint());
+        } finally {
+            feed.drop();
+        }
+    }
+    
+    @Test
+    public void changeFeedQuietCheckpoint() throws InterruptedException {
+        if(!canTest() || !logicalWal("changeFeedQuietCheckpoint()")) {
+            return;
+        }
+        final PgMapper<CorrectTestDataClass> mapper = store.mapSync(CorrectTestDataClass.class);
+        final BlockingQueue<ChangeEvent<CorrectTestDataClass>> events = new LinkedBlockingQueue<>();
+        final ChangeFeed feed = store.changeFeed(ChangeFeedConfig.builder().slotName("pgorm_test").publicationName("pgorm_test").build())
+                .subscribe(CorrectTestDataClass.class, events::add)
+                .start();
+        try {
+            mapper.save(new CorrectTestDataClass("quiet", "name", "something"));
+            final ChangeEvent<CorrectTestDataClass> insert = events.poll(10, TimeUnit.SECONDS);
+            assertNotNull(insert);
+            // Nothing the feed is subscribed to changes after this
+            store.sql("CREATE TABLE IF NOT EXISTS pgorm_unsubscribed (id INT);");
+            for(int i = 0; i < 10; i++) {
+                store.sql("INSERT INTO pgorm_unsubscribed (id) VALUES (" + i + ");");
+            }
+            final long deadline = System.currentTimeMillis() + 10_000L;
+            while(feed.getCheckpoint() <= insert.getLsn() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+            }
+            assertTrue(feed.getCheckpoint() > insert.getLsn());
+            assertTrue(events.isEmpty());
+        } finally {
+            feed.drop();
+            store.sql("DROP TABLE IF EXISTS pgorm_unsubscribed;");
+        }
+    }
+    
+    @Test
+    public void changeFeedUnchangedDocuments() throws InterruptedException {
+        if(!canTest() || !logicalWal("changeFeedUnchangedDocuments()")) {
+            return;
+        }
+        final PgMapper<LargeTestDataClass> mapper = store.mapSync(LargeTestDataClass.class);
+        // Random enough not to compress, so the document is TOASTed
+        final StringBuilder name = new StringBuilder();
+        final Random random = new Random(1234L);
+        for(int i = 0; i < 20_000; i++) {
+            name.append((char) ('a' + random.nextInt(26)));
+        }
+        final LargeTestDataClass entity = new LargeTestDataClass("toasted", name.toString(), Lazy.of(Collections.singletonList("entry")));
+        mapper.save(entity);
+        try {
+            for(final boolean full : new boolean[]{false, true}) {
+                final BlockingQueue<ChangeEvent<LargeTestDataClass>> events = new LinkedBlockingQueue<>();
+                final ChangeFeed feed = store.changeFeed(ChangeFeedConfig.builder().slotName("pgorm_test").publicationName("pgorm_test")
+                        .replicaIdentityFull(full).build())
+                        .subscribe(LargeTestDataClass.class, events::add)
+                        .start();
+                try {
+                    // Only the compressed column changes
+                    store.sql("UPDATE " + LARGE_TEST_DATA_TABLE + " SET history = NULL WHERE id = 'toasted';");
+                    final ChangeEvent<LargeTestDataClass> update = events.poll(10, TimeUnit.SECONDS);
+                    assertNotNull(update);
+                    assertEquals(ChangeEvent.Type.UPDATE, update.getType());
+                    assertEquals("toasted", update.getPrimaryKey());
+                    if(full) {
+                        assertFalse(update.isDocumentUnchanged());
+                        assertEquals(name.toString(), update.getEntity().getName());
+                    } else {
+                        assertTrue(update.isDocumentUnchanged());
+                        assertNull(update.getEntity());
+                    }
+                } finally {
+                    feed.drop();
+                }
+            }
+        } finally {
+            store.sql("DROP TABLE IF EXISTS " + LARGE_TEST_DATA_TABLE + ';');
+        }
+    }
+    
+    private boolean logicalWal(final String test) {
+        final String[] walLevel = {null};
+        store.sql("SHOW wal_level;", s -> {
+            try(final ResultSet resultSet = s.executeQuery()) {
+                resultSet.next();
+                walLevel[0] = resultSet.getString(1);
+            }
+        });
+        if(!"logical".equals(walLevel[0])) {
+            System.out.println(test + ": Skipping, wal_level is " + walLevel[0]);
+            return false;
+        }
+        return true;
+    }
+    
     @Test(expected = IllegalStateException.class)
     public void noPrimaryKeyThrowsException() {
         if(!canTest()) {
@@ -160,4 +1299,100 @@ public class PgMapperTest {
         
         private String something;
     }
-}
\ No newline at end of file
+    
+    @Value
+    @Table(NUMERIC_TEST_DATA_TABLE)
+    @ToString
+    @SuppressWarnings("WeakerAccess")
+    @EqualsAndHashCode
+    public static final class NumericTestDataClass {
+        @PrimaryKey
+        private int id;
+        
+        private String name;
+    }
+    
+    @Value
+    @Table(TEST_DATA_TABLE)
+    @Cached(invalidateAcrossNodes = true)
+    @ToString
+    @SuppressWarnings("WeakerAccess")
+    @EqualsAndHashCode
+    public static final class CachedTestDataClass {
+        @PrimaryKey
+        private String id;
+        
+        private String name;
+    }
+    
+    @Value
+    @Table(TEST_DATA_TABLE)
+    @ToString
+    @SuppressWarnings("WeakerAccess")
+    @EqualsAndHashCode
+    public static final class VersionedTestDataClass {
+        @PrimaryKey
+        private String id;
+        
+        private String name;
+        
+        @Version
+        @NonFinal
+        private long version;
+    }
+    
+    @Value
+    @Table(SCORED_TEST_DATA_TABLE)
+    @Index(columns = {"kind", "score DESC"}, where = "score > 0")
+    @SuppressWarnings("WeakerAccess")
+    public static final class ScoredTestDataClass {
+        @PrimaryKey
+        private String id;
+        
+        @Column(indexed = false)
+        private String kind;
+        
+        @Column
+        private int score;
+    }
+    
+    @Value
+    @Table(value = EVENT_TEST_DATA_TABLE, partitioning = Partitioning.RANGE, partitionField = "at",
+            partitionInterval = PartitionInterval.DAY)
+    @SuppressWarnings("WeakerAccess")
+    public static final class EventTestDataClass {
+        @PrimaryKey
+        private String id;
+        
+        private long at;
+    }
+    
+    @Value
+    @Table(LARGE_TEST_DATA_TABLE)
+    @SuppressWarnings("WeakerAccess")
+    public static final class LargeTestDataClass {
+        @PrimaryKey
+        private String id;
+        
+        private String name;
+        
+        @Compressed
+        private Lazy<List<String>> history;
+    }
+    
+    @Value
+    @SuppressWarnings("WeakerAccess")
+    public static final class NameView {
+        private String name;
+    }
+    
+    @Value
+    @Table(value = HASHED_TEST_DATA_TABLE, partitioning = Partitioning.HASH, partitions = 4)
+    @SuppressWarnings("WeakerAccess")
+    public static final class HashedTestDataClass {
+        @PrimaryKey
+        private String id;
+        
+        private String name;
+    }
+}